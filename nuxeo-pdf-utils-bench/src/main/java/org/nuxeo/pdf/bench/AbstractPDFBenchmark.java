@@ -0,0 +1,86 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Common state of the benchmarks: A generated pdf of <code>pages</code>
+ * pages, with <code>imageKB</code> kilobytes of images, in the shape given by
+ * <code>variant</code> (see <code>PDFCorpusGenerator</code>), passed as a
+ * plain <code>FileBlob</code>. No nuxeo runtime is started: Configuration
+ * properties are read from the system properties.
+ * <p>
+ * Select the parameters on the command line, for example:
+ *
+ * <pre>
+ * java -jar target/benchmarks.jar Watermarking -p pages=100 -p imageKB=0
+ * java -jar target/benchmarks.jar Merge -p pages=10000 -p variant=plain,perPageResources
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public abstract class AbstractPDFBenchmark {
+
+    @Param({ "10", "100", "1000" })
+    public int pages;
+
+    @Param({ "0", "10240" })
+    public int imageKB;
+
+    // See PDFCorpusGenerator.setVariants(): "rotated", "perPageResources",
+    // "mixedRotation+sharedImage", ...
+    @Param({ "plain" })
+    public String variant;
+
+    protected File pdfFile;
+
+    protected FileBlob pdfBlob;
+
+    @Setup(Level.Trial)
+    public void createDocument() throws IOException {
+
+        pdfFile = BenchDocuments.createPdf(pages, imageKB, variant);
+        pdfBlob = BenchDocuments.toBlob(pdfFile, "application/pdf");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteDocument() {
+
+        pdfFile.delete();
+    }
+}
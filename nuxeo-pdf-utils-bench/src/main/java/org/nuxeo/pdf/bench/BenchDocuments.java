@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+
+/**
+ * Builds the inputs of the benchmarks in temporary files (see
+ * <code>PDFCorpusGenerator</code>), so no large file is stored in the
+ * repository.
+ */
+public class BenchDocuments {
+
+    /**
+     * Create a pdf of <code>inPages</code> pages of text. When
+     * <code>inImageKB</code> is > 0, each page also draws an uncompressible
+     * gray image, so the file weighs at least <code>inImageKB</code>
+     * kilobytes. See <code>PDFCorpusGenerator</code> for the variants.
+     *
+     * @param inPages
+     * @param inImageKB
+     * @param inVariants
+     * @return the file, to be deleted by the caller
+     * @throws IOException
+     */
+    public static File createPdf(int inPages, int inImageKB, String inVariants)
+            throws IOException {
+
+        return new PDFCorpusGenerator().setPages(inPages).setImageKB(inImageKB).setVariants(
+                inVariants).generate();
+    }
+
+    public static File createPdf(int inPages, int inImageKB)
+            throws IOException {
+        return createPdf(inPages, inImageKB, null);
+    }
+
+    /**
+     * Create an image file to be used as a watermark
+     *
+     * @param inFormat "png" or "jpg"
+     * @return the file, to be deleted by the caller
+     * @throws IOException
+     */
+    public static File createImageFile(String inFormat) throws IOException {
+
+        BufferedImage image = new BufferedImage(200, 80,
+                "png".equals(inFormat) ? BufferedImage.TYPE_INT_ARGB
+                        : BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.LIGHT_GRAY);
+        g.fillRect(10, 10, 180, 60);
+        g.setColor(Color.DARK_GRAY);
+        g.drawString("nuxeo-pdf-utils", 40, 45);
+        g.dispose();
+
+        File file = File.createTempFile("nuxeo-pdfutils-bench-", "."
+                + inFormat);
+        ImageIO.write(image, inFormat, file);
+        return file;
+    }
+
+    public static FileBlob toBlob(File inFile, String inMimeType) {
+
+        FileBlob blob = new FileBlob(inFile);
+        blob.setFilename(inFile.getName());
+        blob.setMimeType(inMimeType);
+        return blob;
+    }
+
+    /**
+     * Delete the temporary file of a result, so a benchmark does not fill the
+     * disk
+     *
+     * @param inBlob
+     */
+    public static void discard(Blob inBlob) {
+
+        if (inBlob instanceof FileBlob && ((FileBlob) inBlob).getFile() != null) {
+            ((FileBlob) inBlob).getFile().delete();
+        }
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import org.nuxeo.pdf.PDFInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * <code>PDFInfo.run()</code>
+ */
+public class InfoBenchmark extends AbstractPDFBenchmark {
+
+    @Benchmark
+    public PDFInfo run() {
+
+        PDFInfo info = new PDFInfo(pdfBlob);
+        info.run();
+        return info;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.pdf.PDFMerge;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * <code>PDFMerge.merge()</code> of the document with itself
+ */
+public class MergeBenchmark extends AbstractPDFBenchmark {
+
+    @Benchmark
+    public long merge() throws IOException, COSVisitorException {
+
+        PDFMerge merge = new PDFMerge(pdfBlob);
+        merge.addBlob(pdfBlob);
+        Blob result = merge.merge("merged.pdf");
+        long length = result.getLength();
+        BenchDocuments.discard(result);
+        return length;
+    }
+}
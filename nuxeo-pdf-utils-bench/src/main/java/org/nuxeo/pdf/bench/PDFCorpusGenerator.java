@@ -0,0 +1,533 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.io.RandomAccessFile;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.encryption.AccessPermission;
+import org.apache.pdfbox.pdmodel.encryption.BadSecurityHandlerException;
+import org.apache.pdfbox.pdmodel.encryption.StandardProtectionPolicy;
+import org.nuxeo.pdf.PDFContentBuilder;
+
+/**
+ * Generates synthetic pdfs for benchmarks and scale tests, so no large file
+ * is stored in the repository.
+ * <p>
+ * Generation is deterministic: The same settings always give the same pages,
+ * texts and images (random values come from a generator seeded with
+ * <code>seed</code>, and the document ID is derived from the settings).
+ * <p>
+ * Settings:
+ * <ul>
+ * <li><code>pages</code>: Number of pages</li>
+ * <li><code>fonts</code>: Standard fonts used by the text, in turn for each
+ * line</li>
+ * <li><code>linesPerPage</code></li>
+ * <li><code>imageKB</code>: Total size of the (uncompressible) images,
+ * which drives the size of the file. 0 for no image</li>
+ * <li><code>imageSharing</code>: One image per page, or a single image drawn
+ * on every page (a logo)</li>
+ * <li><code>rotation</code>: 0, 90, 180, 270 or <code>MIXED_ROTATION</code>
+ * (pages turn by 90 degrees)</li>
+ * <li><code>resources</code>: How fonts and images are made available to the
+ * pages (see <code>ResourceSharing</code>)</li>
+ * <li><code>userPassword</code> and <code>ownerPassword</code>: The pdf is
+ * encrypted (RC4 128 bits) if one of them is set</li>
+ * </ul>
+ * Pages are written to a scratch file as they are built, so documents of
+ * thousands of pages or several GB can be generated with a small heap.
+ * <p>
+ * <code>main()</code> writes a standard corpus in a directory (see
+ * <code>standardCorpus()</code>).
+ */
+public class PDFCorpusGenerator {
+
+    public static final int MIXED_ROTATION = -1;
+
+    /**
+     * How the pages get their resources
+     */
+    public enum ResourceSharing {
+        /** All the pages reference the same resources dictionary */
+        SHARED,
+        /** Each page has its own resources, and its own copy of the fonts */
+        PER_PAGE,
+        /** The resources are set on the page tree, and inherited */
+        INHERITED
+    }
+
+    public enum ImageSharing {
+        PER_PAGE, SHARED
+    }
+
+    public static final String[] STANDARD_FONTS = { "Helvetica",
+            "Times-Roman", "Courier", "Helvetica-Bold", "Times-Italic",
+            "Courier-Bold" };
+
+    protected static final String[] WORDS = { "nuxeo", "document", "pdf",
+            "contract", "invoice", "page", "content", "platform", "report",
+            "annual", "the", "of", "and", "a", "to", "in", "is", "for" };
+
+    protected static final COSName WIN_ANSI_ENCODING = COSName.getPDFName("WinAnsiEncoding");
+
+    protected static final int IMAGE_WIDTH = 64;
+
+    protected int pages = 10;
+
+    protected String[] fonts = { "Helvetica" };
+
+    protected int linesPerPage = 40;
+
+    protected long imageKB = 0;
+
+    protected ImageSharing imageSharing = ImageSharing.PER_PAGE;
+
+    protected int rotation = 0;
+
+    protected ResourceSharing resources = ResourceSharing.SHARED;
+
+    protected String userPassword;
+
+    protected String ownerPassword;
+
+    protected long seed = 0;
+
+    public PDFCorpusGenerator setPages(int inValue) {
+        pages = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    /**
+     * @param inValue names of standard fonts (see <code>STANDARD_FONTS</code>)
+     * @return this
+     */
+    public PDFCorpusGenerator setFonts(String... inValue) {
+        fonts = inValue == null || inValue.length == 0 ? new String[] { "Helvetica" }
+                : inValue;
+        return this;
+    }
+
+    public PDFCorpusGenerator setLinesPerPage(int inValue) {
+        linesPerPage = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    public PDFCorpusGenerator setImageKB(long inValue) {
+        imageKB = inValue < 0 ? 0 : inValue;
+        return this;
+    }
+
+    public PDFCorpusGenerator setImageSharing(ImageSharing inValue) {
+        imageSharing = inValue;
+        return this;
+    }
+
+    /**
+     * @param inValue 0, 90, 180, 270 or <code>MIXED_ROTATION</code>
+     * @return this
+     */
+    public PDFCorpusGenerator setRotation(int inValue) {
+        rotation = inValue;
+        return this;
+    }
+
+    public PDFCorpusGenerator setResources(ResourceSharing inValue) {
+        resources = inValue;
+        return this;
+    }
+
+    public PDFCorpusGenerator setPasswords(String inUserPassword,
+            String inOwnerPassword) {
+        userPassword = inUserPassword;
+        ownerPassword = inOwnerPassword;
+        return this;
+    }
+
+    public PDFCorpusGenerator setSeed(long inValue) {
+        seed = inValue;
+        return this;
+    }
+
+    public boolean isEncrypted() {
+        return userPassword != null || ownerPassword != null;
+    }
+
+    /**
+     * Applies a list of variants separated by "+" (for benchmark parameters,
+     * which are separated by commas):
+     * <code>plain</code> (no change), <code>rotated</code> (90 degrees),
+     * <code>mixedRotation</code>, <code>perPageResources</code>,
+     * <code>inheritedResources</code>, <code>sharedImage</code>,
+     * <code>fonts=N</code> (the N first standard fonts) and
+     * <code>encrypted</code> (owner password "owner", no user password)
+     *
+     * @param inVariants
+     * @return this
+     * @throws IllegalArgumentException if a variant is unknown
+     */
+    public PDFCorpusGenerator setVariants(String inVariants) {
+
+        if (inVariants == null) {
+            return this;
+        }
+        for (String v : inVariants.split("\\+")) {
+            v = v.trim();
+            if (v.isEmpty() || "plain".equals(v)) {
+                continue;
+            } else if ("rotated".equals(v)) {
+                setRotation(90);
+            } else if ("mixedRotation".equals(v)) {
+                setRotation(MIXED_ROTATION);
+            } else if ("perPageResources".equals(v)) {
+                setResources(ResourceSharing.PER_PAGE);
+            } else if ("inheritedResources".equals(v)) {
+                setResources(ResourceSharing.INHERITED);
+            } else if ("sharedImage".equals(v)) {
+                setImageSharing(ImageSharing.SHARED);
+            } else if ("encrypted".equals(v)) {
+                setPasswords(null, "owner");
+            } else if (v.startsWith("fonts=")) {
+                int count = Integer.parseInt(v.substring(6));
+                List<String> names = new ArrayList<String>();
+                for (int i = 0; i < count; i++) {
+                    names.add(STANDARD_FONTS[i % STANDARD_FONTS.length]);
+                }
+                setFonts(names.toArray(new String[names.size()]));
+            } else {
+                throw new IllegalArgumentException("Unknown variant <" + v
+                        + ">");
+            }
+        }
+        return this;
+    }
+
+    /**
+     * @return a file name describing the settings
+     */
+    public String getName() {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(pages).append("p-").append(fonts.length).append("f-").append(
+                imageKB).append("kb");
+        if (imageKB > 0 && imageSharing == ImageSharing.SHARED) {
+            sb.append("-sharedimage");
+        }
+        if (rotation != 0) {
+            sb.append("-rot").append(
+                    rotation == MIXED_ROTATION ? "mixed" : "" + rotation);
+        }
+        sb.append("-").append(resources.name().toLowerCase());
+        if (isEncrypted()) {
+            sb.append("-encrypted");
+        }
+        if (seed != 0) {
+            sb.append("-s").append(seed);
+        }
+        return sb.append(".pdf").toString();
+    }
+
+    /**
+     * Generate the pdf in a temporary file
+     *
+     * @return the file, to be deleted by the caller
+     * @throws IOException
+     */
+    public File generate() throws IOException {
+
+        File file = File.createTempFile("nuxeo-pdfutils-corpus-", ".pdf");
+        generate(file);
+        return file;
+    }
+
+    /**
+     * Generate the pdf in <code>inFile</code>
+     *
+     * @param inFile
+     * @throws IOException
+     */
+    public void generate(File inFile) throws IOException {
+
+        Random random = new Random(seed * 31 + getName().hashCode());
+
+        File scratch = File.createTempFile("nuxeo-pdfutils-corpus-", ".tmp");
+        RandomAccessFile scratchFile = new RandomAccessFile(scratch, "rw");
+        PDDocument doc = new PDDocument(scratchFile);
+        try {
+            COSDictionary resourcesDict = null;
+            COSBase resourcesRef = null;
+            if (resources != ResourceSharing.PER_PAGE) {
+                resourcesDict = createResources(createFonts());
+                resourcesRef = indirect(resourcesDict);
+                if (resources == ResourceSharing.INHERITED) {
+                    doc.getDocumentCatalog().getPages().getCOSDictionary().setItem(
+                            COSName.RESOURCES, resourcesRef);
+                }
+            }
+
+            int imageHeight = 0;
+            if (imageKB > 0) {
+                long bytes = imageKB * 1024;
+                imageHeight = (int) Math.max(1,
+                        (imageSharing == ImageSharing.SHARED ? bytes : bytes
+                                / pages)
+                                / IMAGE_WIDTH);
+            }
+            COSBase sharedImage = null;
+            if (imageHeight > 0 && imageSharing == ImageSharing.SHARED) {
+                sharedImage = indirect(createImage(doc, random, imageHeight));
+            }
+
+            for (int i = 1; i <= pages; i++) {
+                PDPage page = new PDPage(PDPage.PAGE_SIZE_A4);
+                if (rotation == MIXED_ROTATION) {
+                    page.setRotation(((i - 1) % 4) * 90);
+                } else if (rotation != 0) {
+                    page.setRotation(rotation);
+                }
+
+                COSDictionary pageResources = resourcesDict;
+                if (resources == ResourceSharing.PER_PAGE) {
+                    pageResources = createResources(createFonts());
+                    page.getCOSDictionary().setItem(COSName.RESOURCES,
+                            pageResources);
+                } else if (resources == ResourceSharing.SHARED) {
+                    page.getCOSDictionary().setItem(COSName.RESOURCES,
+                            resourcesRef);
+                }
+
+                PDFContentBuilder content = new PDFContentBuilder();
+                writeText(content, random, i);
+                if (imageHeight > 0) {
+                    COSBase image = sharedImage != null ? sharedImage
+                            : indirect(createImage(doc, random, imageHeight));
+                    // The image of each page gets its own name: Pages may
+                    // share their resources dictionary
+                    String name = sharedImage != null ? "Im0" : "Im" + i;
+                    getXObjects(pageResources).setItem(name, image);
+                    content.op("q").num(IMAGE_WIDTH).num(0).num(0).num(
+                            imageHeight).num(400).num(50).op("cm");
+                    content.name(name).op("Do").op("Q");
+                }
+                PDStream stream = new PDStream(content.toStream(doc));
+                stream.addCompression();
+                page.setContents(stream);
+
+                doc.addPage(page);
+            }
+
+            doc.getDocument().getTrailer().setItem(COSName.ID,
+                    createId(random));
+
+            if (isEncrypted()) {
+                StandardProtectionPolicy policy = new StandardProtectionPolicy(
+                        ownerPassword == null ? "" : ownerPassword,
+                        userPassword == null ? "" : userPassword,
+                        new AccessPermission());
+                policy.setEncryptionKeyLength(128);
+                doc.protect(policy);
+            }
+
+            doc.save(inFile);
+
+        } catch (COSVisitorException | BadSecurityHandlerException e) {
+            throw new IOException(e);
+        } finally {
+            doc.close();
+            scratch.delete();
+        }
+    }
+
+    protected COSDictionary createFonts() throws IOException {
+
+        COSDictionary fontsDict = new COSDictionary();
+        for (int i = 0; i < fonts.length; i++) {
+            COSDictionary font = new COSDictionary();
+            font.setItem(COSName.TYPE, COSName.FONT);
+            font.setItem(COSName.SUBTYPE, COSName.TYPE1);
+            font.setName(COSName.BASE_FONT, fonts[i]);
+            font.setItem(COSName.ENCODING, WIN_ANSI_ENCODING);
+            fontsDict.setItem("F" + i, indirect(font));
+        }
+        return fontsDict;
+    }
+
+    protected COSDictionary createResources(COSDictionary inFonts) {
+
+        COSDictionary dict = new COSDictionary();
+        dict.setItem(COSName.FONT, inFonts);
+        dict.setItem(COSName.XOBJECT, new COSDictionary());
+        return dict;
+    }
+
+    protected COSDictionary getXObjects(COSDictionary inResources) {
+        return (COSDictionary) inResources.getDictionaryObject(COSName.XOBJECT);
+    }
+
+    protected void writeText(PDFContentBuilder inContent, Random inRandom,
+            int inPage) {
+
+        inContent.op("BT").name("F0").num(10).op("Tf");
+        inContent.num(50).num(780).op("Td");
+        inContent.string("Page " + inPage).op("Tj");
+        for (int line = 1; line < linesPerPage; line++) {
+            if (fonts.length > 1) {
+                inContent.name("F" + (line % fonts.length)).num(10).op("Tf");
+            }
+            inContent.num(0).num(-18).op("Td");
+            inContent.string(randomLine(inRandom)).op("Tj");
+        }
+        inContent.op("ET");
+    }
+
+    protected static String randomLine(Random inRandom) {
+
+        StringBuilder sb = new StringBuilder();
+        int count = 8 + inRandom.nextInt(8);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(WORDS[inRandom.nextInt(WORDS.length)]);
+        }
+        return sb.toString();
+    }
+
+    /*
+     * Raw (not compressed) random samples: The image keeps its size in the
+     * saved file
+     */
+    protected static COSStream createImage(PDDocument inDoc, Random inRandom,
+            int inHeight) throws IOException {
+
+        COSStream stream = new COSStream(inDoc.getDocument().getScratchFile());
+        stream.setItem(COSName.TYPE, COSName.XOBJECT);
+        stream.setItem(COSName.SUBTYPE, COSName.IMAGE);
+        stream.setInt(COSName.WIDTH, IMAGE_WIDTH);
+        stream.setInt(COSName.HEIGHT, inHeight);
+        stream.setItem(COSName.COLORSPACE, COSName.DEVICEGRAY);
+        stream.setInt(COSName.BITS_PER_COMPONENT, 8);
+
+        // Written by rows, so a large image does not need a large buffer
+        byte[] row = new byte[IMAGE_WIDTH];
+        OutputStream out = stream.createUnfilteredStream();
+        try {
+            for (int i = 0; i < inHeight; i++) {
+                inRandom.nextBytes(row);
+                out.write(row);
+            }
+        } finally {
+            out.close();
+        }
+        return stream;
+    }
+
+    protected COSArray createId(Random inRandom) {
+
+        byte[] id = new byte[16];
+        inRandom.nextBytes(id);
+        COSArray array = new COSArray();
+        array.add(new COSString(id));
+        array.add(new COSString(id));
+        return array;
+    }
+
+    protected static COSObject indirect(COSBase inObject) throws IOException {
+        return new COSObject(inObject);
+    }
+
+    /**
+     * A set of documents covering the usual shapes: Small and large page
+     * counts, text only and heavy images, rotations, resource patterns and
+     * encryption.
+     *
+     * @return the generators
+     */
+    public static List<PDFCorpusGenerator> standardCorpus() {
+
+        List<PDFCorpusGenerator> corpus = new ArrayList<PDFCorpusGenerator>();
+        corpus.add(new PDFCorpusGenerator().setPages(1));
+        corpus.add(new PDFCorpusGenerator().setPages(10));
+        corpus.add(new PDFCorpusGenerator().setPages(100).setImageKB(10 * 1024));
+        corpus.add(new PDFCorpusGenerator().setPages(1000).setFonts(
+                STANDARD_FONTS));
+        corpus.add(new PDFCorpusGenerator().setPages(1000).setImageKB(
+                100 * 1024).setImageSharing(ImageSharing.PER_PAGE));
+        corpus.add(new PDFCorpusGenerator().setPages(1000).setImageKB(100).setImageSharing(
+                ImageSharing.SHARED));
+        corpus.add(new PDFCorpusGenerator().setPages(10000));
+        corpus.add(new PDFCorpusGenerator().setPages(100).setRotation(
+                MIXED_ROTATION));
+        corpus.add(new PDFCorpusGenerator().setPages(1000).setResources(
+                ResourceSharing.PER_PAGE));
+        corpus.add(new PDFCorpusGenerator().setPages(1000).setResources(
+                ResourceSharing.INHERITED));
+        corpus.add(new PDFCorpusGenerator().setPages(13).setPasswords(null,
+                "owner"));
+        corpus.add(new PDFCorpusGenerator().setPages(13).setPasswords("nuxeo",
+                "nuxeo"));
+        return corpus;
+    }
+
+    /**
+     * Writes the standard corpus in a directory. Existing files are kept: The
+     * corpus is generated once.
+     * <p>
+     * Usage: <code>PDFCorpusGenerator &lt;directory&gt; [maxPages]</code>
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+
+        if (args.length < 1) {
+            System.err.println("Usage: PDFCorpusGenerator <directory> [maxPages]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        dir.mkdirs();
+        int maxPages = args.length > 1 ? Integer.parseInt(args[1])
+                : Integer.MAX_VALUE;
+
+        for (PDFCorpusGenerator generator : standardCorpus()) {
+            if (generator.pages > maxPages) {
+                continue;
+            }
+            File file = new File(dir, generator.getName());
+            if (!file.exists()) {
+                generator.generate(file);
+            }
+            System.out.println(file.getName() + " " + file.length());
+        }
+    }
+}
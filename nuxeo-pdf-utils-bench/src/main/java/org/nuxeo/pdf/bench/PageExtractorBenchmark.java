@@ -0,0 +1,37 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.pdf.PDFPageExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * <code>PDFPageExtractor.extract()</code> of the first half of the document
+ */
+public class PageExtractorBenchmark extends AbstractPDFBenchmark {
+
+    @Benchmark
+    public long extract() {
+
+        Blob result = new PDFPageExtractor(pdfBlob).extract(1,
+                Math.max(1, pages / 2));
+        long length = result.getLength();
+        BenchDocuments.discard(result);
+        return length;
+    }
+}
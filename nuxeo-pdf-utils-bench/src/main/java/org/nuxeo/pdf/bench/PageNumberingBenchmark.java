@@ -0,0 +1,47 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.pdf.PDFPageNumbering;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+
+/**
+ * <code>PDFPageNumbering.addPageNumbers()</code>, saved the usual way or as
+ * an incremental update (see <code>PDFIncrementalSave</code>)
+ */
+public class PageNumberingBenchmark extends AbstractPDFBenchmark {
+
+    @Param({ "false", "true" })
+    public boolean incremental;
+
+    @Benchmark
+    public long addPageNumbers() throws IOException, COSVisitorException {
+
+        Blob result = new PDFPageNumbering(pdfBlob).setIncrementalSave(
+                incremental).addPageNumbers(1, 1, "Helvetica", 16, "#000000",
+                PAGE_NUMBER_POSITION.BOTTOM_RIGHT);
+        long length = result.getLength();
+        BenchDocuments.discard(result);
+        return length;
+    }
+}
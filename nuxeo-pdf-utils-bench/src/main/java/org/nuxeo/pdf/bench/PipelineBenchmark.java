@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.pdf.PDFPageNumbering;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.nuxeo.pdf.PDFPipeline;
+import org.nuxeo.pdf.PDFUtils;
+import org.nuxeo.pdf.PDFWatermarking;
+import org.openjdk.jmh.annotations.Benchmark;
+
+/**
+ * Page numbers, text watermark and document information: Chained (one load
+ * and one save per step) versus <code>PDFPipeline</code> (a single load and
+ * save)
+ */
+public class PipelineBenchmark extends AbstractPDFBenchmark {
+
+    @Benchmark
+    public long chained() throws IOException, COSVisitorException {
+
+        Blob numbered = new PDFPageNumbering(pdfBlob).addPageNumbers(1, 1,
+                "Helvetica", 10, "#000000", PAGE_NUMBER_POSITION.BOTTOM_RIGHT);
+        Blob watermarked = new PDFWatermarking(numbered).setText(
+                "CONFIDENTIAL").watermark();
+        BenchDocuments.discard(numbered);
+        Blob result = PDFUtils.setInfos(watermarked, "Benchmark", null, null);
+        BenchDocuments.discard(watermarked);
+
+        long length = result.getLength();
+        BenchDocuments.discard(result);
+        return length;
+    }
+
+    @Benchmark
+    public long pipeline() throws IOException, COSVisitorException {
+
+        Blob result = new PDFPipeline(pdfBlob).pageNumbers(
+                new PDFPageNumbering((Blob) null), 1, 1, null, 0, "Helvetica",
+                10, "#000000", PAGE_NUMBER_POSITION.BOTTOM_RIGHT).watermark(
+                new PDFWatermarking((Blob) null).setText("CONFIDENTIAL")).setInfos(
+                "Benchmark", null, null).run();
+
+        long length = result.getLength();
+        BenchDocuments.discard(result);
+        return length;
+    }
+}
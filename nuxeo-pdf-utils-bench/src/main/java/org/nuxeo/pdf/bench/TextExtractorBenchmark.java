@@ -0,0 +1,44 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.io.IOException;
+
+import org.nuxeo.pdf.PDFTextExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+
+/**
+ * <code>PDFTextExtractor.getAllExtractedLines()</code>. The text cache is
+ * disabled, so each call parses the document.
+ */
+public class TextExtractorBenchmark extends AbstractPDFBenchmark {
+
+    @Setup(Level.Trial)
+    public void disableCache() {
+
+        System.setProperty(PDFTextExtractor.TEXT_CACHE_MAX_ENTRIES_PROPERTY,
+                "0");
+    }
+
+    @Benchmark
+    public String getAllExtractedLines() throws IOException {
+
+        return new PDFTextExtractor(pdfBlob).getAllExtractedLines();
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.bench;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.pdf.PDFWatermarking;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Each watermarking mode of <code>PDFWatermarking</code>. The prepared
+ * images, overlays and incremental bases are cached by digest, as they are
+ * on a server: The benchmarks measure the steady state.
+ */
+public class WatermarkingBenchmark extends AbstractPDFBenchmark {
+
+    protected File pngFile;
+
+    protected File jpegFile;
+
+    protected File overlayFile;
+
+    protected FileBlob pngBlob;
+
+    protected FileBlob jpegBlob;
+
+    protected FileBlob overlayBlob;
+
+    @Setup(Level.Trial)
+    public void createWatermarks() throws IOException {
+
+        pngFile = BenchDocuments.createImageFile("png");
+        pngBlob = BenchDocuments.toBlob(pngFile, "image/png");
+        jpegFile = BenchDocuments.createImageFile("jpg");
+        jpegBlob = BenchDocuments.toBlob(jpegFile, "image/jpeg");
+        overlayFile = BenchDocuments.createPdf(1, 0);
+        overlayBlob = BenchDocuments.toBlob(overlayFile, "application/pdf");
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteWatermarks() {
+
+        pngFile.delete();
+        jpegFile.delete();
+        overlayFile.delete();
+    }
+
+    protected PDFWatermarking textWatermarking() {
+
+        return new PDFWatermarking(pdfBlob).setText("CONFIDENTIAL").setTextRotation(
+                45);
+    }
+
+    protected long discard(Blob inResult) {
+
+        long length = inResult.getLength();
+        BenchDocuments.discard(inResult);
+        return length;
+    }
+
+    @Benchmark
+    public long text() {
+
+        return discard(textWatermarking().watermark());
+    }
+
+    @Benchmark
+    public long textTiled() {
+
+        return discard(textWatermarking().setTiled(true).watermark());
+    }
+
+    @Benchmark
+    public long textIncrementalSave() {
+
+        return discard(textWatermarking().setIncrementalSave(true).watermark());
+    }
+
+    @Benchmark
+    public long textForDownload() {
+
+        return discard(textWatermarking().watermarkIncremental());
+    }
+
+    @Benchmark
+    public long imagePng() {
+
+        return discard(new PDFWatermarking(pdfBlob).watermarkWithImage(
+                pngBlob, 100, 100, 1f));
+    }
+
+    @Benchmark
+    public long imageJpeg() {
+
+        return discard(new PDFWatermarking(pdfBlob).watermarkWithImage(
+                jpegBlob, 100, 100, 1f));
+    }
+
+    @Benchmark
+    public long pdf() {
+
+        return discard(new PDFWatermarking(pdfBlob).watermarkWithPdf(overlayBlob));
+    }
+}
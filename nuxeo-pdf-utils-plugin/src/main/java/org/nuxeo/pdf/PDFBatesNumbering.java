@@ -0,0 +1,275 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+
+/**
+ * Bates numbering of a batch of pdfs: Each page receives a prefix followed by
+ * a zero-padded counter ("ACME000001"), and the counter continues from one
+ * document to the next.
+ * <p>
+ * The number of pages of every pdf is read first (a non-sequential parse of
+ * the page tree only, see <code>PDFUtils.getPageCount()</code>), so the range
+ * of each document is known before stamping. The documents are then stamped
+ * in parallel, on a pool of at most <code>MAX_THREADS_PROPERTY</code>
+ * threads, and the result is returned in the same order as the input.
+ * <p>
+ * Input blobs are not modified, new blobs are returned. A <code>null</code>
+ * blob (a document with no file for example) stays <code>null</code> in the
+ * result and does not use any number.
+ * <p>
+ * The batch is measured as the <code>bates</code> action (see
+ * <code>PDFMetrics</code>): Reading the page counts is the load phase,
+ * stamping is the transform phase. Each document is also measured as a
+ * <code>pageNumbers</code> action, which counts the pages.
+ *
+ * @since 7.1
+ */
+public class PDFBatesNumbering {
+
+    public static final String DEFAULT_PREFIX = "";
+
+    public static final int DEFAULT_DIGITS = 6;
+
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * Configuration property (nuxeo.conf): Max. number of threads of a
+     * numbering, whatever the value passed to <code>setThreads()</code>.
+     * Default is 8.
+     */
+    public static final String MAX_THREADS_PROPERTY = "nuxeo.pdfutils.bates.maxThreads";
+
+    protected List<Blob> blobs = new ArrayList<Blob>();
+
+    protected String prefix = DEFAULT_PREFIX;
+
+    protected int digits = DEFAULT_DIGITS;
+
+    protected int startAtNumber = 1;
+
+    protected String fontName;
+
+    protected float fontSize = 0;
+
+    protected String hex255Color = "0x000000";
+
+    protected PAGE_NUMBER_POSITION position = PAGE_NUMBER_POSITION.BOTTOM_RIGHT;
+
+    protected int threads = DEFAULT_THREADS;
+
+    public PDFBatesNumbering(BlobList inBlobs) {
+        blobs.addAll(inBlobs);
+    }
+
+    public PDFBatesNumbering(DocumentModelList inDocs, String inXPath) {
+
+        inXPath = PDFUtils.checkXPath(inXPath);
+        for (DocumentModel doc : inDocs) {
+            blobs.add((Blob) doc.getPropertyValue(inXPath));
+        }
+    }
+
+    public PDFBatesNumbering setPrefix(String inValue) {
+        prefix = inValue == null ? DEFAULT_PREFIX : inValue;
+        return this;
+    }
+
+    public PDFBatesNumbering setDigits(int inValue) {
+        digits = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    public PDFBatesNumbering setStartAtNumber(int inValue) {
+        startAtNumber = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    public PDFBatesNumbering setFontName(String inValue) {
+        fontName = inValue;
+        return this;
+    }
+
+    public PDFBatesNumbering setFontSize(float inValue) {
+        fontSize = inValue;
+        return this;
+    }
+
+    public PDFBatesNumbering setHex255Color(String inValue) {
+        hex255Color = inValue;
+        return this;
+    }
+
+    public PDFBatesNumbering setPosition(PAGE_NUMBER_POSITION inValue) {
+        position = inValue == null ? PAGE_NUMBER_POSITION.BOTTOM_RIGHT
+                : inValue;
+        return this;
+    }
+
+    /**
+     * Max. number of pdfs stamped at the same time. Each one is fully loaded
+     * in memory, so keep this small. Clamped to
+     * <code>MAX_THREADS_PROPERTY</code>.
+     *
+     * @param inValue
+     * @return this
+     */
+    public PDFBatesNumbering setThreads(int inValue) {
+        int max = (int) Math.max(1,
+                PDFUtils.getLongProperty(MAX_THREADS_PROPERTY, 8));
+        threads = inValue < 1 ? 1 : Math.min(inValue, max);
+        return this;
+    }
+
+    /**
+     * Return the first number of each pdf (-1 for a <code>null</code> blob).
+     * The last number used is in the last element of the array.
+     *
+     * @return the first numbers + the last number used
+     * @throws IOException
+     */
+    public int[] computeRanges() throws IOException {
+
+        int[] starts = new int[blobs.size() + 1];
+        int next = startAtNumber;
+        for (int i = 0; i < blobs.size(); i++) {
+            Blob blob = blobs.get(i);
+            if (blob == null) {
+                starts[i] = -1;
+            } else {
+                starts[i] = next;
+                next += PDFUtils.getPageCount(blob);
+            }
+        }
+        starts[blobs.size()] = next - 1;
+
+        return starts;
+    }
+
+    /**
+     * Stamp all the pdfs and return the new blobs, in the same order as the
+     * input.
+     *
+     * @return the numbered pdfs
+     * @throws IOException
+     * @throws COSVisitorException
+     */
+    public BlobList number() throws IOException, COSVisitorException {
+
+        PDFMetrics.Run metrics = PDFMetrics.start("bates", null);
+        for (Blob blob : blobs) {
+            metrics.input(blob);
+        }
+        try {
+            metrics.phase(PDFMetrics.Phase.LOAD);
+            int[] starts = computeRanges();
+            metrics.phase(PDFMetrics.Phase.TRANSFORM);
+            BlobList result = numberAll(starts);
+            for (Blob blob : result) {
+                metrics.output(blob);
+            }
+            return result;
+        } catch (IOException | COSVisitorException | RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            metrics.stop();
+        }
+    }
+
+    protected BlobList numberAll(int[] inStarts) throws IOException,
+            COSVisitorException {
+
+        BlobList result = new BlobList();
+
+        int poolSize = Math.min(threads, Math.max(1, blobs.size()));
+        ExecutorService executor = Executors.newFixedThreadPool(poolSize);
+        // The scratch files of the pool count in the run of number()
+        final PDFMetrics.Run run = PDFMetrics.getCurrent();
+        try {
+            List<Future<Blob>> futures = new ArrayList<Future<Blob>>(
+                    blobs.size());
+            for (int i = 0; i < blobs.size(); i++) {
+                final Blob blob = blobs.get(i);
+                final int start = inStarts[i];
+                futures.add(executor.submit(new Callable<Blob>() {
+                    @Override
+                    public Blob call() throws Exception {
+                        PDFMetrics.Run previous = PDFMetrics.setCurrent(run);
+                        try {
+                            return numberOne(blob, start);
+                        } finally {
+                            PDFMetrics.setCurrent(previous);
+                        }
+                    }
+                }));
+            }
+
+            for (Future<Blob> f : futures) {
+                result.add(f.get());
+            }
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof COSVisitorException) {
+                throw (COSVisitorException) cause;
+            }
+            throw new ClientException(cause);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return result;
+    }
+
+    protected Blob numberOne(Blob inBlob, int inStartAtNumber)
+            throws IOException, COSVisitorException {
+
+        if (inBlob == null) {
+            return null;
+        }
+
+        PDFPageNumbering pn = new PDFPageNumbering(inBlob);
+        Blob result = pn.addPageNumbers(1, inStartAtNumber, prefix, digits,
+                fontName, fontSize, hex255Color, position);
+        result.setFilename(inBlob.getFilename());
+
+        return result;
+    }
+}
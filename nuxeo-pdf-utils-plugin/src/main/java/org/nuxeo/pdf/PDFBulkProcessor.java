@@ -0,0 +1,539 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.Serializable;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.IterableQueryResult;
+import org.nuxeo.ecm.core.query.sql.NXQL;
+import org.nuxeo.pdf.work.PDFJobStatus;
+import org.nuxeo.pdf.work.PDFWork;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+/**
+ * Applies a step (any PDF operation, see <code>setOperation()</code>) to every
+ * document returned by an NXQL query, without loading the whole result:
+ * <ul>
+ * <li>The ids are read by pages of <code>pageSize</code>, each page being a
+ * short-lived cursor starting after the last id read (keyset pagination on
+ * <code>ecm:uuid</code>, which stays valid across transactions)</li>
+ * <li>Documents are processed in batches of <code>batchSize</code>, one
+ * transaction and one session per batch, on a pool of <code>threads</code>
+ * threads</li>
+ * <li>At most <code>maxPending</code> batches are queued or running: Reading
+ * the ids waits for the workers (back-pressure)</li>
+ * </ul>
+ * The transaction of the caller, if any, is committed first (so the workers
+ * see its changes), only when the caller allows it with
+ * <code>setCommitTransaction(true)</code>: Otherwise <code>run()</code> fails
+ * when a transaction is active. Each page of ids is then read in its own
+ * short transaction, no transaction is held while the batches run, and a new
+ * transaction is started for the caller at the end.
+ * <p>
+ * The number of threads is capped by <code>MAX_THREADS_PROPERTY</code>.
+ * <p>
+ * Example, stamping the pdf of every File of a folder:
+ *
+ * <pre>
+ * PDFBulkProcessor.Report report = new PDFBulkProcessor(session,
+ *         &quot;SELECT * FROM File WHERE ecm:path STARTSWITH '/folder'&quot;).setOperation(
+ *         WatermarkWithTextOp.ID, params).setInputXPath(&quot;file:content&quot;).setResultXPath(
+ *         &quot;file:content&quot;).setCommitTransaction(true).run();
+ * </pre>
+ *
+ * @since 7.1
+ */
+public class PDFBulkProcessor {
+
+    private static final Log log = LogFactory.getLog(PDFBulkProcessor.class);
+
+    public static final int DEFAULT_THREADS = 4;
+
+    public static final int DEFAULT_BATCH_SIZE = 20;
+
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /**
+     * Configuration property (nuxeo.conf): The max number of threads of a
+     * run. Default is 8.
+     */
+    public static final String MAX_THREADS_PROPERTY = "nuxeo.pdfutils.bulk.maxThreads";
+
+    // Errors kept in the report
+    public static final int MAX_ERRORS = 100;
+
+    protected static final Pattern QUERY_PATTERN = Pattern.compile("(?is)^\\s*SELECT\\s+.+?\\s+FROM\\s+(.+?)(?:\\s+WHERE\\s+(.+?))?(?:\\s+ORDER\\s+BY\\s+.+)?\\s*$");
+
+    /**
+     * The processing of one document, in the session of its batch
+     */
+    public interface Step {
+
+        /**
+         * @param inSession
+         * @param inDoc
+         * @return false if the document was skipped
+         * @throws Exception
+         */
+        boolean process(CoreSession inSession, DocumentModel inDoc)
+                throws Exception;
+    }
+
+    /**
+     * Counts of a run, and the first errors (document id and message)
+     */
+    public static class Report {
+
+        protected final AtomicLong processed = new AtomicLong();
+
+        protected final AtomicLong skipped = new AtomicLong();
+
+        protected final AtomicLong failed = new AtomicLong();
+
+        protected final Map<String, String> errors = new LinkedHashMap<String, String>();
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        public long getSkipped() {
+            return skipped.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public Map<String, String> getErrors() {
+            synchronized (errors) {
+                return new LinkedHashMap<String, String>(errors);
+            }
+        }
+
+        protected void error(String inDocId, Throwable inError) {
+            failed.incrementAndGet();
+            synchronized (errors) {
+                if (errors.size() < MAX_ERRORS) {
+                    errors.put(inDocId, inError.getMessage() == null ? inError.getClass().getName()
+                            : inError.getMessage());
+                }
+            }
+        }
+
+        /**
+         * @return the report as a JSON object: processed, skipped, failed
+         *         and errors (document id: message)
+         */
+        public String toJSON() {
+
+            StringBuilder sb = new StringBuilder("{");
+            sb.append("\"processed\":").append(processed.get());
+            sb.append(",\"skipped\":").append(skipped.get());
+            sb.append(",\"failed\":").append(failed.get());
+            sb.append(",\"errors\":{");
+            boolean first = true;
+            for (Map.Entry<String, String> e : getErrors().entrySet()) {
+                if (!first) {
+                    sb.append(",");
+                }
+                first = false;
+                PDFJobStatus.appendJSON(sb, e.getKey(), e.getValue());
+            }
+            return sb.append("}}").toString();
+        }
+
+        @Override
+        public String toString() {
+            return "processed: " + processed + ", skipped: " + skipped
+                    + ", failed: " + failed;
+        }
+    }
+
+    protected final String repositoryName;
+
+    protected final Principal principal;
+
+    protected final CoreSession session;
+
+    protected final String from;
+
+    protected final String where;
+
+    protected Step step;
+
+    protected int threads = DEFAULT_THREADS;
+
+    protected int batchSize = DEFAULT_BATCH_SIZE;
+
+    protected int pageSize = DEFAULT_PAGE_SIZE;
+
+    protected int maxPending = -1;
+
+    protected boolean commitTransaction = false;
+
+    /**
+     * @param inSession the session used to read the ids. The workers open
+     *            their own sessions, for the same user
+     * @param inQuery an NXQL query ("SELECT * FROM ... WHERE ..."): Only its
+     *            FROM and WHERE clauses are used
+     */
+    public PDFBulkProcessor(CoreSession inSession, String inQuery) {
+
+        Matcher m = QUERY_PATTERN.matcher(inQuery == null ? "" : inQuery);
+        if (!m.matches()) {
+            throw new ClientException("Invalid NXQL query: " + inQuery);
+        }
+        session = inSession;
+        repositoryName = inSession.getRepositoryName();
+        principal = inSession.getPrincipal();
+        from = m.group(1);
+        where = m.group(2);
+    }
+
+    public PDFBulkProcessor setStep(Step inStep) {
+        step = inStep;
+        return this;
+    }
+
+    /**
+     * Use an automation operation as the step. Its input is the document,
+     * or, when <code>inputXPath</code> is set, the blob of the document in
+     * this field (documents without blob are skipped). When
+     * <code>resultXPath</code> is set, a blob returned by the operation is
+     * saved in this field.
+     * <p>
+     * Only the operations accepted by <code>PDFWork.checkOperation()</code>
+     * can run.
+     *
+     * @param inOperationId
+     * @param inParams
+     * @return this
+     */
+    public PDFBulkProcessor setOperation(String inOperationId,
+            Map<String, String> inParams) {
+
+        PDFWork.checkOperation(inOperationId);
+        step = new OperationStep(inOperationId, inParams);
+        return this;
+    }
+
+    /**
+     * For <code>setOperation()</code>: The field holding the blob to pass to
+     * the operation. Null or "" passes the document.
+     *
+     * @param inValue
+     * @return this
+     */
+    public PDFBulkProcessor setInputXPath(String inValue) {
+        if (step instanceof OperationStep) {
+            ((OperationStep) step).inputXPath = inValue;
+        }
+        return this;
+    }
+
+    /**
+     * For <code>setOperation()</code>: The field where a blob returned by the
+     * operation is saved. Null or "" does not save it.
+     *
+     * @param inValue
+     * @return this
+     */
+    public PDFBulkProcessor setResultXPath(String inValue) {
+        if (step instanceof OperationStep) {
+            ((OperationStep) step).resultXPath = inValue;
+        }
+        return this;
+    }
+
+    /**
+     * @param inValue threads processing the batches, capped by
+     *            <code>MAX_THREADS_PROPERTY</code>
+     * @return this
+     */
+    public PDFBulkProcessor setThreads(int inValue) {
+        int max = (int) Math.max(1,
+                PDFUtils.getLongProperty(MAX_THREADS_PROPERTY, 8));
+        threads = inValue < 1 ? 1 : Math.min(inValue, max);
+        return this;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param inValue documents per transaction
+     * @return this
+     */
+    public PDFBulkProcessor setBatchSize(int inValue) {
+        batchSize = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    /**
+     * @param inValue ids read per cursor
+     * @return this
+     */
+    public PDFBulkProcessor setPageSize(int inValue) {
+        pageSize = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    /**
+     * @param inValue batches queued or running at most. Default is twice
+     *            the number of threads
+     * @return this
+     */
+    public PDFBulkProcessor setMaxPending(int inValue) {
+        maxPending = inValue;
+        return this;
+    }
+
+    /**
+     * @param inValue true to let <code>run()</code> commit the transaction of
+     *            the caller, if any, and start a new one at the end. Default
+     *            is false: <code>run()</code> fails when a transaction is
+     *            active
+     * @return this
+     */
+    public PDFBulkProcessor setCommitTransaction(boolean inValue) {
+        commitTransaction = inValue;
+        return this;
+    }
+
+    /**
+     * Process all the documents. Returns when they are all processed.
+     *
+     * @return the report
+     */
+    public Report run() {
+
+        if (step == null) {
+            throw new ClientException("No step to run");
+        }
+
+        boolean callerTransaction = TransactionHelper.isTransactionActive();
+        if (callerTransaction) {
+            if (!commitTransaction) {
+                throw new ClientException(
+                        "Cannot run in a transaction without committing it (see setCommitTransaction)");
+            }
+            log.warn("Committing the current transaction before the bulk processing of "
+                    + from);
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+
+        final Report report = new Report();
+        final Semaphore pending = new Semaphore(maxPending < 1 ? threads * 2
+                : maxPending);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            String lastId = "";
+            List<String> ids;
+            do {
+                ids = nextPageInTransaction(lastId);
+                if (!ids.isEmpty()) {
+                    lastId = ids.get(ids.size() - 1);
+                }
+                for (int i = 0; i < ids.size(); i += batchSize) {
+                    final List<String> batch = new ArrayList<String>(
+                            ids.subList(i, Math.min(ids.size(), i + batchSize)));
+                    pending.acquire();
+                    executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                processBatch(batch, report);
+                            } finally {
+                                pending.release();
+                            }
+                        }
+                    });
+                }
+            } while (ids.size() == pageSize);
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(e);
+        } finally {
+            executor.shutdownNow();
+            if (callerTransaction) {
+                TransactionHelper.startTransaction();
+            }
+        }
+
+        return report;
+    }
+
+    /*
+     * Committed before the batches of the page are submitted: Reading waits
+     * for the workers, without holding a transaction
+     */
+    protected List<String> nextPageInTransaction(String inAfterId) {
+
+        TransactionHelper.startTransaction();
+        try {
+            return nextPage(inAfterId);
+        } catch (RuntimeException e) {
+            TransactionHelper.setTransactionRollbackOnly();
+            throw e;
+        } finally {
+            TransactionHelper.commitOrRollbackTransaction();
+        }
+    }
+
+    protected List<String> nextPage(String inAfterId) {
+
+        String query = "SELECT " + NXQL.ECM_UUID + " FROM " + from
+                + " WHERE " + (where == null ? "" : "(" + where + ") AND ")
+                + NXQL.ECM_UUID + " > '" + inAfterId + "' ORDER BY "
+                + NXQL.ECM_UUID;
+        List<String> ids = new ArrayList<String>(pageSize);
+        IterableQueryResult it = session.queryAndFetch(query, NXQL.NXQL);
+        try {
+            for (Map<String, Serializable> row : it) {
+                ids.add((String) row.get(NXQL.ECM_UUID));
+                if (ids.size() >= pageSize) {
+                    break;
+                }
+            }
+        } finally {
+            it.close();
+        }
+        return ids;
+    }
+
+    protected void processBatch(List<String> inIds, Report inReport) {
+
+        long processed = 0;
+        long skipped = 0;
+        TransactionHelper.startTransaction();
+        CoreSession batchSession = null;
+        try {
+            batchSession = CoreInstance.openCoreSession(repositoryName,
+                    principal);
+            for (String id : inIds) {
+                // The results are saved in the documents: Release the
+                // scratch files of each document at once
+                PDFScratch.Scope scope = PDFScratch.openScope();
+                try {
+                    if (step.process(batchSession,
+                            batchSession.getDocument(new IdRef(id)))) {
+                        processed++;
+                    } else {
+                        skipped++;
+                    }
+                } catch (Exception e) {
+                    log.debug("Error processing " + id, e);
+                    inReport.error(id, e);
+                } finally {
+                    scope.close();
+                }
+            }
+            batchSession.save();
+        } catch (RuntimeException e) {
+            log.error("Error processing a batch", e);
+            TransactionHelper.setTransactionRollbackOnly();
+        } finally {
+            boolean rollback = TransactionHelper.isTransactionMarkedRollback();
+            try {
+                TransactionHelper.commitOrRollbackTransaction();
+            } finally {
+                if (batchSession != null) {
+                    CoreInstance.getInstance().close(batchSession);
+                }
+            }
+            if (rollback) {
+                // Nothing of the batch was saved
+                inReport.failed.addAndGet(processed + skipped);
+            } else {
+                inReport.processed.addAndGet(processed);
+                inReport.skipped.addAndGet(skipped);
+            }
+        }
+    }
+
+    protected static class OperationStep implements Step {
+
+        protected final String operationId;
+
+        protected final Map<String, String> params;
+
+        protected String inputXPath;
+
+        protected String resultXPath;
+
+        protected OperationStep(String inOperationId,
+                Map<String, String> inParams) {
+            operationId = inOperationId;
+            params = inParams == null ? new HashMap<String, String>()
+                    : new HashMap<String, String>(inParams);
+        }
+
+        @Override
+        public boolean process(CoreSession inSession, DocumentModel inDoc)
+                throws Exception {
+
+            Object input = inDoc;
+            if (inputXPath != null && !inputXPath.isEmpty()) {
+                input = inDoc.getPropertyValue(inputXPath);
+                if (input == null) {
+                    return false;
+                }
+            }
+
+            OperationContext ctx = new OperationContext(inSession);
+            ctx.setInput(input);
+            Object result = Framework.getService(AutomationService.class).run(
+                    ctx, operationId, params);
+
+            if (resultXPath != null && !resultXPath.isEmpty()
+                    && result instanceof Blob) {
+                inDoc.setPropertyValue(resultXPath, (Serializable) result);
+                inSession.saveDocument(inDoc);
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A small, thread safe, LRU cache bounded by a number of entries and by a
+ * total "weight" (characters, bytes, ...).
+ * <p>
+ * The weight of a value is 1 by default. Subclasses override
+ * <code>weigh()</code> to bound the cache by something else.
+ * <p>
+ * Used by the misc. caches of the plug-in (extracted text, parsed templates,
+ * ...), which are shared by all the threads of the JVM.
+ *
+ * @since 7.1
+ */
+public class PDFCache<K, V> {
+
+    protected final int maxEntries;
+
+    protected final long maxWeight;
+
+    protected long weight = 0;
+
+    protected final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16,
+            0.75f, true);
+
+    /**
+     * @param inMaxEntries if <= 0, the cache is disabled
+     * @param inMaxWeight if <= 0, no limit on the total weight
+     */
+    public PDFCache(int inMaxEntries, long inMaxWeight) {
+        maxEntries = inMaxEntries;
+        maxWeight = inMaxWeight;
+    }
+
+    protected long weigh(V inValue) {
+        return 1;
+    }
+
+    public synchronized V get(K inKey) {
+        return inKey == null ? null : map.get(inKey);
+    }
+
+    /**
+     * Adds the value, evicting the least recently used entries if needed. A
+     * value heavier than the max. weight is not cached.
+     *
+     * @param inKey
+     * @param inValue
+     */
+    public synchronized void put(K inKey, V inValue) {
+
+        if (inKey == null || inValue == null || maxEntries <= 0) {
+            return;
+        }
+        long w = weigh(inValue);
+        if (maxWeight > 0 && w > maxWeight) {
+            return;
+        }
+
+        V previous = map.put(inKey, inValue);
+        if (previous != null) {
+            weight -= weigh(previous);
+        }
+        weight += w;
+
+        Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+        while (it.hasNext()
+                && (map.size() > maxEntries || (maxWeight > 0 && weight > maxWeight))) {
+            Map.Entry<K, V> eldest = it.next();
+            weight -= weigh(eldest.getValue());
+            it.remove();
+        }
+    }
+
+    public synchronized V remove(K inKey) {
+        V previous = map.remove(inKey);
+        if (previous != null) {
+            weight -= weigh(previous);
+        }
+        return previous;
+    }
+
+    public synchronized void clear() {
+        map.clear();
+        weight = 0;
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+}
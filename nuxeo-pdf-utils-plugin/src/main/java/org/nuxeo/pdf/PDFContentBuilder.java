@@ -0,0 +1,379 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.awt.geom.AffineTransform;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+/**
+ * Builds raw content stream operators, and adds content/resources to pages at
+ * the COS level.
+ * <p>
+ * <code>PDPageContentStream</code> creates a new stream per page, re-registers
+ * fonts and graphic states under new names and re-formats every operand. When
+ * stamping thousands of pages, we rather build the operators once (or with a
+ * minimal per-page part), register the resources under a fixed name, and
+ * append the streams (possibly shared between pages) to the page content.
+ *
+ * @since 7.1
+ */
+public class PDFContentBuilder {
+
+    protected static final COSName FORM = COSName.getPDFName("Form");
+
+    protected ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+
+    /**
+     * Writes the operator, followed by a line feed
+     *
+     * @param inOperator
+     * @return this builder
+     */
+    public PDFContentBuilder op(String inOperator) {
+        write(inOperator);
+        out.write('\n');
+        return this;
+    }
+
+    public PDFContentBuilder num(float inValue) {
+        write(formatNumber(inValue));
+        out.write(' ');
+        return this;
+    }
+
+    public PDFContentBuilder name(String inName) {
+        out.write('/');
+        write(inName);
+        out.write(' ');
+        return this;
+    }
+
+    /**
+     * Writes a string operand, encoded the same way
+     * <code>PDPageContentStream.drawString()</code> does.
+     *
+     * @param inText
+     * @return this builder
+     */
+    public PDFContentBuilder string(String inText) {
+        try {
+            new COSString(inText).writePDF(out);
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream
+        }
+        out.write(' ');
+        return this;
+    }
+
+    /**
+     * Writes the "rg" (non stroking color) operator, from 0-255 values
+     *
+     * @param inRGB
+     * @return this builder
+     */
+    public PDFContentBuilder fillColor(int[] inRGB) {
+        return num(inRGB[0] / 255f).num(inRGB[1] / 255f).num(inRGB[2] / 255f).op(
+                "rg");
+    }
+
+    /**
+     * Writes the "cm" operator, unless the transform is the identity
+     *
+     * @param inTransform
+     * @return this builder
+     */
+    public PDFContentBuilder transform(AffineTransform inTransform) {
+        if (inTransform != null && !inTransform.isIdentity()) {
+            double[] m = new double[6];
+            inTransform.getMatrix(m);
+            for (double v : m) {
+                num((float) v);
+            }
+            op("cm");
+        }
+        return this;
+    }
+
+    /**
+     * Writes raw bytes (a content built elsewhere)
+     *
+     * @param inBytes
+     * @return this builder
+     */
+    public PDFContentBuilder raw(byte[] inBytes) {
+        out.write(inBytes, 0, inBytes.length);
+        return this;
+    }
+
+    public byte[] toBytes() {
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a new stream, in the document, holding the operators.
+     *
+     * @param inDoc
+     * @return the stream
+     * @throws IOException
+     */
+    public COSStream toStream(PDDocument inDoc) throws IOException {
+        return toStream(inDoc, toBytes());
+    }
+
+    public static COSStream toStream(PDDocument inDoc, byte[] inBytes)
+            throws IOException {
+
+        PDStream stream = new PDStream(inDoc);
+        try (OutputStream os = stream.createOutputStream()) {
+            os.write(inBytes);
+        }
+        return stream.getStream();
+    }
+
+    /**
+     * Creates a Form XObject holding the operators. <code>inResources</code>
+     * are the resources used by the form (fonts, graphic states, ...), can be
+     * null.
+     *
+     * @param inDoc
+     * @param inBBox
+     * @param inResources
+     * @return the form
+     * @throws IOException
+     */
+    public COSStream toForm(PDDocument inDoc, PDRectangle inBBox,
+            COSDictionary inResources) throws IOException {
+
+        COSStream form = toStream(inDoc);
+        form.setItem(COSName.TYPE, COSName.XOBJECT);
+        form.setItem(COSName.SUBTYPE, FORM);
+        form.setItem(COSName.BBOX, inBBox.getCOSArray());
+        if (inResources != null) {
+            form.setItem(COSName.RESOURCES, inResources);
+        }
+        return form;
+    }
+
+    protected void write(String inValue) {
+        byte[] bytes = inValue.getBytes(StandardCharsets.ISO_8859_1);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Format a number for a content stream: No exponent, at most 4 decimals,
+     * no trailing zeros.
+     *
+     * @param inValue
+     * @return the formatted value
+     */
+    public static String formatNumber(float inValue) {
+
+        long scaled = Math.round(inValue * 10000.0);
+        if (scaled % 10000 == 0) {
+            return Long.toString(scaled / 10000);
+        }
+
+        StringBuilder sb = new StringBuilder(12);
+        if (scaled < 0) {
+            sb.append('-');
+            scaled = -scaled;
+        }
+        sb.append(scaled / 10000).append('.');
+        String decimals = Long.toString(10000 + (scaled % 10000)).substring(1);
+        int end = decimals.length();
+        while (decimals.charAt(end - 1) == '0') {
+            end -= 1;
+        }
+        sb.append(decimals, 0, end);
+
+        return sb.toString();
+    }
+
+    /**
+     * Adds <code>inObject</code> to the resources of the page, in the
+     * <code>inCategory</code> (<code>COSName.FONT</code>,
+     * <code>COSName.XOBJECT</code>, ...) dictionary, with the name
+     * <code>inName</code>.
+     * <p>
+     * If the resources of the page are shared (inherited or the same
+     * dictionary for all the pages), the object is added only once. If the
+     * name is already used by another object, a number is appended to it.
+     * <p>
+     * Modified dictionaries are flagged "need to be updated" (for incremental
+     * saves).
+     *
+     * @param inPage
+     * @param inCategory
+     * @param inName
+     * @param inObject
+     * @return the name to use in the content stream
+     */
+    public static String addResource(PDPage inPage, COSName inCategory,
+            String inName, COSBase inObject) {
+
+        PDResources resources = inPage.findResources();
+        if (resources == null) {
+            resources = new PDResources();
+            inPage.setResources(resources);
+            inPage.getCOSDictionary().setNeedToBeUpdate(true);
+        }
+        COSDictionary resDict = resources.getCOSDictionary();
+        COSDictionary catDict = (COSDictionary) resDict.getDictionaryObject(inCategory);
+        if (catDict == null) {
+            catDict = new COSDictionary();
+            resDict.setItem(inCategory, catDict);
+            resDict.setNeedToBeUpdate(true);
+        }
+
+        String name = inName;
+        int count = 1;
+        while (true) {
+            COSBase existing = catDict.getDictionaryObject(name);
+            if (existing == inObject) {
+                return name;
+            }
+            if (existing == null) {
+                catDict.setItem(name, inObject);
+                catDict.setNeedToBeUpdate(true);
+                return name;
+            }
+            name = inName + count;
+            count += 1;
+        }
+    }
+
+    /**
+     * Appends the streams to the content of the page.
+     * <p>
+     * If the page has a content and <code>inSave</code> and
+     * <code>inRestore</code> are not null (typically, the "q" and "Q"
+     * operators), the original content is wrapped between them, so the
+     * appended streams start with the default graphic state whatever the
+     * original content did.
+     * <p>
+     * The streams can be shared between pages: They are referenced, not copied.
+     *
+     * @param inPage
+     * @param inSave
+     * @param inRestore
+     * @param inStreams
+     */
+    public static void appendContent(PDPage inPage, COSStream inSave,
+            COSStream inRestore, COSStream... inStreams) {
+
+        COSDictionary pageDict = inPage.getCOSDictionary();
+        COSBase contents = pageDict.getDictionaryObject(COSName.CONTENTS);
+        COSArray array = new COSArray();
+        boolean wrap = inSave != null && inRestore != null;
+
+        if (contents instanceof COSStream) {
+            if (wrap) {
+                array.add(inSave);
+            }
+            array.add(pageDict.getItem(COSName.CONTENTS));
+            if (wrap) {
+                array.add(inRestore);
+            }
+        } else if (contents instanceof COSArray && ((COSArray) contents).size() > 0) {
+            if (wrap) {
+                array.add(inSave);
+            }
+            array.addAll((COSArray) contents);
+            if (wrap) {
+                array.add(inRestore);
+            }
+        }
+        for (COSStream stream : inStreams) {
+            array.add(stream);
+        }
+
+        pageDict.setItem(COSName.CONTENTS, array);
+        pageDict.setNeedToBeUpdate(true);
+    }
+
+    /**
+     * Convenience: The "q" and "Q" streams to pass to
+     * <code>appendContent()</code>, to be shared by all the pages of the
+     * document.
+     *
+     * @param inDoc
+     * @return the "q" and "Q" streams
+     * @throws IOException
+     */
+    public static COSStream[] saveRestoreStreams(PDDocument inDoc)
+            throws IOException {
+        return new COSStream[] { new PDFContentBuilder().op("q").toStream(inDoc),
+                new PDFContentBuilder().op("Q").toStream(inDoc) };
+    }
+
+    /**
+     * Deep copy of dictionaries and arrays, to reuse a template (built once)
+     * in several documents. Names, numbers and strings are immutable and
+     * shared. Streams are not copied (they belong to a document): They are
+     * dropped, the caller adds them to the copy.
+     *
+     * @param inValue
+     * @return the copy
+     */
+    public static COSBase copyWithoutStreams(COSBase inValue) {
+
+        COSBase value = inValue instanceof COSObject ? ((COSObject) inValue).getObject()
+                : inValue;
+
+        if (value instanceof COSStream) {
+            return null;
+        }
+        if (value instanceof COSDictionary) {
+            COSDictionary copy = new COSDictionary();
+            for (Map.Entry<COSName, COSBase> e : ((COSDictionary) value).entrySet()) {
+                COSBase v = copyWithoutStreams(e.getValue());
+                if (v != null) {
+                    copy.setItem(e.getKey(), v);
+                }
+            }
+            return copy;
+        }
+        if (value instanceof COSArray) {
+            COSArray copy = new COSArray();
+            for (COSBase item : (COSArray) value) {
+                COSBase v = copyWithoutStreams(item);
+                if (v != null) {
+                    copy.add(v);
+                }
+            }
+            return copy;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.pdf.PDFPageNumbering.NumberMetrics;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+
+/**
+ * Add headers and footers to a PDF, in a single load/save. Each of the six
+ * positions of <code>PAGE_NUMBER_POSITION</code> can receive a text built from
+ * a template (see <code>PDFTextTemplate</code>) such as
+ * "Confidential - Page ${page} of ${total} - ${dc:title}".
+ * <p>
+ * Available variables:
+ * <ul>
+ * <li><code>${page}</code> and <code>${total}</code></li>
+ * <li><code>${date}</code>: Current date, formatted with
+ * <code>dateFormat</code></li>
+ * <li><code>${filename}</code>: Filename of the blob</li>
+ * <li>Any property of the document (<code>${dc:title}</code>,
+ * <code>${dc:created}</code>, ...), when built from a
+ * <code>DocumentModel</code></li>
+ * </ul>
+ * Texts that do not use <code>${page}</code> are drawn by a content stream
+ * shared by all the pages having the same format (see
+ * <code>PDFPageGeometry</code>).
+ *
+ * @since 7.1
+ */
+public class PDFHeaderFooter {
+
+    public static final String DEFAULT_DATE_FORMAT = "yyyy-MM-dd";
+
+    protected Blob blob;
+
+    protected DocumentModel doc;
+
+    protected Map<PAGE_NUMBER_POSITION, PDFTextTemplate> slots = new EnumMap<PAGE_NUMBER_POSITION, PDFTextTemplate>(
+            PAGE_NUMBER_POSITION.class);
+
+    protected String fontName;
+
+    protected float fontSize = 0;
+
+    protected String hex255Color = "0x000000";
+
+    protected int startAtPage = 1;
+
+    protected int startAtNumber = 1;
+
+    protected String dateFormat = DEFAULT_DATE_FORMAT;
+
+    protected boolean incrementalSave = PDFUtils.isIncrementalSave();
+
+    protected PDFPageSelector pageSelector = PDFPageSelector.ALL;
+
+    public PDFHeaderFooter(Blob inBlob) {
+        blob = inBlob;
+    }
+
+    public PDFHeaderFooter(DocumentModel inDoc, String inXPath) {
+
+        doc = inDoc;
+        blob = (Blob) inDoc.getPropertyValue(PDFUtils.checkXPath(inXPath));
+    }
+
+    /**
+     * Set the template of a position. A null or empty template removes the
+     * text.
+     *
+     * @param inPosition
+     * @param inTemplate
+     * @return this
+     */
+    public PDFHeaderFooter setText(PAGE_NUMBER_POSITION inPosition,
+            String inTemplate) {
+
+        if (inTemplate == null || inTemplate.isEmpty()) {
+            slots.remove(inPosition);
+        } else {
+            slots.put(inPosition, PDFTextTemplate.get(inTemplate));
+        }
+        return this;
+    }
+
+    public PDFHeaderFooter setFontName(String inValue) {
+        fontName = inValue;
+        return this;
+    }
+
+    public PDFHeaderFooter setFontSize(float inValue) {
+        fontSize = inValue;
+        return this;
+    }
+
+    public PDFHeaderFooter setHex255Color(String inValue) {
+        hex255Color = inValue;
+        return this;
+    }
+
+    public PDFHeaderFooter setStartAtPage(int inValue) {
+        startAtPage = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    public PDFHeaderFooter setStartAtNumber(int inValue) {
+        startAtNumber = inValue < 1 ? 1 : inValue;
+        return this;
+    }
+
+    public PDFHeaderFooter setDateFormat(String inValue) {
+        dateFormat = inValue == null || inValue.isEmpty() ? DEFAULT_DATE_FORMAT
+                : inValue;
+        return this;
+    }
+
+    /**
+     * See <code>PDFIncrementalSave</code>. Default is the
+     * <code>PDFUtils.INCREMENTAL_SAVE_PROP</code> configuration property.
+     *
+     * @param inValue
+     * @return this
+     */
+    public PDFHeaderFooter setIncrementalSave(boolean inValue) {
+        incrementalSave = inValue;
+        return this;
+    }
+
+    /**
+     * Draw the texts only on the selected pages. <code>${page}</code> still
+     * is the number of the page in the document (see
+     * <code>startAtNumber</code>).
+     *
+     * @param inValue
+     * @return this
+     */
+    public PDFHeaderFooter setPageSelector(PDFPageSelector inValue) {
+        pageSelector = inValue == null ? PDFPageSelector.ALL : inValue;
+        return this;
+    }
+
+    /**
+     * Add the headers/footers and return a <i>new</i> blob. If no text is set,
+     * or no page is selected, the original blob is returned.
+     *
+     * @return the blob
+     * @throws IOException
+     * @throws COSVisitorException
+     */
+    public Blob apply() throws IOException, COSVisitorException {
+
+        if (slots.isEmpty()) {
+            return blob;
+        }
+
+        Blob result = null;
+        PDFIncrementalSave save = null;
+        PDFMetrics.Run metrics = PDFMetrics.start("headerFooter", blob);
+        try {
+            save = PDFIncrementalSave.load(blob, incrementalSave, metrics);
+            if (pageSelector.selectsNone(
+                    save.getDocument().getNumberOfPages(), startAtPage)) {
+                // Nothing to stamp: Not saved
+                return blob;
+            }
+            apply(save.getDocument());
+            result = save.save();
+            result.setFilename(blob.getFilename());
+        } catch (IOException | COSVisitorException | RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            if (save != null) {
+                save.close();
+            }
+            metrics.stop();
+        }
+
+        return result;
+    }
+
+    /**
+     * Add the headers/footers to an already loaded document.
+     * <p>
+     * <code>${total}</code> is the number of the last page (the pages before
+     * <code>startAtPage</code> are not numbered).
+     *
+     * @param inDoc
+     * @throws IOException
+     */
+    public void apply(PDDocument inDoc) throws IOException {
+
+        if (slots.isEmpty()) {
+            return;
+        }
+
+        float size = fontSize <= 0 ? PDFPageNumbering.DEFAULT_FONT_SIZE
+                : fontSize;
+        int[] rgb = PDFUtils.hex255ToRGB(hex255Color);
+        PDFont font = PDFUtils.getFont(inDoc, fontName);
+        NumberMetrics metrics = new NumberMetrics(font, size);
+        Map<String, String> values = buildValues();
+
+        List<?> allPages = inDoc.getDocumentCatalog().getAllPages();
+        int max = allPages.size();
+        int firstPage = startAtPage > max ? 1 : startAtPage;
+        int total = max - firstPage + startAtNumber;
+
+        // Texts which do not depend on the page are rendered once
+        Map<PAGE_NUMBER_POSITION, String> constantTexts = new EnumMap<PAGE_NUMBER_POSITION, String>(
+                PAGE_NUMBER_POSITION.class);
+        for (Map.Entry<PAGE_NUMBER_POSITION, PDFTextTemplate> e : slots.entrySet()) {
+            if (!e.getValue().isPageDependent()) {
+                constantTexts.put(e.getKey(),
+                        e.getValue().render(values, 0, total));
+            }
+        }
+        // ...and drawn by a stream shared by the pages of the same format
+        Map<String, COSStream> sharedStreams = new HashMap<String, COSStream>();
+
+        COSStream[] saveRestore = PDFContentBuilder.saveRestoreStreams(inDoc);
+        PDFPageGeometry.Resolver geometries = new PDFPageGeometry.Resolver();
+        int pageNumber = startAtNumber;
+        for (int i = firstPage; i <= max; i++) {
+            PDPage page = (PDPage) allPages.get(i - 1);
+            PDFPageGeometry geometry = geometries.get(page);
+            if (!pageSelector.matches(i, max, geometry)) {
+                pageNumber += 1;
+                continue;
+            }
+            String resName = PDFContentBuilder.addResource(page,
+                    COSName.FONT, PDFPageNumbering.FONT_RESOURCE_NAME,
+                    font.getCOSObject());
+
+            COSStream shared = null;
+            if (!constantTexts.isEmpty()) {
+                String key = resName + "/" + geometry.getKey();
+                shared = sharedStreams.get(key);
+                if (shared == null) {
+                    PDFContentBuilder content = new PDFContentBuilder();
+                    for (Map.Entry<PAGE_NUMBER_POSITION, String> e : constantTexts.entrySet()) {
+                        drawText(content, resName, size, rgb, metrics,
+                                geometry, e.getKey(), e.getValue());
+                    }
+                    shared = content.toStream(inDoc);
+                    sharedStreams.put(key, shared);
+                }
+            }
+
+            PDFContentBuilder content = null;
+            for (Map.Entry<PAGE_NUMBER_POSITION, PDFTextTemplate> e : slots.entrySet()) {
+                if (e.getValue().isPageDependent()) {
+                    if (content == null) {
+                        content = new PDFContentBuilder();
+                    }
+                    drawText(content, resName, size, rgb, metrics, geometry,
+                            e.getKey(),
+                            e.getValue().render(values, pageNumber, total));
+                }
+            }
+            pageNumber += 1;
+
+            if (shared != null && content != null) {
+                PDFContentBuilder.appendContent(page, saveRestore[0],
+                        saveRestore[1], shared, content.toStream(inDoc));
+            } else if (shared != null) {
+                PDFContentBuilder.appendContent(page, saveRestore[0],
+                        saveRestore[1], shared);
+            } else if (content != null) {
+                PDFContentBuilder.appendContent(page, saveRestore[0],
+                        saveRestore[1], content.toStream(inDoc));
+            }
+        }
+    }
+
+    protected void drawText(PDFContentBuilder inContent, String inFontName,
+            float inFontSize, int[] inRGB, NumberMetrics inMetrics,
+            PDFPageGeometry inGeometry, PAGE_NUMBER_POSITION inPosition,
+            String inText) throws IOException {
+
+        if (inText.isEmpty()) {
+            return;
+        }
+
+        float[] xy = PDFPageNumbering.computePosition(inGeometry, inPosition,
+                inMetrics.getWidth(inText), inMetrics.height);
+
+        inContent.op("q").transform(inGeometry.getTransform()).op("BT");
+        inContent.name(inFontName).num(inFontSize).op("Tf");
+        inContent.fillColor(inRGB);
+        inContent.num(xy[0]).num(xy[1]).op("Td");
+        inContent.string(inText).op("Tj");
+        inContent.op("ET").op("Q");
+    }
+
+    /**
+     * Values of the variables which do not depend on the page, computed once
+     * per call.
+     */
+    protected Map<String, String> buildValues() {
+
+        Map<String, String> values = new HashMap<String, String>();
+        SimpleDateFormat format = new SimpleDateFormat(dateFormat);
+        values.put(PDFTextTemplate.VAR_DATE, format.format(new Date()));
+        values.put(PDFTextTemplate.VAR_FILENAME,
+                blob.getFilename() == null ? "" : blob.getFilename());
+
+        if (doc != null) {
+            for (PDFTextTemplate template : slots.values()) {
+                for (String var : template.getVariables()) {
+                    if (var.indexOf(':') > 0 && !values.containsKey(var)) {
+                        values.put(var, getPropertyAsString(var, format));
+                    }
+                }
+            }
+        }
+
+        return values;
+    }
+
+    protected String getPropertyAsString(String inXPath,
+            SimpleDateFormat inDateFormat) {
+
+        Object value;
+        try {
+            value = doc.getPropertyValue(inXPath);
+        } catch (ClientException e) {
+            // Unknown property
+            return "";
+        }
+        if (value == null) {
+            return "";
+        }
+        if (value instanceof Calendar) {
+            return inDateFormat.format(((Calendar) value).getTime());
+        }
+        if (value instanceof Object[]) {
+            StringBuilder sb = new StringBuilder();
+            for (Object o : (Object[]) value) {
+                if (sb.length() > 0) {
+                    sb.append(", ");
+                }
+                sb.append(o);
+            }
+            return sb.toString();
+        }
+        return value.toString();
+    }
+}
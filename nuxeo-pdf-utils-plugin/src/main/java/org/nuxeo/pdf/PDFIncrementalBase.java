@@ -0,0 +1,543 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.persistence.util.COSObjectKey;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.DefaultBlob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+
+/**
+ * The structure of a pdf, parsed once, to stamp it many times with
+ * incremental updates: The original bytes are streamed unchanged, followed by
+ * the new objects (a watermark form...) and the page dictionaries modified to
+ * draw them.
+ * <p>
+ * For each page, the base holds the object number and the serialized
+ * dictionary, split so that <code>/Contents</code> and the
+ * <code>/XObject</code> resources can be completed without parsing anything.
+ * It also holds the offset of the last cross reference section and the
+ * trailer entries. Writing an update then only depends on the number of
+ * pages.
+ * <p>
+ * Bases are cached by digest of the blob (see <code>get()</code>). Only files
+ * with a classic cross reference table (not a cross reference stream) and
+ * not encrypted are supported, see <code>isSupported()</code>.
+ *
+ * @since 7.1
+ */
+public class PDFIncrementalBase {
+
+    public static final String CACHE_MAX_ENTRIES_PROP = "nuxeo.pdfutils.incremental.cache.maxEntries";
+
+    public static final String CACHE_MAX_BYTES_PROP = "nuxeo.pdfutils.incremental.cache.maxBytes";
+
+    protected static final PDFCache<String, PDFIncrementalBase> CACHE = new PDFCache<String, PDFIncrementalBase>(
+            (int) PDFUtils.getLongProperty(CACHE_MAX_ENTRIES_PROP, 100),
+            PDFUtils.getLongProperty(CACHE_MAX_BYTES_PROP, 20 * 1024 * 1024)) {
+        @Override
+        protected long weigh(PDFIncrementalBase inValue) {
+            return inValue.size;
+        }
+    };
+
+    protected static final PDFIncrementalBase UNSUPPORTED = new PDFIncrementalBase(
+            -1, -1, -1, null, null, 0);
+
+    // How many bytes at the end of the file are searched for "startxref"
+    protected static final int TAIL_SIZE = 1024;
+
+    protected final long length;
+
+    protected final long startXref;
+
+    protected final long nextNumber;
+
+    protected final COSDictionary trailer;
+
+    protected final List<PageEntry> pages;
+
+    protected final long size;
+
+    protected PDFIncrementalBase(long inLength, long inStartXref,
+            long inNextNumber, COSDictionary inTrailer,
+            List<PageEntry> inPages, long inSize) {
+
+        length = inLength;
+        startXref = inStartXref;
+        nextNumber = inNextNumber;
+        trailer = inTrailer;
+        pages = inPages;
+        size = inSize;
+    }
+
+    /**
+     * Return the base of the pdf, from the cache if it was already parsed
+     *
+     * @param inBlob
+     * @return the base. Check <code>isSupported()</code>
+     * @throws IOException
+     */
+    public static PDFIncrementalBase get(Blob inBlob) throws IOException {
+
+        String digest = PDFUtils.getDigest(inBlob);
+        PDFIncrementalBase base = CACHE.get(digest);
+        if (base == null) {
+            base = prepare(inBlob);
+            CACHE.put(digest, base);
+        }
+        return base;
+    }
+
+    /**
+     * Parse the pdf (no cache)
+     *
+     * @param inBlob
+     * @return the base. Check <code>isSupported()</code>
+     * @throws IOException
+     */
+    public static PDFIncrementalBase prepare(Blob inBlob) throws IOException {
+
+        long length = getLength(inBlob);
+        long startXref = readStartXref(inBlob, length);
+        if (startXref < 0
+                || !new String(readRange(inBlob, startXref, 4),
+                        StandardCharsets.US_ASCII).equals("xref")) {
+            // No startxref, or a cross reference stream
+            return UNSUPPORTED;
+        }
+
+        PDDocument pdfDoc = null;
+        try {
+            pdfDoc = PDDocument.load(inBlob.getStream());
+            if (pdfDoc.isEncrypted()) {
+                return UNSUPPORTED;
+            }
+
+            COSDocument cosDoc = pdfDoc.getDocument();
+            Map<COSBase, COSObjectKey> keys = new IdentityHashMap<COSBase, COSObjectKey>();
+            long highest = 0;
+            for (COSObjectKey key : cosDoc.getXrefTable().keySet()) {
+                highest = Math.max(highest, key.getNumber());
+                COSObject obj = cosDoc.getObjectFromPool(key);
+                if (obj != null && obj.getObject() != null) {
+                    keys.put(obj.getObject(), key);
+                }
+            }
+
+            PDFIncrementalWriter serializer = new PDFIncrementalWriter(null,
+                    0, 0);
+            PDFPageGeometry.Resolver geometries = new PDFPageGeometry.Resolver();
+            List<PageEntry> pages = new ArrayList<PageEntry>();
+            long size = 0;
+            for (Object o : pdfDoc.getDocumentCatalog().getAllPages()) {
+                PDPage page = (PDPage) o;
+                COSObjectKey key = keys.get(page.getCOSDictionary());
+                if (key == null) {
+                    // Direct page object (invalid, but...)
+                    return UNSUPPORTED;
+                }
+                PageEntry entry = new PageEntry(key, page,
+                        geometries.get(page), serializer);
+                size += entry.getSize();
+                pages.add(entry);
+            }
+
+            COSDictionary cosTrailer = cosDoc.getTrailer();
+            COSDictionary trailer = new COSDictionary();
+            for (COSName name : new COSName[] { COSName.ROOT, COSName.INFO }) {
+                COSBase item = cosTrailer.getItem(name);
+                if (item instanceof COSObject) {
+                    COSObjectKey key = keys.get(((COSObject) item).getObject());
+                    if (key != null) {
+                        trailer.setItem(name,
+                                PDFIncrementalWriter.detachedReference(key));
+                    }
+                }
+            }
+            if (trailer.getItem(COSName.ROOT) == null) {
+                return UNSUPPORTED;
+            }
+            COSBase id = cosTrailer.getDictionaryObject(COSName.ID);
+            if (id instanceof COSArray) {
+                trailer.setItem(COSName.ID,
+                        PDFContentBuilder.copyWithoutStreams(id));
+            }
+            long nextNumber = Math.max(cosTrailer.getLong(COSName.SIZE, 0),
+                    highest + 1);
+
+            return new PDFIncrementalBase(length, startXref, nextNumber,
+                    trailer, pages, size);
+
+        } finally {
+            PDFUtils.closeSilently(pdfDoc);
+        }
+    }
+
+    /**
+     * Draw the text watermark on each page.
+     * <p>
+     * The objects of the original are not parsed, so none of them is reused:
+     * The font of the text is written in the update. For a standard font
+     * (Helvetica, ...), this is a small dictionary. A TrueType font of the
+     * <code>PDFFontRegistry</code> is embedded with its whole font file, and
+     * this size is added to every result.
+     *
+     * @param inOriginal the blob this base was prepared from
+     * @param inWatermark
+     * @return a blob streaming the original bytes followed by the update
+     * @throws IOException
+     */
+    public Blob watermark(Blob inOriginal, PDFWatermarking inWatermark)
+            throws IOException {
+
+        if (!isSupported()) {
+            throw new IOException("Incremental update not supported");
+        }
+
+        ByteArrayOutputStream update = new ByteArrayOutputStream();
+        // New objects are built in a throw-away document
+        PDDocument holder = new PDDocument();
+        try {
+            PDFIncrementalWriter writer = new PDFIncrementalWriter(update,
+                    length, nextNumber);
+            byte[] formRef = PDFIncrementalWriter.referenceBytes(writer.reference(inWatermark.createTextForm(holder)));
+            COSStream[] saveRestore = PDFContentBuilder.saveRestoreStreams(holder);
+            byte[] saveRef = PDFIncrementalWriter.referenceBytes(writer.reference(saveRestore[0]));
+            byte[] restoreRef = PDFIncrementalWriter.referenceBytes(writer.reference(saveRestore[1]));
+            Map<String, byte[]> drawRefs = new HashMap<String, byte[]>();
+
+            int pageCount = pages.size();
+            PDFPageSelector selector = inWatermark.getPageSelector();
+            for (int i = 0; i < pageCount; i++) {
+                PageEntry page = pages.get(i);
+                if (!selector.matches(i + 1, pageCount, page.geometry)) {
+                    // Not rewritten
+                    continue;
+                }
+                String key = page.formName + "/" + page.geometry.getKey();
+                byte[] drawRef = drawRefs.get(key);
+                if (drawRef == null) {
+                    COSStream draw = inWatermark.drawTextForm(page.geometry,
+                            page.formName).toStream(holder);
+                    drawRef = PDFIncrementalWriter.referenceBytes(writer.reference(draw));
+                    drawRefs.put(key, drawRef);
+                }
+                page.write(writer, formRef, saveRef, restoreRef, drawRef);
+            }
+
+            writer.finish(startXref, trailer);
+
+        } finally {
+            holder.close();
+        }
+
+        AppendedBlob result = new AppendedBlob(inOriginal, update.toByteArray());
+        result.setFilename(inOriginal.getFilename());
+        result.setMimeType("application/pdf");
+        return result;
+    }
+
+    /**
+     * @return false if the pdf can't be updated incrementally by this class
+     */
+    public boolean isSupported() {
+        return length >= 0;
+    }
+
+    public int getPageCount() {
+        return pages == null ? 0 : pages.size();
+    }
+
+    /**
+     * @return the size in bytes of the serialized page dictionaries
+     */
+    public long getSize() {
+        return size;
+    }
+
+    protected static long getLength(Blob inBlob) throws IOException {
+
+        long length = inBlob.getLength();
+        if (length < 0) {
+            length = 0;
+            try (InputStream in = inBlob.getStream()) {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    length += count;
+                }
+            }
+        }
+        return length;
+    }
+
+    /*
+     * Reads inLength bytes (less at the end of the file) at inOffset
+     */
+    protected static byte[] readRange(Blob inBlob, long inOffset, int inLength)
+            throws IOException {
+
+        try (InputStream in = inBlob.getStream()) {
+            long toSkip = inOffset;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        return new byte[0];
+                    }
+                    skipped = 1;
+                }
+                toSkip -= skipped;
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream(inLength);
+            byte[] buffer = new byte[inLength];
+            int remaining = inLength;
+            int count;
+            while (remaining > 0 && (count = in.read(buffer, 0, remaining)) != -1) {
+                out.write(buffer, 0, count);
+                remaining -= count;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    /*
+     * Offset of the last cross reference section, -1 if not found
+     */
+    protected static long readStartXref(Blob inBlob, long inLength)
+            throws IOException {
+
+        long tailStart = Math.max(0, inLength - TAIL_SIZE);
+        String tail = new String(readRange(inBlob, tailStart,
+                (int) (inLength - tailStart)), StandardCharsets.ISO_8859_1);
+        int pos = tail.lastIndexOf("startxref");
+        if (pos < 0) {
+            return -1;
+        }
+        pos += "startxref".length();
+        while (pos < tail.length() && Character.isWhitespace(tail.charAt(pos))) {
+            pos += 1;
+        }
+        int end = pos;
+        while (end < tail.length() && Character.isDigit(tail.charAt(end))) {
+            end += 1;
+        }
+        if (end == pos) {
+            return -1;
+        }
+        long offset = Long.parseLong(tail.substring(pos, end));
+        return offset < inLength ? offset : -1;
+    }
+
+    /**
+     * A page of the base: Its key, and its dictionary serialized in parts.
+     * The resources (inherited or not) are written in the page, so
+     * <code>/XObject</code> can be completed without changing objects shared
+     * with other pages.
+     */
+    protected static class PageEntry {
+
+        protected final COSObjectKey key;
+
+        protected final PDFPageGeometry geometry;
+
+        // Entries other than /Contents and /Resources
+        protected final byte[] entries;
+
+        // References to the content streams, null if the page has no content
+        protected final byte[] contents;
+
+        // Entries of the resources other than /XObject
+        protected final byte[] resources;
+
+        // Entries of /XObject
+        protected final byte[] xobjects;
+
+        protected final String formName;
+
+        protected PageEntry(COSObjectKey inKey, PDPage inPage,
+                PDFPageGeometry inGeometry, PDFIncrementalWriter inSerializer)
+                throws IOException {
+
+            key = inKey;
+            geometry = inGeometry;
+
+            COSDictionary pageDict = inPage.getCOSDictionary();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for (Map.Entry<COSName, COSBase> e : pageDict.entrySet()) {
+                if (!COSName.CONTENTS.equals(e.getKey())
+                        && !COSName.RESOURCES.equals(e.getKey())) {
+                    writeEntry(out, e.getKey(), e.getValue(), inSerializer);
+                }
+            }
+            entries = out.toByteArray();
+
+            COSBase contentsValue = pageDict.getDictionaryObject(COSName.CONTENTS);
+            if (contentsValue instanceof COSStream) {
+                contents = inSerializer.toBytes(pageDict.getItem(COSName.CONTENTS));
+            } else if (contentsValue instanceof COSArray
+                    && ((COSArray) contentsValue).size() > 0) {
+                byte[] array = inSerializer.toBytes(contentsValue);
+                // Without the brackets
+                contents = Arrays.copyOfRange(array, 1,
+                        array.length - 1);
+            } else {
+                contents = null;
+            }
+
+            PDResources res = inPage.findResources();
+            COSDictionary resDict = res == null ? new COSDictionary()
+                    : res.getCOSDictionary();
+            out.reset();
+            for (Map.Entry<COSName, COSBase> e : resDict.entrySet()) {
+                if (!COSName.XOBJECT.equals(e.getKey())) {
+                    writeEntry(out, e.getKey(), e.getValue(), inSerializer);
+                }
+            }
+            resources = out.toByteArray();
+
+            out.reset();
+            COSBase xobjValue = resDict.getDictionaryObject(COSName.XOBJECT);
+            COSDictionary xobjDict = xobjValue instanceof COSDictionary ? (COSDictionary) xobjValue
+                    : new COSDictionary();
+            for (Map.Entry<COSName, COSBase> e : xobjDict.entrySet()) {
+                writeEntry(out, e.getKey(), e.getValue(), inSerializer);
+            }
+            xobjects = out.toByteArray();
+
+            String name = PDFWatermarking.WATERMARK_RESOURCE_NAME;
+            int count = 1;
+            while (xobjDict.getItem(name) != null) {
+                name = PDFWatermarking.WATERMARK_RESOURCE_NAME + count;
+                count += 1;
+            }
+            formName = name;
+        }
+
+        protected static void writeEntry(ByteArrayOutputStream inOut,
+                COSName inName, COSBase inValue,
+                PDFIncrementalWriter inSerializer) throws IOException {
+
+            inName.writePDF(inOut);
+            inOut.write(' ');
+            inSerializer.writeValue(inValue, inOut);
+            inOut.write(' ');
+        }
+
+        /*
+         * Writes the page: The original content wrapped in q/Q, then the
+         * draw stream, the form added to the XObjects
+         */
+        protected void write(PDFIncrementalWriter inWriter, byte[] inFormRef,
+                byte[] inSaveRef, byte[] inRestoreRef, byte[] inDrawRef)
+                throws IOException {
+
+            byte[] space = { ' ' };
+            byte[] contentsStart = ascii("/Contents [");
+            byte[] contentsEnd = ascii("] /Resources <<");
+            byte[] xobjectStart = ascii("/XObject <<");
+            byte[] form = ascii("/" + formName + " ");
+            byte[] end = ascii(">> >> >>");
+            if (contents == null) {
+                inWriter.writeObject(key, ascii("<<"), entries, contentsStart,
+                        inDrawRef, contentsEnd, resources, xobjectStart,
+                        xobjects, form, inFormRef, end);
+            } else {
+                inWriter.writeObject(key, ascii("<<"), entries, contentsStart,
+                        inSaveRef, space, contents, space, inRestoreRef,
+                        space, inDrawRef, contentsEnd, resources,
+                        xobjectStart, xobjects, form, inFormRef, end);
+            }
+        }
+
+        protected long getSize() {
+            return entries.length + (contents == null ? 0 : contents.length)
+                    + resources.length + xobjects.length;
+        }
+
+        protected static byte[] ascii(String inValue) {
+            return inValue.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * The original blob followed by the update. Can be read several times,
+     * the original is never copied.
+     */
+    protected static class AppendedBlob extends DefaultBlob {
+
+        private static final long serialVersionUID = 1L;
+
+        protected final Blob original;
+
+        protected final byte[] update;
+
+        public AppendedBlob(Blob inOriginal, byte[] inUpdate) {
+            original = inOriginal;
+            update = inUpdate;
+        }
+
+        @Override
+        public InputStream getStream() throws IOException {
+            return new SequenceInputStream(original.getStream(),
+                    new ByteArrayInputStream(update));
+        }
+
+        @Override
+        public long getLength() {
+            long length = original.getLength();
+            return length < 0 ? -1 : length + update.length;
+        }
+
+        @Override
+        public boolean isPersistent() {
+            return false;
+        }
+
+        @Override
+        public Blob persist() throws IOException {
+            FileBlob blob = new FileBlob(getStream());
+            blob.setFilename(getFilename());
+            blob.setMimeType(getMimeType());
+            return blob;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSDocument;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.persistence.util.COSObjectKey;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.pdf.admission.PDFAdmission;
+
+/**
+ * Loads a pdf to modify it, then saves it as the original bytes, unchanged,
+ * followed by an incremental update holding only the new and modified
+ * objects (see <code>PDFIncrementalWriter</code>). Nothing is re-encoded:
+ * Saving a large file after adding a watermark or page numbers is a file
+ * copy (<code>FileChannel.transferTo()</code> when the original is a file)
+ * and the write of a few objects. Signatures of the original remain valid.
+ * <p>
+ * Modified objects are detected by comparing a digest of their serialization
+ * taken at load time: Dictionaries and arrays, and for streams the encoded
+ * data too (which is read, not decoded). The
+ * dictionaries and arrays met then are the inline values of the original,
+ * they stay inline. The ones added later (pages and bookmarks of a merged
+ * document, new resources, ...) are written as new objects.
+ * <p>
+ * When the pdf can't be updated this way (encrypted, cross reference streams,
+ * ...) or the incremental mode is not requested, <code>save()</code> is a
+ * regular <code>PDFUtils.save()</code>.
+ * <p>
+ * The result is written in a <code>PDFOutput</code> (a temporary file, or the
+ * binary store).
+ * <p>
+ * <code>load()</code> first takes the permits needed from the memory budget
+ * (see <code>PDFAdmission</code>), <code>close()</code> releases them.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * PDFIncrementalSave save = PDFIncrementalSave.load(blob, true);
+ * try {
+ *     // ... modify save.getDocument() ...
+ *     result = save.save();
+ * } finally {
+ *     save.close();
+ * }
+ * </pre>
+ *
+ * @since 7.1
+ */
+public class PDFIncrementalSave {
+
+    protected final Blob original;
+
+    protected final PDDocument doc;
+
+    protected long length = -1;
+
+    protected long startXref = -1;
+
+    // Digests of the objects at load time, null when not incremental
+    protected Map<COSObjectKey, byte[]> digests;
+
+    // Can be null
+    protected PDFMetrics.Run metrics;
+
+    protected PDFAdmission.Permit permit = PDFAdmission.NO_LIMIT;
+
+    protected PDFIncrementalSave(Blob inOriginal, PDDocument inDoc) {
+        original = inOriginal;
+        doc = inDoc;
+    }
+
+    /**
+     * Load the blob
+     *
+     * @param inBlob
+     * @param inIncremental false to save the usual way
+     * @return the loaded document, ready to be modified
+     * @throws IOException
+     */
+    public static PDFIncrementalSave load(Blob inBlob, boolean inIncremental)
+            throws IOException {
+        return load(inBlob, inIncremental, null);
+    }
+
+    /**
+     * Load the blob, timing the load, transform and save phases in
+     * <code>inMetrics</code>, which also receives the page count and the
+     * result.
+     *
+     * @param inBlob
+     * @param inIncremental false to save the usual way
+     * @param inMetrics can be null
+     * @param inAlsoLoaded other documents the caller loads while this one is
+     *            open (merged documents, ...), counted in the permits
+     * @return the loaded document, ready to be modified
+     * @throws IOException
+     * @throws org.nuxeo.pdf.admission.PDFAdmissionException if the permits
+     *             can't be acquired
+     */
+    public static PDFIncrementalSave load(Blob inBlob, boolean inIncremental,
+            PDFMetrics.Run inMetrics, Blob... inAlsoLoaded) throws IOException {
+
+        Blob[] blobs = new Blob[inAlsoLoaded.length + 1];
+        blobs[0] = inBlob;
+        System.arraycopy(inAlsoLoaded, 0, blobs, 1, inAlsoLoaded.length);
+        PDFAdmission.Permit permit = PDFUtils.admit(
+                inMetrics == null ? "load" : inMetrics.getAction(), blobs);
+        try {
+            PDFIncrementalSave save = doLoad(inBlob, inIncremental, inMetrics);
+            save.permit = permit;
+            return save;
+        } catch (IOException | RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+    }
+
+    protected static PDFIncrementalSave doLoad(Blob inBlob,
+            boolean inIncremental, PDFMetrics.Run inMetrics)
+            throws IOException {
+
+        if (inMetrics != null) {
+            inMetrics.phase(PDFMetrics.Phase.LOAD);
+        }
+
+        long length = -1;
+        long startXref = -1;
+        if (inIncremental) {
+            length = PDFIncrementalBase.getLength(inBlob);
+            startXref = PDFIncrementalBase.readStartXref(inBlob, length);
+            if (startXref >= 0
+                    && !new String(PDFIncrementalBase.readRange(inBlob,
+                            startXref, 4), StandardCharsets.US_ASCII).equals("xref")) {
+                startXref = -1;
+            }
+        }
+
+        PDFIncrementalSave save = new PDFIncrementalSave(inBlob,
+                PDDocument.load(inBlob.getStream()));
+        if (startXref >= 0 && !save.doc.isEncrypted()) {
+            save.length = length;
+            save.startXref = startXref;
+            try {
+                save.snapshot();
+            } catch (IOException e) {
+                // Unexpected structure: Save the usual way
+                save.digests = null;
+            }
+        }
+        if (inMetrics != null) {
+            save.metrics = inMetrics;
+            inMetrics.phase(PDFMetrics.Phase.TRANSFORM).pages(
+                    save.doc.getNumberOfPages());
+        }
+        return save;
+    }
+
+    public PDDocument getDocument() {
+        return doc;
+    }
+
+    /**
+     * @return true if <code>save()</code> appends an incremental update
+     */
+    public boolean isIncremental() {
+        return digests != null;
+    }
+
+    /**
+     * Save the document (see <code>PDFOutput</code>)
+     *
+     * @return the blob
+     * @throws IOException
+     * @throws COSVisitorException
+     */
+    public Blob save() throws IOException, COSVisitorException {
+
+        if (metrics != null) {
+            metrics.phase(PDFMetrics.Phase.SAVE);
+        }
+        Blob result = doSave();
+        if (metrics != null) {
+            metrics.output(result);
+        }
+        return result;
+    }
+
+    protected Blob doSave() throws IOException, COSVisitorException {
+
+        if (!isIncremental()) {
+            return PDFUtils.save(doc);
+        }
+
+        PDFOutput output = PDFOutput.create();
+        try {
+            copyOriginal(output);
+            writeUpdate(output.getStream());
+            return output.finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    public void close() {
+        PDFUtils.closeSilently(doc);
+        permit.close();
+    }
+
+    /*
+     * FileChannel.transferTo() when possible, through the stream when its
+     * digest is computed
+     */
+    protected void copyOriginal(PDFOutput inOut) throws IOException {
+
+        FileChannel target = inOut.getChannel();
+        if (target != null && original instanceof FileBlob
+                && ((FileBlob) original).getFile() != null) {
+            try (FileInputStream in = new FileInputStream(
+                    ((FileBlob) original).getFile())) {
+                FileChannel source = in.getChannel();
+                long position = 0;
+                long size = source.size();
+                while (position < size) {
+                    position += source.transferTo(position, size - position,
+                            target);
+                }
+            }
+        } else {
+            try (InputStream in = original.getStream()) {
+                byte[] buffer = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    inOut.getStream().write(buffer, 0, count);
+                }
+            }
+        }
+    }
+
+    /*
+     * The objects of the file and their key, to serialize references to
+     * objects which are not wrapped in a COSObject
+     */
+    protected Map<COSObjectKey, COSBase> getObjects() throws IOException {
+
+        COSDocument cosDoc = doc.getDocument();
+        Map<COSObjectKey, COSBase> objects = new TreeMap<COSObjectKey, COSBase>(
+                new Comparator<COSObjectKey>() {
+                    @Override
+                    public int compare(COSObjectKey o1, COSObjectKey o2) {
+                        int result = Long.compare(o1.getNumber(),
+                                o2.getNumber());
+                        return result != 0 ? result : Long.compare(
+                                o1.getGeneration(), o2.getGeneration());
+                    }
+                });
+        for (COSObjectKey key : cosDoc.getXrefTable().keySet()) {
+            COSObject obj = cosDoc.getObjectFromPool(key);
+            if (obj != null && obj.getObject() != null) {
+                objects.put(key, obj.getObject());
+            }
+        }
+        return objects;
+    }
+
+    protected void snapshot() throws IOException {
+
+        Map<COSObjectKey, COSBase> objects = getObjects();
+        PDFIncrementalWriter serializer = new PDFIncrementalWriter(null, 0, 0);
+        for (Map.Entry<COSObjectKey, COSBase> e : objects.entrySet()) {
+            serializer.setKey(e.getValue(), e.getKey());
+        }
+        digests = new HashMap<COSObjectKey, byte[]>();
+        for (Map.Entry<COSObjectKey, COSBase> e : objects.entrySet()) {
+            digests.put(e.getKey(), digest(e.getValue(),
+                    serializer.toDirectBytes(e.getValue())));
+        }
+    }
+
+    protected void writeUpdate(OutputStream inOut) throws IOException {
+
+        COSDocument cosDoc = doc.getDocument();
+        Map<COSObjectKey, COSBase> objects = getObjects();
+        long nextNumber = cosDoc.getTrailer().getLong(COSName.SIZE, 0);
+        for (COSObjectKey key : objects.keySet()) {
+            nextNumber = Math.max(nextNumber, key.getNumber() + 1);
+        }
+
+        PDFIncrementalWriter writer = new PDFIncrementalWriter(inOut, length,
+                nextNumber);
+        for (Map.Entry<COSObjectKey, COSBase> e : objects.entrySet()) {
+            writer.setKey(e.getValue(), e.getKey());
+        }
+
+        for (Map.Entry<COSObjectKey, COSBase> e : objects.entrySet()) {
+            COSBase obj = e.getValue();
+            byte[] bytes = writer.toDirectBytes(obj);
+            if (!Arrays.equals(digest(obj, bytes), digests.get(e.getKey()))) {
+                if (obj instanceof COSStream) {
+                    writer.writeObject(obj);
+                } else {
+                    writer.writeObject(e.getKey(), bytes);
+                }
+            }
+        }
+
+        COSDictionary cosTrailer = cosDoc.getTrailer();
+        COSDictionary trailer = new COSDictionary();
+        for (COSName name : new COSName[] { COSName.ROOT, COSName.INFO }) {
+            COSBase item = cosTrailer.getItem(name);
+            if (item instanceof COSObject
+                    && ((COSObject) item).getObjectNumber() != null) {
+                trailer.setItem(name, item);
+            } else if (item != null) {
+                // Set in memory (new document information, ...): Must be an
+                // indirect object
+                trailer.setItem(name,
+                        PDFIncrementalWriter.detachedReference(writer.reference(item)));
+            }
+        }
+        COSBase id = cosTrailer.getDictionaryObject(COSName.ID);
+        if (id instanceof COSArray) {
+            trailer.setItem(COSName.ID, id);
+        }
+
+        writer.finish(startXref, trailer);
+    }
+
+    /*
+     * Digest of the serialization of the object, followed by the encoded data
+     * when it is a stream
+     */
+    protected static byte[] digest(COSBase inObject, byte[] inBytes)
+            throws IOException {
+
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        md.update(inBytes);
+        if (inObject instanceof COSStream) {
+            try (InputStream in = ((COSStream) inObject).getFilteredStream()) {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    md.update(buffer, 0, count);
+                }
+            }
+        }
+        return md.digest();
+    }
+}
@@ -0,0 +1,442 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSBoolean;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSFloat;
+import org.apache.pdfbox.cos.COSInteger;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.persistence.util.COSObjectKey;
+
+/**
+ * Writes an incremental update of a PDF: The new and changed objects, a cross
+ * reference section for these objects only, and a trailer pointing to the
+ * previous cross reference section (<code>/Prev</code>). The original bytes
+ * are written by the caller, unchanged, before the update.
+ * <p>
+ * Objects are serialized at the COS level:
+ * <ul>
+ * <li>References parsed from the original file (<code>COSObject</code>) keep
+ * their object number</li>
+ * <li>Objects registered with <code>setKey()</code> are written as references
+ * to this key</li>
+ * <li>Dictionaries and arrays flagged direct (<code>isDirect()</code>) are
+ * written inline</li>
+ * <li>Other streams, dictionaries and arrays are new objects, as
+ * <code>COSWriter</code> does: They receive the next free number (see
+ * <code>reference()</code>) and are written by <code>flush()</code>. Objects
+ * imported from another document (merge) can then reference each other, as
+ * bookmarks do (<code>/Parent</code>, <code>/Prev</code>, <code>/Next</code>).
+ * Stream data is written in its encoded form, as is</li>
+ * </ul>
+ * <p>
+ * A writer which does not allow new objects (serializing values only, see the
+ * constructor) writes the dictionaries and arrays it meets inline and flags
+ * them direct: Serializing the objects of the original file once, before
+ * modifying it, keeps their inline values inline in the update.
+ *
+ * @since 7.1
+ */
+public class PDFIncrementalWriter {
+
+    protected static final byte[] EOL = { '\n' };
+
+    protected final OutputStream out;
+
+    protected long position;
+
+    protected long nextNumber;
+
+    protected final Map<COSBase, COSObjectKey> keys = new IdentityHashMap<COSBase, COSObjectKey>();
+
+    protected final Deque<COSBase> pending = new ArrayDeque<COSBase>();
+
+    // Object number => { offset, generation }
+    protected final TreeMap<Long, long[]> xref = new TreeMap<Long, long[]>();
+
+    /**
+     * The update starts with an end of line, in case the original file does
+     * not end with one.
+     *
+     * @param inOut where the update is written
+     * @param inOffset size of the original file (the offset of the first byte
+     *            written to <code>inOut</code>)
+     * @param inNextNumber first number to use for new objects (the /Size of
+     *            the original trailer). 0 when new objects are not allowed
+     *            (serializing values only: Dictionaries and arrays are then
+     *            written inline and flagged direct)
+     * @throws IOException
+     */
+    public PDFIncrementalWriter(OutputStream inOut, long inOffset,
+            long inNextNumber) throws IOException {
+
+        out = inOut;
+        position = inOffset;
+        nextNumber = inNextNumber;
+        if (out != null) {
+            write(EOL);
+        }
+    }
+
+    /**
+     * Declare the key of an object which already exists in the original file
+     * and is not wrapped in a <code>COSObject</code> (objects modified in
+     * memory, ...)
+     *
+     * @param inObject
+     * @param inKey
+     */
+    public void setKey(COSBase inObject, COSObjectKey inKey) {
+        keys.put(inObject, inKey);
+    }
+
+    /**
+     * Return the key of the object, assigning a new number (and scheduling
+     * the object to be written by <code>flush()</code>) if it has none.
+     *
+     * @param inObject
+     * @return the key
+     * @throws IOException
+     */
+    public COSObjectKey reference(COSBase inObject) throws IOException {
+
+        COSObjectKey key = keys.get(inObject);
+        if (key == null) {
+            if (nextNumber <= 0) {
+                throw new IOException("New objects are not allowed");
+            }
+            key = new COSObjectKey(nextNumber, 0);
+            nextNumber += 1;
+            keys.put(inObject, key);
+            pending.add(inObject);
+        }
+        return key;
+    }
+
+    /**
+     * Write the object, with its key (existing or new)
+     *
+     * @param inObject a dictionary, an array or a stream
+     * @throws IOException
+     */
+    public void writeObject(COSBase inObject) throws IOException {
+
+        COSObjectKey key = reference(inObject);
+        pending.remove(inObject);
+        beginObject(key);
+        if (inObject instanceof COSStream) {
+            writeStream((COSStream) inObject);
+        } else {
+            // Through write(), which counts the bytes for the xref offsets
+            write(toDirectBytes(inObject));
+        }
+        endObject();
+    }
+
+    /**
+     * Write an object whose serialization is already done (the bytes between
+     * "obj" and "endobj")
+     *
+     * @param inKey
+     * @param inParts
+     * @throws IOException
+     */
+    public void writeObject(COSObjectKey inKey, byte[]... inParts)
+            throws IOException {
+
+        beginObject(inKey);
+        for (byte[] part : inParts) {
+            write(part);
+        }
+        endObject();
+    }
+
+    /**
+     * Write the new objects referenced so far (and the ones they reference)
+     *
+     * @throws IOException
+     */
+    public void flush() throws IOException {
+
+        while (!pending.isEmpty()) {
+            writeObject(pending.peek());
+        }
+    }
+
+    /**
+     * Write the new objects, the cross reference section and the trailer.
+     * <code>/Size</code> and <code>/Prev</code> are set in the trailer.
+     *
+     * @param inPrevXref offset of the cross reference section of the original
+     *            file
+     * @param inTrailer other entries of the trailer (/Root, /Info, /ID)
+     * @throws IOException
+     */
+    public void finish(long inPrevXref, COSDictionary inTrailer)
+            throws IOException {
+
+        flush();
+
+        long xrefOffset = position;
+        write(ascii("xref\n"));
+        Long start = null;
+        int count = 0;
+        StringBuilder entries = new StringBuilder();
+        for (Map.Entry<Long, long[]> e : xref.entrySet()) {
+            long num = e.getKey();
+            if (start == null || num != start + count) {
+                writeSubsection(start, count, entries);
+                start = num;
+                count = 0;
+                entries.setLength(0);
+            }
+            entries.append(String.format("%010d %05d n\r\n", e.getValue()[0],
+                    e.getValue()[1]));
+            count += 1;
+        }
+        writeSubsection(start, count, entries);
+
+        COSDictionary trailer = new COSDictionary();
+        for (Map.Entry<COSName, COSBase> e : inTrailer.entrySet()) {
+            if (e.getValue() instanceof COSArray) {
+                // /ID must be a direct object
+                e.getValue().setDirect(true);
+            }
+            trailer.setItem(e.getKey(), e.getValue());
+        }
+        long size = Math.max(nextNumber, xref.isEmpty() ? 0
+                : xref.lastKey() + 1);
+        size = Math.max(size, inTrailer.getLong(COSName.SIZE, 0));
+        trailer.setLong(COSName.SIZE, size);
+        trailer.setLong(COSName.PREV, inPrevXref);
+
+        write(ascii("trailer\n"));
+        write(toDirectBytes(trailer));
+        write(ascii("\nstartxref\n" + xrefOffset + "\n%%EOF\n"));
+    }
+
+    protected void writeSubsection(Long inStart, int inCount,
+            StringBuilder inEntries) throws IOException {
+
+        if (inStart != null && inCount > 0) {
+            write(ascii(inStart + " " + inCount + "\n"));
+            write(ascii(inEntries.toString()));
+        }
+    }
+
+    protected void beginObject(COSObjectKey inKey) throws IOException {
+
+        xref.put(inKey.getNumber(), new long[] { position,
+                inKey.getGeneration() });
+        write(ascii(inKey.getNumber() + " " + inKey.getGeneration() + " obj\n"));
+    }
+
+    protected void endObject() throws IOException {
+        write(ascii("\nendobj\n"));
+    }
+
+    protected void writeStream(COSStream inStream) throws IOException {
+
+        byte[] data = PDFObjectTemplate.Detacher.readEncoded(inStream);
+
+        COSDictionary dict = new COSDictionary();
+        for (Map.Entry<COSName, COSBase> e : inStream.entrySet()) {
+            dict.setItem(e.getKey(), e.getValue());
+        }
+        dict.setInt(COSName.LENGTH, data.length);
+        write(toDirectBytes(dict));
+        write(ascii("\nstream\n"));
+        write(data);
+        write(ascii("\nendstream"));
+    }
+
+    /**
+     * Serialize a value: Referenced objects are written as references, direct
+     * dictionaries and arrays inline. Other dictionaries and arrays are new
+     * objects, written as a reference (or inline and flagged direct when new
+     * objects are not allowed).
+     *
+     * @param inValue
+     * @param inOut
+     * @throws IOException
+     */
+    public void writeValue(COSBase inValue, OutputStream inOut)
+            throws IOException {
+
+        if (inValue instanceof COSObject) {
+            COSObject obj = (COSObject) inValue;
+            if (obj.getObjectNumber() != null) {
+                writeReference(new COSObjectKey(
+                        obj.getObjectNumber().longValue(),
+                        obj.getGenerationNumber() == null ? 0
+                                : obj.getGenerationNumber().longValue()),
+                        inOut);
+                return;
+            }
+            inValue = obj.getObject();
+        }
+        COSObjectKey key = inValue == null ? null : keys.get(inValue);
+        if (key != null) {
+            writeReference(key, inOut);
+        } else if (inValue instanceof COSStream) {
+            // Streams are always indirect objects
+            writeReference(reference(inValue), inOut);
+        } else if ((inValue instanceof COSDictionary || inValue instanceof COSArray)
+                && !inValue.isDirect()) {
+            if (nextNumber > 0) {
+                writeReference(reference(inValue), inOut);
+            } else {
+                inValue.setDirect(true);
+                writeDirect(inValue, inOut);
+            }
+        } else {
+            writeDirect(inValue, inOut);
+        }
+    }
+
+    protected void writeDirect(COSBase inValue, OutputStream inOut)
+            throws IOException {
+
+        if (inValue == null || inValue instanceof COSNull) {
+            inOut.write(ascii("null"));
+        } else if (inValue instanceof COSDictionary) {
+            inOut.write(ascii("<<"));
+            for (Map.Entry<COSName, COSBase> e : ((COSDictionary) inValue).entrySet()) {
+                e.getKey().writePDF(inOut);
+                inOut.write(' ');
+                writeValue(e.getValue(), inOut);
+                inOut.write(' ');
+            }
+            inOut.write(ascii(">>"));
+        } else if (inValue instanceof COSArray) {
+            inOut.write('[');
+            boolean first = true;
+            for (COSBase item : (COSArray) inValue) {
+                if (!first) {
+                    inOut.write(' ');
+                }
+                writeValue(item, inOut);
+                first = false;
+            }
+            inOut.write(']');
+        } else if (inValue instanceof COSName) {
+            ((COSName) inValue).writePDF(inOut);
+        } else if (inValue instanceof COSString) {
+            ((COSString) inValue).writePDF(inOut);
+        } else if (inValue instanceof COSInteger) {
+            ((COSInteger) inValue).writePDF(inOut);
+        } else if (inValue instanceof COSFloat) {
+            ((COSFloat) inValue).writePDF(inOut);
+        } else if (inValue instanceof COSBoolean) {
+            ((COSBoolean) inValue).writePDF(inOut);
+        } else {
+            throw new IOException("Cannot serialize "
+                    + inValue.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Serialize the object itself, not a reference to it (for a stream: its
+     * dictionary)
+     *
+     * @param inObject
+     * @return the bytes
+     * @throws IOException
+     */
+    public byte[] toDirectBytes(COSBase inObject) throws IOException {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeDirect(inObject, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Serialize the value in a byte array
+     *
+     * @param inValue
+     * @return the bytes
+     * @throws IOException
+     */
+    public byte[] toBytes(COSBase inValue) throws IOException {
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        writeValue(inValue, buffer);
+        return buffer.toByteArray();
+    }
+
+    /**
+     * A reference to an object of the original file, which does not hold the
+     * object (and then the parsed document) in memory
+     *
+     * @param inKey
+     * @return the reference
+     */
+    public static COSObject detachedReference(COSObjectKey inKey)
+            throws IOException {
+
+        COSObject ref = new COSObject(null);
+        ref.setObjectNumber(COSInteger.get(inKey.getNumber()));
+        ref.setGenerationNumber(COSInteger.get(inKey.getGeneration()));
+        return ref;
+    }
+
+    /**
+     * @param inKey
+     * @return "n g R"
+     */
+    public static byte[] referenceBytes(COSObjectKey inKey) {
+        return ascii(inKey.getNumber() + " " + inKey.getGeneration() + " R");
+    }
+
+    protected static void writeReference(COSObjectKey inKey, OutputStream inOut)
+            throws IOException {
+        inOut.write(referenceBytes(inKey));
+    }
+
+    protected void write(byte[] inBytes) throws IOException {
+        out.write(inBytes);
+        position += inBytes.length;
+    }
+
+    protected static byte[] ascii(String inValue) {
+        return inValue.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * @return the offset of the next byte to be written
+     */
+    public long getPosition() {
+        return position;
+    }
+}
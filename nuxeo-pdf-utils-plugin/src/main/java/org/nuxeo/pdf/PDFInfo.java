@@ -211,9 +211,12 @@ public class PDFInfo {
                 fileSize = pdfFile.length();
             }
 
+            PDFMetrics.Run metrics = PDFMetrics.start("info", pdfBlob);
             try {
+                metrics.phase(PDFMetrics.Phase.LOAD);
                 pdfDoc = PDDocument.load(pdfBlob.getStream());
 
+                metrics.phase(PDFMetrics.Phase.TRANSFORM);
                 isEncrypted = pdfDoc.isEncrypted();
                 if (isEncrypted) {
                     pdfDoc.openProtection(new StandardDecryptionMaterial(
@@ -221,6 +224,7 @@ public class PDFInfo {
                 }
 
                 numberOfPages = pdfDoc.getNumberOfPages();
+                metrics.pages(numberOfPages);
                 PDDocumentCatalog docCatalog = pdfDoc.getDocumentCatalog();
                 pageLayout = checkNotNull(docCatalog.getPageLayout());
                 pdfVersion = "" + pdfDoc.getDocument().getVersion();
@@ -287,11 +291,16 @@ public class PDFInfo {
 
             } catch (IOException | BadSecurityHandlerException
                     | CryptographyException e) {
+                metrics.error(e);
                 throw new ClientException(/*
                                            * "Cannot get PDF info: " +
                                            * e.getMessage(),
                                            */e);
+            } catch (RuntimeException e) {
+                metrics.error(e);
+                throw e;
             } finally {
+                metrics.stop();
                 if (pdfDoc != null) {
                     try {
                         pdfDoc.close();
@@ -18,6 +18,7 @@ package org.nuxeo.pdf;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,8 +31,7 @@ import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.api.DocumentModel;
 import org.nuxeo.ecm.core.api.DocumentModelList;
 import org.nuxeo.ecm.core.api.IdRef;
-import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
-import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.pdf.admission.PDFAdmission;
 
 /**
  * Merge several PDFs in one.
@@ -169,26 +169,72 @@ public class PDFMerge {
             break;
 
         default:
-            PDFMergerUtility ut = new PDFMergerUtility();
-            for (Blob b : blobs) {
-                ut.addSource(b.getStream());
+            // PDFMergerUtility loads, merges and saves in one call: Timed as
+            // the transform phase
+            final PDFMetrics.Run metrics = PDFMetrics.start("merge", null);
+            PDFAdmission.Permit permit = PDFAdmission.NO_LIMIT;
+            try {
+                permit = PDFUtils.admit("merge",
+                        blobs.toArray(new Blob[blobs.size()]));
+                // Counts the pages as the documents are appended
+                PDFMergerUtility ut = new PDFMergerUtility() {
+                    boolean first = true;
+
+                    @Override
+                    public void appendDocument(PDDocument destination,
+                            PDDocument source) throws IOException {
+                        if (first) {
+                            first = false;
+                            metrics.pages(destination.getNumberOfPages());
+                        }
+                        super.appendDocument(destination, source);
+                        metrics.pages(source.getNumberOfPages());
+                    }
+                };
+                for (Blob b : blobs) {
+                    metrics.input(b);
+                    ut.addSource(b.getStream());
+                }
+
+                metrics.phase(PDFMetrics.Phase.TRANSFORM);
+                if (inTitle != null || inAuthor != null || inSubject != null) {
+                    File tempFile = PDFScratch.createFile(".pdf");
+                    try {
+                        ut.setDestinationFileName(tempFile.getAbsolutePath());
+                        ut.mergeDocuments();
+
+                        metrics.phase(PDFMetrics.Phase.SAVE);
+                        PDDocument finalDoc = PDDocument.load(tempFile);
+                        try {
+                            PDFUtils.setInfos(finalDoc, inTitle, inSubject,
+                                    inAuthor);
+                            finalBlob = PDFUtils.save(finalDoc);
+                        } finally {
+                            finalDoc.close();
+                        }
+                    } finally {
+                        PDFScratch.release(tempFile);
+                    }
+                } else {
+                    // Merged straight into the output
+                    PDFOutput output = PDFOutput.create();
+                    try {
+                        ut.setDestinationStream(output.getStream());
+                        ut.mergeDocuments();
+                        finalBlob = output.finish();
+                    } finally {
+                        output.close();
+                    }
+                }
+                metrics.output(finalBlob);
+            } catch (IOException | COSVisitorException | RuntimeException e) {
+                metrics.error(e);
+                throw e;
+            } finally {
+                permit.close();
+                metrics.stop();
             }
 
-            File tempFile = File.createTempFile("mergepdf", ".pdf");
-            ut.setDestinationFileName(tempFile.getAbsolutePath());
-
-            ut.mergeDocuments();
-
-            if (inTitle != null || inAuthor != null || inSubject != null) {
-                PDDocument finalDoc = PDDocument.load(tempFile);
-                PDFUtils.setInfos(finalDoc, inTitle, inSubject, inAuthor);
-                finalDoc.save(tempFile);
-                finalDoc.close();
-            }
-
-            finalBlob = new FileBlob(tempFile);
-            Framework.trackFile(tempFile, finalBlob);
-
             if (inFileName != null && !inFileName.isEmpty()) {
                 finalBlob.setFilename(inFileName);
             } else {
@@ -201,4 +247,30 @@ public class PDFMerge {
 
         return finalBlob;
     }
+
+    /**
+     * Append the pages of the PDFs, in the order they were added, to an
+     * already loaded document (see <code>PDFPipeline</code>): Nothing is
+     * saved.
+     * <p>
+     * The appended pages still read their streams from the loaded sources:
+     * They are added to <code>outLoaded</code> and must be closed by the caller
+     * only <i>after</i> <code>inDoc</code> is saved.
+     *
+     * @param inDoc
+     * @param outLoaded receives the loaded sources
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public void merge(PDDocument inDoc, List<PDDocument> outLoaded)
+            throws IOException {
+
+        PDFMergerUtility ut = new PDFMergerUtility();
+        for (Blob b : blobs) {
+            PDDocument source = PDDocument.load(b.getStream());
+            outLoaded.add(source);
+            ut.appendDocument(inDoc, source);
+        }
+    }
 }
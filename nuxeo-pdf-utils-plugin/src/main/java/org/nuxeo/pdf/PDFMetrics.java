@@ -0,0 +1,311 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.pdf.work.PDFWork;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.SharedMetricRegistries;
+
+/**
+ * Publishes the metrics of the plug-in in the nuxeo metrics registry (the
+ * one reported by the <code>MetricsService</code>: JMX, Graphite, ...).
+ * <p>
+ * Each action (<code>watermark.text</code>, <code>pageNumbers</code>,
+ * <code>merge</code>, ...) gets, under
+ * <code>nuxeo.pdfutils.&lt;action&gt;</code>:
+ * <ul>
+ * <li>Timers: <code>total</code>, and per phase <code>load</code>,
+ * <code>transform</code> and <code>save</code></li>
+ * <li>Meters (count and rate): <code>pages</code>, <code>bytesIn</code>,
+ * <code>bytesOut</code></li>
+ * <li>Histogram <code>tempFileBytes</code>: Peak of the size of the files
+ * the run holds in the scratch space (see <code>PDFScratch.track()</code>):
+ * The files tracked by its thread while it is in progress, including by the
+ * runs it starts, and not released yet</li>
+ * <li>Counters <code>errors.&lt;exception class&gt;</code></li>
+ * </ul>
+ * Usage:
+ *
+ * <pre>
+ * PDFMetrics.Run metrics = PDFMetrics.start(&quot;myAction&quot;, blob);
+ * try {
+ *     metrics.phase(Phase.LOAD);
+ *     // ...
+ *     metrics.output(result);
+ * } catch (IOException e) {
+ *     metrics.error(e);
+ *     throw new ClientException(e);
+ * } finally {
+ *     metrics.stop();
+ * }
+ * </pre>
+ *
+ * A <code>Run</code> is used by a single thread. Runs started by the same
+ * thread are nested: A run ends before the run it was started in.
+ *
+ * @since 7.1
+ */
+public class PDFMetrics {
+
+    /**
+     * Name of the registry used by the nuxeo <code>MetricsService</code>
+     */
+    public static final String REGISTRY_NAME = "org.nuxeo.runtime.metrics.MetricsService";
+
+    public static final String PREFIX = "nuxeo.pdfutils.";
+
+    public enum Phase {
+        LOAD, TRANSFORM, SAVE
+    }
+
+    // Runs not stopped yet, to follow the release of their scratch files
+    protected static final Set<Run> running = Collections.newSetFromMap(
+            new ConcurrentHashMap<Run, Boolean>());
+
+    // The innermost run of the current thread
+    protected static final ThreadLocal<Run> current = new ThreadLocal<Run>();
+
+    public static MetricRegistry getRegistry() {
+        return SharedMetricRegistries.getOrCreate(REGISTRY_NAME);
+    }
+
+    /**
+     * Start measuring an action
+     *
+     * @param inAction
+     * @param inInput the input blob (counted in <code>bytesIn</code>), can be
+     *            null
+     * @return the run, to be stopped in a finally block
+     */
+    public static Run start(String inAction, Blob inInput) {
+        return new Run(inAction).input(inInput);
+    }
+
+    /**
+     * Return the name of a metric of an action, such as
+     * "nuxeo.pdfutils.merge.total"
+     *
+     * @param inAction
+     * @param inMetric
+     * @return the name
+     */
+    public static String name(String inAction, String inMetric) {
+        return PREFIX + inAction + "." + inMetric;
+    }
+
+    /**
+     * @return the innermost run in progress in the current thread, null if
+     *         none
+     */
+    public static Run getCurrent() {
+        return current.get();
+    }
+
+    /**
+     * Make <code>inRun</code> the run of the current thread, so that a thread
+     * working for a run started by another one (a pool...) counts its scratch
+     * files in it. The runs it starts are nested in <code>inRun</code>.
+     *
+     * @param inRun can be null
+     * @return the previous run of the thread, to restore with this method
+     */
+    public static Run setCurrent(Run inRun) {
+        Run previous = current.get();
+        current.set(inRun);
+        return previous;
+    }
+
+    /**
+     * Called by <code>PDFScratch</code> when a file is tracked: It is held by
+     * the runs of the current thread
+     *
+     * @param inFile
+     * @param inLength
+     */
+    public static void scratchTracked(File inFile, long inLength) {
+        for (Run run = current.get(); run != null; run = run.parent) {
+            run.scratchTracked(inFile, inLength);
+        }
+    }
+
+    /**
+     * Called by <code>PDFScratch</code> when a file is released or deleted,
+     * by any thread
+     *
+     * @param inFile
+     */
+    public static void scratchReleased(File inFile) {
+        for (Run run : running) {
+            run.scratchReleased(inFile);
+        }
+    }
+
+    public static class Run {
+
+        protected final String action;
+
+        protected final Run parent;
+
+        protected final long start = System.nanoTime();
+
+        protected Phase phase;
+
+        protected long phaseStart;
+
+        protected boolean stopped = false;
+
+        // The scratch files held, and their length
+        protected final Map<File, Long> scratchFiles = new ConcurrentHashMap<File, Long>();
+
+        protected final AtomicLong scratchBytes = new AtomicLong();
+
+        protected final AtomicLong scratchPeak = new AtomicLong();
+
+        protected Run(String inAction) {
+            action = inAction;
+            parent = current.get();
+            current.set(this);
+            running.add(this);
+        }
+
+        protected MetricRegistry registry() {
+            return getRegistry();
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        /**
+         * Ends the current phase, if any, and starts <code>inPhase</code>
+         *
+         * @param inPhase
+         * @return this
+         */
+        public Run phase(Phase inPhase) {
+
+            long now = System.nanoTime();
+            endPhase(now);
+            phase = inPhase;
+            phaseStart = now;
+            return this;
+        }
+
+        protected void endPhase(long inNow) {
+            if (phase != null) {
+                registry().timer(name(action, phase.name().toLowerCase())).update(
+                        inNow - phaseStart, TimeUnit.NANOSECONDS);
+                phase = null;
+            }
+        }
+
+        /**
+         * Counts the pages processed, also reported to the asynchronous job
+         * running in the current thread, if any (see <code>PDFWork</code>)
+         *
+         * @param inCount
+         * @return this
+         */
+        public Run pages(int inCount) {
+            if (inCount > 0) {
+                registry().meter(name(action, "pages")).mark(inCount);
+                PDFWork.pagesProcessed(inCount);
+            }
+            return this;
+        }
+
+        public Run input(Blob inBlob) {
+            long length = inBlob == null ? -1 : inBlob.getLength();
+            if (length > 0) {
+                registry().meter(name(action, "bytesIn")).mark(length);
+            }
+            return this;
+        }
+
+        /**
+         * Counts the result in <code>bytesOut</code>
+         *
+         * @param inBlob
+         * @return this
+         */
+        public Run output(Blob inBlob) {
+            long length = inBlob == null ? -1 : inBlob.getLength();
+            if (length > 0) {
+                registry().meter(name(action, "bytesOut")).mark(length);
+            }
+            return this;
+        }
+
+        protected void scratchTracked(File inFile, long inLength) {
+            Long previous = scratchFiles.put(inFile, inLength);
+            long bytes = scratchBytes.addAndGet(inLength
+                    - (previous == null ? 0 : previous));
+            long peak = scratchPeak.get();
+            while (bytes > peak && !scratchPeak.compareAndSet(peak, bytes)) {
+                peak = scratchPeak.get();
+            }
+        }
+
+        /*
+         * Can be called by any thread
+         */
+        protected void scratchReleased(File inFile) {
+            Long length = scratchFiles.remove(inFile);
+            if (length != null) {
+                scratchBytes.addAndGet(-length);
+            }
+        }
+
+        public Run error(Throwable inError) {
+            registry().counter(
+                    name(action, "errors." + inError.getClass().getSimpleName())).inc();
+            return this;
+        }
+
+        /**
+         * Ends the current phase and updates the <code>total</code> timer and
+         * the <code>tempFileBytes</code> histogram. Does nothing if already
+         * stopped.
+         */
+        public void stop() {
+
+            if (!stopped) {
+                stopped = true;
+                running.remove(this);
+                if (current.get() == this) {
+                    current.set(parent);
+                }
+                long now = System.nanoTime();
+                endPhase(now);
+                registry().timer(name(action, "total")).update(now - start,
+                        TimeUnit.NANOSECONDS);
+                registry().histogram(name(action, "tempFileBytes")).update(
+                        scratchPeak.get());
+            }
+        }
+    }
+}
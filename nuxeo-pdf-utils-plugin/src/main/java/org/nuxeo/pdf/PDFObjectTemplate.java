@@ -0,0 +1,225 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNull;
+import org.apache.pdfbox.cos.COSObject;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+
+/**
+ * A graph of PDF objects (dictionaries, arrays, streams...) detached from its
+ * document: Stream data is held in memory, in its encoded form.
+ * <p>
+ * A template is built once, from a document that can be closed afterwards,
+ * and can then be imported in any number of documents, from any thread
+ * (templates are immutable). Importing does not parse or decode anything: It
+ * only creates the objects and copies the stream data.
+ * <p>
+ * Objects referenced several times (a font used by two forms, ...) are
+ * imported once.
+ *
+ * @since 7.1
+ */
+public class PDFObjectTemplate {
+
+    protected final Object root;
+
+    protected final long size;
+
+    protected PDFObjectTemplate(Object inRoot, long inSize) {
+        root = inRoot;
+        size = inSize;
+    }
+
+    /**
+     * Detach <code>inObject</code> and everything it references.
+     * <p>
+     * Do not use with objects referencing the page tree (/Parent, ...): The
+     * whole document would be detached.
+     *
+     * @param inObject
+     * @return the template
+     * @throws IOException
+     */
+    public static PDFObjectTemplate of(COSBase inObject) throws IOException {
+
+        Detacher d = new Detacher();
+        Object root = d.detach(inObject);
+        return new PDFObjectTemplate(root, d.size);
+    }
+
+    /**
+     * @return the size (in bytes) of the stream data
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Create the objects in the document.
+     *
+     * @param inDoc
+     * @return the root object
+     * @throws IOException
+     */
+    public COSBase importInto(PDDocument inDoc) throws IOException {
+        return attach(root, inDoc, new IdentityHashMap<Object, COSBase>());
+    }
+
+    protected static COSBase attach(Object inNode, PDDocument inDoc,
+            Map<Object, COSBase> inDone) throws IOException {
+
+        if (inNode instanceof COSBase) {
+            return (COSBase) inNode;
+        }
+        COSBase done = inDone.get(inNode);
+        if (done != null) {
+            return done;
+        }
+
+        if (inNode instanceof DetachedStream) {
+            DetachedStream ds = (DetachedStream) inNode;
+            PDStream stream = new PDStream(inDoc, new ByteArrayInputStream(
+                    ds.data), true);
+            COSStream cos = stream.getStream();
+            inDone.put(inNode, cos);
+            fill(cos, ds.dict, inDoc, inDone);
+            return cos;
+        }
+        if (inNode instanceof DetachedDictionary) {
+            COSDictionary dict = new COSDictionary();
+            inDone.put(inNode, dict);
+            fill(dict, ((DetachedDictionary) inNode).entries, inDoc, inDone);
+            return dict;
+        }
+        COSArray array = new COSArray();
+        inDone.put(inNode, array);
+        for (Object item : ((DetachedArray) inNode).items) {
+            array.add(attach(item, inDoc, inDone));
+        }
+        return array;
+    }
+
+    protected static void fill(COSDictionary inDict,
+            Map<COSName, Object> inEntries, PDDocument inDoc,
+            Map<Object, COSBase> inDone) throws IOException {
+
+        for (Map.Entry<COSName, Object> e : inEntries.entrySet()) {
+            inDict.setItem(e.getKey(), attach(e.getValue(), inDoc, inDone));
+        }
+    }
+
+    protected static class Detacher {
+
+        protected Map<COSBase, Object> done = new IdentityHashMap<COSBase, Object>();
+
+        protected long size = 0;
+
+        protected Object detach(COSBase inValue) throws IOException {
+
+            COSBase value = inValue instanceof COSObject ? ((COSObject) inValue).getObject()
+                    : inValue;
+            if (value == null) {
+                return COSNull.NULL;
+            }
+            Object existing = done.get(value);
+            if (existing != null) {
+                return existing;
+            }
+
+            if (value instanceof COSStream) {
+                DetachedStream ds = new DetachedStream();
+                done.put(value, ds);
+                ds.data = readEncoded((COSStream) value);
+                size += ds.data.length;
+                ds.dict = detachEntries((COSDictionary) value);
+                ds.dict.remove(COSName.LENGTH);
+                return ds;
+            }
+            if (value instanceof COSDictionary) {
+                DetachedDictionary dd = new DetachedDictionary();
+                done.put(value, dd);
+                dd.entries = detachEntries((COSDictionary) value);
+                return dd;
+            }
+            if (value instanceof COSArray) {
+                DetachedArray da = new DetachedArray();
+                done.put(value, da);
+                for (COSBase item : (COSArray) value) {
+                    da.items.add(detach(item));
+                }
+                return da;
+            }
+            // Names, numbers, strings, booleans: Immutable
+            return value;
+        }
+
+        protected Map<COSName, Object> detachEntries(COSDictionary inDict)
+                throws IOException {
+
+            Map<COSName, Object> entries = new LinkedHashMap<COSName, Object>();
+            for (Map.Entry<COSName, COSBase> e : inDict.entrySet()) {
+                entries.put(e.getKey(), detach(e.getValue()));
+            }
+            return entries;
+        }
+
+        protected static byte[] readEncoded(COSStream inStream)
+                throws IOException {
+
+            try (InputStream in = inStream.getFilteredStream()) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, count);
+                }
+                return out.toByteArray();
+            }
+        }
+    }
+
+    protected static class DetachedDictionary {
+        Map<COSName, Object> entries;
+    }
+
+    protected static class DetachedStream {
+        Map<COSName, Object> dict;
+
+        byte[] data;
+    }
+
+    protected static class DetachedArray {
+        List<Object> items = new ArrayList<Object>();
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.repository.RepositoryManager;
+import org.nuxeo.ecm.core.storage.binary.Binary;
+import org.nuxeo.ecm.core.storage.binary.BinaryBlob;
+import org.nuxeo.ecm.core.storage.binary.BinaryManager;
+import org.nuxeo.ecm.core.storage.binary.BinaryManagerService;
+import org.nuxeo.ecm.core.storage.binary.LocalBinaryManager;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * The file a result is written to.
+ * <p>
+ * By default, a file of the scratch space (a <code>FileBlob</code>, see
+ * <code>PDFScratch</code>). When
+ * <code>nuxeo.pdfutils.output.binaryStore</code> is true and the default
+ * repository uses a local binary manager, the file is written in its
+ * temporary directory and its digest is computed while it is written:
+ * <code>finish()</code> moves it into the store and returns a
+ * <code>BinaryBlob</code>, which is saved on a document without being read
+ * again (instead of the usual write, read and copy). An unused result is
+ * removed by the binaries garbage collector.
+ * <p>
+ * The digest algorithm is the one configured for the binary manager (the
+ * <code>digest</code> of its descriptor). When it is not available, the
+ * result is written to a scratch file.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * PDFOutput output = PDFOutput.create();
+ * try {
+ *     doc.save(output.getStream());
+ *     result = output.finish();
+ * } finally {
+ *     output.close();
+ * }
+ * </pre>
+ *
+ * @since 7.1
+ */
+public class PDFOutput implements Closeable {
+
+    private static final Log log = LogFactory.getLog(PDFOutput.class);
+
+    public static final String BINARY_STORE_PROPERTY = "nuxeo.pdfutils.output.binaryStore";
+
+    protected static final String MIME_TYPE = "application/pdf";
+
+    protected final File file;
+
+    protected final FileOutputStream fileOut;
+
+    protected final OutputStream out;
+
+    // Null when not writing to the binary store
+    protected final LocalBinaryManager binaryManager;
+
+    protected final MessageDigest digest;
+
+    protected boolean finished = false;
+
+    protected PDFOutput(File inFile, LocalBinaryManager inBinaryManager,
+            MessageDigest inDigest) throws IOException {
+        file = inFile;
+        binaryManager = inBinaryManager;
+        digest = inDigest;
+        fileOut = new FileOutputStream(inFile);
+        out = new BufferedOutputStream(inDigest == null ? fileOut
+                : new DigestOutputStream(fileOut, inDigest), 64 * 1024);
+    }
+
+    /**
+     * @return a new output, in the binary store if enabled
+     * @throws IOException
+     */
+    public static PDFOutput create() throws IOException {
+
+        LocalBinaryManager bm = getBinaryManager();
+        String algorithm = bm == null ? null : getDigestAlgorithm(bm);
+        if (algorithm != null) {
+            try {
+                MessageDigest digest = MessageDigest.getInstance(algorithm);
+                // The temporary directory of the store: Same file system,
+                // the file is just renamed
+                File tmpDir = new File(bm.getStorageDir().getParentFile(),
+                        "tmp");
+                tmpDir.mkdirs();
+                return new PDFOutput(File.createTempFile("nuxeo-pdfutils-",
+                        ".pdf", tmpDir), bm, digest);
+            } catch (NoSuchAlgorithmException e) {
+                log.warn("Unknown digest algorithm " + algorithm
+                        + " of the binary manager, writing to a temporary file",
+                        e);
+            }
+        }
+        return new PDFOutput(PDFScratch.createFile(".pdf"), null, null);
+    }
+
+    protected static LocalBinaryManager getBinaryManager() {
+
+        if (!Framework.isInitialized()
+                || !Framework.isBooleanPropertyTrue(BINARY_STORE_PROPERTY)) {
+            return null;
+        }
+        try {
+            String repositoryName = Framework.getService(
+                    RepositoryManager.class).getDefaultRepositoryName();
+            BinaryManagerService service = Framework.getService(BinaryManagerService.class);
+            BinaryManager bm = service == null ? null
+                    : service.getBinaryManager(repositoryName);
+            return bm instanceof LocalBinaryManager ? (LocalBinaryManager) bm
+                    : null;
+        } catch (RuntimeException e) {
+            log.debug("No binary manager, writing to a temporary file", e);
+            return null;
+        }
+    }
+
+    /*
+     * The digest names the file in the store: It must be computed with the
+     * algorithm of the binary manager, never with another one
+     */
+    protected static String getDigestAlgorithm(LocalBinaryManager inBm) {
+
+        String algorithm = inBm.getDescriptor() == null ? null
+                : inBm.getDescriptor().digest;
+        if (algorithm == null || algorithm.isEmpty()) {
+            log.warn("No digest algorithm for the binary manager, writing to a temporary file");
+            return null;
+        }
+        return algorithm;
+    }
+
+    /**
+     * @return true if the result goes to the binary store
+     */
+    public boolean isBinaryStore() {
+        return binaryManager != null;
+    }
+
+    public OutputStream getStream() {
+        return out;
+    }
+
+    /**
+     * To copy a file with <code>FileChannel.transferTo()</code>, before
+     * anything is written to <code>getStream()</code>.
+     *
+     * @return the channel of the file, or null when the digest is computed
+     *         (the bytes must go through <code>getStream()</code>)
+     */
+    public FileChannel getChannel() {
+        return digest == null ? fileOut.getChannel() : null;
+    }
+
+    /**
+     * Close the stream and return the result
+     *
+     * @return a <code>BinaryBlob</code> or a <code>FileBlob</code>
+     * @throws IOException
+     */
+    public Blob finish() throws IOException {
+
+        // Saving a PDDocument closes the stream: Closing twice is fine
+        out.close();
+        finished = true;
+
+        if (binaryManager != null) {
+            String hex = toHex(digest.digest());
+            File target = binaryManager.getFileForDigest(hex, true);
+            if (target.exists()) {
+                // Same content already stored
+                file.delete();
+            } else if (!file.renameTo(target)) {
+                target = null;
+                log.warn("Could not move " + file + " to the binary store");
+            }
+            if (target != null) {
+                Binary binary = binaryManager.getBinary(hex);
+                if (binary == null) {
+                    throw new IOException("Binary not found: " + hex);
+                }
+                return new BinaryBlob(binary, null, MIME_TYPE, null, hex,
+                        target.length());
+            }
+        }
+
+        FileBlob result = new FileBlob(file, MIME_TYPE);
+        PDFUtils.trackFile(file, result);
+        return result;
+    }
+
+    /**
+     * Remove the file if <code>finish()</code> was not called
+     */
+    @Override
+    public void close() {
+        if (!finished) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            if (binaryManager == null) {
+                PDFScratch.release(file);
+            } else {
+                file.delete();
+            }
+        }
+    }
+
+    protected static String toHex(byte[] inBytes) {
+
+        StringBuilder sb = new StringBuilder();
+        for (byte b : inBytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
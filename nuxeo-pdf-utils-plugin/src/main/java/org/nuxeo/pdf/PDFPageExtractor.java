@@ -26,6 +26,7 @@ import org.apache.pdfbox.util.PageExtractor;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.pdf.admission.PDFAdmission;
 
 /**
  * Extract pages from a PDF
@@ -81,6 +82,10 @@ public class PDFPageExtractor {
      * <p>
      * Can set the title, subject and author of the resulting PDF.
      * <b>Notice</b>: If the value is null or "", it is just ignored
+     * <p>
+     * When all the pages are extracted and no information is set, nothing is
+     * rewritten: The result reads the original data (see
+     * <code>PDFUtils.view()</code>).
      *
      * @param inStartPage
      * @param inEndPage
@@ -88,7 +93,7 @@ public class PDFPageExtractor {
      * @param inTitle
      * @param inSubject
      * @param inAuthor
-     * @return FileBlob
+     * @return the blob (see <code>PDFOutput</code>)
      *
      */
     public Blob extract(int inStartPage, int inEndPage, String inFileName,
@@ -97,39 +102,46 @@ public class PDFPageExtractor {
         Blob result = null;
         PDDocument pdfDoc = null;
         PDDocument extracted = null;
+        PDFMetrics.Run metrics = PDFMetrics.start("extract", pdfBlob);
+        PDFAdmission.Permit permit = PDFAdmission.NO_LIMIT;
 
         try {
+            permit = PDFUtils.admit("extract", pdfBlob);
+            metrics.phase(PDFMetrics.Phase.LOAD);
             pdfDoc = PDDocument.load(pdfBlob.getStream());
+            // Decided once loaded: Reading the page count first would parse
+            // the document twice
+            Blob view = extractAll(pdfDoc.getNumberOfPages(), inStartPage,
+                    inEndPage, inFileName, inTitle, inSubject, inAuthor);
+            if (view != null) {
+                return view;
+            }
 
+            metrics.phase(PDFMetrics.Phase.TRANSFORM);
             PageExtractor pe = new PageExtractor(pdfDoc, inStartPage, inEndPage);
             extracted = pe.extract();
+            metrics.pages(extracted.getNumberOfPages());
 
             PDFUtils.setInfos(extracted, inTitle, inSubject, inAuthor);
 
-            result = PDFUtils.saveInTempFile(extracted);
+            metrics.phase(PDFMetrics.Phase.SAVE);
+            result = PDFUtils.save(extracted);
+            metrics.output(result);
 
             result.setMimeType("application/pdf");
 
-            if (inFileName == null || inFileName.isEmpty()) {
-                String originalName = pdfBlob.getFilename();
-                if (originalName == null || originalName.isEmpty()) {
-                    originalName = "extracted";
-                } else {
-                    int pos = originalName.toLowerCase().lastIndexOf(".pdf");
-                    if (pos > 0) {
-                        originalName = originalName.substring(0, pos);
-                    }
-
-                }
-                inFileName = originalName + "-" + inStartPage + "-" + inEndPage
-                        + ".pdf";
-            }
-            result.setFilename(inFileName);
+            result.setFilename(buildFileName(inFileName, inStartPage,
+                    inEndPage));
             extracted.close();
 
         } catch (IOException | COSVisitorException e) {
+            metrics.error(e);
             throw new ClientException(e);
+        } catch (RuntimeException e) {
+            metrics.error(e);
+            throw e;
         } finally {
+            metrics.stop();
             if (pdfDoc != null) {
                 try {
                     pdfDoc.close();
@@ -144,9 +156,54 @@ public class PDFPageExtractor {
                     // Nothing
                 }
             }
+            permit.close();
         }
 
         return result;
     }
 
+    /*
+     * The whole document, nothing to change: A view of the original, null if
+     * the pages must be extracted
+     */
+    protected Blob extractAll(int inPageCount, int inStartPage,
+            int inEndPage, String inFileName, String inTitle,
+            String inSubject, String inAuthor) {
+
+        if (inStartPage > 1 || inEndPage < inPageCount
+                || (inTitle != null && !inTitle.isEmpty())
+                || (inSubject != null && !inSubject.isEmpty())
+                || (inAuthor != null && !inAuthor.isEmpty())) {
+            return null;
+        }
+        Blob view = PDFUtils.view(pdfBlob, buildFileName(inFileName,
+                inStartPage, inEndPage));
+        if (view != null) {
+            view.setMimeType("application/pdf");
+        }
+        return view;
+    }
+
+    /*
+     * If inFileName is null or "": The original name + the page range
+     */
+    protected String buildFileName(String inFileName, int inStartPage,
+            int inEndPage) {
+
+        if (inFileName == null || inFileName.isEmpty()) {
+            String originalName = pdfBlob.getFilename();
+            if (originalName == null || originalName.isEmpty()) {
+                originalName = "extracted";
+            } else {
+                int pos = originalName.toLowerCase().lastIndexOf(".pdf");
+                if (pos > 0) {
+                    originalName = originalName.substring(0, pos);
+                }
+
+            }
+            inFileName = originalName + "-" + inStartPage + "-" + inEndPage
+                    + ".pdf";
+        }
+        return inFileName;
+    }
 }
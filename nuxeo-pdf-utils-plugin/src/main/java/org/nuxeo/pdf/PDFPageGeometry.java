@@ -0,0 +1,265 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.awt.geom.AffineTransform;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSNumber;
+import org.apache.pdfbox.pdmodel.PDPage;
+
+/**
+ * The visible area of a page, as the user sees it: The effective crop box
+ * (crop box intersected with the media box) and the rotation.
+ * <p>
+ * Stamping code works in the "upright" coordinate space: (0, 0) is the lower
+ * left corner of the page as displayed, <code>getWidth()</code> and
+ * <code>getHeight()</code> are the displayed dimensions.
+ * <code>getTransform()</code> maps this space to the default user space of
+ * the page, to be used with the "cm" operator.
+ * <p>
+ * Instances are immutable. Use a <code>Resolver</code> to get the geometry of
+ * the pages of a document: It resolves the inherited attributes once per node
+ * of the page tree, and returns the same instance for pages having the same
+ * format, which can then be used as a key to share content between pages.
+ *
+ * @since 7.1
+ */
+public class PDFPageGeometry {
+
+    // US Letter, the default of PDFBox when a page has no media box
+    protected static final float[] DEFAULT_MEDIA_BOX = { 0, 0, 612, 792 };
+
+    protected final float llx, lly, urx, ury;
+
+    protected final int rotation;
+
+    protected final AffineTransform transform;
+
+    protected final String key;
+
+    public PDFPageGeometry(float inLlx, float inLly, float inUrx, float inUry,
+            int inRotation) {
+
+        llx = Math.min(inLlx, inUrx);
+        lly = Math.min(inLly, inUry);
+        urx = Math.max(inLlx, inUrx);
+        ury = Math.max(inLly, inUry);
+        rotation = normalizeRotation(inRotation);
+        key = llx + "," + lly + "," + urx + "," + ury + "," + rotation;
+
+        float w = urx - llx;
+        float h = ury - lly;
+        switch (rotation) {
+        case 90:
+            transform = new AffineTransform(0, 1, -1, 0, llx + w, lly);
+            break;
+
+        case 180:
+            transform = new AffineTransform(-1, 0, 0, -1, llx + w, lly + h);
+            break;
+
+        case 270:
+            transform = new AffineTransform(0, -1, 1, 0, llx, lly + h);
+            break;
+
+        default:
+            transform = new AffineTransform(1, 0, 0, 1, llx, lly);
+            break;
+        }
+    }
+
+    /**
+     * Return 0, 90, 180 or 270
+     *
+     * @param inRotation
+     * @return the normalized rotation
+     */
+    public static int normalizeRotation(int inRotation) {
+
+        int r = ((inRotation % 360) + 360) % 360;
+        return (Math.round(r / 90f) * 90) % 360;
+    }
+
+    /**
+     * @return the width of the page, as displayed
+     */
+    public float getWidth() {
+        return rotation == 90 || rotation == 270 ? ury - lly : urx - llx;
+    }
+
+    /**
+     * @return the height of the page, as displayed
+     */
+    public float getHeight() {
+        return rotation == 90 || rotation == 270 ? urx - llx : ury - lly;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return a copy of the transform from the upright space to the user
+     *         space of the page
+     */
+    public AffineTransform getTransform() {
+        return new AffineTransform(transform);
+    }
+
+    /**
+     * @return a string identifying the format (boxes and rotation)
+     */
+    public String getKey() {
+        return key;
+    }
+
+    @Override
+    public boolean equals(Object inObj) {
+        return inObj instanceof PDFPageGeometry
+                && key.equals(((PDFPageGeometry) inObj).key);
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+
+    /**
+     * Resolves the geometry of the pages of a document. Not thread safe: Use
+     * one resolver per document and per thread.
+     */
+    public static class Resolver {
+
+        protected Map<COSDictionary, Inherited> nodes = new IdentityHashMap<COSDictionary, Inherited>();
+
+        protected Map<String, PDFPageGeometry> formats = new HashMap<String, PDFPageGeometry>();
+
+        public PDFPageGeometry get(PDPage inPage) {
+
+            Inherited attrs = resolve(inPage.getCOSDictionary(), 0);
+
+            float[] media = attrs.mediaBox == null ? DEFAULT_MEDIA_BOX
+                    : attrs.mediaBox;
+            float[] box = media;
+            if (attrs.cropBox != null) {
+                box = new float[] { Math.max(attrs.cropBox[0], media[0]),
+                        Math.max(attrs.cropBox[1], media[1]),
+                        Math.min(attrs.cropBox[2], media[2]),
+                        Math.min(attrs.cropBox[3], media[3]) };
+                if (box[2] <= box[0] || box[3] <= box[1]) {
+                    // Crop box outside of the media box
+                    box = media;
+                }
+            }
+
+            PDFPageGeometry geometry = new PDFPageGeometry(box[0], box[1],
+                    box[2], box[3], attrs.rotation);
+            PDFPageGeometry existing = formats.get(geometry.key);
+            if (existing != null) {
+                return existing;
+            }
+            formats.put(geometry.key, geometry);
+            return geometry;
+        }
+
+        /**
+         * @return the number of distinct formats found so far
+         */
+        public int getFormatCount() {
+            return formats.size();
+        }
+
+        protected Inherited resolve(COSDictionary inNode, int inDepth) {
+
+            Inherited attrs = nodes.get(inNode);
+            if (attrs != null) {
+                return attrs;
+            }
+
+            // Pages are not cached: Only the (few) intermediate nodes are
+            Inherited parent = null;
+            COSBase parentNode = inNode.getDictionaryObject(COSName.PARENT);
+            // Depth check protects against loops in broken files
+            if (parentNode instanceof COSDictionary && inDepth < 64) {
+                parent = resolve((COSDictionary) parentNode, inDepth + 1);
+            }
+
+            attrs = new Inherited();
+            attrs.mediaBox = toBox(inNode.getDictionaryObject(COSName.MEDIA_BOX));
+            if (attrs.mediaBox == null && parent != null) {
+                attrs.mediaBox = parent.mediaBox;
+            }
+            attrs.cropBox = toBox(inNode.getDictionaryObject(COSName.CROP_BOX));
+            if (attrs.cropBox == null && parent != null) {
+                attrs.cropBox = parent.cropBox;
+            }
+            COSBase rotate = inNode.getDictionaryObject(COSName.ROTATE);
+            if (rotate instanceof COSNumber) {
+                attrs.rotation = ((COSNumber) rotate).intValue();
+            } else if (parent != null) {
+                attrs.rotation = parent.rotation;
+            }
+
+            if (inDepth > 0) {
+                nodes.put(inNode, attrs);
+            }
+            return attrs;
+        }
+
+        protected static float[] toBox(COSBase inValue) {
+
+            if (!(inValue instanceof COSArray)
+                    || ((COSArray) inValue).size() < 4) {
+                return null;
+            }
+            COSArray array = (COSArray) inValue;
+            float[] values = new float[4];
+            for (int i = 0; i < 4; i++) {
+                COSBase v = array.getObject(i);
+                if (!(v instanceof COSNumber)) {
+                    return null;
+                }
+                values[i] = ((COSNumber) v).floatValue();
+            }
+            return new float[] { Math.min(values[0], values[2]),
+                    Math.min(values[1], values[3]),
+                    Math.max(values[0], values[2]),
+                    Math.max(values[1], values[3]) };
+        }
+    }
+
+    protected static class Inherited {
+
+        float[] mediaBox;
+
+        float[] cropBox;
+
+        int rotation;
+    }
+}
@@ -16,21 +16,18 @@
  */
 package org.nuxeo.pdf;
 
-import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.exceptions.COSVisitorException;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.common.PDRectangle;
-import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.font.PDFont;
-import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
-import org.nuxeo.runtime.api.Framework;
 
 /**
  * Add page numbers to a PDF, with misc. paramegeres (font, size, color,
@@ -46,8 +43,14 @@ public class PDFPageNumbering {
         BOTTOM_LEFT, BOTTOM_CENTER, BOTTOM_RIGHT, TOP_LEFT, TOP_CENTER, TOP_RIGHT
     };
 
+    protected static final String FONT_RESOURCE_NAME = "NxPageNumber";
+
     protected Blob blob;
 
+    protected boolean incrementalSave = PDFUtils.isIncrementalSave();
+
+    protected PDFPageSelector pageSelector = PDFPageSelector.ALL;
+
     public PDFPageNumbering(Blob inBlob) {
         blob = inBlob;
     }
@@ -61,12 +64,43 @@ public class PDFPageNumbering {
         blob = (Blob) inDoc.getPropertyValue(inXPath);
     }
 
+    /**
+     * Save the result as the original pdf followed by an incremental update
+     * (see <code>PDFIncrementalSave</code>). Default is the
+     * <code>PDFUtils.INCREMENTAL_SAVE_PROP</code> configuration property.
+     *
+     * @param inValue
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFPageNumbering setIncrementalSave(boolean inValue) {
+        incrementalSave = inValue;
+        return this;
+    }
+
+    /**
+     * Draw the numbers only on the selected pages (among the pages starting
+     * at <code>startAtPage</code>). The numbers still follow the position of
+     * the pages: With "odd", pages 1, 3, 5 show 1, 3, 5.
+     *
+     * @param inValue
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFPageNumbering setPageSelector(PDFPageSelector inValue) {
+        pageSelector = inValue == null ? PDFPageSelector.ALL : inValue;
+        return this;
+    }
+
     /**
      * Add page numbers and returns a <i>new</i> Blob. Original blob is not
      * modified. This code assumes:
      * <ul>
      * <li>There is no page numbers already (it always draw the numbers)</li>
-     * <li>The pdf is not rotated</li>
+     * <li>Numbers are placed in the visible area of the page (crop box), as
+     * displayed (rotation is taken into account)</li>
      * <li>Default values apply:
      * <ul>
      * <li><code>inStartAtPage</code> and <code>inStartAtNumber</code> are set
@@ -101,108 +135,348 @@ public class PDFPageNumbering {
             PAGE_NUMBER_POSITION inPosition) throws IOException,
             COSVisitorException {
 
+        return addPageNumbers(inStartAtPage, inStartAtNumber, null, 0,
+                inFontName, inFontSize, inHex255Color, inPosition);
+    }
+
+    /**
+     * Same as
+     * <code>addPageNumbers(int, int, String, float, String, PAGE_NUMBER_POSITION)</code>
+     * , with a prefix and a minimum number of digits (the number is padded
+     * with zeros).
+     *
+     * @param inStartAtPage
+     * @param inStartAtNumber
+     * @param inPrefix
+     * @param inMinDigits
+     * @param inFontName
+     * @param inFontSize
+     * @param inHex255Color
+     * @param inPosition
+     * @return Blob
+     * @throws IOException
+     * @throws COSVisitorException
+     *
+     * @since 7.1
+     */
+    public Blob addPageNumbers(int inStartAtPage, int inStartAtNumber,
+            String inPrefix, int inMinDigits, String inFontName,
+            float inFontSize, String inHex255Color,
+            PAGE_NUMBER_POSITION inPosition) throws IOException,
+            COSVisitorException {
+
         Blob result = null;
-        PDDocument doc = null;
+        PDFIncrementalSave save = null;
+        PDFMetrics.Run metrics = PDFMetrics.start("pageNumbers", blob);
+
+        try {
+            save = PDFIncrementalSave.load(blob, incrementalSave, metrics);
+            if (pageSelector.selectsNone(
+                    save.getDocument().getNumberOfPages(), inStartAtPage)) {
+                // Nothing to number: Not saved
+                return blob;
+            }
+            addPageNumbers(save.getDocument(), inStartAtPage, inStartAtNumber, inPrefix,
+                    inMinDigits, inFontName, inFontSize, inHex255Color,
+                    inPosition);
+
+            result = save.save();
+
+        } catch (IOException | COSVisitorException | RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            if (save != null) {
+                save.close();
+            }
+            metrics.stop();
+        }
+
+        return result;
+    }
+
+    /**
+     * Add the page numbers to an already loaded document. See
+     * <code>addPageNumbers(int, int, String, float, String, PAGE_NUMBER_POSITION)</code>
+     * for the parameters.
+     * <p>
+     * The font metrics are read once, the font is registered once (under the
+     * same name) in the resources, and each page only gets a small content
+     * stream drawing its number.
+     *
+     * @param inDoc
+     * @param inStartAtPage
+     * @param inStartAtNumber
+     * @param inFontName
+     * @param inFontSize
+     * @param inHex255Color
+     * @param inPosition
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public void addPageNumbers(PDDocument inDoc, int inStartAtPage,
+            int inStartAtNumber, String inFontName, float inFontSize,
+            String inHex255Color, PAGE_NUMBER_POSITION inPosition)
+            throws IOException {
+
+        addPageNumbers(inDoc, inStartAtPage, inStartAtNumber, null, 0,
+                inFontName, inFontSize, inHex255Color, inPosition);
+    }
+
+    /**
+     * Same as
+     * <code>addPageNumbers(PDDocument, int, int, String, float, String, PAGE_NUMBER_POSITION)</code>
+     * , but each number is prefixed with <code>inPrefix</code> and padded
+     * with zeros to <code>inMinDigits</code> digits (Bates numbering:
+     * "ACME000042").
+     *
+     * @param inDoc
+     * @param inStartAtPage
+     * @param inStartAtNumber
+     * @param inPrefix
+     * @param inMinDigits
+     * @param inFontName
+     * @param inFontSize
+     * @param inHex255Color
+     * @param inPosition
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public void addPageNumbers(PDDocument inDoc, int inStartAtPage,
+            int inStartAtNumber, String inPrefix, int inMinDigits,
+            String inFontName, float inFontSize, String inHex255Color,
+            PAGE_NUMBER_POSITION inPosition) throws IOException {
 
         inStartAtPage = inStartAtPage < 1 ? 1 : inStartAtPage;
         int pageNumber = inStartAtNumber < 1 ? 1 : inStartAtNumber;
         inFontSize = inFontSize <= 0 ? DEFAULT_FONT_SIZE : inFontSize;
+        if (inPosition == null) {
+            inPosition = PAGE_NUMBER_POSITION.BOTTOM_RIGHT;
+        }
 
         int[] rgb = PDFUtils.hex255ToRGB(inHex255Color);
 
-        try {
-            doc = PDDocument.load(blob.getStream());
-            List<?> allPages;
-            PDFont font;
-            int max;
-
-            if (inFontName == null || inFontName.isEmpty()) {
-                font = PDType1Font.HELVETICA;
-            } else {
-                font = PDType1Font.getStandardFont(inFontName);
-                if (font == null) {
-                    font = new PDType1Font(inFontName);
-                }
+        PDFont font = PDFUtils.getFont(inDoc, inFontName);
+
+        NumberMetrics metrics = new NumberMetrics(font, inFontSize);
+        COSStream[] saveRestore = PDFContentBuilder.saveRestoreStreams(inDoc);
+        PDFPageGeometry.Resolver geometries = new PDFPageGeometry.Resolver();
+
+        List<?> allPages = inDoc.getDocumentCatalog().getAllPages();
+        int max = allPages.size();
+        inStartAtPage = inStartAtPage > max ? 1 : inStartAtPage;
+        for (int i = inStartAtPage; i <= max; i++) {
+            String pageNumAsStr = formatNumber(pageNumber, inPrefix,
+                    inMinDigits);
+            pageNumber += 1;
+
+            PDPage page = (PDPage) allPages.get(i - 1);
+            PDFPageGeometry geometry = geometries.get(page);
+            if (!pageSelector.matches(i, max, geometry)) {
+                continue;
             }
 
-            allPages = doc.getDocumentCatalog().getAllPages();
-            max = allPages.size();
-            inStartAtPage = inStartAtPage > max ? 1 : inStartAtPage;
-            for (int i = inStartAtPage; i <= max; i++) {
-                String pageNumAsStr = "" + pageNumber;
-                pageNumber += 1;
+            String fontName = PDFContentBuilder.addResource(page,
+                    COSName.FONT, FONT_RESOURCE_NAME, font.getCOSObject());
 
-                PDPage page = (PDPage) allPages.get(i - 1);
-                PDPageContentStream footercontentStream = new PDPageContentStream(
-                        doc, page, true, true);
+            float[] xy = computePosition(geometry, inPosition,
+                    metrics.getWidth(pageNumAsStr), metrics.height);
 
-                float stringWidth = font.getStringWidth(pageNumAsStr)
-                        * inFontSize / 1000f;
-                float stringHeight = font.getFontDescriptor().getFontBoundingBox().getHeight()
-                        * inFontSize / 1000;
-                PDRectangle pageRect = page.findMediaBox();
+            PDFContentBuilder content = new PDFContentBuilder();
+            content.op("q").transform(geometry.getTransform()).op("BT");
+            content.name(fontName).num(inFontSize).op("Tf");
+            content.fillColor(rgb);
+            content.num(xy[0]).num(xy[1]).op("Td");
+            content.string(pageNumAsStr).op("Tj");
+            content.op("ET").op("Q");
 
-                float xMoveAmount, yMoveAmount;
+            PDFContentBuilder.appendContent(page, saveRestore[0],
+                    saveRestore[1], content.toStream(inDoc));
+        }
+    }
 
-                if (inPosition == null) {
-                    inPosition = PAGE_NUMBER_POSITION.BOTTOM_RIGHT;
-                }
-                switch (inPosition) {
-                case BOTTOM_LEFT:
-                    xMoveAmount = 10;
-                    yMoveAmount = pageRect.getLowerLeftY() + 10;
-                    break;
-
-                case BOTTOM_CENTER:
-                    xMoveAmount = (pageRect.getUpperRightX() / 2)
-                            - (stringWidth / 2);
-                    yMoveAmount = pageRect.getLowerLeftY() + 10;
-                    break;
-
-                case TOP_LEFT:
-                    xMoveAmount = 10;
-                    yMoveAmount = pageRect.getHeight() - stringHeight - 10;
-                    break;
-
-                case TOP_CENTER:
-                    xMoveAmount = (pageRect.getUpperRightX() / 2)
-                            - (stringWidth / 2);
-                    yMoveAmount = pageRect.getHeight() - stringHeight - 10;
-                    break;
-
-                case TOP_RIGHT:
-                    xMoveAmount = pageRect.getUpperRightX() - 10 - stringWidth;
-                    yMoveAmount = pageRect.getHeight() - stringHeight - 10;
-                    break;
-
-                // Bottom-right is the default
-                default:
-                    xMoveAmount = pageRect.getUpperRightX() - 10 - stringWidth;
-                    yMoveAmount = pageRect.getLowerLeftY() + 10;
-                    break;
-                }
+    /**
+     * Return the position (lower left corner of the text) of a text of size
+     * <code>inWidth</code> x <code>inHeight</code>, at <code>inPosition</code>
+     * in the page as displayed, with a 10 points margin.
+     * <p>
+     * The coordinates are in the upright space of the page: The content must
+     * be drawn after <code>inGeometry.getTransform()</code> is applied.
+     *
+     * @param inGeometry
+     * @param inPosition
+     * @param inWidth
+     * @param inHeight
+     * @return the x and y coordinates
+     *
+     * @since 7.1
+     */
+    public static float[] computePosition(PDFPageGeometry inGeometry,
+            PAGE_NUMBER_POSITION inPosition, float inWidth, float inHeight) {
 
-                footercontentStream.beginText();
-                footercontentStream.setFont(font, inFontSize);
-                footercontentStream.moveTextPositionByAmount(xMoveAmount,
-                        yMoveAmount);
-                footercontentStream.setNonStrokingColor(rgb[0], rgb[1], rgb[2]);
-                footercontentStream.drawString(pageNumAsStr);
-                footercontentStream.endText();
-                footercontentStream.close();
-            }
+        float pageWidth = inGeometry.getWidth();
+        float pageHeight = inGeometry.getHeight();
+        float xMoveAmount, yMoveAmount;
 
-            File tempFile = File.createTempFile("pdfutils-", ".pdf");
-            doc.save(tempFile);
-            result = new FileBlob(tempFile);
-            Framework.trackFile(tempFile, result);
+        switch (inPosition) {
+        case BOTTOM_LEFT:
+            xMoveAmount = 10;
+            yMoveAmount = 10;
+            break;
 
-        } finally {
-            if (doc != null) {
-                doc.close();
+        case BOTTOM_CENTER:
+            xMoveAmount = (pageWidth / 2) - (inWidth / 2);
+            yMoveAmount = 10;
+            break;
+
+        case TOP_LEFT:
+            xMoveAmount = 10;
+            yMoveAmount = pageHeight - inHeight - 10;
+            break;
+
+        case TOP_CENTER:
+            xMoveAmount = (pageWidth / 2) - (inWidth / 2);
+            yMoveAmount = pageHeight - inHeight - 10;
+            break;
+
+        case TOP_RIGHT:
+            xMoveAmount = pageWidth - 10 - inWidth;
+            yMoveAmount = pageHeight - inHeight - 10;
+            break;
+
+        // Bottom-right is the default
+        default:
+            xMoveAmount = pageWidth - 10 - inWidth;
+            yMoveAmount = 10;
+            break;
+        }
+
+        return new float[] { xMoveAmount, yMoveAmount };
+    }
+
+    /**
+     * Return <code>inPrefix</code> + the number, padded with zeros to
+     * <code>inMinDigits</code> digits.
+     *
+     * @param inNumber
+     * @param inPrefix
+     * @param inMinDigits
+     * @return the formatted number
+     *
+     * @since 7.1
+     */
+    public static String formatNumber(int inNumber, String inPrefix,
+            int inMinDigits) {
+
+        String digits = Integer.toString(inNumber);
+        StringBuilder sb = new StringBuilder();
+        if (inPrefix != null) {
+            sb.append(inPrefix);
+        }
+        for (int i = digits.length(); i < inMinDigits; i++) {
+            sb.append('0');
+        }
+        sb.append(digits);
+
+        return sb.toString();
+    }
+
+    /**
+     * Convert the labels used by the operations ("Bottom right", "Top center",
+     * ..., case insensitive) to a position. Default is
+     * <code>BOTTOM_RIGHT</code>.
+     *
+     * @param inPosition
+     * @return the position
+     *
+     * @since 7.1
+     */
+    public static PAGE_NUMBER_POSITION positionFromString(String inPosition) {
+
+        if (inPosition == null) {
+            return PAGE_NUMBER_POSITION.BOTTOM_RIGHT;
+        }
+
+        switch (inPosition.toLowerCase()) {
+        case "bottom center":
+            return PAGE_NUMBER_POSITION.BOTTOM_CENTER;
+
+        case "bottom left":
+            return PAGE_NUMBER_POSITION.BOTTOM_LEFT;
+
+        case "top right":
+            return PAGE_NUMBER_POSITION.TOP_RIGHT;
+
+        case "top center":
+            return PAGE_NUMBER_POSITION.TOP_CENTER;
+
+        case "top left":
+            return PAGE_NUMBER_POSITION.TOP_LEFT;
+
+        default:
+            return PAGE_NUMBER_POSITION.BOTTOM_RIGHT;
+        }
+    }
+
+    /**
+     * Font metrics used to place the numbers, read once per call: The advance
+     * of each digit (and of the other characters once used) and the height of
+     * the font.
+     *
+     * @since 7.1
+     */
+    protected static class NumberMetrics {
+
+        protected PDFont font;
+
+        protected float fontSize;
+
+        protected float[] digitWidths = new float[10];
+
+        protected float height;
+
+        // Other latin-1 characters, read when first used
+        protected float[] charWidths;
+
+        public NumberMetrics(PDFont inFont, float inFontSize)
+                throws IOException {
+
+            font = inFont;
+            fontSize = inFontSize;
+            for (int i = 0; i < 10; i++) {
+                digitWidths[i] = font.getStringWidth(Integer.toString(i))
+                        * fontSize / 1000f;
             }
+            height = font.getFontDescriptor().getFontBoundingBox().getHeight()
+                    * fontSize / 1000f;
         }
 
-        return result;
+        public float getWidth(String inText) throws IOException {
+
+            float width = 0;
+            int len = inText.length();
+            for (int i = 0; i < len; i++) {
+                char c = inText.charAt(i);
+                if (c >= '0' && c <= '9') {
+                    width += digitWidths[c - '0'];
+                } else if (c < 256) {
+                    if (charWidths == null) {
+                        charWidths = new float[256];
+                        Arrays.fill(charWidths, -1f);
+                    }
+                    if (charWidths[c] < 0) {
+                        charWidths[c] = font.getStringWidth(String.valueOf(c))
+                                * fontSize / 1000f;
+                    }
+                    width += charWidths[c];
+                } else {
+                    width += font.getStringWidth(String.valueOf(c)) * fontSize
+                            / 1000f;
+                }
+            }
+            return width;
+        }
     }
 }
@@ -0,0 +1,323 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects the pages to stamp (watermark, numbers, headers/footers), so a
+ * stamping is a single pass over the document which only touches the
+ * selected pages.
+ * <p>
+ * A selector is parsed from an expression: A comma separated list of
+ * criteria, a page is selected if it matches at least one of them.
+ * <ul>
+ * <li><code>all</code>, <code>odd</code>, <code>even</code>,
+ * <code>first</code>, <code>last</code></li>
+ * <li>A page number: <code>5</code></li>
+ * <li>A range: <code>5-20</code>, <code>5-</code> (to the end),
+ * <code>-3</code> (from the first page), <code>10-last</code></li>
+ * <li><code>landscape</code>, <code>portrait</code>: The page as
+ * displayed</li>
+ * <li>A size predicate: <code>width&gt;600</code>,
+ * <code>height&lt;=842</code> (points, as displayed. Operators are &lt;,
+ * &lt;=, &gt;, &gt;= and =)</li>
+ * </ul>
+ * Example: "1, 5-10, even". A null or empty expression selects all the
+ * pages. Selectors are immutable.
+ *
+ * @since 7.1
+ */
+public class PDFPageSelector {
+
+    public static final PDFPageSelector ALL = new PDFPageSelector("all",
+            new ArrayList<Criterion>());
+
+    protected final String expression;
+
+    // Empty: All the pages
+    protected final List<Criterion> criteria;
+
+    protected final boolean usesGeometry;
+
+    protected PDFPageSelector(String inExpression, List<Criterion> inCriteria) {
+
+        expression = inExpression;
+        criteria = inCriteria;
+        boolean geometry = false;
+        for (Criterion c : criteria) {
+            geometry |= c instanceof SizeCriterion;
+        }
+        usesGeometry = geometry;
+    }
+
+    /**
+     * Parse the expression
+     *
+     * @param inExpression
+     * @return the selector
+     * @throws IllegalArgumentException if the expression is invalid
+     */
+    public static PDFPageSelector parse(String inExpression) {
+
+        if (inExpression == null || inExpression.trim().isEmpty()) {
+            return ALL;
+        }
+
+        List<Criterion> criteria = new ArrayList<Criterion>();
+        for (String part : inExpression.split(",")) {
+            String p = part.trim().toLowerCase().replace(" ", "");
+            if (p.isEmpty()) {
+                continue;
+            }
+            if ("all".equals(p)) {
+                return ALL;
+            }
+            criteria.add(parseCriterion(p, inExpression));
+        }
+        return criteria.isEmpty() ? ALL : new PDFPageSelector(inExpression,
+                criteria);
+    }
+
+    protected static Criterion parseCriterion(String inPart,
+            String inExpression) {
+
+        switch (inPart) {
+        case "odd":
+            return new ParityCriterion(1);
+        case "even":
+            return new ParityCriterion(0);
+        case "first":
+            return new RangeCriterion(1, 1, false, false);
+        case "last":
+            return new RangeCriterion(0, 0, true, true);
+        case "landscape":
+            return new SizeCriterion(SizeCriterion.LANDSCAPE, null, 0);
+        case "portrait":
+            return new SizeCriterion(SizeCriterion.PORTRAIT, null, 0);
+        }
+
+        if (inPart.startsWith("width") || inPart.startsWith("height")) {
+            String dimension = inPart.startsWith("width") ? SizeCriterion.WIDTH
+                    : SizeCriterion.HEIGHT;
+            String rest = inPart.substring(dimension.length());
+            String op = rest.startsWith("<=") || rest.startsWith(">=") ? rest.substring(
+                    0, 2)
+                    : rest.substring(0, Math.min(1, rest.length()));
+            if (!op.isEmpty() && "<>=".indexOf(op.charAt(0)) >= 0) {
+                try {
+                    return new SizeCriterion(dimension, op,
+                            Float.parseFloat(rest.substring(op.length())));
+                } catch (NumberFormatException e) {
+                    // Handled below
+                }
+            }
+            throw invalid(inPart, inExpression);
+        }
+
+        int dash = inPart.indexOf('-');
+        try {
+            if (dash < 0) {
+                int page = Integer.parseInt(inPart);
+                return new RangeCriterion(page, page, false, false);
+            }
+            String from = inPart.substring(0, dash);
+            String to = inPart.substring(dash + 1);
+            int start = from.isEmpty() ? 1 : Integer.parseInt(from);
+            boolean toLast = to.isEmpty() || "last".equals(to);
+            int end = toLast ? 0 : Integer.parseInt(to);
+            return new RangeCriterion(start, end, false, toLast);
+        } catch (NumberFormatException e) {
+            throw invalid(inPart, inExpression);
+        }
+    }
+
+    protected static IllegalArgumentException invalid(String inPart,
+            String inExpression) {
+        return new IllegalArgumentException("Invalid page selection <"
+                + inPart + "> in <" + inExpression + ">");
+    }
+
+    /**
+     * @param inPageNumber 1-based
+     * @param inPageCount number of pages of the document
+     * @param inGeometry geometry of the page, can be null if
+     *            <code>usesGeometry()</code> is false
+     * @return true if the page is selected
+     */
+    public boolean matches(int inPageNumber, int inPageCount,
+            PDFPageGeometry inGeometry) {
+
+        if (criteria.isEmpty()) {
+            return true;
+        }
+        for (Criterion c : criteria) {
+            if (c.matches(inPageNumber, inPageCount, inGeometry)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tell that stamping a document of <code>inPageCount</code> pages from
+     * page <code>inFirstPage</code> (reset to 1 when greater than the number
+     * of pages, as the stampers do) touches no page: The caller can return
+     * the blob as is, without saving it. The stampers call it once the
+     * document is loaded, reading the page count before would parse it twice.
+     *
+     * @param inPageCount
+     * @param inFirstPage
+     * @return true if no page is selected. False when the selection depends
+     *         on the size of the pages
+     */
+    public boolean selectsNone(int inPageCount, int inFirstPage) {
+
+        if (isAll() || usesGeometry()) {
+            return false;
+        }
+        int first = inFirstPage < 1 || inFirstPage > inPageCount ? 1
+                : inFirstPage;
+        for (int i = first; i <= inPageCount; i++) {
+            if (matches(i, inPageCount, null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the selection depends on the size of the pages
+     */
+    public boolean usesGeometry() {
+        return usesGeometry;
+    }
+
+    public boolean isAll() {
+        return criteria.isEmpty();
+    }
+
+    public String getExpression() {
+        return expression;
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    protected interface Criterion {
+        boolean matches(int inPageNumber, int inPageCount,
+                PDFPageGeometry inGeometry);
+    }
+
+    protected static class ParityCriterion implements Criterion {
+
+        protected final int remainder;
+
+        protected ParityCriterion(int inRemainder) {
+            remainder = inRemainder;
+        }
+
+        @Override
+        public boolean matches(int inPageNumber, int inPageCount,
+                PDFPageGeometry inGeometry) {
+            return inPageNumber % 2 == remainder;
+        }
+    }
+
+    protected static class RangeCriterion implements Criterion {
+
+        protected final int start;
+
+        protected final int end;
+
+        protected final boolean startIsLast;
+
+        protected final boolean endIsLast;
+
+        protected RangeCriterion(int inStart, int inEnd, boolean inStartIsLast,
+                boolean inEndIsLast) {
+            start = inStart;
+            end = inEnd;
+            startIsLast = inStartIsLast;
+            endIsLast = inEndIsLast;
+        }
+
+        @Override
+        public boolean matches(int inPageNumber, int inPageCount,
+                PDFPageGeometry inGeometry) {
+
+            int s = startIsLast ? inPageCount : start;
+            int e = endIsLast ? inPageCount : end;
+            return inPageNumber >= s && inPageNumber <= e;
+        }
+    }
+
+    protected static class SizeCriterion implements Criterion {
+
+        protected static final String LANDSCAPE = "landscape";
+
+        protected static final String PORTRAIT = "portrait";
+
+        protected static final String WIDTH = "width";
+
+        protected static final String HEIGHT = "height";
+
+        protected final String what;
+
+        protected final String operator;
+
+        protected final float value;
+
+        protected SizeCriterion(String inWhat, String inOperator, float inValue) {
+            what = inWhat;
+            operator = inOperator;
+            value = inValue;
+        }
+
+        @Override
+        public boolean matches(int inPageNumber, int inPageCount,
+                PDFPageGeometry inGeometry) {
+
+            float w = inGeometry.getWidth();
+            float h = inGeometry.getHeight();
+            switch (what) {
+            case LANDSCAPE:
+                return w > h;
+            case PORTRAIT:
+                return h >= w;
+            }
+
+            float v = WIDTH.equals(what) ? w : h;
+            switch (operator) {
+            case "<":
+                return v < value;
+            case "<=":
+                return v <= value;
+            case ">":
+                return v > value;
+            case ">=":
+                return v >= value;
+            default:
+                // Sizes are floats: "=" means "same point"
+                return Math.abs(v - value) < 0.5f;
+            }
+        }
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+
+/**
+ * Applies a list of transformations (merge, page numbers, watermarks,
+ * headers/footers, document information, ...) to a pdf, in the order they
+ * were added, with a single load and a single save. Chaining the usual
+ * operations instead parses and writes the whole file at each step.
+ * <p>
+ * Stages reuse the <code>PDDocument</code> level methods of
+ * <code>PDFMerge</code>, <code>PDFPageNumbering</code>,
+ * <code>PDFWatermarking</code> and <code>PDFHeaderFooter</code>: The blob
+ * passed to their constructor is not used and can be <code>null</code>.
+ * <p>
+ * Example:
+ *
+ * <pre>
+ * Blob result = new PDFPipeline(blobs).pageNumbers(new PDFPageNumbering(
+ *         (Blob) null), 1, 1, null, 0, &quot;Helvetica&quot;, 10, &quot;#000000&quot;,
+ *         PAGE_NUMBER_POSITION.BOTTOM_RIGHT).watermark(
+ *         new PDFWatermarking((Blob) null).setText(&quot;CONFIDENTIAL&quot;)).setInfos(
+ *         &quot;The title&quot;, null, null).run();
+ * </pre>
+ *
+ * @since 7.1
+ */
+public class PDFPipeline {
+
+    /**
+     * A transformation of an already loaded document
+     */
+    public interface Stage {
+        void apply(PDDocument inDoc) throws IOException;
+    }
+
+    protected Blob blob;
+
+    protected List<Stage> stages = new ArrayList<Stage>();
+
+    protected String fileName;
+
+    protected boolean incrementalSave = PDFUtils.isIncrementalSave();
+
+    // Merged documents, closed after the save
+    protected List<PDDocument> loaded = new ArrayList<PDDocument>();
+
+    // Their blobs are counted in the admission permits
+    protected List<PDFMerge> merges = new ArrayList<PDFMerge>();
+
+    public PDFPipeline(Blob inBlob) {
+        blob = inBlob;
+    }
+
+    /**
+     * The first blob is the document to transform, the others are merged into
+     * it by a first stage.
+     *
+     * @param inBlobs
+     */
+    public PDFPipeline(BlobList inBlobs) {
+
+        blob = inBlobs.isEmpty() ? null : inBlobs.get(0);
+        if (inBlobs.size() > 1) {
+            PDFMerge others = new PDFMerge();
+            for (int i = 1; i < inBlobs.size(); i++) {
+                others.addBlob(inBlobs.get(i));
+            }
+            merge(others);
+        }
+    }
+
+    public PDFPipeline addStage(Stage inStage) {
+        stages.add(inStage);
+        return this;
+    }
+
+    public int getStageCount() {
+        return stages.size();
+    }
+
+    /**
+     * Append the pdfs of <code>inMerge</code> to the document
+     *
+     * @param inMerge
+     * @return this
+     */
+    public PDFPipeline merge(final PDFMerge inMerge) {
+
+        merges.add(inMerge);
+        return addStage(new Stage() {
+            @Override
+            public void apply(PDDocument inDoc) throws IOException {
+                inMerge.merge(inDoc, loaded);
+            }
+        });
+    }
+
+    /**
+     * See
+     * <code>PDFPageNumbering.addPageNumbers(PDDocument, int, int, String, int, String, float, String, PAGE_NUMBER_POSITION)</code>
+     *
+     * @return this
+     */
+    public PDFPipeline pageNumbers(final PDFPageNumbering inNumbering,
+            final int inStartAtPage, final int inStartAtNumber,
+            final String inPrefix, final int inMinDigits,
+            final String inFontName, final float inFontSize,
+            final String inHex255Color, final PAGE_NUMBER_POSITION inPosition) {
+
+        return addStage(new Stage() {
+            @Override
+            public void apply(PDDocument inDoc) throws IOException {
+                inNumbering.addPageNumbers(inDoc, inStartAtPage,
+                        inStartAtNumber, inPrefix, inMinDigits, inFontName,
+                        inFontSize, inHex255Color, inPosition);
+            }
+        });
+    }
+
+    /**
+     * Text watermark, see <code>PDFWatermarking.watermark(PDDocument)</code>
+     *
+     * @param inWatermarking
+     * @return this
+     */
+    public PDFPipeline watermark(final PDFWatermarking inWatermarking) {
+
+        return addStage(new Stage() {
+            @Override
+            public void apply(PDDocument inDoc) throws IOException {
+                inWatermarking.watermark(inDoc);
+            }
+        });
+    }
+
+    /**
+     * See
+     * <code>PDFWatermarking.watermarkWithImage(PDDocument, Blob, int, int, float)</code>
+     *
+     * @return this
+     */
+    public PDFPipeline watermarkWithImage(
+            final PDFWatermarking inWatermarking, final Blob inImage,
+            final int x, final int y, final float scale) {
+
+        return addStage(new Stage() {
+            @Override
+            public void apply(PDDocument inDoc) throws IOException {
+                inWatermarking.watermarkWithImage(inDoc, inImage, x, y, scale);
+            }
+        });
+    }
+
+    /**
+     * See <code>PDFWatermarking.watermarkWithPdf(PDDocument, Blob)</code>
+     *
+     * @return this
+     */
+    public PDFPipeline watermarkWithPdf(final PDFWatermarking inWatermarking,
+            final Blob inPdf) {
+
+        return addStage(new Stage() {
+            @Override
+            public void apply(PDDocument inDoc) throws IOException {
+                inWatermarking.watermarkWithPdf(inDoc, inPdf);
+            }
+        });
+    }
+
+    /**
+     * See <code>PDFHeaderFooter.apply(PDDocument)</code>
+     *
+     * @param inHeaderFooter
+     * @return this
+     */
+    public PDFPipeline headerFooter(final PDFHeaderFooter inHeaderFooter) {
+
+        return addStage(new Stage() {
+            @Override
+            public void apply(PDDocument inDoc) throws IOException {
+                inHeaderFooter.apply(inDoc);
+            }
+        });
+    }
+
+    /**
+     * See <code>PDFUtils.setInfos(PDDocument, String, String, String)</code>
+     *
+     * @return this
+     */
+    public PDFPipeline setInfos(final String inTitle, final String inSubject,
+            final String inAuthor) {
+
+        return addStage(new Stage() {
+            @Override
+            public void apply(PDDocument inDoc) throws IOException {
+                PDFUtils.setInfos(inDoc, inTitle, inSubject, inAuthor);
+            }
+        });
+    }
+
+    /**
+     * File name of the result. Default is the file name of the input.
+     *
+     * @param inValue
+     * @return this
+     */
+    public PDFPipeline setFileName(String inValue) {
+        fileName = inValue;
+        return this;
+    }
+
+    /**
+     * See <code>PDFIncrementalSave</code>. Default is the
+     * <code>PDFUtils.INCREMENTAL_SAVE_PROP</code> configuration property.
+     *
+     * @param inValue
+     * @return this
+     */
+    public PDFPipeline setIncrementalSave(boolean inValue) {
+        incrementalSave = inValue;
+        return this;
+    }
+
+    /**
+     * Load the pdf, apply the stages and save the result. With no stage, the
+     * input blob is returned.
+     *
+     * @return a <i>new</i> blob
+     * @throws IOException
+     * @throws COSVisitorException
+     */
+    public Blob run() throws IOException, COSVisitorException {
+
+        if (blob == null || stages.isEmpty()) {
+            return blob;
+        }
+
+        Blob result = null;
+        PDFIncrementalSave save = null;
+        PDFMetrics.Run metrics = PDFMetrics.start("pipeline", blob);
+        List<Blob> merged = new ArrayList<Blob>();
+        for (PDFMerge merge : merges) {
+            merged.addAll(merge.blobs);
+        }
+        try {
+            save = PDFIncrementalSave.load(blob, incrementalSave, metrics,
+                    merged.toArray(new Blob[merged.size()]));
+            PDDocument doc = save.getDocument();
+            for (Stage stage : stages) {
+                stage.apply(doc);
+            }
+            result = save.save();
+            result.setFilename(fileName == null || fileName.isEmpty() ? blob.getFilename()
+                    : fileName);
+        } catch (IOException | COSVisitorException | RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            PDFUtils.closeSilently(loaded.toArray(new PDDocument[loaded.size()]));
+            loaded.clear();
+            // Releases the permits: Last
+            if (save != null) {
+                save.close();
+            }
+            metrics.stop();
+        }
+
+        return result;
+    }
+}
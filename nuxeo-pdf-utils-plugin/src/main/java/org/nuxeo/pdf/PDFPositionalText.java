@@ -0,0 +1,490 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Frederic Vadon
+ */
+package org.nuxeo.pdf;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.util.PDFTextStripper;
+import org.apache.pdfbox.util.TextPosition;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+
+/**
+ * Words and lines of a PDF, with their bounding boxes.
+ * <p>
+ * For each page, the words are stored in a single String (one space between
+ * words, one line feed between lines) and everything else is stored in
+ * primitive arrays:
+ * <ul>
+ * <li><code>getWordOffsets()</code>: For word <i>i</i>, its start and end in
+ * the text are at <i>2i</i> and <i>2i+1</i></li>
+ * <li><code>getWordBoxes()</code>: For word <i>i</i>, x, y, width and height
+ * are at <i>4i</i> to <i>4i+3</i></li>
+ * <li><code>getLineFirstWords()</code>: Index of the first word of each
+ * line</li>
+ * <li><code>getLineBoxes()</code>: Same layout as the word boxes</li>
+ * </ul>
+ * Coordinates are in points, with the origin at the <i>top-left</i> corner of
+ * the page (as displayed, so rotation is taken into account).
+ * <p>
+ * The result can be serialized either as JSON (<code>toJSON()</code>) or as a
+ * compact binary (<code>toBytes()</code>, read back with
+ * <code>fromBytes()</code>), so it can be cached next to the text.
+ *
+ * @since 7.1
+ */
+public class PDFPositionalText {
+
+    protected static final int MAGIC = 0x4e585054; // "NXPT"
+
+    protected static final int FORMAT_VERSION = 1;
+
+    protected List<Page> pages = new ArrayList<Page>();
+
+    public List<Page> getPages() {
+        return pages;
+    }
+
+    /**
+     * Return the page whose number (1-based) is <code>inPageNumber</code>, or
+     * <code>null</code> if it was not extracted.
+     *
+     * @param inPageNumber
+     * @return the page
+     */
+    public Page getPage(int inPageNumber) {
+        for (Page p : pages) {
+            if (p.pageNumber == inPageNumber) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    public String toJSON() {
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"version\":").append(FORMAT_VERSION).append(",\"pages\":[");
+        for (int i = 0; i < pages.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            pages.get(i).appendJSON(sb);
+        }
+        sb.append("]}");
+
+        return sb.toString();
+    }
+
+    public Blob toJSONBlob() {
+        Blob result = new StringBlob(toJSON(), "application/json");
+        result.setEncoding("UTF-8");
+        return result;
+    }
+
+    public byte[] toBytes() throws IOException {
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(pages.size());
+            for (Page p : pages) {
+                p.write(out);
+            }
+        }
+
+        return bytes.toByteArray();
+    }
+
+    public Blob toBinaryBlob() throws IOException {
+        return new ByteArrayBlob(toBytes(), "application/octet-stream");
+    }
+
+    public static PDFPositionalText fromBytes(byte[] inBytes)
+            throws IOException {
+
+        PDFPositionalText result = new PDFPositionalText();
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+                inBytes))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a positional text");
+            }
+            int version = in.readInt();
+            if (version != FORMAT_VERSION) {
+                throw new IOException("Unsupported positional text version: "
+                        + version);
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                result.pages.add(Page.read(in));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * The words and lines of one page.
+     */
+    public static class Page {
+
+        protected int pageNumber;
+
+        protected float width;
+
+        protected float height;
+
+        protected String text;
+
+        protected int[] wordOffsets;
+
+        protected float[] wordBoxes;
+
+        protected int[] lineFirstWords;
+
+        protected float[] lineBoxes;
+
+        public int getPageNumber() {
+            return pageNumber;
+        }
+
+        public float getWidth() {
+            return width;
+        }
+
+        public float getHeight() {
+            return height;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getWordCount() {
+            return wordOffsets.length / 2;
+        }
+
+        public String getWord(int inIndex) {
+            return text.substring(wordOffsets[inIndex * 2],
+                    wordOffsets[inIndex * 2 + 1]);
+        }
+
+        public int[] getWordOffsets() {
+            return wordOffsets;
+        }
+
+        public float[] getWordBoxes() {
+            return wordBoxes;
+        }
+
+        public int getLineCount() {
+            return lineFirstWords.length;
+        }
+
+        public int[] getLineFirstWords() {
+            return lineFirstWords;
+        }
+
+        public float[] getLineBoxes() {
+            return lineBoxes;
+        }
+
+        protected void appendJSON(StringBuilder sb) {
+
+            sb.append("{\"page\":").append(pageNumber);
+            sb.append(",\"width\":").append(width);
+            sb.append(",\"height\":").append(height);
+            sb.append(",\"words\":[");
+            int count = getWordCount();
+            for (int i = 0; i < count; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                appendJSONString(sb, getWord(i));
+            }
+            sb.append("],\"wordBoxes\":");
+            appendJSONArray(sb, wordBoxes);
+            sb.append(",\"lineFirstWords\":").append(
+                    Arrays.toString(lineFirstWords).replace(" ", ""));
+            sb.append(",\"lineBoxes\":");
+            appendJSONArray(sb, lineBoxes);
+            sb.append('}');
+        }
+
+        protected void write(DataOutputStream out) throws IOException {
+
+            out.writeInt(pageNumber);
+            out.writeFloat(width);
+            out.writeFloat(height);
+            byte[] textBytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(textBytes.length);
+            out.write(textBytes);
+            out.writeInt(wordOffsets.length);
+            for (int v : wordOffsets) {
+                out.writeInt(v);
+            }
+            for (float v : wordBoxes) {
+                out.writeFloat(v);
+            }
+            out.writeInt(lineFirstWords.length);
+            for (int v : lineFirstWords) {
+                out.writeInt(v);
+            }
+            for (float v : lineBoxes) {
+                out.writeFloat(v);
+            }
+        }
+
+        protected static Page read(DataInputStream in) throws IOException {
+
+            Page p = new Page();
+            p.pageNumber = in.readInt();
+            p.width = in.readFloat();
+            p.height = in.readFloat();
+            byte[] textBytes = new byte[in.readInt()];
+            in.readFully(textBytes);
+            p.text = new String(textBytes, StandardCharsets.UTF_8);
+            p.wordOffsets = new int[in.readInt()];
+            for (int i = 0; i < p.wordOffsets.length; i++) {
+                p.wordOffsets[i] = in.readInt();
+            }
+            p.wordBoxes = new float[p.wordOffsets.length * 2];
+            for (int i = 0; i < p.wordBoxes.length; i++) {
+                p.wordBoxes[i] = in.readFloat();
+            }
+            p.lineFirstWords = new int[in.readInt()];
+            for (int i = 0; i < p.lineFirstWords.length; i++) {
+                p.lineFirstWords[i] = in.readInt();
+            }
+            p.lineBoxes = new float[p.lineFirstWords.length * 4];
+            for (int i = 0; i < p.lineBoxes.length; i++) {
+                p.lineBoxes[i] = in.readFloat();
+            }
+            return p;
+        }
+    }
+
+    protected static void appendJSONArray(StringBuilder sb, float[] inValues) {
+        sb.append('[');
+        for (int i = 0; i < inValues.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(inValues[i]);
+        }
+        sb.append(']');
+    }
+
+    protected static void appendJSONString(StringBuilder sb, String inValue) {
+        sb.append('"');
+        for (int i = 0; i < inValue.length(); i++) {
+            char c = inValue.charAt(i);
+            switch (c) {
+            case '"':
+                sb.append("\\\"");
+                break;
+            case '\\':
+                sb.append("\\\\");
+                break;
+            default:
+                if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+                break;
+            }
+        }
+        sb.append('"');
+    }
+
+    /**
+     * The stripper folding the glyphs into words and lines when a page is
+     * written. It relies on <code>PDFTextStripper</code> for the reading
+     * order and the word and line breaks, so PDFBox still allocates one
+     * <code>TextPosition</code> per glyph and keeps them for the whole page.
+     * What this class avoids is the rest: It keeps no reference to them once
+     * the page is written, and the words and lines of the result are stored
+     * in growable primitive arrays, with no object per word or per box.
+     */
+    protected static class Stripper extends PDFTextStripper {
+
+        protected PDFPositionalText result = new PDFPositionalText();
+
+        protected Page current;
+
+        protected StringBuilder text = new StringBuilder();
+
+        protected int[] offsets = new int[256];
+
+        protected float[] boxes = new float[512];
+
+        protected int wordCount;
+
+        protected int[] lineFirst = new int[32];
+
+        protected float[] lineBoxes = new float[128];
+
+        protected int lineCount;
+
+        protected int lineStartWord;
+
+        // Word being built
+        protected int wordStart = -1;
+
+        protected float minX, minY, maxX, maxY;
+
+        public Stripper() throws IOException {
+            super();
+        }
+
+        public PDFPositionalText getResult() {
+            return result;
+        }
+
+        @Override
+        protected void startPage(PDPage page) throws IOException {
+
+            current = new Page();
+            current.pageNumber = getCurrentPageNo();
+            PDRectangle box = page.findCropBox();
+            int rotation = page.findRotation();
+            if (rotation == 90 || rotation == 270) {
+                current.width = box.getHeight();
+                current.height = box.getWidth();
+            } else {
+                current.width = box.getWidth();
+                current.height = box.getHeight();
+            }
+            text.setLength(0);
+            wordCount = 0;
+            lineCount = 0;
+            lineStartWord = 0;
+            wordStart = -1;
+        }
+
+        @Override
+        protected void writeString(String inText,
+                List<TextPosition> inTextPositions) throws IOException {
+
+            for (TextPosition tp : inTextPositions) {
+                String c = tp.getCharacter();
+                if (c == null || c.trim().isEmpty()) {
+                    endWord();
+                    continue;
+                }
+                float h = tp.getHeightDir();
+                float x = tp.getXDirAdj();
+                float y = tp.getYDirAdj() - h;
+                if (wordStart == -1) {
+                    if (text.length() > 0) {
+                        text.append(wordCount == lineStartWord ? "" : " ");
+                    }
+                    wordStart = text.length();
+                    minX = x;
+                    minY = y;
+                    maxX = x + tp.getWidthDirAdj();
+                    maxY = y + h;
+                } else {
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x + tp.getWidthDirAdj());
+                    maxY = Math.max(maxY, y + h);
+                }
+                text.append(c);
+            }
+            endWord();
+        }
+
+        @Override
+        protected void writeLineSeparator() throws IOException {
+            endLine();
+        }
+
+        @Override
+        protected void endPage(PDPage page) throws IOException {
+
+            endLine();
+            current.text = text.toString();
+            current.wordOffsets = Arrays.copyOf(offsets, wordCount * 2);
+            current.wordBoxes = Arrays.copyOf(boxes, wordCount * 4);
+            current.lineFirstWords = Arrays.copyOf(lineFirst, lineCount);
+            current.lineBoxes = Arrays.copyOf(lineBoxes, lineCount * 4);
+            result.pages.add(current);
+            current = null;
+        }
+
+        protected void endWord() {
+
+            if (wordStart == -1) {
+                return;
+            }
+            if (offsets.length < (wordCount + 1) * 2) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                boxes = Arrays.copyOf(boxes, boxes.length * 2);
+            }
+            offsets[wordCount * 2] = wordStart;
+            offsets[wordCount * 2 + 1] = text.length();
+            boxes[wordCount * 4] = minX;
+            boxes[wordCount * 4 + 1] = minY;
+            boxes[wordCount * 4 + 2] = maxX - minX;
+            boxes[wordCount * 4 + 3] = maxY - minY;
+            wordCount += 1;
+            wordStart = -1;
+        }
+
+        protected void endLine() {
+
+            endWord();
+            if (wordCount == lineStartWord) {
+                return;
+            }
+            if (lineFirst.length < lineCount + 1) {
+                lineFirst = Arrays.copyOf(lineFirst, lineFirst.length * 2);
+                lineBoxes = Arrays.copyOf(lineBoxes, lineBoxes.length * 2);
+            }
+            float lMinX = Float.MAX_VALUE, lMinY = Float.MAX_VALUE;
+            float lMaxX = -Float.MAX_VALUE, lMaxY = -Float.MAX_VALUE;
+            for (int i = lineStartWord; i < wordCount; i++) {
+                lMinX = Math.min(lMinX, boxes[i * 4]);
+                lMinY = Math.min(lMinY, boxes[i * 4 + 1]);
+                lMaxX = Math.max(lMaxX, boxes[i * 4] + boxes[i * 4 + 2]);
+                lMaxY = Math.max(lMaxY, boxes[i * 4 + 1] + boxes[i * 4 + 3]);
+            }
+            lineFirst[lineCount] = lineStartWord;
+            lineBoxes[lineCount * 4] = lMinX;
+            lineBoxes[lineCount * 4 + 1] = lMinY;
+            lineBoxes[lineCount * 4 + 2] = lMaxX - lMinX;
+            lineBoxes[lineCount * 4 + 3] = lMaxY - lMinY;
+            lineCount += 1;
+            lineStartWord = wordCount;
+            text.append('\n');
+        }
+    }
+}
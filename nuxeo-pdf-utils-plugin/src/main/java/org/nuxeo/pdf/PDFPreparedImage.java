@@ -0,0 +1,282 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.graphics.xobject.PDPixelMap;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * An image ready to be embedded in a PDF: The encoded data of the image
+ * XObject, and its dictionary (width, height, color space, filter, ...).
+ * <p>
+ * JPEG files (baseline or progressive, gray or RGB) are embedded as is, with
+ * the DCTDecode filter: No decoding, no re-encoding. Other formats are
+ * decoded once and encoded by PDFBox (Flate, with a soft mask for the
+ * transparency).
+ * <p>
+ * Prepared images are immutable and cached by digest of the image (see
+ * <code>get()</code>), so watermarking many documents with the same logo
+ * decodes it only once. The scale is applied when drawing the image, it is
+ * not part of the prepared image.
+ *
+ * @since 7.1
+ */
+public class PDFPreparedImage {
+
+    public static final String CACHE_MAX_ENTRIES_PROP = "nuxeo.pdfutils.image.cache.maxEntries";
+
+    public static final String CACHE_MAX_BYTES_PROP = "nuxeo.pdfutils.image.cache.maxBytes";
+
+    protected static final PDFCache<String, PDFPreparedImage> CACHE = new PDFCache<String, PDFPreparedImage>(
+            (int) PDFUtils.getLongProperty(CACHE_MAX_ENTRIES_PROP, 50),
+            PDFUtils.getLongProperty(CACHE_MAX_BYTES_PROP, 50 * 1024 * 1024)) {
+        @Override
+        protected long weigh(PDFPreparedImage inValue) {
+            return inValue.getSize();
+        }
+    };
+
+    protected static final COSName DCT_DECODE = COSName.getPDFName("DCTDecode");
+
+    protected final byte[] data;
+
+    // Image dictionary, without /Length and /SMask
+    protected final COSDictionary template;
+
+    protected final PDFPreparedImage mask;
+
+    protected final int width;
+
+    protected final int height;
+
+    protected PDFPreparedImage(byte[] inData, COSDictionary inTemplate,
+            PDFPreparedImage inMask, int inWidth, int inHeight) {
+
+        data = inData;
+        template = inTemplate;
+        mask = inMask;
+        width = inWidth;
+        height = inHeight;
+    }
+
+    /**
+     * Return the prepared image, from the cache if it was already prepared
+     *
+     * @param inImage
+     * @return the prepared image
+     * @throws IOException
+     */
+    public static PDFPreparedImage get(Blob inImage) throws IOException {
+
+        String digest = PDFUtils.getDigest(inImage);
+        PDFPreparedImage image = CACHE.get(digest);
+        if (image == null) {
+            image = prepare(inImage.getByteArray());
+            CACHE.put(digest, image);
+        }
+        return image;
+    }
+
+    /**
+     * Prepare the image (no cache)
+     *
+     * @param inBytes the image file (JPEG, PNG, GIF, ...)
+     * @return the prepared image
+     * @throws IOException
+     */
+    public static PDFPreparedImage prepare(byte[] inBytes) throws IOException {
+
+        int[] jpeg = readJpegInfo(inBytes);
+        if (jpeg != null) {
+            COSDictionary dict = new COSDictionary();
+            dict.setItem(COSName.TYPE, COSName.XOBJECT);
+            dict.setItem(COSName.SUBTYPE, COSName.IMAGE);
+            dict.setInt(COSName.WIDTH, jpeg[0]);
+            dict.setInt(COSName.HEIGHT, jpeg[1]);
+            dict.setInt(COSName.BITS_PER_COMPONENT, 8);
+            dict.setItem(COSName.COLORSPACE, jpeg[2] == 1 ? COSName.DEVICEGRAY
+                    : COSName.DEVICERGB);
+            dict.setItem(COSName.FILTER, DCT_DECODE);
+            return new PDFPreparedImage(inBytes, dict, null, jpeg[0], jpeg[1]);
+        }
+
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(inBytes));
+        if (image == null) {
+            throw new IOException("Unsupported image format");
+        }
+
+        // Let PDFBox encode the image, once, in a throw-away document
+        PDDocument holder = new PDDocument();
+        try {
+            PDPixelMap pixelMap = new PDPixelMap(holder, image);
+            return fromStream(pixelMap.getCOSStream(), true);
+        } finally {
+            holder.close();
+        }
+    }
+
+    protected static PDFPreparedImage fromStream(COSStream inStream,
+            boolean inWithMask) throws IOException {
+
+        byte[] bytes;
+        try (InputStream in = inStream.getFilteredStream()) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            bytes = out.toByteArray();
+        }
+
+        COSDictionary dict = (COSDictionary) PDFContentBuilder.copyWithoutStreams(inStream);
+        dict.removeItem(COSName.LENGTH);
+
+        PDFPreparedImage mask = null;
+        if (inWithMask) {
+            COSBase smask = inStream.getDictionaryObject(COSName.SMASK);
+            if (smask instanceof COSStream) {
+                mask = fromStream((COSStream) smask, false);
+            }
+        }
+
+        return new PDFPreparedImage(bytes, dict, mask,
+                dict.getInt(COSName.WIDTH), dict.getInt(COSName.HEIGHT));
+    }
+
+    /**
+     * Creates the image XObject in the document
+     *
+     * @param inDoc
+     * @return the image stream, to be referenced in the resources of the pages
+     * @throws IOException
+     */
+    public COSStream embed(PDDocument inDoc) throws IOException {
+
+        PDStream stream = new PDStream(inDoc, new ByteArrayInputStream(data),
+                true);
+        COSStream cos = stream.getStream();
+        COSDictionary dict = (COSDictionary) PDFContentBuilder.copyWithoutStreams(template);
+        for (Map.Entry<COSName, COSBase> e : dict.entrySet()) {
+            cos.setItem(e.getKey(), e.getValue());
+        }
+        if (mask != null) {
+            cos.setItem(COSName.SMASK, mask.embed(inDoc));
+        }
+        return cos;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return true if the image is embedded as a JPEG (DCTDecode)
+     */
+    public boolean isJpeg() {
+        return DCT_DECODE.equals(template.getDictionaryObject(COSName.FILTER));
+    }
+
+    /**
+     * @return the size in bytes of the encoded data (image and mask)
+     */
+    public long getSize() {
+        return data.length + (mask == null ? 0 : mask.getSize());
+    }
+
+    /**
+     * Read the width, height and number of components of a JPEG which can be
+     * embedded as is: 8 bits, baseline or progressive, 1 or 3 components
+     * (CMYK JPEGs are often stored inverted, they are decoded instead).
+     *
+     * @param inBytes
+     * @return width, height and components, or null
+     */
+    protected static int[] readJpegInfo(byte[] inBytes) {
+
+        int len = inBytes.length;
+        if (len < 4 || (inBytes[0] & 0xFF) != 0xFF
+                || (inBytes[1] & 0xFF) != 0xD8) {
+            return null;
+        }
+
+        int i = 2;
+        while (i + 3 < len) {
+            if ((inBytes[i] & 0xFF) != 0xFF) {
+                return null;
+            }
+            int marker = inBytes[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                // Fill byte
+                i += 1;
+                continue;
+            }
+            if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8)) {
+                // No length
+                i += 2;
+                continue;
+            }
+            int segmentLength = ((inBytes[i + 2] & 0xFF) << 8)
+                    | (inBytes[i + 3] & 0xFF);
+            if (marker == 0xC0 || marker == 0xC1 || marker == 0xC2) {
+                if (i + 9 >= len || (inBytes[i + 4] & 0xFF) != 8) {
+                    return null;
+                }
+                int height = ((inBytes[i + 5] & 0xFF) << 8)
+                        | (inBytes[i + 6] & 0xFF);
+                int width = ((inBytes[i + 7] & 0xFF) << 8)
+                        | (inBytes[i + 8] & 0xFF);
+                int components = inBytes[i + 9] & 0xFF;
+                if (width == 0 || height == 0
+                        || (components != 1 && components != 3)) {
+                    return null;
+                }
+                return new int[] { width, height, components };
+            }
+            if (marker >= 0xC3 && marker <= 0xCF && marker != 0xC4
+                    && marker != 0xC8 && marker != 0xCC) {
+                // Lossless, hierarchical or arithmetic coding
+                return null;
+            }
+            if (marker == 0xDA || marker == 0xD9) {
+                // Start of scan or end of image before the frame header
+                return null;
+            }
+            i += 2 + segmentLength;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.PDResources;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * A PDF to overlay on other PDFs, prepared once: Each of its pages is turned
+ * into a Form XObject (content and resources), detached from the overlay
+ * document (see <code>PDFObjectTemplate</code>).
+ * <p>
+ * Prepared overlays are cached by digest of the overlay blob (see
+ * <code>get()</code>): Watermarking thousands of documents with the same
+ * overlay parses it once. When the document holding the overlay is modified,
+ * its digest changes and the new version is prepared (the previous one is
+ * evicted from the cache eventually).
+ * <p>
+ * Page <i>i</i> of the target receives page <i>i</i> of the overlay, modulo
+ * the number of pages of the overlay, drawn over the original content.
+ *
+ * @since 7.1
+ */
+public class PDFPreparedOverlay {
+
+    public static final String CACHE_MAX_ENTRIES_PROP = "nuxeo.pdfutils.overlay.cache.maxEntries";
+
+    public static final String CACHE_MAX_BYTES_PROP = "nuxeo.pdfutils.overlay.cache.maxBytes";
+
+    protected static final PDFCache<String, PDFPreparedOverlay> CACHE = new PDFCache<String, PDFPreparedOverlay>(
+            (int) PDFUtils.getLongProperty(CACHE_MAX_ENTRIES_PROP, 20),
+            PDFUtils.getLongProperty(CACHE_MAX_BYTES_PROP, 50 * 1024 * 1024)) {
+        @Override
+        protected long weigh(PDFPreparedOverlay inValue) {
+            return inValue.forms.getSize();
+        }
+    };
+
+    protected static final String OVERLAY_RESOURCE_NAME = "NxOverlay";
+
+    // A COSArray of forms, one per page of the overlay
+    protected final PDFObjectTemplate forms;
+
+    protected final int pageCount;
+
+    protected PDFPreparedOverlay(PDFObjectTemplate inForms, int inPageCount) {
+        forms = inForms;
+        pageCount = inPageCount;
+    }
+
+    /**
+     * Return the prepared overlay, from the cache if it was already prepared
+     *
+     * @param inOverlay
+     * @return the prepared overlay
+     * @throws IOException
+     */
+    public static PDFPreparedOverlay get(Blob inOverlay) throws IOException {
+
+        String digest = PDFUtils.getDigest(inOverlay);
+        PDFPreparedOverlay overlay = CACHE.get(digest);
+        if (overlay == null) {
+            overlay = prepare(inOverlay);
+            CACHE.put(digest, overlay);
+        }
+        return overlay;
+    }
+
+    /**
+     * Prepare the overlay (no cache)
+     *
+     * @param inOverlay
+     * @return the prepared overlay
+     * @throws IOException
+     */
+    public static PDFPreparedOverlay prepare(Blob inOverlay) throws IOException {
+
+        PDDocument overlayDoc = null;
+        try {
+            overlayDoc = PDDocument.load(inOverlay.getStream());
+
+            COSArray forms = new COSArray();
+            List<?> allPages = overlayDoc.getDocumentCatalog().getAllPages();
+            for (Object o : allPages) {
+                PDPage page = (PDPage) o;
+
+                PDFContentBuilder content = new PDFContentBuilder();
+                PDStream contents = page.getContents();
+                if (contents != null) {
+                    content.raw(contents.getByteArray());
+                }
+                PDResources resources = page.findResources();
+                COSDictionary resDict = resources == null ? new COSDictionary()
+                        : resources.getCOSDictionary();
+
+                forms.add(content.toForm(overlayDoc, page.findMediaBox(),
+                        resDict));
+            }
+
+            return new PDFPreparedOverlay(PDFObjectTemplate.of(forms),
+                    allPages.size());
+
+        } finally {
+            PDFUtils.closeSilently(overlayDoc);
+        }
+    }
+
+    /**
+     * Draw the overlay over each page of the document
+     *
+     * @param inDoc
+     * @throws IOException
+     */
+    public void apply(PDDocument inDoc) throws IOException {
+        apply(inDoc, PDFPageSelector.ALL);
+    }
+
+    /**
+     * Draw the overlay over the selected pages of the document. Page
+     * <i>i</i> still receives page <i>i</i> (modulo) of the overlay.
+     *
+     * @param inDoc
+     * @param inSelector
+     * @throws IOException
+     */
+    public void apply(PDDocument inDoc, PDFPageSelector inSelector)
+            throws IOException {
+
+        if (pageCount == 0) {
+            return;
+        }
+
+        COSArray imported = (COSArray) forms.importInto(inDoc);
+        COSStream[] saveRestore = PDFContentBuilder.saveRestoreStreams(inDoc);
+        Map<String, COSStream> drawStreams = new HashMap<String, COSStream>();
+        PDFPageGeometry.Resolver geometries = new PDFPageGeometry.Resolver();
+
+        List<?> allPages = inDoc.getDocumentCatalog().getAllPages();
+        int max = allPages.size();
+        for (int i = 0; i < max; i++) {
+            PDPage page = (PDPage) allPages.get(i);
+            if (!inSelector.matches(i + 1, max,
+                    inSelector.usesGeometry() ? geometries.get(page) : null)) {
+                continue;
+            }
+            int formIndex = i % pageCount;
+            String formName = PDFContentBuilder.addResource(page,
+                    COSName.XOBJECT, OVERLAY_RESOURCE_NAME + (formIndex + 1),
+                    imported.getObject(formIndex));
+
+            COSStream draw = drawStreams.get(formName);
+            if (draw == null) {
+                draw = new PDFContentBuilder().op("q").name(formName).op("Do").op(
+                        "Q").toStream(inDoc);
+                drawStreams.put(formName, draw);
+            }
+
+            PDFContentBuilder.appendContent(page, saveRestore[0],
+                    saveRestore[1], draw);
+        }
+    }
+
+    public int getPageCount() {
+        return pageCount;
+    }
+}
@@ -0,0 +1,527 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.runtime.api.Framework;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * The scratch space of the plug-in: The temporary files it creates (results,
+ * intermediate files, ...) are in their own directory, with a byte quota for
+ * the node.
+ * <p>
+ * Configuration properties (nuxeo.conf):
+ * <ul>
+ * <li><code>nuxeo.pdfutils.scratch.dir</code>: The base directory (tmpfs,
+ * fast local disk, ...). Default is <code>nuxeo-pdfutils</code> in
+ * <code>java.io.tmpdir</code>. Each process uses its own
+ * <code>run-*</code> subdirectory, holding a lock on its <code>.lock</code>
+ * file until it exits, so several nodes can share the base directory (its
+ * file system must support file locks). When the scratch space is first
+ * used, the runs of the processes which are gone (their lock is free) are
+ * deleted. The runs without lock file are only purged of their files not
+ * modified for a day.</li>
+ * <li><code>nuxeo.pdfutils.scratch.quotaMB</code>: Max size of the files of
+ * the scratch space: The tracked files, and the files created and not
+ * tracked or released yet (being written, intermediate files), at their
+ * current size. <code>createFile()</code> fails when it is reached. Default
+ * is 0, no quota.</li>
+ * </ul>
+ * A file handed out in a blob is tracked (<code>track()</code>): It is
+ * deleted by <code>release()</code>, at the end of the <code>Scope</code> it
+ * was created in, or, as a last resort, when its blob is garbage collected
+ * (counted as a leak).
+ * <p>
+ * Metrics, under <code>nuxeo.pdfutils.scratch</code>: Gauges
+ * <code>usedBytes</code> and <code>files</code>, counters
+ * <code>released</code>, <code>leaked</code> and <code>rejected</code> (quota
+ * reached).
+ * <p>
+ * The gauges and the thread deleting the leaked files are started and
+ * stopped by <code>PDFScratchComponent</code>. Without it (outside of the
+ * runtime), the leaked files are deleted by <code>createFile()</code>.
+ *
+ * @since 7.1
+ */
+public class PDFScratch {
+
+    private static final Log log = LogFactory.getLog(PDFScratch.class);
+
+    public static final String DIRECTORY_PROPERTY = "nuxeo.pdfutils.scratch.dir";
+
+    public static final String QUOTA_PROPERTY = "nuxeo.pdfutils.scratch.quotaMB";
+
+    public static final String METRICS_ACTION = "scratch";
+
+    public static final String FILE_PREFIX = "nuxeo-pdfutils-";
+
+    public static final String RUN_PREFIX = "run-";
+
+    public static final String LOCK_FILE = ".lock";
+
+    // Files of the runs without lock file older than this are leftovers
+    protected static final long LEFTOVER_AGE = TimeUnit.DAYS.toMillis(1);
+
+    protected static final ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+
+    protected static final Map<File, Tracked> files = new ConcurrentHashMap<File, Tracked>();
+
+    protected static final AtomicLong used = new AtomicLong();
+
+    // Created and not tracked or released yet
+    protected static final Set<File> pending = Collections.newSetFromMap(
+            new ConcurrentHashMap<File, Boolean>());
+
+    protected static final ThreadLocal<Scope> currentScope = new ThreadLocal<Scope>();
+
+    protected static File directory;
+
+    // Held until the process exits: The run is live
+    protected static FileLock lock;
+
+    protected static Thread reaper;
+
+    /**
+     * Register the gauges and start the thread deleting the leaked files
+     */
+    public static synchronized void start() {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        String name = PDFMetrics.name(METRICS_ACTION, "usedBytes");
+        registry.remove(name);
+        registry.register(name, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return getUsedBytes();
+            }
+        });
+        name = PDFMetrics.name(METRICS_ACTION, "files");
+        registry.remove(name);
+        registry.register(name, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getFileCount();
+            }
+        });
+
+        if (reaper == null) {
+            reaper = new Thread("nuxeo-pdfutils-scratch-reaper") {
+                @Override
+                public void run() {
+                    try {
+                        while (!isInterrupted()) {
+                            reap(queue.remove());
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            };
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+    }
+
+    /**
+     * Unregister the gauges and stop the thread deleting the leaked files
+     */
+    public static synchronized void stop() {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        registry.remove(PDFMetrics.name(METRICS_ACTION, "usedBytes"));
+        registry.remove(PDFMetrics.name(METRICS_ACTION, "files"));
+
+        if (reaper != null) {
+            reaper.interrupt();
+            try {
+                reaper.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            reaper = null;
+        }
+        reap();
+    }
+
+    /*
+     * A tracked file, deleted when its marker is garbage collected if it was
+     * not released before
+     */
+    protected static class Tracked extends PhantomReference<Object> {
+
+        protected final File file;
+
+        protected final long length;
+
+        protected Tracked(Object inMarker, File inFile) {
+            super(inMarker, queue);
+            file = inFile;
+            length = inFile.length();
+        }
+    }
+
+    /**
+     * Releases, when closed, the files created by the current thread since it
+     * was opened, except the ones kept (see <code>keep()</code>). Scopes can
+     * be nested.
+     *
+     * <pre>
+     * PDFScratch.Scope scope = PDFScratch.openScope();
+     * try {
+     *     // ... run operations, save their result ...
+     * } finally {
+     *     scope.close();
+     * }
+     * </pre>
+     */
+    public static class Scope implements AutoCloseable {
+
+        protected final Scope parent;
+
+        protected final List<File> created = new ArrayList<File>();
+
+        protected boolean closed = false;
+
+        protected Scope(Scope inParent) {
+            parent = inParent;
+        }
+
+        /**
+         * Do not release the file of this blob, hand it to the enclosing
+         * scope if any
+         *
+         * @param inBlob
+         */
+        public void keep(Blob inBlob) {
+            File f = getFile(inBlob);
+            if (f != null && created.remove(f) && parent != null) {
+                parent.created.add(f);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                for (File f : created) {
+                    release(f);
+                }
+                created.clear();
+                currentScope.set(parent);
+            }
+        }
+    }
+
+    public static Scope openScope() {
+        Scope scope = new Scope(currentScope.get());
+        currentScope.set(scope);
+        return scope;
+    }
+
+    /**
+     * @return the scratch directory of this process, created if needed
+     */
+    public static synchronized File getDirectory() {
+
+        if (directory == null) {
+            String path = Framework.isInitialized() ? Framework.getProperty(DIRECTORY_PROPERTY)
+                    : System.getProperty(DIRECTORY_PROPERTY);
+            File base = path == null || path.isEmpty() ? new File(
+                    System.getProperty("java.io.tmpdir"), "nuxeo-pdfutils")
+                    : new File(path);
+            base.mkdirs();
+            File[] runs = base.listFiles();
+            if (runs != null) {
+                long before = System.currentTimeMillis() - LEFTOVER_AGE;
+                for (File run : runs) {
+                    if (run.isDirectory()
+                            && run.getName().startsWith(RUN_PREFIX)) {
+                        purgeRun(run, before);
+                    }
+                }
+            }
+            File dir;
+            try {
+                dir = Files.createTempDirectory(base.toPath(), RUN_PREFIX).toFile();
+                File lockFile = new File(dir, LOCK_FILE);
+                // Never closed: The lock is released when the process exits
+                @SuppressWarnings("resource")
+                FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel();
+                lock = channel.lock();
+                // Removed at exit, in the reverse order: The lock file, then
+                // the directory if it is empty
+                dir.deleteOnExit();
+                lockFile.deleteOnExit();
+            } catch (IOException e) {
+                throw new ClientException(
+                        "Cannot create the PDF scratch directory in " + base,
+                        e);
+            }
+            directory = dir;
+        } else if (!directory.isDirectory()) {
+            // Deleted by hand: The lock is lost, the run may be purged by
+            // another process
+            log.warn("The PDF scratch directory " + directory
+                    + " was deleted, creating it again");
+            directory.mkdirs();
+        }
+        return directory;
+    }
+
+    /*
+     * Deletes the run of another process if this process is gone, which
+     * released its lock. A run without lock file (being created, ...) is
+     * only purged of its old files
+     */
+    protected static void purgeRun(File inRun, long inBefore) {
+
+        File lockFile = new File(inRun, LOCK_FILE);
+        if (!lockFile.exists()) {
+            purge(inRun, inBefore);
+            return;
+        }
+        try (FileChannel channel = new RandomAccessFile(lockFile, "rw").getChannel()) {
+            FileLock runLock = channel.tryLock();
+            if (runLock == null) {
+                // Live
+                return;
+            }
+            try {
+                File[] children = inRun.listFiles();
+                if (children != null) {
+                    for (File f : children) {
+                        if (!f.equals(lockFile)) {
+                            purge(f, Long.MAX_VALUE);
+                        }
+                    }
+                }
+            } finally {
+                runLock.release();
+            }
+        } catch (IOException | OverlappingFileLockException e) {
+            // Held by this process, or not lockable: Considered live
+            log.debug("Cannot lock " + lockFile + ", not purged", e);
+            return;
+        }
+        lockFile.delete();
+        inRun.delete();
+    }
+
+    /*
+     * Deletes the files not modified since inBefore, and the directories left
+     * empty
+     */
+    protected static void purge(File inDir, long inBefore) {
+
+        if (!inDir.isDirectory()) {
+            if (inDir.lastModified() < inBefore) {
+                inDir.delete();
+            }
+            return;
+        }
+        // Before deleting the children, which updates it
+        boolean old = inDir.lastModified() < inBefore;
+        File[] children = inDir.listFiles();
+        if (children != null) {
+            for (File f : children) {
+                if (f.isDirectory()) {
+                    purge(f, inBefore);
+                } else if (f.lastModified() < inBefore) {
+                    f.delete();
+                }
+            }
+        }
+        if (old) {
+            // Fails if it is not empty
+            inDir.delete();
+        }
+    }
+
+    /**
+     * @return the quota in bytes, 0 if none
+     */
+    public static long getQuota() {
+        return PDFUtils.getLongProperty(QUOTA_PROPERTY, 0) * 1024 * 1024;
+    }
+
+    /**
+     * Create an empty file in the scratch directory. It belongs to the current
+     * <code>Scope</code>, if any. Until it is tracked or released, it is
+     * counted in the quota at its current size.
+     *
+     * @param inSuffix
+     * @return the file
+     * @throws IOException if the quota is reached
+     */
+    public static File createFile(String inSuffix) throws IOException {
+
+        reap();
+        long pendingBytes = getPendingBytes();
+        long quota = getQuota();
+        if (quota > 0 && used.get() + pendingBytes >= quota) {
+            PDFMetrics.getRegistry().counter(
+                    PDFMetrics.name(METRICS_ACTION, "rejected")).inc();
+            throw new IOException("PDF scratch space quota reached: "
+                    + used.get() + " bytes used, " + pendingBytes
+                    + " bytes being written, quota is " + quota);
+        }
+        File f = File.createTempFile(FILE_PREFIX, inSuffix, getDirectory());
+        pending.add(f);
+        Scope scope = currentScope.get();
+        if (scope != null) {
+            scope.created.add(f);
+        }
+        return f;
+    }
+
+    /**
+     * Count the file in the space used, and delete it when
+     * <code>inMarker</code> (usually the blob of the file) is garbage
+     * collected if it is not released before.
+     *
+     * @param inFile
+     * @param inMarker
+     */
+    public static void track(File inFile, Object inMarker) {
+
+        Tracked tracked = new Tracked(inMarker, inFile);
+        pending.remove(inFile);
+        used.addAndGet(tracked.length);
+        PDFMetrics.scratchTracked(inFile, tracked.length);
+        Tracked previous = files.put(inFile, tracked);
+        if (previous != null) {
+            previous.clear();
+            used.addAndGet(-previous.length);
+        }
+    }
+
+    /**
+     * Delete the file now
+     *
+     * @param inFile
+     * @return true if it was deleted
+     */
+    public static boolean release(File inFile) {
+
+        pending.remove(inFile);
+        Tracked tracked = files.remove(inFile);
+        if (tracked != null) {
+            tracked.clear();
+            used.addAndGet(-tracked.length);
+            PDFMetrics.scratchReleased(inFile);
+            PDFMetrics.getRegistry().counter(
+                    PDFMetrics.name(METRICS_ACTION, "released")).inc();
+        }
+        return inFile.delete();
+    }
+
+    /**
+     * Delete the file of the blob now, if it is in the scratch space. The blob
+     * must not be used after.
+     *
+     * @param inBlob
+     * @return true if it was deleted
+     */
+    public static boolean release(Blob inBlob) {
+        File f = getFile(inBlob);
+        return f != null && release(f);
+    }
+
+    protected static File getFile(Blob inBlob) {
+        if (inBlob instanceof FileBlob) {
+            File f = ((FileBlob) inBlob).getFile();
+            if (f != null && getDirectory().equals(f.getParentFile())) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    public static long getUsedBytes() {
+        return used.get();
+    }
+
+    public static int getFileCount() {
+        return files.size();
+    }
+
+    /**
+     * @return the current size of the files created and not tracked or
+     *         released yet. The ones deleted by their creator are forgotten.
+     */
+    public static long getPendingBytes() {
+
+        long total = 0;
+        Iterator<File> it = pending.iterator();
+        while (it.hasNext()) {
+            File f = it.next();
+            if (f.exists()) {
+                total += f.length();
+            } else {
+                it.remove();
+            }
+        }
+        return total;
+    }
+
+    protected static void reap() {
+        Reference<?> ref;
+        while ((ref = queue.poll()) != null) {
+            reap(ref);
+        }
+    }
+
+    protected static void reap(Reference<?> inRef) {
+
+        Tracked tracked = (Tracked) inRef;
+        if (files.remove(tracked.file, tracked)) {
+            used.addAndGet(-tracked.length);
+            PDFMetrics.scratchReleased(tracked.file);
+            tracked.file.delete();
+            PDFMetrics.getRegistry().counter(
+                    PDFMetrics.name(METRICS_ACTION, "leaked")).inc();
+            log.debug("Not released: " + tracked.file);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Starts the gauges and the thread deleting the leaked files of
+ * <code>PDFScratch</code> when it is activated, stops them when it is
+ * deactivated.
+ *
+ * @since 7.1
+ */
+public class PDFScratchComponent extends DefaultComponent {
+
+    @Override
+    public void activate(ComponentContext context) {
+        PDFScratch.start();
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+        PDFScratch.stop();
+    }
+}
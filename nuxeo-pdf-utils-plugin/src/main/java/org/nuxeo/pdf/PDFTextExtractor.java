@@ -16,7 +16,14 @@
  */
 package org.nuxeo.pdf;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -31,7 +38,7 @@ import org.nuxeo.ecm.core.api.DocumentModel;
  *
  * @since 5.9.5
  */
-public class PDFTextExtractor {
+public class PDFTextExtractor implements Closeable {
 
     private static Log log = LogFactory.getLog(PDFTextExtractor.class);
 
@@ -39,8 +46,26 @@ public class PDFTextExtractor {
 
     protected String extractedAllAsString = null;
 
+    protected PDFPositionalText positionalText = null;
+
     private static final String END_OF_LINE = "\n";
 
+    public static final String TEXT_CACHE_MAX_ENTRIES_PROPERTY = "nuxeo.pdfutils.text.cache.maxEntries";
+
+    public static final String TEXT_CACHE_MAX_CHARS_PROPERTY = "nuxeo.pdfutils.text.cache.maxChars";
+
+    protected static volatile PDFCache<String, String> textCache;
+
+    protected int maxPages = 0;
+
+    protected long maxBytes = 0;
+
+    protected String[] pageTexts = null;
+
+    protected int strippedPages = 0;
+
+    protected PDDocument pagesDoc = null;
+
     public PDFTextExtractor(Blob inBlob) {
 
         pdfBlob = inBlob;
@@ -62,42 +87,401 @@ public class PDFTextExtractor {
         pdfBlob = (Blob) inDoc.getPropertyValue(inXPath);
     }
 
+    /**
+     * Stop extracting after <code>inValue</code> pages. 0 (the default) means
+     * no limit.
+     *
+     * @param inValue
+     * @return this PDFTextExtractor
+     *
+     * @since 7.1
+     */
+    public PDFTextExtractor setMaxPages(int inValue) {
+        if (inValue != maxPages) {
+            maxPages = inValue < 0 ? 0 : inValue;
+            extractedAllAsString = null;
+        }
+        return this;
+    }
+
+    public int getMaxPages() {
+        return maxPages;
+    }
+
+    /**
+     * Stop extracting once the text reaches <code>inValue</code> bytes (UTF-8).
+     * The text is truncated to this size. 0 (the default) means no limit.
+     *
+     * @param inValue
+     * @return this PDFTextExtractor
+     *
+     * @since 7.1
+     */
+    public PDFTextExtractor setMaxBytes(long inValue) {
+        if (inValue != maxBytes) {
+            maxBytes = inValue < 0 ? 0 : inValue;
+            extractedAllAsString = null;
+        }
+        return this;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Return the text of the PDF.
+     * <p>
+     * The text is cached per blob digest and limits (see
+     * <code>setMaxPages()</code> and <code>setMaxBytes()</code>), and the cache
+     * is shared with the <code>pdf2text</code> converter, so a PDF already
+     * converted for full-text indexing is not stripped again.
+     * <p>
+     * The size of the cache is set in nuxeo.conf with
+     * <code>nuxeo.pdfutils.text.cache.maxEntries</code> (default 100) and
+     * <code>nuxeo.pdfutils.text.cache.maxChars</code> (default 10,000,000).
+     *
+     * @return the text
+     * @throws IOException
+     */
     public String getAllExtractedLines() throws IOException {
 
+        if (extractedAllAsString == null) {
+            String key = getCacheKey();
+            extractedAllAsString = getTextCache().get(key);
+            if (extractedAllAsString == null) {
+                extractedAllAsString = extractText();
+                getTextCache().put(key, extractedAllAsString);
+            }
+        }
+        return extractedAllAsString;
+    }
+
+    protected String extractText() throws IOException {
+
         PDDocument pdfDoc = null;
-        PDFTextStripper stripper = new PDFTextStripper();
+        LimitedWriter writer = new LimitedWriter(maxBytes);
+        PDFMetrics.Run metrics = PDFMetrics.start("text", pdfBlob);
 
-        if (extractedAllAsString == null) {
+        try {
+            metrics.phase(PDFMetrics.Phase.LOAD);
+            pdfDoc = PDDocument.load(pdfBlob.getStream());
+            metrics.phase(PDFMetrics.Phase.TRANSFORM);
+            PDFTextStripper stripper = new PDFTextStripper();
+            if (maxPages > 0) {
+                stripper.setEndPage(maxPages);
+            }
+            metrics.pages(maxPages > 0 ? Math.min(maxPages,
+                    pdfDoc.getNumberOfPages()) : pdfDoc.getNumberOfPages());
+            stripper.writeText(pdfDoc, writer);
+
+        } catch (LimitReachedException e) {
+            // Just stop here, we have the text
+        } catch (IOException e) {
+            metrics.error(e);
+            throw new ClientException(e);
+        } catch (RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            metrics.stop();
+            if (pdfDoc != null) {
+                try {
+                    pdfDoc.close();
+                } catch (IOException e) {
+                    log.error("Error closing the PDDocument", e);
+                }
+            }
+        }
+
+        return writer.toString();
+    }
+
+    protected String getCacheKey() {
+        try {
+            String digest = PDFUtils.getDigest(pdfBlob);
+            return digest == null ? null : digest + "/" + maxPages + "/"
+                    + maxBytes;
+        } catch (IOException e) {
+            log.warn("Cannot get the digest of the blob, text is not cached",
+                    e);
+            return null;
+        }
+    }
+
+    protected static PDFCache<String, String> getTextCache() {
+
+        if (textCache == null) {
+            synchronized (PDFTextExtractor.class) {
+                if (textCache == null) {
+                    textCache = new PDFCache<String, String>(
+                            (int) PDFUtils.getLongProperty(
+                                    TEXT_CACHE_MAX_ENTRIES_PROPERTY, 100),
+                            PDFUtils.getLongProperty(
+                                    TEXT_CACHE_MAX_CHARS_PROPERTY, 10000000)) {
+                        @Override
+                        protected long weigh(String inValue) {
+                            return inValue.length();
+                        }
+                    };
+                }
+            }
+        }
+        return textCache;
+    }
+
+    /**
+     * Return the words and lines of every page, with their bounding boxes. The
+     * value is computed at first call and then cached.
+     * <p>
+     * See <code>PDFPositionalText</code> for the format.
+     *
+     * @return the positional text
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public PDFPositionalText getPositionalText() throws IOException {
+
+        if (positionalText == null) {
+            PDDocument pdfDoc = null;
+            PDFMetrics.Run metrics = PDFMetrics.start("positionalText",
+                    pdfBlob);
             try {
+                metrics.phase(PDFMetrics.Phase.LOAD);
                 pdfDoc = PDDocument.load(pdfBlob.getStream());
-                extractedAllAsString = stripper.getText(pdfDoc);
+                metrics.phase(PDFMetrics.Phase.TRANSFORM).pages(
+                        pdfDoc.getNumberOfPages());
+                PDFPositionalText.Stripper stripper = new PDFPositionalText.Stripper();
+                stripper.writeText(pdfDoc, new NullWriter());
+                positionalText = stripper.getResult();
 
             } catch (IOException e) {
+                metrics.error(e);
                 throw new ClientException(e);
+            } catch (RuntimeException e) {
+                metrics.error(e);
+                throw e;
             } finally {
-                if (pdfDoc != null) {
-                    try {
-                        pdfDoc.close();
-                    } catch (IOException e) {
-                        log.error("Error closing the PDDocument", e);
+                metrics.stop();
+                PDFUtils.closeSilently(pdfDoc);
+            }
+        }
+        return positionalText;
+    }
+
+    /**
+     * Return the line starting with <code>inString</code>, or
+     * <code>null</code> if the pattern is not found.
+     * <p>
+     * If the whole text was not already extracted (see
+     * <code>getAllExtractedLines()</code>, the text may also be in the cache
+     * shared with the <code>pdf2text</code> converter), the pages are stripped one by one
+     * and the search stops at the first page containing the pattern. Successive
+     * calls reuse the pages already stripped and the PDF already loaded (see
+     * <code>findLinesOf()</code>).
+     *
+     * @param inString
+     * @return the line
+     * @throws IOException
+     */
+    public String extractLineOf(String inString) throws IOException {
+
+        // No need to compute a digest just to look into the cache
+        if (extractedAllAsString == null && pdfBlob.getDigest() != null) {
+            extractedAllAsString = getTextCache().get(getCacheKey());
+        }
+        if (extractedAllAsString == null) {
+            LineMatch match = findLineOf(inString);
+            return match == null ? null : match.getLine();
+        }
+
+        return lineAt(extractedAllAsString,
+                extractedAllAsString.indexOf(inString));
+    }
+
+    /**
+     * Search for <code>inPattern</code>, stripping pages in the order given by
+     * <code>inPageOrder</code> and stopping at the first page where it is
+     * found. See <code>findLinesOf()</code> for details about the page order.
+     *
+     * @param inPattern
+     * @param inPageOrder
+     * @return the match, or <code>null</code> if the pattern was not found
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public LineMatch findLineOf(String inPattern, int... inPageOrder)
+            throws IOException {
+
+        return findLinesOf(Arrays.asList(inPattern), inPageOrder).get(
+                inPattern);
+    }
+
+    /**
+     * Search for every pattern of <code>inPatterns</code>, page by page, and
+     * stop as soon as all of them have been found. The remaining pages are not
+     * stripped.
+     * <p>
+     * <code>inPageOrder</code> gives the pages (1-based) to strip first, in
+     * that order. A negative value counts from the end of the document (-1 is
+     * the last page). Values out of range are ignored, and the pages not
+     * listed are then stripped in their natural order. So, to search the first
+     * page, then the last page, then the rest of the document, pass
+     * <code>1, -1</code>. Passing nothing strips the pages in order.
+     * <p>
+     * Every match reports the page where the pattern was found, so a later call
+     * can pass it as the first page to search.
+     * <p>
+     * The PDF is parsed once per extractor: The text of the pages stripped is
+     * kept, and the PDF stays open while some pages are not stripped, so
+     * following searches do not load it again. Call <code>close()</code> when
+     * done.
+     *
+     * @param inPatterns
+     * @param inPageOrder
+     * @return a map pattern => match. Patterns not found are not in the map.
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public Map<String, LineMatch> findLinesOf(List<String> inPatterns,
+            int... inPageOrder) throws IOException {
+
+        LinkedHashMap<String, LineMatch> result = new LinkedHashMap<String, LineMatch>();
+        List<String> toFind = new ArrayList<String>();
+        for (String pattern : inPatterns) {
+            if (pattern != null && !pattern.isEmpty()
+                    && !toFind.contains(pattern)) {
+                toFind.add(pattern);
+            }
+        }
+        if (toFind.isEmpty()) {
+            return result;
+        }
+
+        try {
+            if (pageTexts == null) {
+                pageTexts = new String[getPagesDocument().getNumberOfPages()];
+            }
+
+            for (int page : resolvePageOrder(pageTexts.length, inPageOrder)) {
+                String pageText = pageTexts[page - 1];
+                if (pageText == null) {
+                    pageText = stripPage(getPagesDocument(), page);
+                    pageTexts[page - 1] = pageText;
+                    if (++strippedPages == pageTexts.length) {
+                        // Every page is in memory, the PDF is not needed
+                        // anymore
+                        close();
                     }
                 }
 
+                for (int i = toFind.size() - 1; i >= 0; i--) {
+                    String pattern = toFind.get(i);
+                    int pos = pageText.indexOf(pattern);
+                    if (pos != -1) {
+                        result.put(pattern, new LineMatch(pattern, lineAt(
+                                pageText, pos), page));
+                        toFind.remove(i);
+                    }
+                }
+                if (toFind.isEmpty()) {
+                    break;
+                }
             }
+
+        } catch (IOException e) {
+            close();
+            throw new ClientException(e);
         }
-        return extractedAllAsString;
+
+        return result;
     }
 
-    public String extractLineOf(String inString) throws IOException {
-        String extractedLine = null;
-        int lineBegining = getAllExtractedLines().indexOf(inString);
-        int lineEnd;
-        if (lineBegining != -1) {
-            lineEnd = getAllExtractedLines().indexOf(END_OF_LINE, lineBegining);
-            extractedLine = getAllExtractedLines().substring(lineBegining, lineEnd).trim();
+    /*
+     * The PDF searched by findLinesOf(), loaded once and kept open until every
+     * page is stripped or close() is called
+     */
+    protected PDDocument getPagesDocument() throws IOException {
+
+        if (pagesDoc == null) {
+            pagesDoc = PDDocument.load(pdfBlob.getStream());
         }
+        return pagesDoc;
+    }
 
-        return extractedLine;
+    /*
+     * The text of one page (1-based)
+     */
+    protected String stripPage(PDDocument inDoc, int inPage) throws IOException {
+
+        PDFTextStripper stripper = new PDFTextStripper();
+        stripper.setStartPage(inPage);
+        stripper.setEndPage(inPage);
+        return stripper.getText(inDoc);
+    }
+
+    /**
+     * Release the PDF kept open by <code>findLinesOf()</code> (and
+     * <code>extractLineOf()</code>) when the search stopped before the last
+     * page. The pages already stripped stay available, the PDF is loaded again
+     * only if a later search needs the other pages.
+     *
+     * @since 7.1
+     */
+    @Override
+    public void close() {
+
+        PDFUtils.closeSilently(pagesDoc);
+        pagesDoc = null;
+    }
+
+    /*
+     * Build the list of pages to strip: The ones in inPageOrder first, then
+     * the others in their natural order.
+     */
+    protected static int[] resolvePageOrder(int inPageCount, int... inPageOrder) {
+
+        int[] order = new int[inPageCount];
+        boolean[] done = new boolean[inPageCount + 1];
+        int count = 0;
+
+        if (inPageOrder != null) {
+            for (int page : inPageOrder) {
+                if (page < 0) {
+                    page = inPageCount + 1 + page;
+                }
+                if (page >= 1 && page <= inPageCount && !done[page]) {
+                    done[page] = true;
+                    order[count++] = page;
+                }
+            }
+        }
+        for (int page = 1; page <= inPageCount; page++) {
+            if (!done[page]) {
+                order[count++] = page;
+            }
+        }
+
+        return order;
+    }
+
+    /*
+     * The line starting at inStart, up to the end of line (or the end of the
+     * text)
+     */
+    protected static String lineAt(String inText, int inStart) {
+
+        if (inStart == -1) {
+            return null;
+        }
+        int lineEnd = inText.indexOf(END_OF_LINE, inStart);
+        if (lineEnd == -1) {
+            lineEnd = inText.length();
+        }
+        return inText.substring(inStart, lineEnd).trim();
     }
 
     public String extractLastPartOfLine(String string) throws IOException {
@@ -109,4 +493,110 @@ public class PDFTextExtractor {
         return extractedLine;
     }
 
+    /**
+     * A line found by <code>findLinesOf()</code>: The pattern, the line
+     * starting with this pattern and the page (1-based) it was found in.
+     *
+     * @since 7.1
+     */
+    public static class LineMatch {
+
+        protected String pattern;
+
+        protected String line;
+
+        protected int pageNumber;
+
+        public LineMatch(String inPattern, String inLine, int inPageNumber) {
+            pattern = inPattern;
+            line = inLine;
+            pageNumber = inPageNumber;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        public int getPageNumber() {
+            return pageNumber;
+        }
+    }
+
+    /*
+     * The positional stripper does not need the text output
+     */
+    protected static class NullWriter extends Writer {
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            // Nothing
+        }
+
+        @Override
+        public void flush() {
+            // Nothing
+        }
+
+        @Override
+        public void close() {
+            // Nothing
+        }
+    }
+
+    /*
+     * Used to stop the stripper once the max. size is reached
+     */
+    protected static class LimitReachedException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+    }
+
+    /*
+     * A StringWriter counting the bytes (UTF-8) written
+     */
+    protected static class LimitedWriter extends Writer {
+
+        protected StringBuilder sb = new StringBuilder();
+
+        protected long maxBytes;
+
+        protected long bytes = 0;
+
+        public LimitedWriter(long inMaxBytes) {
+            maxBytes = inMaxBytes;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                char c = cbuf[i];
+                long size = c < 0x80 ? 1 : (c < 0x800 ? 2 : 3);
+                if (maxBytes > 0 && bytes + size > maxBytes) {
+                    throw new LimitReachedException();
+                }
+                bytes += size;
+                sb.append(c);
+            }
+        }
+
+        @Override
+        public void flush() {
+            // Nothing
+        }
+
+        @Override
+        public void close() {
+            // Nothing
+        }
+
+        @Override
+        public String toString() {
+            return sb.toString();
+        }
+    }
+
 }
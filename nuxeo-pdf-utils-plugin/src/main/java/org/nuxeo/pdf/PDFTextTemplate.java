@@ -0,0 +1,180 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A text with variables, as used in headers and footers:
+ * "Confidential - Page ${page} of ${total} - ${dc:title}".
+ * <p>
+ * The text is parsed once, in a list of literals and variable names. Parsed
+ * templates are immutable and cached (see <code>get()</code>), so the same
+ * template used in thousands of calls is parsed only once.
+ * <p>
+ * Variables:
+ * <ul>
+ * <li><code>${page}</code>: The number of the page</li>
+ * <li><code>${total}</code>: The number of the last page</li>
+ * <li>Any other name (<code>${date}</code>, <code>${filename}</code>,
+ * <code>${user}</code>, a document property like <code>${dc:title}</code>,
+ * ...) is read in the map passed to <code>render()</code>. It is replaced
+ * with "" if not found.</li>
+ * </ul>
+ * An unclosed "${" is kept as a literal.
+ *
+ * @since 7.1
+ */
+public class PDFTextTemplate {
+
+    public static final String VAR_PAGE = "page";
+
+    public static final String VAR_TOTAL = "total";
+
+    public static final String VAR_DATE = "date";
+
+    public static final String VAR_FILENAME = "filename";
+
+    public static final String VAR_USER = "user";
+
+    public static final String CACHE_MAX_ENTRIES_PROP = "nuxeo.pdfutils.template.cache.maxEntries";
+
+    protected static final PDFCache<String, PDFTextTemplate> CACHE = new PDFCache<String, PDFTextTemplate>(
+            (int) PDFUtils.getLongProperty(CACHE_MAX_ENTRIES_PROP, 200), 0);
+
+    protected final String template;
+
+    // Same size. When variables[i] is not null, parts[i] is ignored
+    protected final String[] parts;
+
+    protected final String[] variables;
+
+    protected final boolean pageDependent;
+
+    /**
+     * Return the parsed template, from the cache if it was already parsed.
+     *
+     * @param inTemplate
+     * @return the template
+     */
+    public static PDFTextTemplate get(String inTemplate) {
+
+        if (inTemplate == null) {
+            inTemplate = "";
+        }
+        PDFTextTemplate result = CACHE.get(inTemplate);
+        if (result == null) {
+            result = new PDFTextTemplate(inTemplate);
+            CACHE.put(inTemplate, result);
+        }
+        return result;
+    }
+
+    public PDFTextTemplate(String inTemplate) {
+
+        template = inTemplate;
+
+        List<String> p = new ArrayList<String>();
+        List<String> v = new ArrayList<String>();
+        int start = 0;
+        int len = inTemplate.length();
+        while (start < len) {
+            int varStart = inTemplate.indexOf("${", start);
+            int varEnd = varStart < 0 ? -1 : inTemplate.indexOf('}',
+                    varStart + 2);
+            if (varStart < 0 || varEnd < 0) {
+                p.add(inTemplate.substring(start));
+                v.add(null);
+                break;
+            }
+            if (varStart > start) {
+                p.add(inTemplate.substring(start, varStart));
+                v.add(null);
+            }
+            p.add(null);
+            v.add(inTemplate.substring(varStart + 2, varEnd).trim());
+            start = varEnd + 1;
+        }
+
+        parts = p.toArray(new String[p.size()]);
+        variables = v.toArray(new String[v.size()]);
+        pageDependent = v.contains(VAR_PAGE);
+    }
+
+    /**
+     * Return the text, with the variables replaced
+     *
+     * @param inValues values of the variables other than page and total. Can
+     *            be null.
+     * @param inPage
+     * @param inTotal
+     * @return the text
+     */
+    public String render(Map<String, String> inValues, int inPage, int inTotal) {
+
+        StringBuilder sb = new StringBuilder(template.length() + 16);
+        for (int i = 0; i < parts.length; i++) {
+            String var = variables[i];
+            if (var == null) {
+                sb.append(parts[i]);
+            } else if (VAR_PAGE.equals(var)) {
+                sb.append(inPage);
+            } else if (VAR_TOTAL.equals(var)) {
+                sb.append(inTotal);
+            } else if (inValues != null) {
+                String value = inValues.get(var);
+                if (value != null) {
+                    sb.append(value);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the names of the variables used in the template
+     */
+    public List<String> getVariables() {
+
+        List<String> result = new ArrayList<String>();
+        for (String var : variables) {
+            if (var != null && !result.contains(var)) {
+                result.add(var);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * @return true if the rendered text changes with the page (uses
+     *         <code>${page}</code>)
+     */
+    public boolean isPageDependent() {
+        return pageDependent;
+    }
+
+    public boolean isEmpty() {
+        return parts.length == 0;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+}
@@ -18,10 +18,14 @@ package org.nuxeo.pdf;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 import org.apache.pdfbox.exceptions.COSVisitorException;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.font.PDFont;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.CoreSession;
@@ -30,6 +34,11 @@ import org.nuxeo.ecm.core.api.IdRef;
 import org.nuxeo.ecm.core.api.PathRef;
 import org.nuxeo.ecm.core.api.UnrestrictedSessionRunner;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.storage.binary.Binary;
+import org.nuxeo.ecm.core.storage.binary.BinaryBlob;
+import org.nuxeo.pdf.admission.PDFAdmission;
+import org.nuxeo.pdf.fonts.PDFFontRegistry;
+import org.nuxeo.pdf.fonts.PDFFontRegistryComponent;
 import org.nuxeo.runtime.api.Framework;
 
 /**
@@ -41,6 +50,16 @@ public class PDFUtils {
 
     public static final String DEFAULT_BLOB_XPATH = "file:content";
 
+    /**
+     * Configuration property (nuxeo.conf): When "true", documents modified by
+     * the plug-in (watermark, page numbers, headers/footers, infos) are saved
+     * as the original bytes followed by an incremental update (see
+     * <code>PDFIncrementalSave</code>). Default is false.
+     *
+     * @since 7.1
+     */
+    public static final String INCREMENTAL_SAVE_PROP = "nuxeo.pdfutils.save.incremental";
+
     public static int[] hex255ToRGB(String inHex) {
         int[] result = { 0, 0, 0 };
 
@@ -59,7 +78,8 @@ public class PDFUtils {
     }
 
     /**
-     * Create a temporary .pdf file and return a FileBlob built from this file.
+     * Create a temporary .pdf file (see <code>PDFScratch</code>) and return a
+     * FileBlob built from this file.
      * <p>
      * Mainly a utility used just by this plug-in actually.
      *
@@ -74,15 +94,90 @@ public class PDFUtils {
 
         FileBlob result = null;
 
-        File tempFile = File.createTempFile("nuxeo-pdfutils-", ".pdf");
+        File tempFile = PDFScratch.createFile(".pdf");
         inPdfDoc.save(tempFile);
         result = new FileBlob(tempFile);
         result.setMimeType("application/pdf");
-        Framework.trackFile(tempFile, result);
+        trackFile(tempFile, result);
 
         return result;
     }
 
+    /**
+     * Save the document in a <code>PDFOutput</code>: A temporary file, or the
+     * binary store when enabled (the result is then a <code>BinaryBlob</code>
+     * saved on a document without being read again).
+     *
+     * @param inPdfDoc
+     * @return the blob
+     * @throws IOException
+     * @throws COSVisitorException
+     *
+     * @since 7.1
+     */
+    public static Blob save(PDDocument inPdfDoc) throws IOException,
+            COSVisitorException {
+
+        PDFOutput output = PDFOutput.create();
+        try {
+            inPdfDoc.save(output.getStream());
+            return output.finish();
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * A blob reading the same data as <code>inBlob</code>, with another file
+     * name: Nothing is copied. Only files which are not temporary and binaries
+     * of the binary store can be shared this way.
+     *
+     * @param inBlob
+     * @param inFileName
+     * @return the view, null if the data can't be shared
+     *
+     * @since 7.1
+     */
+    public static Blob view(Blob inBlob, String inFileName) {
+
+        Blob view = null;
+        if (inBlob instanceof BinaryBlob) {
+            BinaryBlob b = (BinaryBlob) inBlob;
+            view = new BinaryBlob(b.getBinary(), inFileName, b.getMimeType(),
+                    b.getEncoding(), b.getDigest(), b.getLength());
+        } else if (inBlob instanceof FileBlob) {
+            FileBlob fb = (FileBlob) inBlob;
+            // A temporary file is deleted with its blob
+            if (fb.getFile() != null && !fb.isTemporary()
+                    && PDFScratch.getFile(fb) == null) {
+                view = new FileBlob(fb.getFile(), fb.getMimeType(),
+                        fb.getEncoding());
+                view.setFilename(inFileName);
+                view.setDigest(fb.getDigest());
+            }
+        }
+        return view;
+    }
+
+    /**
+     * <code>PDFScratch.track()</code>: The file is counted in the scratch
+     * space and deleted when released, or when the marker is garbage
+     * collected. When there is no runtime (benchmarks, command line tools,
+     * ...), it is also deleted at exit.
+     *
+     * @param inFile
+     * @param inMarker
+     *
+     * @since 7.1
+     */
+    public static void trackFile(File inFile, Object inMarker) {
+
+        PDFScratch.track(inFile, inMarker);
+        if (!Framework.isInitialized()) {
+            inFile.deleteOnExit();
+        }
+    }
+
     /**
      * Convenience method: If a parameter is null or "", it is not modified
      *
@@ -121,6 +216,247 @@ public class PDFUtils {
         }
     }
 
+    /**
+     * Same as <code>setInfos(PDDocument, ...)</code>, for a blob: Returns a
+     * <i>new</i> blob. Only the information dictionary is written when the
+     * incremental save mode is enabled (see <code>INCREMENTAL_SAVE_PROP</code>
+     * ).
+     * <p>
+     * When there is nothing to set, or the values already are the ones of the
+     * document, <code>inBlob</code> is returned.
+     *
+     * @param inBlob
+     * @param inTitle
+     * @param inSubject
+     * @param inAuthor
+     * @return the new blob
+     * @throws IOException
+     * @throws COSVisitorException
+     *
+     * @since 7.1
+     */
+    public static Blob setInfos(Blob inBlob, String inTitle, String inSubject,
+            String inAuthor) throws IOException, COSVisitorException {
+
+        if ((inTitle == null || inTitle.isEmpty())
+                && (inSubject == null || inSubject.isEmpty())
+                && (inAuthor == null || inAuthor.isEmpty())) {
+            return inBlob;
+        }
+
+        PDFIncrementalSave save = null;
+        PDFMetrics.Run metrics = PDFMetrics.start("setInfos", inBlob);
+        try {
+            save = PDFIncrementalSave.load(inBlob, isIncrementalSave(),
+                    metrics);
+            PDDocumentInformation info = save.getDocument().getDocumentInformation();
+            if (isUnchanged(inTitle, info.getTitle())
+                    && isUnchanged(inSubject, info.getSubject())
+                    && isUnchanged(inAuthor, info.getAuthor())) {
+                // Nothing changes: Not saved
+                return inBlob;
+            }
+            setInfos(save.getDocument(), inTitle, inSubject, inAuthor);
+            Blob result = save.save();
+            result.setFilename(inBlob.getFilename());
+            return result;
+        } catch (IOException | COSVisitorException | RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            if (save != null) {
+                save.close();
+            }
+            metrics.stop();
+        }
+    }
+
+    /*
+     * True if setting inValue (ignored if null or "") leaves inCurrent as is
+     */
+    protected static boolean isUnchanged(String inValue, String inCurrent) {
+        return inValue == null || inValue.isEmpty()
+                || inValue.equals(inCurrent);
+    }
+
+    /**
+     * @return the value of <code>INCREMENTAL_SAVE_PROP</code>
+     *
+     * @since 7.1
+     */
+    public static boolean isIncrementalSave() {
+
+        String value = Framework.isInitialized() ? Framework.getProperty(INCREMENTAL_SAVE_PROP)
+                : System.getProperty(INCREMENTAL_SAVE_PROP);
+        return Boolean.parseBoolean(value);
+    }
+
+    /**
+     * Return the digest of the blob, as stored by nuxeo when available.
+     * Otherwise, it is calculated (MD5) from the stream.
+     * <p>
+     * Used as a key by the caches of the plug-in. Returns <code>null</code> if
+     * the blob is <code>null</code>.
+     *
+     * @param inBlob
+     * @return the digest
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public static String getDigest(Blob inBlob) throws IOException {
+
+        if (inBlob == null) {
+            return null;
+        }
+        String digest = inBlob.getDigest();
+        if (digest != null && !digest.isEmpty()) {
+            return digest;
+        }
+
+        try (InputStream in = inBlob.getStream()) {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                md.update(buffer, 0, count);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : md.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Read a numeric configuration property (nuxeo.conf), returning
+     * <code>inDefault</code> if it is not set or not a number.
+     *
+     * @param inKey
+     * @param inDefault
+     * @return the value
+     *
+     * @since 7.1
+     */
+    public static long getLongProperty(String inKey, long inDefault) {
+
+        String value = Framework.isInitialized() ? Framework.getProperty(inKey)
+                : System.getProperty(inKey);
+        if (value != null && !value.isEmpty()) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                // Use the default value
+            }
+        }
+        return inDefault;
+    }
+
+    /**
+     * Return the number of pages of the pdf.
+     * <p>
+     * The document is parsed "non sequentially": Only the trailer, the cross
+     * reference table and the page tree are parsed, not the content of the
+     * pages. When the data is in a local file (see
+     * <code>getLocalFile()</code>), it is read in place. Otherwise PDFBox
+     * first copies the whole stream to a temporary file, so the count also
+     * costs a full copy of the data.
+     *
+     * @param inBlob
+     * @return the number of pages
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public static int getPageCount(Blob inBlob) throws IOException {
+
+        PDDocument doc = null;
+        try {
+            File file = getLocalFile(inBlob);
+            if (file != null) {
+                doc = PDDocument.loadNonSeq(file, null);
+            } else {
+                try (InputStream in = inBlob.getStream()) {
+                    doc = PDDocument.loadNonSeq(in, null);
+                }
+            }
+            return doc.getNumberOfPages();
+        } finally {
+            closeSilently(doc);
+        }
+    }
+
+    /**
+     * Return the file holding the data of the blob, when it can be read in
+     * place: The file of a <code>FileBlob</code>, or of a binary of the
+     * binary store.
+     *
+     * @param inBlob
+     * @return the file, null if there is none
+     *
+     * @since 7.1
+     */
+    public static File getLocalFile(Blob inBlob) {
+
+        File file = null;
+        if (inBlob instanceof FileBlob) {
+            file = ((FileBlob) inBlob).getFile();
+        } else if (inBlob instanceof BinaryBlob) {
+            Binary binary = ((BinaryBlob) inBlob).getBinary();
+            file = binary == null ? null : binary.getFile();
+        }
+        return file != null && file.isFile() ? file : null;
+    }
+
+    /**
+     * Return the font to use in <code>inDoc</code>: A font contributed to the
+     * <code>PDFFontRegistry</code> (embedded in the document), or a standard
+     * font. Helvetica if <code>inFontName</code> is null or "".
+     *
+     * @param inDoc
+     * @param inFontName
+     * @return the font
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public static PDFont getFont(PDDocument inDoc, String inFontName)
+            throws IOException {
+
+        PDFFontRegistry registry = Framework.isInitialized() ? Framework.getService(PDFFontRegistry.class)
+                : null;
+        if (registry == null) {
+            return PDFFontRegistryComponent.getStandardFont(inFontName);
+        }
+        return registry.getFont(inDoc, inFontName);
+    }
+
+    /**
+     * Take from the memory budget of <code>PDFAdmission</code> the permits
+     * needed to load <code>inBlobs</code>, waiting if needed. Without runtime,
+     * there is no limit.
+     *
+     * @param inAction the action, for the error message
+     * @param inBlobs
+     * @return the permit, to be closed after the documents are closed
+     * @throws org.nuxeo.pdf.admission.PDFAdmissionException if the permits
+     *             can't be acquired
+     *
+     * @since 7.1
+     */
+    public static PDFAdmission.Permit admit(String inAction, Blob... inBlobs) {
+
+        PDFAdmission admission = Framework.isInitialized() ? Framework.getService(PDFAdmission.class)
+                : null;
+        if (admission == null) {
+            return PDFAdmission.NO_LIMIT;
+        }
+        return admission.acquire(inAction, admission.estimate(inBlobs));
+    }
+
     public static String checkXPath(String inXPath) {
         if (inXPath == null || inXPath.isEmpty()) {
             inXPath = DEFAULT_BLOB_XPATH;
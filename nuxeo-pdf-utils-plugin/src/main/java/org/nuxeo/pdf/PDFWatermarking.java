@@ -17,33 +17,25 @@
 
 package org.nuxeo.pdf;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import javax.imageio.ImageIO;
-
-import org.apache.pdfbox.Overlay;
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.exceptions.COSVisitorException;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
-import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.common.PDRectangle;
-import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
 import org.apache.pdfbox.pdmodel.font.PDFont;
-import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.pdmodel.graphics.PDExtendedGraphicsState;
-import org.apache.pdfbox.pdmodel.graphics.xobject.PDPixelMap;
-import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.ClientException;
 import org.nuxeo.ecm.core.api.DocumentModel;
-import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.pdf.PDFUtils;
-import org.nuxeo.runtime.api.Framework;
 
 /**
  * This class adds a watermark to a Blob holding a PDF. It never changes the
@@ -71,6 +63,30 @@ public class PDFWatermarking {
 
     public static final boolean DEFAULT_INVERT_Y = false;
 
+    public static final float DEFAULT_TILE_SPACING = 72f;
+
+    public static final boolean DEFAULT_CENTER_ON_ROTATED_PAGES = true;
+
+    protected static final String WATERMARK_RESOURCE_NAME = "NxWatermark";
+
+    protected static final String WATERMARK_IMAGE_RESOURCE_NAME = "NxWatermarkImage";
+
+    protected static final COSName PATTERN = COSName.getPDFName("Pattern");
+
+    protected static final COSName PATTERN_TYPE = COSName.getPDFName("PatternType");
+
+    protected static final COSName PAINT_TYPE = COSName.getPDFName("PaintType");
+
+    protected static final COSName TILING_TYPE = COSName.getPDFName("TilingType");
+
+    protected static final COSName X_STEP = COSName.getPDFName("XStep");
+
+    protected static final COSName Y_STEP = COSName.getPDFName("YStep");
+
+    // Half the size of the area filled by the tiles: 14400 is the maximum
+    // page size
+    protected static final float TILED_AREA = 14400f;
+
     protected Blob blob = null;
 
     protected String text = null;
@@ -91,6 +107,19 @@ public class PDFWatermarking {
 
     protected boolean invertY = DEFAULT_INVERT_Y;
 
+    protected PDFPageSelector pageSelector = PDFPageSelector.ALL;
+
+    protected boolean tiled = false;
+
+    protected float tileSpacing = DEFAULT_TILE_SPACING;
+
+    protected boolean centerOnRotatedPages = DEFAULT_CENTER_ON_ROTATED_PAGES;
+
+    // Width of the text, set when its form is created
+    protected float textWidth = 0;
+
+    protected boolean incrementalSave = PDFUtils.isIncrementalSave();
+
     /**
      * Constructor
      *
@@ -118,7 +147,7 @@ public class PDFWatermarking {
      * If no setter has been used, the DEFAULT_nnn values apply
      * <p>
      * If
-     * <code>text</text> is empty or null, a simple copy of the original Blob is returned
+     * <code>text</text> is empty or null, or no page is selected, the original Blob is returned
      * <p>
      * With thanks to the sample code found at https://issues.apache.org/jira/browse/PDFBOX-1176
      * and to Jack (https://jackson-brain.com/a-better-simple-pdf-stamper-in-java/)
@@ -132,207 +161,443 @@ public class PDFWatermarking {
     public Blob watermark() throws ClientException {
 
         Blob result = null;
-        PDDocument pdfDoc = null;
-        PDPageContentStream contentStream = null;
 
         if (text == null || text.isEmpty()) {
-            try {
-
-                File tempFile = File.createTempFile("nuxeo-pdfwatermarking-",
-                        ".pdf");
-                blob.transferTo(tempFile);
-                result = new FileBlob(tempFile);
-                // Just duplicate the info
-                result.setFilename(blob.getFilename());
-                result.setMimeType(blob.getMimeType());
-                result.setEncoding(blob.getEncoding());
-                Framework.trackFile(tempFile, result);
-
-                return result;
-
-            } catch (IOException e) {
-                throw new ClientException(e);
-            }
+            return blob;
         }
 
-        // Set up the graphic state to handle transparency
-        // Define a new extended graphic state
-        PDExtendedGraphicsState extendedGraphicsState = new PDExtendedGraphicsState();
-        // Set the transparency/opacity
-        extendedGraphicsState.setNonStrokingAlphaConstant(alphaColor);
-
+        PDFIncrementalSave save = null;
+        PDFMetrics.Run metrics = PDFMetrics.start("watermark.text", blob);
         try {
 
-            pdfDoc = PDDocument.load(blob.getStream());
-            PDFont font = PDType1Font.getStandardFont(fontFamily);
-            int[] rgb = PDFUtils.hex255ToRGB(hex255Color);
-
-            List<?> allPages = pdfDoc.getDocumentCatalog().getAllPages();
-            int max = allPages.size();
-            for (int i = 0; i < max; i++) {
-                contentStream = null;
-
-                PDPage page = (PDPage) allPages.get(i);
-                PDRectangle pageSize = page.findMediaBox();
-
-                PDResources resources = page.findResources();
-                // Get the defined graphic states.
-                HashMap<String, PDExtendedGraphicsState> graphicsStateDictionary = (HashMap<String, PDExtendedGraphicsState>) resources.getGraphicsStates();
-                if (graphicsStateDictionary != null) {
-                    graphicsStateDictionary.put("TransparentState",
-                            extendedGraphicsState);
-                    resources.setGraphicsStates(graphicsStateDictionary);
-                } else {
-                    Map<String, PDExtendedGraphicsState> m = new HashMap<>();
-                    m.put("TransparentState", extendedGraphicsState);
-                    resources.setGraphicsStates(m);
-                }
+            save = PDFIncrementalSave.load(blob, incrementalSave, metrics);
+            if (selectsNone(save.getDocument())) {
+                return blob;
+            }
+            watermark(save.getDocument());
+            result = save.save();
 
-                if (invertY) {
-                    yPosition = pageSize.getHeight() - yPosition;
-                }
+        } catch (IOException | COSVisitorException e) {
+            metrics.error(e);
+            throw new ClientException(e);
+        } catch (RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            if (save != null) {
+                save.close();
+            }
+            metrics.stop();
+        }
+        return result;
+    }
 
-                float stringWidth = font.getStringWidth(text) * fontSize
-                        / 1000f;
-
-                int pageRot = page.findRotation();
-                boolean pageRotated = pageRot == 90 || pageRot == 270;
-                boolean textRotated = textRotation != 0 && textRotation != 360;
-
-                int totalRot = pageRot - textRotation;
-
-                float pageWidth = pageRotated ? pageSize.getHeight()
-                        : pageSize.getWidth();
-                float pageHeight = pageRotated ? pageSize.getWidth()
-                        : pageSize.getHeight();
-
-                double centeredXPosition = pageRotated ? pageHeight / 2f
-                        : (pageWidth - stringWidth) / 2f;
-                double centeredYPosition = pageRotated ? (pageWidth - stringWidth) / 2f
-                        : pageHeight / 2f;
-
-                contentStream = new PDPageContentStream(pdfDoc, page, true,
-                        true, true);
-                contentStream.beginText();
-
-                contentStream.setFont(font, fontSize);
-                contentStream.appendRawCommands("/TransparentState gs\n");
-                contentStream.setNonStrokingColor(rgb[0], rgb[1], rgb[2]);
-
-                if (pageRotated) {
-                    contentStream.setTextRotation(Math.toRadians(totalRot),
-                            centeredXPosition, centeredYPosition);
-                } else if (textRotated) {
-                    contentStream.setTextRotation(Math.toRadians(textRotation),
-                            xPosition, yPosition);
-                } else {
-                    contentStream.setTextTranslation(xPosition, yPosition);
-                }
+    /**
+     * Adds the text watermark to an already loaded document. Does nothing if
+     * <code>text</code> is null or empty.
+     * <p>
+     * The text is drawn once, in a Form XObject having its own resources (font
+     * and transparency). Each page references this form and draws it with a
+     * small content stream, shared by all the pages of the same format.
+     *
+     * @param inDoc
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public void watermark(PDDocument inDoc) throws IOException {
 
-                contentStream.drawString(text);
+        if (text == null || text.isEmpty()) {
+            return;
+        }
 
-                contentStream.endText();
-                contentStream.close();
-                contentStream = null;
+        COSStream form = createTextForm(inDoc);
+        COSStream[] saveRestore = PDFContentBuilder.saveRestoreStreams(inDoc);
+        PDFPageGeometry.Resolver geometries = new PDFPageGeometry.Resolver();
+        Map<String, COSStream> drawStreams = new HashMap<String, COSStream>();
+
+        List<?> allPages = inDoc.getDocumentCatalog().getAllPages();
+        int max = allPages.size();
+        for (int i = 0; i < max; i++) {
+            PDPage page = (PDPage) allPages.get(i);
+            PDFPageGeometry geometry = geometries.get(page);
+            if (!pageSelector.matches(i + 1, max, geometry)) {
+                continue;
+            }
+            String formName = PDFContentBuilder.addResource(page,
+                    COSName.XOBJECT, WATERMARK_RESOURCE_NAME, form);
+
+            String key = formName + "/" + geometry.getKey();
+            COSStream draw = drawStreams.get(key);
+            if (draw == null) {
+                draw = drawTextForm(geometry, formName).toStream(inDoc);
+                drawStreams.put(key, draw);
             }
 
-            result = PDFUtils.saveInTempFile(pdfDoc);
+            PDFContentBuilder.appendContent(page, saveRestore[0],
+                    saveRestore[1], draw);
+        }
+    }
 
-        } catch (IOException | COSVisitorException e) {
-            throw new ClientException(e);
-        } finally {
-            if (contentStream != null) {
-                try {
-                    contentStream.close();
-                } catch (IOException e) {
-                    // Ignore
+    /*
+     * Draws the text form at (xPosition, yPosition), relative to the page as
+     * displayed. On pages rotated by 90 or 270 degrees, the text is centered
+     * instead, as it always was, unless centerOnRotatedPages is false.
+     */
+    protected PDFContentBuilder drawTextForm(PDFPageGeometry inGeometry,
+            String inFormName) {
+
+        float x = xPosition;
+        float y = invertY ? inGeometry.getHeight() - yPosition : yPosition;
+        int rotation = inGeometry.getRotation();
+        if (centerOnRotatedPages && (rotation == 90 || rotation == 270)) {
+            x = (inGeometry.getWidth() - textWidth) / 2f;
+            y = inGeometry.getHeight() / 2f;
+        }
+        PDFContentBuilder content = new PDFContentBuilder();
+        content.op("q").transform(inGeometry.getTransform());
+        content.num(1).num(0).num(0).num(1).num(x).num(y).op("cm");
+        content.name(inFormName).op("Do").op("Q");
+        return content;
+    }
+
+    /*
+     * The form drawn on each page: The text, or the tiled text
+     */
+    protected COSStream createTextForm(PDDocument inDoc) throws IOException {
+
+        COSStream textForm = createTextCell(inDoc);
+        return tiled ? createTiledForm(inDoc, textForm) : textForm;
+    }
+
+    /*
+     * A form filling a large area (more than any page) with a tiling pattern
+     * whose cell is the text form. The pattern is defined in the form, so it
+     * follows the transformation (page rotation, position) used to draw the
+     * form, like the single text does.
+     */
+    protected COSStream createTiledForm(PDDocument inDoc, COSStream inTextForm)
+            throws IOException {
+
+        PDRectangle textBox = new PDRectangle(
+                (COSArray) inTextForm.getDictionaryObject(COSName.BBOX));
+        float cellWidth = textBox.getWidth() + tileSpacing;
+        float cellHeight = textBox.getHeight() + tileSpacing;
+
+        COSDictionary cellXObjects = new COSDictionary();
+        cellXObjects.setItem(WATERMARK_RESOURCE_NAME, inTextForm);
+        COSDictionary cellResources = new COSDictionary();
+        cellResources.setItem(COSName.XOBJECT, cellXObjects);
+
+        PDFContentBuilder cell = new PDFContentBuilder();
+        cell.op("q").num(1).num(0).num(0).num(1).num(
+                -textBox.getLowerLeftX()).num(-textBox.getLowerLeftY()).op(
+                "cm");
+        cell.name(WATERMARK_RESOURCE_NAME).op("Do").op("Q");
+        COSStream pattern = cell.toStream(inDoc);
+        pattern.setItem(COSName.TYPE, PATTERN);
+        pattern.setInt(PATTERN_TYPE, 1);
+        // Colored tiling pattern, constant spacing
+        pattern.setInt(PAINT_TYPE, 1);
+        pattern.setInt(TILING_TYPE, 1);
+        PDRectangle cellBox = new PDRectangle(cellWidth, cellHeight);
+        pattern.setItem(COSName.BBOX, cellBox.getCOSArray());
+        pattern.setFloat(X_STEP, cellWidth);
+        pattern.setFloat(Y_STEP, cellHeight);
+        pattern.setItem(COSName.RESOURCES, cellResources);
+
+        COSDictionary patterns = new COSDictionary();
+        patterns.setItem("P1", pattern);
+        COSDictionary resources = new COSDictionary();
+        resources.setItem(PATTERN, patterns);
+
+        PDFContentBuilder content = new PDFContentBuilder();
+        content.name("Pattern").op("cs").name("P1").op("scn");
+        content.num(-TILED_AREA).num(-TILED_AREA).num(2 * TILED_AREA).num(
+                2 * TILED_AREA).op("re").op("f");
+
+        PDRectangle bbox = new PDRectangle();
+        bbox.setLowerLeftX(-TILED_AREA);
+        bbox.setLowerLeftY(-TILED_AREA);
+        bbox.setUpperRightX(TILED_AREA);
+        bbox.setUpperRightY(TILED_AREA);
+
+        return content.toForm(inDoc, bbox, resources);
+    }
+
+    /*
+     * The form draws the text at (0, 0), rotated. Its bounding box is the
+     * bounding box of the rotated text.
+     */
+    protected COSStream createTextCell(PDDocument inDoc) throws IOException {
+
+        PDFont font = PDFUtils.getFont(inDoc, fontFamily);
+        int[] rgb = PDFUtils.hex255ToRGB(hex255Color);
+
+        PDExtendedGraphicsState gs = new PDExtendedGraphicsState();
+        gs.setNonStrokingAlphaConstant(alphaColor);
+
+        COSDictionary fonts = new COSDictionary();
+        fonts.setItem("F1", font.getCOSObject());
+        COSDictionary states = new COSDictionary();
+        states.setItem("GS1", gs.getCOSObject());
+        COSDictionary resources = new COSDictionary();
+        resources.setItem(COSName.FONT, fonts);
+        resources.setItem(COSName.EXT_G_STATE, states);
+
+        double angle = textRotation != 0 && textRotation != 360 ? Math.toRadians(textRotation)
+                : 0;
+        float cos = (float) Math.cos(angle);
+        float sin = (float) Math.sin(angle);
+
+        PDFContentBuilder content = new PDFContentBuilder();
+        content.name("GS1").op("gs");
+        if (angle != 0) {
+            content.num(cos).num(sin).num(-sin).num(cos).num(0).num(0).op("cm");
+        }
+        content.op("BT");
+        content.name("F1").num(fontSize).op("Tf");
+        content.fillColor(rgb);
+        content.string(text).op("Tj");
+        content.op("ET");
+
+        // Text box, then rotated
+        float width = font.getStringWidth(text) * fontSize / 1000f;
+        textWidth = width;
+        PDRectangle fontBox = font.getFontBoundingBox();
+        float bottom = fontBox.getLowerLeftY() * fontSize / 1000f;
+        float top = fontBox.getUpperRightY() * fontSize / 1000f;
+        float[][] corners = { { 0, bottom }, { width, bottom }, { 0, top },
+                { width, top } };
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (float[] c : corners) {
+            float x = c[0] * cos - c[1] * sin;
+            float y = c[0] * sin + c[1] * cos;
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+        PDRectangle bbox = new PDRectangle();
+        bbox.setLowerLeftX(minX - 1);
+        bbox.setLowerLeftY(minY - 1);
+        bbox.setUpperRightX(maxX + 1);
+        bbox.setUpperRightY(maxY + 1);
+
+        return content.toForm(inDoc, bbox, resources);
+    }
+
+    /**
+     * Same as <code>watermark()</code>, but the original bytes are not
+     * rewritten: The result streams them unchanged, followed by an incremental
+     * update holding the watermark form and the modified page dictionaries
+     * (see <code>PDFIncrementalBase</code>).
+     * <p>
+     * The structure of the original (page objects, cross reference offsets)
+     * is parsed once and cached, so stamping a per-user text ("Downloaded by
+     * ... on ...") at each download costs a function of the number of pages,
+     * not of the size of the file.
+     * <p>
+     * Falls back to <code>watermark()</code> when the pdf can't be updated
+     * this way (encrypted, cross reference streams, ...).
+     *
+     * @return a Blob with the watermark on each page
+     * @throws ClientException
+     *
+     * @since 7.1
+     */
+    public Blob watermarkIncremental() throws ClientException {
+
+        if (text == null || text.isEmpty()) {
+            return blob;
+        }
+
+        PDFIncrementalBase base;
+        Blob result = null;
+        PDFMetrics.Run metrics = PDFMetrics.start("watermark.download", blob);
+        try {
+            metrics.phase(PDFMetrics.Phase.LOAD);
+            base = PDFIncrementalBase.get(blob);
+            if (base.isSupported()) {
+                if (pageSelector.selectsNone(base.getPageCount(), 1)) {
+                    return blob;
                 }
+                metrics.phase(PDFMetrics.Phase.TRANSFORM).pages(
+                        base.getPageCount());
+                result = base.watermark(blob, this);
+                metrics.output(result);
             }
-            PDFUtils.closeSilently(pdfDoc);
+        } catch (IOException e) {
+            metrics.error(e);
+            throw new ClientException(e);
+        } catch (RuntimeException e) {
+            metrics.error(e);
+            throw e;
+        } finally {
+            metrics.stop();
         }
-        return result;
+
+        return result == null ? watermark() : result;
     }
 
+    /**
+     * Overlays the pages of <code>inBlob</code> on the pages of the pdf.
+     * <p>
+     * The overlay is parsed once and cached (see
+     * <code>PDFPreparedOverlay</code>): Watermarking many pdfs with the same
+     * overlay only imports its prepared pages in each of them.
+     *
+     * @param inBlob
+     * @return a new Blob with the overlay on each page
+     * @throws ClientException
+     */
     public Blob watermarkWithPdf(Blob inBlob) throws ClientException {
 
         Blob result = null;
-        PDDocument pdfDoc = null;
-        PDDocument pdfOverlayDoc = null;
+        PDFIncrementalSave save = null;
 
+        PDFMetrics.Run metrics = PDFMetrics.start("watermark.pdf", blob);
         try {
-            pdfDoc = PDDocument.load(blob.getStream());
-            pdfOverlayDoc = PDDocument.load(inBlob.getStream());
-
-            Overlay overlay = new Overlay();
-            overlay.overlay(pdfOverlayDoc, pdfDoc);
+            save = PDFIncrementalSave.load(blob, incrementalSave, metrics);
+            if (selectsNone(save.getDocument())) {
+                return blob;
+            }
+            watermarkWithPdf(save.getDocument(), inBlob);
 
-            result = PDFUtils.saveInTempFile(pdfDoc);
+            result = save.save();
 
         } catch (IOException | COSVisitorException e) {
+            metrics.error(e);
             throw new ClientException(e);
+        } catch (RuntimeException e) {
+            metrics.error(e);
+            throw e;
         } finally {
-            PDFUtils.closeSilently(pdfDoc, pdfOverlayDoc);
+            if (save != null) {
+                save.close();
+            }
+            metrics.stop();
         }
 
         return result;
     }
 
+    /**
+     * Overlays the pages of <code>inBlob</code> on the pages of an already
+     * loaded document. See <code>watermarkWithPdf(Blob)</code>.
+     *
+     * @param inDoc
+     * @param inBlob
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public void watermarkWithPdf(PDDocument inDoc, Blob inBlob)
+            throws IOException {
+
+        PDFPreparedOverlay.get(inBlob).apply(inDoc, pageSelector);
+    }
+
+    /**
+     * Draws the image on each page, at (x, y) (relative to the page as
+     * displayed), scaled by <code>scale</code>.
+     * <p>
+     * The image is prepared once (see <code>PDFPreparedImage</code>, JPEGs are
+     * embedded as is) and embedded once in the document.
+     *
+     * @param inBlob
+     * @param x
+     * @param y
+     * @param scale
+     * @return a new Blob with the image on each page
+     * @throws ClientException
+     */
     public Blob watermarkWithImage(Blob inBlob, int x, int y, float scale)
             throws ClientException {
 
         Blob result = null;
-        PDDocument pdfDoc = null;
-        PDPageContentStream contentStream = null;
-
-        scale = (scale <= 0f) ? 1.0f : scale;
+        PDFIncrementalSave save = null;
 
+        PDFMetrics.Run metrics = PDFMetrics.start("watermark.image", blob);
         try {
-
-            BufferedImage tmp_image = ImageIO.read(inBlob.getStream());
-
-            pdfDoc = PDDocument.load(blob.getStream());
-            PDXObjectImage ximage = new PDPixelMap(pdfDoc, tmp_image);
-
-            List<?> allPages = pdfDoc.getDocumentCatalog().getAllPages();
-            int max = allPages.size();
-            for (int i = 0; i < max; i++) {
-                PDPage page = (PDPage) allPages.get(i);
-
-                contentStream = new PDPageContentStream(pdfDoc, page, true,
-                        true);
-                contentStream.endMarkedContentSequence();
-                contentStream.drawXObject(ximage, x, y, ximage.getWidth()
-                        * scale, ximage.getHeight() * scale);
-                /*
-                 * AffineTransform at = new AffineTransform(ximage.getWidth() *
-                 * scale, 200, 200, ximage.getHeight() * scale, x, y);
-                 * at.rotate(Math.toRadians(90));
-                 * contentStream.drawXObject(ximage, at);
-                 */
-
-                contentStream.close();
-                contentStream = null;
+            save = PDFIncrementalSave.load(blob, incrementalSave, metrics);
+            if (selectsNone(save.getDocument())) {
+                return blob;
             }
+            watermarkWithImage(save.getDocument(), inBlob, x, y, scale);
 
-            result = PDFUtils.saveInTempFile(pdfDoc);
+            result = save.save();
 
         } catch (IOException | COSVisitorException e) {
+            metrics.error(e);
             throw new ClientException(e);
+        } catch (RuntimeException e) {
+            metrics.error(e);
+            throw e;
         } finally {
-            if (contentStream != null) {
-                try {
-                    contentStream.close();
-                } catch (IOException e) {
-                    // Ignore
-                }
+            if (save != null) {
+                save.close();
             }
-
-            PDFUtils.closeSilently(pdfDoc);
+            metrics.stop();
         }
 
         return result;
     }
 
+    /**
+     * Draws the image on each page of an already loaded document. See
+     * <code>watermarkWithImage(Blob, int, int, float)</code>.
+     *
+     * @param inDoc
+     * @param inBlob
+     * @param x
+     * @param y
+     * @param scale
+     * @throws IOException
+     *
+     * @since 7.1
+     */
+    public void watermarkWithImage(PDDocument inDoc, Blob inBlob, int x,
+            int y, float scale) throws IOException {
+
+        scale = (scale <= 0f) ? 1.0f : scale;
+
+        PDFPreparedImage image = PDFPreparedImage.get(inBlob);
+
+        COSStream ximage = image.embed(inDoc);
+        COSStream[] saveRestore = PDFContentBuilder.saveRestoreStreams(inDoc);
+        PDFPageGeometry.Resolver geometries = new PDFPageGeometry.Resolver();
+        Map<String, COSStream> drawStreams = new HashMap<String, COSStream>();
+
+        List<?> allPages = inDoc.getDocumentCatalog().getAllPages();
+        int max = allPages.size();
+        for (int i = 0; i < max; i++) {
+            PDPage page = (PDPage) allPages.get(i);
+            PDFPageGeometry geometry = geometries.get(page);
+            if (!pageSelector.matches(i + 1, max, geometry)) {
+                continue;
+            }
+            String imageName = PDFContentBuilder.addResource(page,
+                    COSName.XOBJECT, WATERMARK_IMAGE_RESOURCE_NAME, ximage);
+
+            String key = imageName + "/" + geometry.getKey();
+            COSStream draw = drawStreams.get(key);
+            if (draw == null) {
+                PDFContentBuilder content = new PDFContentBuilder();
+                content.op("q").transform(geometry.getTransform());
+                content.num(image.getWidth() * scale).num(0).num(0).num(
+                        image.getHeight() * scale).num(x).num(y).op("cm");
+                content.name(imageName).op("Do").op("Q");
+                draw = content.toStream(inDoc);
+                drawStreams.put(key, draw);
+            }
+
+            PDFContentBuilder.appendContent(page, saveRestore[0],
+                    saveRestore[1], draw);
+        }
+    }
+
     /*
      * Utilities to handle null in setProperties()
      */
@@ -370,6 +635,12 @@ public class PDFWatermarking {
         setXPosition(stringToInt(inProps.get("xPosition")));
         setYPosition(stringToInt(inProps.get("yPosition")));
         setInvertY(stringToBoolean(inProps.get("invertY")));
+        setTiled(stringToBoolean(inProps.get("tiled")));
+        setTileSpacing(stringToFloat(inProps.get("tileSpacing")));
+        String center = inProps.get("centerOnRotatedPages");
+        setCenterOnRotatedPages(center == null || center.isEmpty() ? DEFAULT_CENTER_ON_ROTATED_PAGES
+                : stringToBoolean(center));
+        setPages(inProps.get("pages"));
 
         return this;
     }
@@ -456,4 +727,116 @@ public class PDFWatermarking {
         invertY = inValue;
         return this;
     }
+
+    /*
+     * No page to stamp, checked once loaded: The original blob is returned,
+     * the document is not saved
+     */
+    protected boolean selectsNone(PDDocument inDoc) {
+        return pageSelector.selectsNone(inDoc.getNumberOfPages(), 1);
+    }
+
+    public PDFPageSelector getPageSelector() {
+        return pageSelector;
+    }
+
+    /**
+     * Stamp only the selected pages. Default: All the pages.
+     *
+     * @param inValue
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFWatermarking setPageSelector(PDFPageSelector inValue) {
+        pageSelector = inValue == null ? PDFPageSelector.ALL : inValue;
+        return this;
+    }
+
+    /**
+     * Convenience: <code>setPageSelector(PDFPageSelector.parse(inValue))</code>
+     *
+     * @param inValue "1-3, even", ... (see <code>PDFPageSelector</code>)
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFWatermarking setPages(String inValue) {
+        return setPageSelector(PDFPageSelector.parse(inValue));
+    }
+
+    public boolean isTiled() {
+        return tiled;
+    }
+
+    /**
+     * Repeat the text over the whole page, with a tiling pattern: The text is
+     * defined once, whatever the number of repetitions. <code>xPosition</code>
+     * and <code>yPosition</code> then shift the grid.
+     *
+     * @param inValue
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFWatermarking setTiled(boolean inValue) {
+        tiled = inValue;
+        return this;
+    }
+
+    public float getTileSpacing() {
+        return tileSpacing;
+    }
+
+    /**
+     * Space between two repetitions of the text, horizontally and vertically
+     *
+     * @param inValue
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFWatermarking setTileSpacing(float inValue) {
+        tileSpacing = inValue <= 0 ? DEFAULT_TILE_SPACING : inValue;
+        return this;
+    }
+
+    public boolean isCenterOnRotatedPages() {
+        return centerOnRotatedPages;
+    }
+
+    /**
+     * On pages rotated by 90 or 270 degrees, center the text on the page (as
+     * displayed) and ignore <code>xPosition</code> and <code>yPosition</code>.
+     * Default is true, the placement of the previous versions. When false,
+     * the text is placed at (xPosition, yPosition) on every page.
+     *
+     * @param inValue
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFWatermarking setCenterOnRotatedPages(boolean inValue) {
+        centerOnRotatedPages = inValue;
+        return this;
+    }
+
+    public boolean isIncrementalSave() {
+        return incrementalSave;
+    }
+
+    /**
+     * Save the result as the original pdf followed by an incremental update
+     * (see <code>PDFIncrementalSave</code>). Default is the
+     * <code>PDFUtils.INCREMENTAL_SAVE_PROP</code> configuration property.
+     *
+     * @param inValue
+     * @return this
+     *
+     * @since 7.1
+     */
+    public PDFWatermarking setIncrementalSave(boolean inValue) {
+        incrementalSave = inValue;
+        return this;
+    }
 }
@@ -0,0 +1,108 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.admission;
+
+import org.nuxeo.ecm.core.api.Blob;
+
+/**
+ * Admission control of the operations loading whole documents (merge,
+ * watermarks, page numbers, ...): Each one takes, before loading, permits
+ * from a global memory budget, sized from the estimated memory cost of its
+ * input. When the budget is exhausted, callers wait in a queue, up to a
+ * timeout, or are rejected at once when the queue is full (see
+ * <code>PDFAdmissionDescriptor</code>).
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * try (PDFAdmission.Permit permit = PDFUtils.admit(&quot;merge&quot;, blobs)) {
+ *     // ... load and process the blobs ...
+ * }
+ * </pre>
+ *
+ * @since 7.1
+ */
+public interface PDFAdmission {
+
+    /**
+     * Permits taken from the budget, released by <code>close()</code>
+     */
+    interface Permit extends AutoCloseable {
+
+        /**
+         * @return the bytes taken from the budget
+         */
+        long getBytes();
+
+        /**
+         * Release the permits. Can be called several times.
+         */
+        @Override
+        void close();
+    }
+
+    /**
+     * Permit returned when admission control is disabled or not available
+     */
+    Permit NO_LIMIT = new Permit() {
+        @Override
+        public long getBytes() {
+            return 0;
+        }
+
+        @Override
+        public void close() {
+            // Nothing
+        }
+    };
+
+    /**
+     * Estimate the memory needed to load the blobs
+     *
+     * @param inBlobs
+     * @return the estimate, in bytes
+     */
+    long estimate(Blob... inBlobs);
+
+    /**
+     * Take <code>inBytes</code> from the budget, waiting if needed. A request
+     * larger than the whole budget takes the whole budget, so it runs alone.
+     *
+     * @param inAction the action, for the error message
+     * @param inBytes
+     * @return the permit, to be closed
+     * @throws PDFAdmissionException if the queue is full or the timeout
+     *             expires
+     */
+    Permit acquire(String inAction, long inBytes) throws PDFAdmissionException;
+
+    /**
+     * @return the size of the budget, in bytes, -1 if there is no limit
+     */
+    long getBudget();
+
+    /**
+     * @return the bytes of the budget not currently used, -1 if there is no
+     *         limit
+     */
+    long getAvailable();
+
+    /**
+     * @return the number of callers waiting for permits
+     */
+    int getQueueDepth();
+}
@@ -0,0 +1,258 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.admission;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.pdf.PDFMetrics;
+import org.nuxeo.pdf.PDFUtils;
+import org.nuxeo.runtime.model.ComponentContext;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Implementation of <code>PDFAdmission</code>, with the
+ * <code>configuration</code> extension point.
+ * <p>
+ * The budget is a fair <code>Semaphore</code> counting kilobytes: Callers are
+ * served in order, so a large document is not starved by small ones. A new
+ * configuration creates a new semaphore; permits already given are released
+ * to the one they were taken from.
+ * <p>
+ * Metrics, under <code>nuxeo.pdfutils.admission</code>: Gauges
+ * <code>queueDepth</code> and <code>availableKB</code>, timer
+ * <code>wait</code> (time spent in the queue), counter <code>rejected</code>.
+ *
+ * @since 7.1
+ */
+public class PDFAdmissionComponent extends DefaultComponent implements
+        PDFAdmission {
+
+    private static final Log log = LogFactory.getLog(PDFAdmissionComponent.class);
+
+    public static final String EXTENSION_POINT_CONFIGURATION = "configuration";
+
+    public static final String METRICS_ACTION = "admission";
+
+    protected volatile Gate gate = new Gate(new PDFAdmissionDescriptor());
+
+    @Override
+    public void activate(ComponentContext context) {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        String name = PDFMetrics.name(METRICS_ACTION, "queueDepth");
+        registry.remove(name);
+        registry.register(name, new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getQueueDepth();
+            }
+        });
+        name = PDFMetrics.name(METRICS_ACTION, "availableKB");
+        registry.remove(name);
+        registry.register(name, new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                long available = getAvailable();
+                return available < 0 ? -1 : available / 1024;
+            }
+        });
+    }
+
+    @Override
+    public void deactivate(ComponentContext context) {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        registry.remove(PDFMetrics.name(METRICS_ACTION, "queueDepth"));
+        registry.remove(PDFMetrics.name(METRICS_ACTION, "availableKB"));
+    }
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (EXTENSION_POINT_CONFIGURATION.equals(extensionPoint)) {
+            gate = new Gate((PDFAdmissionDescriptor) contribution);
+            log.debug("Admission budget: " + gate.budgetKB + " KB, enabled: "
+                    + gate.config.isEnabled());
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (EXTENSION_POINT_CONFIGURATION.equals(extensionPoint)
+                && gate.config == contribution) {
+            gate = new Gate(new PDFAdmissionDescriptor());
+        }
+    }
+
+    @Override
+    public long estimate(Blob... inBlobs) {
+
+        PDFAdmissionDescriptor config = gate.config;
+        long bytes = 0;
+        for (Blob blob : inBlobs) {
+            if (blob == null) {
+                continue;
+            }
+            long length = blob.getLength();
+            if (length > 0) {
+                bytes += (long) (length * config.getBytesFactor());
+            }
+            if (config.isCountPages()) {
+                try {
+                    bytes += PDFUtils.getPageCount(blob)
+                            * config.getBytesPerPage();
+                } catch (IOException e) {
+                    // Not a pdf or damaged: The load will tell
+                }
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public Permit acquire(String inAction, long inBytes)
+            throws PDFAdmissionException {
+
+        Gate g = gate;
+        if (!g.config.isEnabled()) {
+            return NO_LIMIT;
+        }
+
+        int kb = (int) Math.max(1,
+                Math.min(g.budgetKB, (inBytes + 1023) / 1024));
+        try {
+            // With a timeout of 0, tryAcquire() keeps the fairness
+            if (g.semaphore.tryAcquire(kb, 0, TimeUnit.SECONDS)) {
+                return new GatePermit(g, kb);
+            }
+            if (g.config.getTimeoutSeconds() <= 0) {
+                throw reject(inAction, "memory budget exhausted");
+            }
+            if (g.waiting.get() >= g.config.getMaxQueue()) {
+                throw reject(inAction, "queue full");
+            }
+
+            boolean acquired;
+            g.waiting.incrementAndGet();
+            Timer.Context waiting = PDFMetrics.getRegistry().timer(
+                    PDFMetrics.name(METRICS_ACTION, "wait")).time();
+            try {
+                acquired = g.semaphore.tryAcquire(kb,
+                        g.config.getTimeoutSeconds(), TimeUnit.SECONDS);
+            } finally {
+                waiting.stop();
+                g.waiting.decrementAndGet();
+            }
+            if (!acquired) {
+                throw reject(inAction, "timeout waiting for the memory budget");
+            }
+            return new GatePermit(g, kb);
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PDFAdmissionException(inAction + ": Interrupted", e);
+        }
+    }
+
+    protected PDFAdmissionException reject(String inAction, String inReason) {
+
+        PDFMetrics.getRegistry().counter(
+                PDFMetrics.name(METRICS_ACTION, "rejected")).inc();
+        return new PDFAdmissionException(inAction + ": " + inReason
+                + ", retry later");
+    }
+
+    @Override
+    public long getBudget() {
+        Gate g = gate;
+        return g.config.isEnabled() ? g.budgetKB * 1024L : -1;
+    }
+
+    @Override
+    public long getAvailable() {
+        Gate g = gate;
+        return g.config.isEnabled() ? g.semaphore.availablePermits() * 1024L
+                : -1;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return gate.waiting.get();
+    }
+
+    /*
+     * A configuration and its semaphore
+     */
+    protected static class Gate {
+
+        protected final PDFAdmissionDescriptor config;
+
+        protected final int budgetKB;
+
+        protected final Semaphore semaphore;
+
+        protected final AtomicInteger waiting = new AtomicInteger();
+
+        protected Gate(PDFAdmissionDescriptor inConfig) {
+            config = inConfig;
+            budgetKB = (int) Math.max(1,
+                    Math.min(Integer.MAX_VALUE, inConfig.getBudget() / 1024));
+            semaphore = new Semaphore(budgetKB, true);
+        }
+    }
+
+    protected static class GatePermit implements Permit {
+
+        protected final Gate gate;
+
+        protected final int kb;
+
+        protected final AtomicBoolean released = new AtomicBoolean();
+
+        protected GatePermit(Gate inGate, int inKB) {
+            gate = inGate;
+            kb = inKB;
+        }
+
+        @Override
+        public long getBytes() {
+            return kb * 1024L;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                gate.semaphore.release(kb);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.admission;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * Configuration of <code>PDFAdmission</code>, contributed to its
+ * <code>configuration</code> extension point. The last contribution wins.
+ *
+ * <pre>
+ * &lt;admission budgetMB="512" timeoutSeconds="30" maxQueue="50"
+ *     bytesFactor="3" countPages="true" bytesPerPage="20480" /&gt;
+ * </pre>
+ *
+ * <ul>
+ * <li><code>budgetMB</code>: The global budget. Default (0) is a quarter of
+ * the max heap</li>
+ * <li><code>timeoutSeconds</code>: How long a caller waits in the queue
+ * (default 60). 0 fails at once when the budget is exhausted</li>
+ * <li><code>maxQueue</code>: Callers already waiting beyond which a new one
+ * is rejected at once (default 100)</li>
+ * <li><code>bytesFactor</code>: Memory used per byte of the file (default
+ * 3)</li>
+ * <li><code>countPages</code>: Also count the pages of the file (parsing its
+ * page tree) and add <code>bytesPerPage</code> (default 20480) per page.
+ * Default is false</li>
+ * <li><code>enabled</code>: false disables the admission control</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+@XObject("admission")
+public class PDFAdmissionDescriptor {
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    @XNode("@budgetMB")
+    protected long budgetMB = 0;
+
+    @XNode("@timeoutSeconds")
+    protected long timeoutSeconds = 60;
+
+    @XNode("@maxQueue")
+    protected int maxQueue = 100;
+
+    @XNode("@bytesFactor")
+    protected double bytesFactor = 3;
+
+    @XNode("@countPages")
+    protected boolean countPages = false;
+
+    @XNode("@bytesPerPage")
+    protected long bytesPerPage = 20480;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the budget in bytes
+     */
+    public long getBudget() {
+        return budgetMB > 0 ? budgetMB * 1024 * 1024
+                : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    public long getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public int getMaxQueue() {
+        return maxQueue;
+    }
+
+    public double getBytesFactor() {
+        return bytesFactor;
+    }
+
+    public boolean isCountPages() {
+        return countPages;
+    }
+
+    public long getBytesPerPage() {
+        return bytesPerPage;
+    }
+}
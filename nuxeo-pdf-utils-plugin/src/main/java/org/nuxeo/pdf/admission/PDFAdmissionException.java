@@ -0,0 +1,39 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.admission;
+
+import org.nuxeo.ecm.core.api.ClientException;
+
+/**
+ * Thrown when an operation can't get its permits from the memory budget (see
+ * <code>PDFAdmission</code>): The node is already busy with other large
+ * documents, the operation can be retried later.
+ *
+ * @since 7.1
+ */
+public class PDFAdmissionException extends ClientException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PDFAdmissionException(String message) {
+        super(message);
+    }
+
+    public PDFAdmissionException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
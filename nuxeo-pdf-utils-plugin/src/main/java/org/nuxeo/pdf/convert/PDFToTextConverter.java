@@ -0,0 +1,123 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Frederic Vadon
+ */
+package org.nuxeo.pdf.convert;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.convert.api.ConversionException;
+import org.nuxeo.ecm.core.convert.cache.SimpleCachableBlobHolder;
+import org.nuxeo.ecm.core.convert.extension.Converter;
+import org.nuxeo.ecm.core.convert.extension.ConverterDescriptor;
+import org.nuxeo.pdf.PDFTextExtractor;
+
+/**
+ * The <code>pdf2text</code> converter, using <code>PDFTextExtractor</code>.
+ * <p>
+ * It replaces the default converter, so full-text indexing and the
+ * <code>ExtractTextFromPDF</code> operation share the same cached extraction
+ * (per blob digest).
+ * <p>
+ * Parameters (in the contribution, or passed at conversion time):
+ * <ul>
+ * <li><code>maxPages</code>: Extract only the first pages (0 = no limit)</li>
+ * <li><code>maxBytes</code>: Stop once the text reaches this size (0 = no
+ * limit)</li>
+ * </ul>
+ *
+ * @since 7.1
+ */
+public class PDFToTextConverter implements Converter {
+
+    public static final String MAX_PAGES_PARAMETER = "maxPages";
+
+    public static final String MAX_BYTES_PARAMETER = "maxBytes";
+
+    protected int maxPages = 0;
+
+    protected long maxBytes = 0;
+
+    @Override
+    public void init(ConverterDescriptor descriptor) {
+
+        Map<String, String> params = descriptor.getParameters();
+        if (params != null) {
+            maxPages = (int) toLong(params.get(MAX_PAGES_PARAMETER), 0);
+            maxBytes = toLong(params.get(MAX_BYTES_PARAMETER), 0);
+        }
+    }
+
+    @Override
+    public BlobHolder convert(BlobHolder blobHolder,
+            Map<String, Serializable> parameters) throws ConversionException {
+
+        int pages = maxPages;
+        long bytes = maxBytes;
+        if (parameters != null) {
+            pages = (int) toLong(parameters.get(MAX_PAGES_PARAMETER), pages);
+            bytes = toLong(parameters.get(MAX_BYTES_PARAMETER), bytes);
+        }
+
+        Blob blob;
+        try {
+            blob = blobHolder.getBlob();
+        } catch (ClientException e) {
+            throw new ConversionException("Cannot get the blob to convert", e);
+        }
+        if (blob == null) {
+            throw new ConversionException("No blob to convert");
+        }
+
+        try {
+            PDFTextExtractor extractor = new PDFTextExtractor(blob);
+            extractor.setMaxPages(pages).setMaxBytes(bytes);
+
+            Blob result = new StringBlob(extractor.getAllExtractedLines(),
+                    "text/plain");
+            result.setEncoding("UTF-8");
+            return new SimpleCachableBlobHolder(result);
+
+        } catch (IOException | ClientException e) {
+            throw new ConversionException("Error during pdf2text conversion",
+                    e);
+        }
+    }
+
+    protected long toLong(Object inValue, long inDefault) {
+
+        if (inValue == null) {
+            return inDefault;
+        }
+        if (inValue instanceof Number) {
+            return ((Number) inValue).longValue();
+        }
+        String str = inValue.toString().trim();
+        if (str.isEmpty()) {
+            return inDefault;
+        }
+        try {
+            return Long.parseLong(str);
+        } catch (NumberFormatException e) {
+            return inDefault;
+        }
+    }
+}
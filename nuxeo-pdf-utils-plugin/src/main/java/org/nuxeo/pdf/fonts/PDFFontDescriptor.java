@@ -0,0 +1,76 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.fonts;
+
+import org.nuxeo.common.xmap.annotation.XNode;
+import org.nuxeo.common.xmap.annotation.XObject;
+
+/**
+ * A font contributed to the <code>fonts</code> extension point of
+ * <code>PDFFontRegistry</code>.
+ * <p>
+ * The font program is a TrueType file, read either from the file system (
+ * <code>path</code>, can use ${nuxeo.xxx} framework properties) or from the
+ * class path (<code>resource</code>). A font can also just be an alias to one
+ * of the 14 standard fonts (<code>standard</code>).
+ *
+ * <pre>
+ * &lt;font name="Corporate" path="${nuxeo.data.dir}/fonts/corporate.ttf" /&gt;
+ * &lt;font name="Corporate-Bold" resource="fonts/corporate-bold.ttf" /&gt;
+ * &lt;font name="Default" standard="Helvetica" /&gt;
+ * </pre>
+ *
+ * @since 7.1
+ */
+@XObject("font")
+public class PDFFontDescriptor {
+
+    @XNode("@name")
+    protected String name;
+
+    @XNode("@path")
+    protected String path;
+
+    @XNode("@resource")
+    protected String resource;
+
+    @XNode("@standard")
+    protected String standard;
+
+    @XNode("@enabled")
+    protected boolean enabled = true;
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public String getResource() {
+        return resource;
+    }
+
+    public String getStandard() {
+        return standard;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+}
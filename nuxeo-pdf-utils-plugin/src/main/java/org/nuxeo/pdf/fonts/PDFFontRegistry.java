@@ -0,0 +1,62 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.fonts;
+
+import java.io.IOException;
+import java.util.Set;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+
+/**
+ * Fonts available to the plug-in (page numbers, headers/footers, watermarks).
+ * <p>
+ * Font programs are read and parsed once per JVM. Each document using a font
+ * only receives its own copy of the font dictionary and of the embedded font
+ * file.
+ *
+ * @since 7.1
+ */
+public interface PDFFontRegistry {
+
+    /**
+     * Return the font to use in <code>inDoc</code>.
+     * <ul>
+     * <li>A contributed font is embedded in the document (once per call: Call
+     * it once per document and reuse the result)</li>
+     * <li>Standard fonts (Helvetica, Times-Roman, ...) are returned as is</li>
+     * <li>Null, "" or any other name returns Helvetica</li>
+     * </ul>
+     *
+     * @param inDoc
+     * @param inName
+     * @return the font
+     * @throws IOException
+     */
+    PDFont getFont(PDDocument inDoc, String inName) throws IOException;
+
+    /**
+     * @param inName
+     * @return true if the font was contributed
+     */
+    boolean hasFont(String inName);
+
+    /**
+     * @return the names of the contributed fonts
+     */
+    Set<String> getFontNames();
+}
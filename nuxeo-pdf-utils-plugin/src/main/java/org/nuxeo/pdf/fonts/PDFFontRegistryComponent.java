@@ -0,0 +1,241 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.fonts;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDFontFactory;
+import org.apache.pdfbox.pdmodel.font.PDTrueTypeFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.nuxeo.pdf.PDFContentBuilder;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.model.ComponentInstance;
+import org.nuxeo.runtime.model.DefaultComponent;
+
+/**
+ * Implementation of <code>PDFFontRegistry</code>, with the <code>fonts</code>
+ * extension point.
+ * <p>
+ * A TrueType font is read and parsed the first time it is used. The parsing
+ * (metrics, widths, descriptor) is kept as a template font dictionary and the
+ * raw font program is kept in memory. Embedding the font in a document then
+ * is a copy of the dictionary and a new font file stream, no parsing.
+ *
+ * @since 7.1
+ */
+public class PDFFontRegistryComponent extends DefaultComponent implements
+        PDFFontRegistry {
+
+    private static final Log log = LogFactory.getLog(PDFFontRegistryComponent.class);
+
+    public static final String EXTENSION_POINT_FONTS = "fonts";
+
+    protected Map<String, PDFFontDescriptor> descriptors = new ConcurrentHashMap<String, PDFFontDescriptor>();
+
+    protected Map<String, LoadedFont> loadedFonts = new ConcurrentHashMap<String, LoadedFont>();
+
+    @Override
+    public void registerContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (EXTENSION_POINT_FONTS.equals(extensionPoint)) {
+            PDFFontDescriptor desc = (PDFFontDescriptor) contribution;
+            if (desc.isEnabled()) {
+                descriptors.put(desc.getName(), desc);
+            } else {
+                descriptors.remove(desc.getName());
+            }
+            loadedFonts.remove(desc.getName());
+        }
+    }
+
+    @Override
+    public void unregisterContribution(Object contribution,
+            String extensionPoint, ComponentInstance contributor) {
+
+        if (EXTENSION_POINT_FONTS.equals(extensionPoint)) {
+            PDFFontDescriptor desc = (PDFFontDescriptor) contribution;
+            descriptors.remove(desc.getName());
+            loadedFonts.remove(desc.getName());
+        }
+    }
+
+    @Override
+    public PDFont getFont(PDDocument inDoc, String inName) throws IOException {
+
+        if (inName == null || inName.isEmpty()) {
+            return PDType1Font.HELVETICA;
+        }
+
+        PDFFontDescriptor desc = descriptors.get(inName);
+        if (desc == null) {
+            return getStandardFont(inName);
+        }
+        if (desc.getStandard() != null && !desc.getStandard().isEmpty()) {
+            return getStandardFont(desc.getStandard());
+        }
+
+        LoadedFont font = loadedFonts.get(inName);
+        if (font == null) {
+            font = loadFont(desc);
+        }
+        return font.embed(inDoc);
+    }
+
+    @Override
+    public boolean hasFont(String inName) {
+        return inName != null && descriptors.containsKey(inName);
+    }
+
+    @Override
+    public Set<String> getFontNames() {
+        return Collections.unmodifiableSet(new HashSet<String>(
+                descriptors.keySet()));
+    }
+
+    /**
+     * Return the font to use when the runtime (and then the registry) is not
+     * available, or the font is not contributed: One of the standard fonts,
+     * Helvetica if the name is not one of them (PDFBox has no metrics for
+     * other names, so texts could not be measured).
+     *
+     * @param inName
+     * @return the font
+     */
+    public static PDFont getStandardFont(String inName) {
+
+        if (inName == null || inName.isEmpty()) {
+            return PDType1Font.HELVETICA;
+        }
+        PDFont font = PDType1Font.getStandardFont(inName);
+        if (font == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Unknown font " + inName + ", using Helvetica");
+            }
+            font = PDType1Font.HELVETICA;
+        }
+        return font;
+    }
+
+    protected synchronized LoadedFont loadFont(PDFFontDescriptor inDesc)
+            throws IOException {
+
+        LoadedFont font = loadedFonts.get(inDesc.getName());
+        if (font != null) {
+            return font;
+        }
+
+        byte[] data;
+        try (InputStream in = openFontProgram(inDesc)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+            data = out.toByteArray();
+        }
+
+        // Let PDFBox do the parsing, once, in a throw-away document
+        PDDocument holder = new PDDocument();
+        try {
+            PDTrueTypeFont ttf = PDTrueTypeFont.loadTTF(holder,
+                    new ByteArrayInputStream(data));
+            font = new LoadedFont(data,
+                    (COSDictionary) PDFContentBuilder.copyWithoutStreams(ttf.getCOSObject()));
+        } finally {
+            holder.close();
+        }
+
+        log.debug("Loaded font " + inDesc.getName() + " (" + data.length
+                + " bytes)");
+        loadedFonts.put(inDesc.getName(), font);
+        return font;
+    }
+
+    protected InputStream openFontProgram(PDFFontDescriptor inDesc)
+            throws IOException {
+
+        if (inDesc.getPath() != null && !inDesc.getPath().isEmpty()) {
+            File f = new File(Framework.expandVars(inDesc.getPath()));
+            return new FileInputStream(f);
+        }
+        if (inDesc.getResource() != null && !inDesc.getResource().isEmpty()) {
+            InputStream in = Thread.currentThread().getContextClassLoader().getResourceAsStream(
+                    inDesc.getResource());
+            if (in == null) {
+                in = getClass().getClassLoader().getResourceAsStream(
+                        inDesc.getResource());
+            }
+            if (in != null) {
+                return in;
+            }
+        }
+        throw new IOException("Font " + inDesc.getName()
+                + ": no font file found (path: " + inDesc.getPath()
+                + ", resource: " + inDesc.getResource() + ")");
+    }
+
+    /**
+     * A parsed font: The font program, and the font dictionary built by
+     * PDFBox, without the font file.
+     */
+    protected static class LoadedFont {
+
+        protected final byte[] data;
+
+        protected final COSDictionary template;
+
+        public LoadedFont(byte[] inData, COSDictionary inTemplate) {
+            data = inData;
+            template = inTemplate;
+        }
+
+        public PDFont embed(PDDocument inDoc) throws IOException {
+
+            COSDictionary dict = (COSDictionary) PDFContentBuilder.copyWithoutStreams(template);
+            COSDictionary fd = (COSDictionary) dict.getDictionaryObject(COSName.FONT_DESC);
+
+            PDStream fontFile = new PDStream(inDoc, new ByteArrayInputStream(
+                    data), false);
+            fontFile.addCompression();
+            fontFile.getStream().setInt(COSName.LENGTH1, data.length);
+            if (fd != null) {
+                fd.setItem(COSName.FONT_FILE2, fontFile);
+            }
+
+            return PDFontFactory.createFont(dict);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+
+package org.nuxeo.pdf.operations;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.collectors.BlobCollector;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.pdf.PDFHeaderFooter;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.nuxeo.pdf.PDFPageSelector;
+
+/**
+ * Add headers and footers to the PDF, built from templates with variables
+ * (${page}, ${total}, ${date}, ${filename}, document properties)
+ *
+ * @since 7.1
+ */
+@Operation(id = AddHeaderFooterOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Add Header/Footer", description = "Add texts at the top and/or bottom of the pages. Each position (topLeft, topCenter, ..., bottomRight) receives a template, such as \"Confidential - Page ${page} of ${total}\". Variables are ${page}, ${total}, ${date} (formatted with <code>dateFormat</code>), ${filename} and, when the input is a document, any of its properties (${dc:title}, ...). For a document, the pdf is read in <code>xpath</code>. Returns the modified pdf.")
+public class AddHeaderFooterOp {
+
+    public static final String ID = "PDF.AddHeaderFooter";
+
+    @Param(name = "topLeft", required = false)
+    protected String topLeft = "";
+
+    @Param(name = "topCenter", required = false)
+    protected String topCenter = "";
+
+    @Param(name = "topRight", required = false)
+    protected String topRight = "";
+
+    @Param(name = "bottomLeft", required = false)
+    protected String bottomLeft = "";
+
+    @Param(name = "bottomCenter", required = false)
+    protected String bottomCenter = "";
+
+    @Param(name = "bottomRight", required = false)
+    protected String bottomRight = "";
+
+    @Param(name = "startAtPage", required = false, values = { "1" })
+    protected long startAtPage = 1;
+
+    @Param(name = "startAtNumber", required = false, values = { "1" })
+    protected long startAtNumber = 1;
+
+    @Param(name = "fontName", required = false, values = { "Helvetica" })
+    protected String fontName = "Helvetica";
+
+    @Param(name = "fontSize", required = false, values = { "10" })
+    protected long fontSize = 10;
+
+    @Param(name = "hex255Color", required = false, values = { "0x000000" })
+    protected String hex255Color = "0x000000";
+
+    @Param(name = "dateFormat", required = false, values = { "yyyy-MM-dd" })
+    protected String dateFormat = PDFHeaderFooter.DEFAULT_DATE_FORMAT;
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = "file:content";
+
+    @Param(name = "pages", required = false)
+    protected String pages = "";
+
+    @OperationMethod(collector = BlobCollector.class)
+    public Blob run(Blob inBlob) throws IOException, COSVisitorException {
+
+        return doApply(new PDFHeaderFooter(inBlob));
+    }
+
+    @OperationMethod(collector = BlobCollector.class)
+    public Blob run(DocumentModel inDoc) throws IOException,
+            COSVisitorException {
+
+        return doApply(new PDFHeaderFooter(inDoc, xpath));
+    }
+
+    protected Blob doApply(PDFHeaderFooter inHF) throws IOException,
+            COSVisitorException {
+
+        inHF.setText(PAGE_NUMBER_POSITION.TOP_LEFT, topLeft).setText(
+                PAGE_NUMBER_POSITION.TOP_CENTER, topCenter).setText(
+                PAGE_NUMBER_POSITION.TOP_RIGHT, topRight).setText(
+                PAGE_NUMBER_POSITION.BOTTOM_LEFT, bottomLeft).setText(
+                PAGE_NUMBER_POSITION.BOTTOM_CENTER, bottomCenter).setText(
+                PAGE_NUMBER_POSITION.BOTTOM_RIGHT, bottomRight);
+        inHF.setStartAtPage((int) startAtPage).setStartAtNumber(
+                (int) startAtNumber).setFontName(fontName).setFontSize(
+                fontSize).setHex255Color(hex255Color).setDateFormat(dateFormat).setPageSelector(
+                PDFPageSelector.parse(pages));
+
+        return inHF.apply();
+    }
+}
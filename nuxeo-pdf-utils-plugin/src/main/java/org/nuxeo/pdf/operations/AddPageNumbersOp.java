@@ -28,6 +28,7 @@ import org.nuxeo.ecm.automation.core.collectors.BlobCollector;
 import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.pdf.PDFPageNumbering;
 import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.nuxeo.pdf.PDFPageSelector;
 
 /**
  * Add page numbers to the PDF.
@@ -58,37 +59,16 @@ public class AddPageNumbersOp {
     @Param(name = "hex255Color", required = false, values = { "0xffffff" })
     protected String hex255Color = "0xffffff";
 
+    @Param(name = "pages", required = false)
+    protected String pages = "";
+
     @OperationMethod(collector = BlobCollector.class)
     public Blob run(Blob inBlob) throws IOException, COSVisitorException {
 
-        PAGE_NUMBER_POSITION pos;
-        switch (position.toLowerCase()) {
-        case "bottom center":
-            pos = PAGE_NUMBER_POSITION.BOTTOM_CENTER;
-            break;
-
-        case "bottom left":
-            pos = PAGE_NUMBER_POSITION.BOTTOM_LEFT;
-            break;
-
-        case "top right":
-            pos = PAGE_NUMBER_POSITION.TOP_RIGHT;
-            break;
-
-        case "top center":
-            pos = PAGE_NUMBER_POSITION.TOP_CENTER;
-            break;
-
-        case "top left":
-            pos = PAGE_NUMBER_POSITION.TOP_LEFT;
-            break;
-
-        default:
-            pos = PAGE_NUMBER_POSITION.BOTTOM_RIGHT;
-            break;
-        }
+        PAGE_NUMBER_POSITION pos = PDFPageNumbering.positionFromString(position);
 
         PDFPageNumbering pn = new PDFPageNumbering(inBlob);
+        pn.setPageSelector(PDFPageSelector.parse(pages));
         Blob result = pn.addPageNumbers((int) startAtPage, (int) startAtNumber,
                 fontName, fontSize, hex255Color, pos);
         result.setFilename(inBlob.getFilename());
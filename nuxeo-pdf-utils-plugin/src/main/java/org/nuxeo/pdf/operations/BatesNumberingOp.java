@@ -0,0 +1,98 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+
+package org.nuxeo.pdf.operations;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.pdf.PDFBatesNumbering;
+import org.nuxeo.pdf.PDFPageNumbering;
+
+/**
+ * Bates numbering of a list of pdfs: prefix + zero-padded counter, the
+ * counter continuing from one pdf to the next. Returns the list of numbered
+ * pdfs, in the same order as the input.
+ *
+ * @since 7.1
+ */
+@Operation(id = BatesNumberingOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Bates Numbering", description = "Add Bates numbers (<code>prefix</code> + counter padded to <code>digits</code> digits) to every page of the input pdfs. The counter starts at <code>startAtNumber</code> and continues from one pdf to the next. For documents, the pdf is read in <code>xpath</code> (default: file:content). <code>threads</code> is the max. number of pdfs stamped at the same time (at most nuxeo.pdfutils.bates.maxThreads, default 8). Returns the numbered pdfs, in the same order as the input.")
+public class BatesNumberingOp {
+
+    public static final String ID = "PDF.BatesNumbering";
+
+    @Param(name = "prefix", required = false)
+    protected String prefix = "";
+
+    @Param(name = "digits", required = false, values = { "6" })
+    protected long digits = PDFBatesNumbering.DEFAULT_DIGITS;
+
+    @Param(name = "startAtNumber", required = false, values = { "1" })
+    protected long startAtNumber = 1;
+
+    @Param(name = "position", required = false, widget = Constants.W_OPTION, values = {
+            "Bottom right", "Bottom center", "Bottom left", "Top right",
+            "Top center", "Top left" })
+    protected String position = "Bottom right";
+
+    @Param(name = "fontName", required = false, values = { "Helvetica" })
+    protected String fontName = "Helvetica";
+
+    @Param(name = "fontSize", required = false, values = { "10" })
+    protected long fontSize = 10;
+
+    @Param(name = "hex255Color", required = false, values = { "0x000000" })
+    protected String hex255Color = "0x000000";
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = "file:content";
+
+    @Param(name = "threads", required = false, values = { "4" })
+    protected long threads = PDFBatesNumbering.DEFAULT_THREADS;
+
+    @OperationMethod
+    public BlobList run(BlobList inBlobs) throws IOException,
+            COSVisitorException {
+
+        return doNumber(new PDFBatesNumbering(inBlobs));
+    }
+
+    @OperationMethod
+    public BlobList run(DocumentModelList inDocs) throws IOException,
+            COSVisitorException {
+
+        return doNumber(new PDFBatesNumbering(inDocs, xpath));
+    }
+
+    protected BlobList doNumber(PDFBatesNumbering inBates) throws IOException,
+            COSVisitorException {
+
+        inBates.setPrefix(prefix).setDigits((int) digits).setStartAtNumber(
+                (int) startAtNumber).setFontName(fontName).setFontSize(
+                fontSize).setHex255Color(hex255Color).setPosition(
+                PDFPageNumbering.positionFromString(position)).setThreads(
+                (int) Math.min(threads, Integer.MAX_VALUE));
+
+        return inBates.number();
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.operations;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.pdf.PDFBulkProcessor;
+
+/**
+ * Run a PDF operation (<code>operationId</code>, with its
+ * <code>parameters</code>) on every document returned by an NXQL query (see
+ * <code>PDFBulkProcessor</code>). Returns the report as JSON: processed,
+ * skipped, failed and errors.
+ * <p>
+ * The input of the operation is the document, or its blob when
+ * <code>inputXPath</code> is set. When <code>resultXPath</code> is set, a
+ * blob returned by the operation is saved in the document.
+ * <p>
+ * Only the operations accepted by <code>PDF.RunAsync</code> can run (see
+ * <code>PDFWork.checkOperation()</code>), and <code>threads</code> is capped
+ * by <code>nuxeo.pdfutils.bulk.maxThreads</code>.
+ * <p>
+ * Each batch of documents is committed in its own transaction. The current
+ * transaction must be committed first: The operation fails unless
+ * <code>commitTransaction</code> is true.
+ *
+ * @since 7.1
+ */
+@Operation(id = BulkOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Bulk", description = "Run a PDF operation (<code>operationId</code>, with its <code>parameters</code>) on every document returned by the NXQL <code>query</code>. The input of the operation is the document, or its blob in <code>inputXPath</code> if set (documents without blob are skipped). If <code>resultXPath</code> is set, a blob returned by the operation is saved in this field. Documents are read by pages of <code>pageSize</code> and processed by batches of <code>batchSize</code> (one transaction each) on <code>threads</code> threads (capped by nuxeo.pdfutils.bulk.maxThreads). Only the operations accepted by PDF.RunAsync can run. The current transaction is committed first, the operation fails unless <code>commitTransaction</code> is true. Returns the report as JSON: processed, skipped, failed and errors.")
+public class BulkOp {
+
+    public static final String ID = "PDF.Bulk";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "query", required = true)
+    protected String query;
+
+    @Param(name = "operationId", required = true)
+    protected String operationId;
+
+    @Param(name = "parameters", required = false)
+    protected Properties parameters;
+
+    @Param(name = "inputXPath", required = false, values = { "file:content" })
+    protected String inputXPath = "file:content";
+
+    @Param(name = "resultXPath", required = false)
+    protected String resultXPath = "";
+
+    @Param(name = "threads", required = false, values = { "4" })
+    protected long threads = PDFBulkProcessor.DEFAULT_THREADS;
+
+    @Param(name = "batchSize", required = false, values = { "20" })
+    protected long batchSize = PDFBulkProcessor.DEFAULT_BATCH_SIZE;
+
+    @Param(name = "pageSize", required = false, values = { "100" })
+    protected long pageSize = PDFBulkProcessor.DEFAULT_PAGE_SIZE;
+
+    @Param(name = "commitTransaction", required = false, values = { "false" })
+    protected boolean commitTransaction = false;
+
+    @OperationMethod
+    public Blob run() throws ClientException {
+
+        PDFBulkProcessor.Report report = new PDFBulkProcessor(session, query).setOperation(
+                operationId, parameters).setInputXPath(inputXPath).setResultXPath(
+                resultXPath).setThreads(toInt(threads)).setBatchSize(
+                toInt(batchSize)).setPageSize(toInt(pageSize)).setCommitTransaction(
+                commitTransaction).run();
+
+        return new StringBlob(report.toJSON(), "application/json");
+    }
+
+    // Saturates instead of wrapping to a negative or small int, the
+    // processor then applies its own limits
+    protected static int toInt(long inValue) {
+        return (int) Math.max(Integer.MIN_VALUE,
+                Math.min(inValue, Integer.MAX_VALUE));
+    }
+}
@@ -47,10 +47,14 @@ public class ExtractTextFromPDFOp {
     public DocumentModel run(DocumentModel input) throws IOException {
         PDFTextExtractor PDFextractor = new PDFTextExtractor(input, pdfxpath);
         String extractedText = null;
-        if (removepatternfromresult) {
-            extractedText = PDFextractor.extractLastPartOfLine(patterntofind);
-        } else {
-            extractedText = PDFextractor.extractLineOf(patterntofind);
+        try {
+            if (removepatternfromresult) {
+                extractedText = PDFextractor.extractLastPartOfLine(patterntofind);
+            } else {
+                extractedText = PDFextractor.extractLineOf(patterntofind);
+            }
+        } finally {
+            PDFextractor.close();
         }
 
         if (extractedText != null) {
@@ -0,0 +1,66 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.operations;
+
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.pdf.work.PDFJobStatus;
+import org.nuxeo.pdf.work.PDFJobStore;
+
+/**
+ * Return the status, as JSON, of a job scheduled by
+ * <code>PDF.RunAsync</code>: id, operationId, state (scheduled, running,
+ * completed, failed), pages (processed so far), error (when failed), fileName
+ * and mimeType (when completed). Only the user who scheduled the job and the
+ * administrators can read it.
+ *
+ * @since 7.1
+ */
+@Operation(id = JobStatusOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Job Status", description = "Return the status, as JSON, of a job scheduled by PDF.RunAsync: id, operationId, state (scheduled, running, completed, failed), pages (processed so far), error (when failed), fileName and mimeType (when completed). Only the user who scheduled the job and the administrators can read it.")
+public class JobStatusOp {
+
+    public static final String ID = "PDF.JobStatus";
+
+    @Context
+    protected CoreSession session;
+
+    @Param(name = "jobId", required = true)
+    protected String jobId;
+
+    @OperationMethod
+    public Blob run() throws ClientException {
+
+        // Same error for the jobs of the other users, their ids are not
+        // disclosed
+        PDFJobStatus status = PDFJobStore.get(jobId, session == null ? null
+                : (NuxeoPrincipal) session.getPrincipal());
+        if (status == null) {
+            throw new ClientException("Unknown or expired job " + jobId);
+        }
+        Blob result = new StringBlob(status.toJSON(), "application/json");
+        result.setFilename(jobId + ".json");
+        return result;
+    }
+}
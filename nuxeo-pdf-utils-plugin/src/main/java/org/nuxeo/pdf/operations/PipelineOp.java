@@ -0,0 +1,268 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.operations;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import org.apache.pdfbox.exceptions.COSVisitorException;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.pdf.PDFHeaderFooter;
+import org.nuxeo.pdf.PDFMerge;
+import org.nuxeo.pdf.PDFPageNumbering;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.nuxeo.pdf.PDFPageSelector;
+import org.nuxeo.pdf.PDFPipeline;
+import org.nuxeo.pdf.PDFUtils;
+import org.nuxeo.pdf.PDFWatermarking;
+
+/**
+ * Apply several transformations to the pdf with a single load and a single
+ * save (see <code>PDFPipeline</code>).
+ * <p>
+ * <code>stages</code> holds one stage per line: Its name, followed by its
+ * parameters, separated by "|". For example:
+ *
+ * <pre>
+ * pageNumbers|position=Bottom center|fontSize=10
+ * watermarkText|watermark=CONFIDENTIAL|fontSize=72|textRotation=45
+ * info|title=The Report
+ * </pre>
+ *
+ * Stages and their parameters are the ones of the corresponding operations:
+ * <ul>
+ * <li><code>merge</code>: toAppendVarName, toAppendListVarName</li>
+ * <li><code>pageNumbers</code>: startAtPage, startAtNumber, prefix,
+ * minDigits, position, fontName, fontSize, hex255Color, pages</li>
+ * <li><code>watermarkText</code>: watermark, and the properties of
+ * PDF.WatermarkWithText (fontFamily, fontSize, textRotation, ..., pages)</li>
+ * <li><code>watermarkImage</code>: imageContextVarName or imageDocRef, x, y,
+ * scale, pages</li>
+ * <li><code>watermarkPdf</code>: pdfContextVarName or pdfDocRef, pages</li>
+ * <li><code>headerFooter</code>: topLeft, ..., bottomRight, startAtPage,
+ * startAtNumber, fontName, fontSize, hex255Color, dateFormat, pages</li>
+ * <li><code>info</code>: title, subject, author</li>
+ * </ul>
+ * Empty lines and lines starting with # are ignored.
+ *
+ * @since 7.1
+ */
+@Operation(id = PipelineOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Pipeline", description = "Apply several transformations to the input pdf with a single load and a single save (instead of one per operation). <code>stages</code> holds one stage per line: Its name followed by its parameters, separated by |, such as \"pageNumbers|position=Bottom right|fontSize=10\". Stages are merge (toAppendVarName, toAppendListVarName), pageNumbers (startAtPage, startAtNumber, prefix, minDigits, position, fontName, fontSize, hex255Color, pages), watermarkText (watermark and the properties of PDF.WatermarkWithText), watermarkImage (imageContextVarName or imageDocRef, x, y, scale, pages), watermarkPdf (pdfContextVarName or pdfDocRef, pages), headerFooter (topLeft, ..., bottomRight, startAtPage, startAtNumber, fontName, fontSize, hex255Color, dateFormat, pages) and info (title, subject, author). When the input is a list, the blobs are merged first. For a document, the pdf is read in <code>xpath</code>.")
+public class PipelineOp {
+
+    public static final String ID = "PDF.Pipeline";
+
+    public static final String STAGE_SEPARATOR = "\\|";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected OperationContext ctx;
+
+    @Param(name = "stages", required = true)
+    protected String stages = "";
+
+    @Param(name = "fileName", required = false)
+    protected String fileName = "";
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = "file:content";
+
+    // Document properties for the headers/footers, when available
+    protected DocumentModel inputDoc;
+
+    @OperationMethod
+    public Blob run(Blob inBlob) throws ClientException {
+
+        return doRun(new PDFPipeline(inBlob));
+    }
+
+    @OperationMethod
+    public Blob run(BlobList inBlobs) throws ClientException {
+
+        return doRun(new PDFPipeline(inBlobs));
+    }
+
+    @OperationMethod
+    public Blob run(DocumentModel inDoc) throws ClientException {
+
+        inputDoc = inDoc;
+        return doRun(new PDFPipeline(
+                (Blob) inDoc.getPropertyValue(PDFUtils.checkXPath(xpath))));
+    }
+
+    protected Blob doRun(PDFPipeline inPipeline) throws ClientException {
+
+        for (String line : stages.split("\n")) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] parts = line.split(STAGE_SEPARATOR);
+            HashMap<String, String> params = new HashMap<String, String>();
+            for (int i = 1; i < parts.length; i++) {
+                int pos = parts[i].indexOf('=');
+                if (pos > 0) {
+                    params.put(parts[i].substring(0, pos).trim(),
+                            parts[i].substring(pos + 1).trim());
+                }
+            }
+            addStage(inPipeline, parts[0].trim(), params);
+        }
+
+        try {
+            return inPipeline.setFileName(fileName).run();
+        } catch (IOException | COSVisitorException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    protected void addStage(PDFPipeline inPipeline, String inName,
+            HashMap<String, String> inParams) throws ClientException {
+
+        switch (inName) {
+        case "merge":
+            PDFMerge merge = new PDFMerge();
+            String varName = inParams.get("toAppendVarName");
+            if (varName != null && !varName.isEmpty()) {
+                merge.addBlob((Blob) ctx.get(varName));
+            }
+            varName = inParams.get("toAppendListVarName");
+            if (varName != null && !varName.isEmpty()) {
+                if (!(ctx.get(varName) instanceof BlobList)) {
+                    throw new ClientException(varName + " is not a BlobList");
+                }
+                merge.addBlobs((BlobList) ctx.get(varName));
+            }
+            inPipeline.merge(merge);
+            break;
+
+        case "pageNumbers":
+            PDFPageNumbering pn = new PDFPageNumbering((Blob) null);
+            pn.setPageSelector(PDFPageSelector.parse(inParams.get("pages")));
+            inPipeline.pageNumbers(pn, toInt(inParams.get("startAtPage"), 1),
+                    toInt(inParams.get("startAtNumber"), 1),
+                    inParams.get("prefix"),
+                    toInt(inParams.get("minDigits"), 0),
+                    inParams.get("fontName"),
+                    toFloat(inParams.get("fontSize"), 16),
+                    inParams.get("hex255Color"),
+                    PDFPageNumbering.positionFromString(inParams.get("position")));
+            break;
+
+        case "watermarkText":
+            PDFWatermarking text = new PDFWatermarking((Blob) null);
+            text.setText(inParams.get("watermark")).setProperties(inParams);
+            inPipeline.watermark(text);
+            break;
+
+        case "watermarkImage":
+            PDFWatermarking image = new PDFWatermarking((Blob) null);
+            image.setPages(inParams.get("pages"));
+            inPipeline.watermarkWithImage(image,
+                    getBlob(inParams, "imageContextVarName", "imageDocRef"),
+                    toInt(inParams.get("x"), 0), toInt(inParams.get("y"), 0),
+                    toFloat(inParams.get("scale"), 1f));
+            break;
+
+        case "watermarkPdf":
+            PDFWatermarking overlay = new PDFWatermarking((Blob) null);
+            overlay.setPages(inParams.get("pages"));
+            inPipeline.watermarkWithPdf(overlay,
+                    getBlob(inParams, "pdfContextVarName", "pdfDocRef"));
+            break;
+
+        case "headerFooter":
+            PDFHeaderFooter hf = inputDoc == null ? new PDFHeaderFooter(
+                    (Blob) null) : new PDFHeaderFooter(inputDoc, xpath);
+            hf.setText(PAGE_NUMBER_POSITION.TOP_LEFT, inParams.get("topLeft")).setText(
+                    PAGE_NUMBER_POSITION.TOP_CENTER, inParams.get("topCenter")).setText(
+                    PAGE_NUMBER_POSITION.TOP_RIGHT, inParams.get("topRight")).setText(
+                    PAGE_NUMBER_POSITION.BOTTOM_LEFT,
+                    inParams.get("bottomLeft")).setText(
+                    PAGE_NUMBER_POSITION.BOTTOM_CENTER,
+                    inParams.get("bottomCenter")).setText(
+                    PAGE_NUMBER_POSITION.BOTTOM_RIGHT,
+                    inParams.get("bottomRight"));
+            hf.setStartAtPage(toInt(inParams.get("startAtPage"), 1)).setStartAtNumber(
+                    toInt(inParams.get("startAtNumber"), 1)).setFontName(
+                    inParams.get("fontName")).setFontSize(
+                    toFloat(inParams.get("fontSize"), 10)).setPageSelector(
+                    PDFPageSelector.parse(inParams.get("pages")));
+            if (inParams.containsKey("hex255Color")) {
+                hf.setHex255Color(inParams.get("hex255Color"));
+            }
+            if (inParams.containsKey("dateFormat")) {
+                hf.setDateFormat(inParams.get("dateFormat"));
+            }
+            inPipeline.headerFooter(hf);
+            break;
+
+        case "info":
+            inPipeline.setInfos(inParams.get("title"), inParams.get("subject"),
+                    inParams.get("author"));
+            break;
+
+        default:
+            throw new ClientException("Unknown pipeline stage <" + inName
+                    + ">");
+        }
+    }
+
+    /*
+     * Same as WatermarkWithImageOp and WatermarkWithPDFOp: A context variable
+     * or a document, read in an unrestricted session
+     */
+    protected Blob getBlob(HashMap<String, String> inParams,
+            String inVarNameKey, String inDocRefKey) throws ClientException {
+
+        String varName = inParams.get(inVarNameKey);
+        if (varName != null && !varName.isEmpty()) {
+            return (Blob) ctx.get(varName);
+        }
+        String docRef = inParams.get(inDocRefKey);
+        if (docRef != null && !docRef.isEmpty()) {
+            PDFUtils.UnrestrictedGetBlobForDocumentIdOrPath r = new PDFUtils.UnrestrictedGetBlobForDocumentIdOrPath(
+                    session, docRef);
+            r.runUnrestricted();
+            return r.getBlob();
+        }
+        throw new ClientException("Missing " + inVarNameKey + " or "
+                + inDocRefKey);
+    }
+
+    protected int toInt(String inValue, int inDefault) {
+        return inValue == null || inValue.isEmpty() ? inDefault
+                : Integer.parseInt(inValue);
+    }
+
+    protected float toFloat(String inValue, float inDefault) {
+        return inValue == null || inValue.isEmpty() ? inDefault
+                : Float.parseFloat(inValue);
+    }
+}
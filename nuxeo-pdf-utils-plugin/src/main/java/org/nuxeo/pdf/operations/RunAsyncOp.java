@@ -0,0 +1,150 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.operations;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.pdf.work.PDFJobStatus;
+import org.nuxeo.pdf.work.PDFWork;
+
+/**
+ * Run a PDF operation (<code>operationId</code>, with its
+ * <code>parameters</code>) asynchronously, in the <code>pdfutils</code>
+ * WorkManager queue. Returns at once the status of the job, as JSON (see
+ * <code>PDFJobStatus.toJSON()</code>), and sets its id in the
+ * <code>PDFJobId</code> context variable.
+ * <p>
+ * Poll the job with <code>PDF.JobStatus</code>, get its result with
+ * <code>PDF.JobResult</code>.
+ * <p>
+ * Context variables are not available to the operation: Use its parameters
+ * (or the document ids) instead.
+ * <p>
+ * Only the <code>PDF.*</code> operations can run, except
+ * <code>PDF.RunAsync</code>, <code>PDF.Bulk</code> and the
+ * <code>PDF.Job*</code> operations. The job runs as the current user, and the
+ * input documents must be readable by this user.
+ *
+ * @since 7.1
+ */
+@Operation(id = RunAsyncOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Run Asynchronously", description = "Run a PDF operation (<code>operationId</code>, with its <code>parameters</code>) on the input in a background job. Returns at once the status of the job as JSON (id, state, pages processed), and sets its id in the PDFJobId context variable. Poll it with PDF.JobStatus, and get the result with PDF.JobResult. Context variables are not available to the operation: Use its parameters. Only the PDF.* operations can run (except PDF.RunAsync, PDF.Bulk and PDF.Job*), as the current user.")
+public class RunAsyncOp {
+
+    public static final String ID = "PDF.RunAsync";
+
+    public static final String JOB_ID_VAR = "PDFJobId";
+
+    @Context
+    protected CoreSession session;
+
+    @Context
+    protected OperationContext ctx;
+
+    @Param(name = "operationId", required = true)
+    protected String operationId;
+
+    @Param(name = "parameters", required = false)
+    protected Properties parameters;
+
+    @OperationMethod
+    public Blob run(Blob inBlob) throws ClientException {
+
+        return schedule(inBlob);
+    }
+
+    @OperationMethod
+    public Blob run(BlobList inBlobs) throws ClientException {
+
+        return schedule(inBlobs);
+    }
+
+    @OperationMethod
+    public Blob run(DocumentModel inDoc) throws ClientException {
+
+        List<String> ids = new ArrayList<String>();
+        ids.add(checkReadable(inDoc));
+        return toBlob(PDFWork.scheduleOnDocuments(
+                session.getRepositoryName(), getPrincipalName(), operationId,
+                parameters, ids, false));
+    }
+
+    @OperationMethod
+    public Blob run(DocumentModelList inDocs) throws ClientException {
+
+        List<String> ids = new ArrayList<String>();
+        for (DocumentModel doc : inDocs) {
+            ids.add(checkReadable(doc));
+        }
+        return toBlob(PDFWork.scheduleOnDocuments(
+                session.getRepositoryName(), getPrincipalName(), operationId,
+                parameters, ids, true));
+    }
+
+    protected Blob schedule(Object inBlobs) throws ClientException {
+
+        try {
+            return toBlob(PDFWork.schedule(session == null ? null
+                    : session.getRepositoryName(), getPrincipalName(),
+                    operationId, parameters, inBlobs));
+        } catch (IOException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    protected String getPrincipalName() {
+
+        return session == null ? null : session.getPrincipal().getName();
+    }
+
+    /*
+     * Fails before scheduling anything, the job would fail anyway since it
+     * runs as the current user
+     */
+    protected String checkReadable(DocumentModel inDoc) throws ClientException {
+
+        if (!session.hasPermission(inDoc.getRef(), SecurityConstants.READ)) {
+            throw new ClientException("Cannot read the document "
+                    + inDoc.getId());
+        }
+        return inDoc.getId();
+    }
+
+    protected Blob toBlob(PDFJobStatus inStatus) {
+
+        ctx.put(JOB_ID_VAR, inStatus.getId());
+        Blob result = new StringBlob(inStatus.toJSON(), "application/json");
+        result.setFilename(inStatus.getId() + ".json");
+        return result;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.operations;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.Constants;
+import org.nuxeo.ecm.automation.core.annotations.Context;
+import org.nuxeo.ecm.automation.core.annotations.Operation;
+import org.nuxeo.ecm.automation.core.annotations.OperationMethod;
+import org.nuxeo.ecm.automation.core.annotations.Param;
+import org.nuxeo.ecm.automation.core.collectors.BlobCollector;
+import org.nuxeo.ecm.automation.core.util.Properties;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.pdf.PDFHeaderFooter;
+import org.nuxeo.pdf.PDFTextTemplate;
+import org.nuxeo.pdf.PDFUtils;
+import org.nuxeo.pdf.PDFWatermarking;
+
+/**
+ * Stamp a per-user text on the pdf, typically when it is downloaded. The
+ * original bytes are not rewritten, the watermark is appended as an
+ * incremental update (see <code>PDFWatermarking.watermarkIncremental()</code>)
+ *
+ * @since 7.1
+ */
+@Operation(id = WatermarkForDownloadOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Watermark for Download", description = "Return the input pdf with the <code>watermark</code> text on each page, appended as an incremental update: The original is streamed unchanged, so the cost depends on the number of pages, not on the size of the file. The text is a template: ${user} (current user), ${date} (formatted with <code>dateFormat</code>) and ${filename} are replaced. <code>properties</code> are the same as for PDF.WatermarkWithText. Notice a font contributed to the font registry is embedded, in full, in each result: Prefer a standard font. For a document, the pdf is read in <code>xpath</code>.")
+public class WatermarkForDownloadOp {
+
+    public static final String ID = "PDF.WatermarkForDownload";
+
+    public static final String DEFAULT_WATERMARK = "Downloaded by ${user} on ${date}";
+
+    @Context
+    protected OperationContext ctx;
+
+    @Param(name = "watermark", required = false, values = { DEFAULT_WATERMARK })
+    protected String watermark = DEFAULT_WATERMARK;
+
+    @Param(name = "dateFormat", required = false, values = { "yyyy-MM-dd" })
+    protected String dateFormat = PDFHeaderFooter.DEFAULT_DATE_FORMAT;
+
+    @Param(name = "properties", required = false)
+    protected Properties properties;
+
+    @Param(name = "xpath", required = false, values = { "file:content" })
+    protected String xpath = "file:content";
+
+    @Param(name = "pages", required = false)
+    protected String pages = "";
+
+    @OperationMethod(collector = BlobCollector.class)
+    public Blob run(Blob inBlob) {
+
+        return doWatermark(inBlob);
+    }
+
+    @OperationMethod(collector = BlobCollector.class)
+    public Blob run(DocumentModel inDoc) {
+
+        return doWatermark((Blob) inDoc.getPropertyValue(PDFUtils.checkXPath(xpath)));
+    }
+
+    protected Blob doWatermark(Blob inBlob) {
+
+        String format = dateFormat == null || dateFormat.isEmpty() ? PDFHeaderFooter.DEFAULT_DATE_FORMAT
+                : dateFormat;
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(PDFTextTemplate.VAR_USER, ctx.getPrincipal() == null ? ""
+                : ctx.getPrincipal().getName());
+        values.put(PDFTextTemplate.VAR_DATE,
+                new SimpleDateFormat(format).format(new Date()));
+        values.put(PDFTextTemplate.VAR_FILENAME,
+                inBlob.getFilename() == null ? "" : inBlob.getFilename());
+        String text = PDFTextTemplate.get(watermark).render(values, 0, 0);
+
+        PDFWatermarking pdfw = new PDFWatermarking(inBlob);
+        pdfw.setText(text);
+        if (properties != null) {
+            pdfw.setProperties(properties);
+        }
+        if (pages != null && !pages.isEmpty()) {
+            pdfw.setPages(pages);
+        }
+        return pdfw.watermarkIncremental();
+    }
+}
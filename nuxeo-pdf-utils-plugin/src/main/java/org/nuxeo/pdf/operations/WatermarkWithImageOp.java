@@ -68,6 +68,9 @@ public class WatermarkWithImageOp {
     @Param(name = "scale", required = false, values = { "1.0" })
     protected Double scale = 1.0;
 
+    @Param(name = "pages", required = false)
+    protected String pages = "";
+
     @OperationMethod(collector = BlobCollector.class)
     public Blob run(Blob inBlob) throws ClientException {
 
@@ -86,6 +89,7 @@ public class WatermarkWithImageOp {
         }
 
         PDFWatermarking pdfw = new PDFWatermarking(inBlob);
+        pdfw.setPages(pages);
         result = pdfw.watermarkWithImage(blobImage, (int) x, (int) y,
                 scale.floatValue());
 
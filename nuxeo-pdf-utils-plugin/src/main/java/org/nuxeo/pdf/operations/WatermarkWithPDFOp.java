@@ -50,6 +50,9 @@ public class WatermarkWithPDFOp {
     @Param(name = "pdfDocRef", required = false)
     String pdfDocRef = "";
 
+    @Param(name = "pages", required = false)
+    protected String pages = "";
+
     @OperationMethod(collector = BlobCollector.class)
     public Blob run(Blob inBlob) throws ClientException {
 
@@ -67,6 +70,7 @@ public class WatermarkWithPDFOp {
         }
 
         PDFWatermarking pdfw = new PDFWatermarking(inBlob);
+        pdfw.setPages(pages);
         result = pdfw.watermarkWithPdf(blobPdf);
 
         return result;
@@ -31,17 +31,21 @@ import org.nuxeo.pdf.PDFWatermarking;
  * <code>watermark</code> text, using the different <code>properties</code>
  * (default values apply). Notice <code>xPosition</code> and
  * <code>yPosition</code> start at the bottom-left corner. If
- * <code>watermark</code> is empty, a simple copy o the input blob is returned
+ * <code>watermark</code> is empty, or no page is selected, the input blob
+ * itself is returned
  *
  * Properties must be one or more of the following (in parenthesis, the default
  * value if the property is not used): <code>fontFamily</code> (Helvetica),
  * <code>fontSize</code> (36), <code>textRotation</code> (0),
  * <code>hex255Color</code> (#000000), <code>alphaColor</code> (0.5),
  * <code>xPosition</code> (0), <code>yPosition</code> (0), <code>invertY</code>
- * (false)
+ * (false), <code>tiled</code> (false: repeat the text over the whole page),
+ * <code>tileSpacing</code> (72), <code>centerOnRotatedPages</code> (true: on
+ * pages rotated by 90 or 270 degrees, the text is centered and the position
+ * is ignored)
  *
  */
-@Operation(id = WatermarkWithTextOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Watermark with Text", description = "Return a <i>new</i> blob combining the input pdf and the <code>watermark</code> text, using the different properties. Properties must be one or more of the following (in parenthesis, the default value if the property is not used): <code>fontFamily</code> (Helvetica), <code>fontSize</code> (36), <code>textRotation</code> (0), <code>hex255Color</code> (#000000), <code>alphaColor</code> (0.5), <code>xPosition</code> (0), <code>yPosition</code> (0), <code>invertY</code> (false). <code>xPosition</code> and <code>yPosition</code> start at the <i>bottom-left</i> corner of the page. If <code>watermark</code> is empty, a simple copy o the input blob is returned")
+@Operation(id = WatermarkWithTextOp.ID, category = Constants.CAT_CONVERSION, label = "PDF: Watermark with Text", description = "Return a <i>new</i> blob combining the input pdf and the <code>watermark</code> text, using the different properties. Properties must be one or more of the following (in parenthesis, the default value if the property is not used): <code>fontFamily</code> (Helvetica), <code>fontSize</code> (36), <code>textRotation</code> (0), <code>hex255Color</code> (#000000), <code>alphaColor</code> (0.5), <code>xPosition</code> (0), <code>yPosition</code> (0), <code>invertY</code> (false), <code>tiled</code> (false: repeat the text over the whole page), <code>tileSpacing</code> (72), <code>centerOnRotatedPages</code> (true: on pages rotated by 90 or 270 degrees, the text is centered and the position is ignored). <code>xPosition</code> and <code>yPosition</code> start at the <i>bottom-left</i> corner of the page. If <code>watermark</code> is empty, or no page is selected, the input blob itself is returned")
 public class WatermarkWithTextOp {
 
     public static final String ID = "PDF.WatermarkWithText";
@@ -52,6 +56,9 @@ public class WatermarkWithTextOp {
     @Param(name = "properties", required = false)
     protected Properties properties;
 
+    @Param(name = "pages", required = false)
+    protected String pages = "";
+
     @OperationMethod(collector = BlobCollector.class)
     public Blob run(Blob inBlob) {
 
@@ -59,6 +66,9 @@ public class WatermarkWithTextOp {
 
         PDFWatermarking pdfw = new PDFWatermarking(inBlob);
         pdfw.setText(watermark).setProperties(properties);
+        if (pages != null && !pages.isEmpty()) {
+            pdfw.setPages(pages);
+        }
         result = pdfw.watermark();
 
         return result;
@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.work;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+
+/**
+ * Status of an asynchronous PDF job (see <code>PDFWork</code>), kept in the
+ * <code>PDFJobStore</code>.
+ *
+ * @since 7.1
+ */
+public class PDFJobStatus {
+
+    public enum State {
+        SCHEDULED, RUNNING, COMPLETED, FAILED
+    }
+
+    protected final String id;
+
+    protected final String operationId;
+
+    protected final String owner;
+
+    protected final long created = System.currentTimeMillis();
+
+    protected volatile State state = State.SCHEDULED;
+
+    protected final AtomicLong pages = new AtomicLong();
+
+    protected volatile long finished = -1;
+
+    protected volatile String error;
+
+    protected volatile String resultFileName;
+
+    protected volatile String resultMimeType;
+
+    protected PDFJobStatus(String inId, String inOperationId, String inOwner) {
+        id = inId;
+        operationId = inOperationId;
+        owner = inOwner;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getOperationId() {
+        return operationId;
+    }
+
+    /**
+     * @return the name of the user who scheduled the job, null if it was
+     *         scheduled without a session
+     */
+    public String getOwner() {
+        return owner;
+    }
+
+    /**
+     * The job can be read by the user who scheduled it, and by the
+     * administrators. A job scheduled without a session can only be read by
+     * the administrators
+     *
+     * @param inPrincipal
+     * @return true if the principal can read the status and the result of
+     *         the job
+     */
+    public boolean isReadableBy(NuxeoPrincipal inPrincipal) {
+
+        if (inPrincipal == null) {
+            return false;
+        }
+        return inPrincipal.isAdministrator()
+                || (owner != null && owner.equals(inPrincipal.getName()));
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public boolean isDone() {
+        return state == State.COMPLETED || state == State.FAILED;
+    }
+
+    /**
+     * @return the pages processed so far
+     */
+    public long getPages() {
+        return pages.get();
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public long getCreated() {
+        return created;
+    }
+
+    /**
+     * @return the time the job completed or failed, -1 if it is not done
+     */
+    public long getFinished() {
+        return finished;
+    }
+
+    public String getResultFileName() {
+        return resultFileName;
+    }
+
+    public String getResultMimeType() {
+        return resultMimeType;
+    }
+
+    protected void running() {
+        state = State.RUNNING;
+    }
+
+    protected void addPages(long inCount) {
+        pages.addAndGet(inCount);
+    }
+
+    protected void completed(String inFileName, String inMimeType) {
+        resultFileName = inFileName;
+        resultMimeType = inMimeType;
+        finished = System.currentTimeMillis();
+        state = State.COMPLETED;
+    }
+
+    protected void failed(Throwable inError) {
+        error = inError.getMessage() == null ? inError.getClass().getName()
+                : inError.getMessage();
+        finished = System.currentTimeMillis();
+        state = State.FAILED;
+    }
+
+    /**
+     * @return the status as a JSON object: id, operationId, state, pages,
+     *         error (if failed), fileName and mimeType (if completed)
+     */
+    public String toJSON() {
+
+        StringBuilder sb = new StringBuilder("{");
+        appendJSON(sb, "id", id).append(",");
+        appendJSON(sb, "operationId", operationId).append(",");
+        appendJSON(sb, "state", state.name().toLowerCase()).append(",");
+        sb.append("\"pages\":").append(pages.get());
+        if (error != null) {
+            appendJSON(sb.append(","), "error", error);
+        }
+        if (state == State.COMPLETED) {
+            appendJSON(sb.append(","), "fileName", resultFileName);
+            appendJSON(sb.append(","), "mimeType", resultMimeType);
+        }
+        return sb.append("}").toString();
+    }
+
+    public static StringBuilder appendJSON(StringBuilder inSb,
+            String inKey, String inValue) {
+
+        inSb.append("\"").append(inKey).append("\":");
+        if (inValue == null) {
+            return inSb.append("null");
+        }
+        inSb.append("\"");
+        for (char c : inValue.toCharArray()) {
+            switch (c) {
+            case '"':
+                inSb.append("\\\"");
+                break;
+            case '\\':
+                inSb.append("\\\\");
+                break;
+            case '\n':
+                inSb.append("\\n");
+                break;
+            case '\r':
+                inSb.append("\\r");
+                break;
+            case '\t':
+                inSb.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    inSb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    inSb.append(c);
+                }
+            }
+        }
+        return inSb.append("\"");
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.work;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.NuxeoPrincipal;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.pdf.PDFScratch;
+import org.nuxeo.pdf.PDFUtils;
+
+/**
+ * Transient store of the asynchronous PDF jobs (see <code>PDFWork</code>):
+ * Their status, and their input and result files, in a directory per job.
+ * <p>
+ * A job is removed, with its files, by <code>remove()</code> or
+ * <code>nuxeo.pdfutils.jobs.ttl</code> seconds (default 3600) after it is
+ * done.
+ * <p>
+ * The store is local to the node, in the <code>jobs</code> directory of the
+ * scratch space (see <code>PDFScratch</code>, the files of the jobs are not
+ * counted in its quota): The jobs run on the node which scheduled them, and
+ * must be polled on this node. When the WorkManager queues are distributed
+ * (Redis), a job of the <code>pdfutils</code> queue could be run by another
+ * node, which does not have its inputs: The queue must only be processed by
+ * the nodes which schedule its jobs.
+ * <p>
+ * A job can only be read by the user who scheduled it and by the
+ * administrators (see <code>PDFJobStatus.isReadableBy()</code>).
+ *
+ * @since 7.1
+ */
+public class PDFJobStore {
+
+    /**
+     * Configuration property (nuxeo.conf): How long, in seconds, a job is kept
+     * after it is done. Default is 3600.
+     */
+    public static final String TTL_PROPERTY = "nuxeo.pdfutils.jobs.ttl";
+
+    protected static final String RESULT_FILE = "result";
+
+    protected static final Map<String, PDFJobStatus> jobs = new ConcurrentHashMap<String, PDFJobStatus>();
+
+    protected static File getRootDirectory() {
+        return new File(PDFScratch.getDirectory(), "jobs");
+    }
+
+    /**
+     * Create a new job, in the SCHEDULED state
+     *
+     * @param inOperationId the operation the job runs
+     * @param inOwner the name of the user scheduling the job, can be null
+     * @return its status
+     */
+    public static PDFJobStatus create(String inOperationId, String inOwner) {
+
+        purge();
+        PDFJobStatus status = new PDFJobStatus(UUID.randomUUID().toString(),
+                inOperationId, inOwner);
+        jobs.put(status.getId(), status);
+        return status;
+    }
+
+    /**
+     * @param inId
+     * @return the status of the job, null if it is unknown or expired
+     */
+    public static PDFJobStatus get(String inId) {
+
+        purge();
+        return inId == null ? null : jobs.get(inId);
+    }
+
+    /**
+     * @param inId
+     * @param inPrincipal the user reading the job
+     * @return the status of the job, null if it is unknown, expired or cannot
+     *         be read by this user
+     */
+    public static PDFJobStatus get(String inId, NuxeoPrincipal inPrincipal) {
+
+        PDFJobStatus status = get(inId);
+        return status == null || !status.isReadableBy(inPrincipal) ? null
+                : status;
+    }
+
+    protected static File getDirectory(String inId) throws IOException {
+
+        File dir = new File(getRootDirectory(), inId);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * Copy an input of the job in its directory: The blobs of a request (an
+     * upload, ...) are not available after the request.
+     *
+     * @param inId
+     * @param inIndex
+     * @param inBlob
+     * @return the file
+     * @throws IOException
+     */
+    public static File storeInput(String inId, int inIndex, Blob inBlob)
+            throws IOException {
+
+        File f = new File(getDirectory(inId), "input-" + inIndex);
+        inBlob.transferTo(f);
+        return f;
+    }
+
+    /**
+     * Keep the result and mark the job COMPLETED
+     *
+     * @param inId
+     * @param inResult
+     * @throws IOException
+     */
+    public static void setResult(String inId, Blob inResult)
+            throws IOException {
+
+        PDFJobStatus status = jobs.get(inId);
+        if (status == null) {
+            // Removed meanwhile
+            return;
+        }
+        inResult.transferTo(new File(getDirectory(inId), RESULT_FILE));
+        status.completed(inResult.getFilename(), inResult.getMimeType());
+    }
+
+    /**
+     * The blob reads the file of the job: The job must not be removed while
+     * it is used.
+     *
+     * @param inId
+     * @return the result, null if the job is unknown or not completed
+     */
+    public static Blob getResult(String inId) {
+
+        PDFJobStatus status = get(inId);
+        if (status == null || status.getState() != PDFJobStatus.State.COMPLETED) {
+            return null;
+        }
+        File f = new File(new File(getRootDirectory(), inId), RESULT_FILE);
+        if (!f.exists()) {
+            return null;
+        }
+        FileBlob result = new FileBlob(f, status.getResultMimeType());
+        result.setFilename(status.getResultFileName());
+        return result;
+    }
+
+    /**
+     * Remove the job and its files
+     *
+     * @param inId
+     */
+    public static void remove(String inId) {
+
+        if (inId != null && jobs.remove(inId) != null) {
+            FileUtils.deleteTree(new File(getRootDirectory(), inId));
+        }
+    }
+
+    /*
+     * Remove the jobs done for more than the ttl
+     */
+    protected static void purge() {
+
+        long limit = System.currentTimeMillis()
+                - PDFUtils.getLongProperty(TTL_PROPERTY, 3600) * 1000;
+        Iterator<PDFJobStatus> it = jobs.values().iterator();
+        while (it.hasNext()) {
+            PDFJobStatus status = it.next();
+            if (status.isDone() && status.getFinished() < limit) {
+                it.remove();
+                FileUtils.deleteTree(new File(getRootDirectory(),
+                        status.getId()));
+            }
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.work;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.OperationException;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.IdRef;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.work.AbstractWork;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.pdf.PDFScratch;
+import org.nuxeo.runtime.api.Framework;
+
+/**
+ * Runs a PDF operation in the <code>pdfutils</code> WorkManager queue, so the
+ * request which scheduled it returns at once with a job id. The status of the
+ * job (with the pages processed so far) and its result are kept in the
+ * <code>PDFJobStore</code>.
+ * <p>
+ * The input is either blobs, copied in the store when the job is scheduled,
+ * or documents, read by the job. Only the parameters of the operation are
+ * passed, not the context variables of the caller.
+ * <p>
+ * Only the <code>PDF.*</code> operations can be scheduled, except the ones
+ * scheduling or reading jobs (<code>PDF.RunAsync</code>, <code>PDF.Bulk</code>
+ * and <code>PDF.Job*</code>). The job opens its session as the user who
+ * scheduled it, so it reads only the documents this user can read.
+ * <p>
+ * Usage:
+ *
+ * <pre>
+ * PDFJobStatus status = PDFWork.schedule(session.getRepositoryName(),
+ *         session.getPrincipal().getName(), PipelineOp.ID, params, blobs);
+ * // ... later ...
+ * if (PDFJobStore.get(status.getId()).isDone()) {
+ *     Blob result = PDFJobStore.getResult(status.getId());
+ * }
+ * </pre>
+ *
+ * @since 7.1
+ */
+public class PDFWork extends AbstractWork {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Log log = LogFactory.getLog(PDFWork.class);
+
+    public static final String CATEGORY = "pdfutils";
+
+    // The job running in the current thread, to report the pages processed
+    protected static final ThreadLocal<PDFJobStatus> CURRENT = new ThreadLocal<PDFJobStatus>();
+
+    protected final String jobId;
+
+    protected final String operationId;
+
+    // The user who scheduled the job
+    protected String principalName;
+
+    protected final HashMap<String, String> params;
+
+    protected final ArrayList<String> inputPaths = new ArrayList<String>();
+
+    protected final ArrayList<String> inputFileNames = new ArrayList<String>();
+
+    protected final ArrayList<String> inputMimeTypes = new ArrayList<String>();
+
+    // The input is a list (BlobList or DocumentModelList)
+    protected boolean listInput = false;
+
+    protected PDFWork(String inJobId, String inOperationId,
+            Map<String, String> inParams) {
+        super(inJobId);
+        jobId = inJobId;
+        operationId = inOperationId;
+        params = inParams == null ? new HashMap<String, String>()
+                : new HashMap<String, String>(inParams);
+    }
+
+    /**
+     * Throws a <code>ClientException</code> if the operation cannot run in a
+     * job: Only the <code>PDF.*</code> operations are accepted, except
+     * <code>PDF.RunAsync</code>, <code>PDF.Bulk</code> and the
+     * <code>PDF.Job*</code> operations.
+     *
+     * @param inOperationId
+     */
+    public static void checkOperation(String inOperationId) {
+
+        if (inOperationId == null || !inOperationId.startsWith("PDF.")
+                || inOperationId.equals("PDF.RunAsync")
+                || inOperationId.equals("PDF.Bulk")
+                || inOperationId.startsWith("PDF.Job")) {
+            throw new ClientException(inOperationId
+                    + " cannot run in a PDF job");
+        }
+    }
+
+    /*
+     * The job reads documents as the user who scheduled it, never as system
+     */
+    protected static void checkPrincipal(String inRepositoryName,
+            String inPrincipalName) {
+
+        if (inRepositoryName != null && inPrincipalName == null) {
+            throw new ClientException("No user to open the PDF job session as");
+        }
+    }
+
+    /**
+     * Schedule the operation on blobs
+     *
+     * @param inRepositoryName the repository to open a session on (for
+     *            operations reading documents), can be null
+     * @param inPrincipalName the user the session is opened as, required when
+     *            <code>inRepositoryName</code> is not null
+     * @param inOperationId
+     * @param inParams
+     * @param inBlobs a single blob or a <code>BlobList</code>
+     * @return the status of the job
+     * @throws IOException
+     */
+    public static PDFJobStatus schedule(String inRepositoryName,
+            String inPrincipalName, String inOperationId,
+            Map<String, String> inParams, Object inBlobs) throws IOException {
+
+        checkOperation(inOperationId);
+        checkPrincipal(inRepositoryName, inPrincipalName);
+
+        PDFJobStatus status = PDFJobStore.create(inOperationId,
+                inPrincipalName);
+        PDFWork work = new PDFWork(status.getId(), inOperationId, inParams);
+        work.repositoryName = inRepositoryName;
+        work.principalName = inPrincipalName;
+
+        List<Blob> blobs = new ArrayList<Blob>();
+        if (inBlobs instanceof BlobList) {
+            work.listInput = true;
+            blobs.addAll((BlobList) inBlobs);
+        } else {
+            blobs.add((Blob) inBlobs);
+        }
+        try {
+            for (int i = 0; i < blobs.size(); i++) {
+                Blob b = blobs.get(i);
+                File f = PDFJobStore.storeInput(status.getId(), i, b);
+                work.inputPaths.add(f.getAbsolutePath());
+                work.inputFileNames.add(b.getFilename());
+                work.inputMimeTypes.add(b.getMimeType());
+            }
+        } catch (IOException e) {
+            PDFJobStore.remove(status.getId());
+            throw e;
+        }
+
+        Framework.getLocalService(WorkManager.class).schedule(work);
+        return status;
+    }
+
+    /**
+     * Schedule the operation on documents
+     *
+     * @param inRepositoryName
+     * @param inPrincipalName the user the session is opened as
+     * @param inOperationId
+     * @param inParams
+     * @param inDocIds
+     * @param inListInput true to run the operation on a
+     *            <code>DocumentModelList</code>, false for a single document
+     * @return the status of the job
+     */
+    public static PDFJobStatus scheduleOnDocuments(String inRepositoryName,
+            String inPrincipalName, String inOperationId,
+            Map<String, String> inParams, List<String> inDocIds,
+            boolean inListInput) {
+
+        checkOperation(inOperationId);
+        checkPrincipal(inRepositoryName, inPrincipalName);
+
+        PDFJobStatus status = PDFJobStore.create(inOperationId,
+                inPrincipalName);
+        PDFWork work = new PDFWork(status.getId(), inOperationId, inParams);
+        work.setDocuments(inRepositoryName, inDocIds);
+        work.principalName = inPrincipalName;
+        work.listInput = inListInput;
+
+        Framework.getLocalService(WorkManager.class).schedule(work);
+        return status;
+    }
+
+    /**
+     * Called by the actions each time they process pages: Adds them to the
+     * progress of the job running in the current thread, if any.
+     *
+     * @param inCount
+     */
+    public static void pagesProcessed(long inCount) {
+
+        PDFJobStatus status = CURRENT.get();
+        if (status != null) {
+            status.addPages(inCount);
+        }
+    }
+
+    @Override
+    public String getCategory() {
+        return CATEGORY;
+    }
+
+    @Override
+    public String getTitle() {
+        return "PDF job " + operationId;
+    }
+
+    @Override
+    public void work() {
+
+        PDFJobStatus status = PDFJobStore.get(jobId);
+        if (status == null) {
+            // Expired or removed before it ran
+            return;
+        }
+        status.running();
+        CURRENT.set(status);
+        // The result is copied in the store: Release the scratch files now
+        PDFScratch.Scope scope = PDFScratch.openScope();
+        try {
+            OperationContext ctx;
+            if (repositoryName != null) {
+                // Not initSession(), which opens a system session. Closed by
+                // cleanUp()
+                session = CoreInstance.openCoreSession(repositoryName,
+                        principalName);
+                ctx = new OperationContext(session);
+            } else {
+                ctx = new OperationContext();
+            }
+            ctx.setInput(getInput());
+
+            Object result = Framework.getService(AutomationService.class).run(
+                    ctx, operationId, params);
+            if (result instanceof BlobList && ((BlobList) result).size() == 1) {
+                result = ((BlobList) result).get(0);
+            }
+            if (!(result instanceof Blob)) {
+                throw new ClientException(operationId
+                        + " did not return a blob");
+            }
+            PDFJobStore.setResult(jobId, (Blob) result);
+
+        } catch (OperationException | IOException e) {
+            status.failed(e);
+            log.warn("PDF job " + jobId + " failed", e);
+        } catch (RuntimeException e) {
+            status.failed(e);
+            throw e;
+        } finally {
+            scope.close();
+            CURRENT.remove();
+        }
+    }
+
+    protected Object getInput() {
+
+        if (docIds != null && !docIds.isEmpty()) {
+            DocumentModelList docs = new DocumentModelListImpl();
+            for (String id : docIds) {
+                docs.add(session.getDocument(new IdRef(id)));
+            }
+            return listInput ? docs : docs.get(0);
+        }
+
+        BlobList blobs = new BlobList();
+        for (int i = 0; i < inputPaths.size(); i++) {
+            FileBlob b = new FileBlob(new File(inputPaths.get(i)),
+                    inputMimeTypes.get(i));
+            b.setFilename(inputFileNames.get(i));
+            blobs.add(b);
+        }
+        return listInput ? blobs : blobs.get(0);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFMetrics;
+import org.nuxeo.pdf.PDFWatermarking;
+import org.nuxeo.pdf.admission.PDFAdmission;
+import org.nuxeo.pdf.admission.PDFAdmissionException;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+@LocalDeploy({ "nuxeo-pdf-utils-plugin:test-admission-contrib.xml" })
+public class PDFAdmissionTest {
+
+    private static final String THE_PDF = "files/13-pages-no-page-numbers.pdf";
+
+    private static final long BUDGET = 1024 * 1024;
+
+    @Inject
+    PDFAdmission admission;
+
+    @Test
+    public void testBudget() throws Exception {
+
+        assertEquals(BUDGET, admission.getBudget());
+        assertEquals(BUDGET, admission.getAvailable());
+        // bytesFactor is 2
+        assertEquals(2000, admission.estimate(new StringBlob(new String(
+                new char[1000]).replace('\0', 'a'))));
+
+        PDFAdmission.Permit small = admission.acquire("test", 100 * 1024);
+        assertEquals(100 * 1024, small.getBytes());
+        assertEquals(BUDGET - 100 * 1024, admission.getAvailable());
+        small.close();
+        // Closing twice releases once
+        small.close();
+        assertEquals(BUDGET, admission.getAvailable());
+
+        // Larger than the budget: Takes the whole budget
+        PDFAdmission.Permit large = admission.acquire("test", 10 * BUDGET);
+        assertEquals(BUDGET, large.getBytes());
+        assertEquals(0, admission.getAvailable());
+        large.close();
+    }
+
+    @Test
+    public void testBudgetExhausted() throws Exception {
+
+        long rejected = PDFMetrics.getRegistry().counter(
+                PDFMetrics.name("admission", "rejected")).getCount();
+
+        Blob blob = new FileBlob(FileUtils.getResourceFileFromContext(THE_PDF));
+        try (PDFAdmission.Permit all = admission.acquire("test", BUDGET)) {
+            try {
+                new PDFWatermarking(blob).setText("CONFIDENTIAL").watermark();
+                fail("Expected a PDFAdmissionException");
+            } catch (PDFAdmissionException e) {
+                // Expected, after the 1 second timeout
+            }
+            assertEquals(0, admission.getQueueDepth());
+        }
+
+        assertEquals(rejected + 1, PDFMetrics.getRegistry().counter(
+                PDFMetrics.name("admission", "rejected")).getCount());
+        assertTrue(PDFMetrics.getRegistry().timer(
+                PDFMetrics.name("admission", "wait")).getCount() > 0);
+
+        // Budget available again
+        Blob result = new PDFWatermarking(blob).setText("CONFIDENTIAL").watermark();
+        assertNotNull(result);
+        assertEquals(BUDGET, admission.getAvailable());
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationChain;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.DocumentModelList;
+import org.nuxeo.ecm.core.api.impl.DocumentModelListImpl;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFBatesNumbering;
+import org.nuxeo.pdf.PDFMetrics;
+import org.nuxeo.pdf.PDFPageNumbering;
+import org.nuxeo.pdf.PDFUtils;
+import org.nuxeo.pdf.operations.BatesNumberingOp;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class,
+        EmbeddedAutomationServerFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+public class PDFBatesNumberingTest {
+
+    // 2 pages, 3 pages, 1 page
+    protected static final String PDF_1 = "files/pdf-1-2pages.pdf";
+
+    protected static final String PDF_2 = "files/pdf-2-3pages.pdf";
+
+    protected static final String PDF_3 = "files/pdf-3-1page.pdf";
+
+    protected TestUtils utils;
+
+    protected DocumentModel testDocsFolder;
+
+    @Inject
+    CoreSession coreSession;
+
+    @Inject
+    AutomationService automationService;
+
+    @Before
+    public void setup() throws IOException {
+
+        utils = new TestUtils();
+
+        assertNotNull(coreSession);
+        assertNotNull(automationService);
+
+        testDocsFolder = coreSession.createDocumentModel("/", "test-pictures",
+                "Folder");
+        testDocsFolder.setPropertyValue("dc:title", "test-pdfutils");
+        testDocsFolder = coreSession.createDocument(testDocsFolder);
+        testDocsFolder = coreSession.saveDocument(testDocsFolder);
+    }
+
+    @After
+    public void cleanup() {
+
+        coreSession.removeDocument(testDocsFolder.getRef());
+        coreSession.save();
+
+        utils.cleanup();
+    }
+
+    protected BlobList buildBlobList() {
+
+        BlobList bl = new BlobList();
+        bl.add(new FileBlob(FileUtils.getResourceFileFromContext(PDF_1)));
+        bl.add(new FileBlob(FileUtils.getResourceFileFromContext(PDF_2)));
+        bl.add(new FileBlob(FileUtils.getResourceFileFromContext(PDF_3)));
+        return bl;
+    }
+
+    protected void checkHasText(Blob inBlob, int inPage, String inExpected)
+            throws IOException {
+
+        PDDocument doc = PDDocument.load(inBlob.getStream());
+        utils.track(doc);
+
+        String text = utils.extractText(doc, inPage, inPage);
+        assertTrue("Expecting " + inExpected + " in page " + inPage,
+                text.indexOf(inExpected) > -1);
+
+        doc.close();
+        utils.untrack(doc);
+    }
+
+    @Test
+    public void testFormatNumber() {
+
+        assertEquals("ACME000042",
+                PDFPageNumbering.formatNumber(42, "ACME", 6));
+        assertEquals("1234567", PDFPageNumbering.formatNumber(1234567, null, 6));
+        assertEquals("7", PDFPageNumbering.formatNumber(7, "", 0));
+    }
+
+    @Test
+    public void testPageCountAndRanges() throws Exception {
+
+        BlobList bl = buildBlobList();
+        assertEquals(2, PDFUtils.getPageCount(bl.get(0)));
+        assertEquals(3, PDFUtils.getPageCount(bl.get(1)));
+        assertEquals(1, PDFUtils.getPageCount(bl.get(2)));
+
+        PDFBatesNumbering bates = new PDFBatesNumbering(bl).setStartAtNumber(10);
+        int[] ranges = bates.computeRanges();
+        assertArrayEquals(new int[] { 10, 12, 15, 15 }, ranges);
+    }
+
+    @Test
+    public void testBatesNumbering() throws Exception {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        long total = registry.timer(PDFMetrics.name("bates", "total")).getCount();
+        long transform = registry.timer(
+                PDFMetrics.name("bates", "transform")).getCount();
+        long bytesOut = registry.meter(PDFMetrics.name("bates", "bytesOut")).getCount();
+
+        BlobList bl = buildBlobList();
+        BlobList result = new PDFBatesNumbering(bl).setPrefix("ACME").setThreads(
+                2).number();
+
+        // The batch is measured as its own action
+        assertEquals(total + 1,
+                registry.timer(PDFMetrics.name("bates", "total")).getCount());
+        assertEquals(transform + 1, registry.timer(
+                PDFMetrics.name("bates", "transform")).getCount());
+        long resultBytes = 0;
+        for (Blob blob : result) {
+            resultBytes += blob.getLength();
+        }
+        assertEquals(bytesOut + resultBytes, registry.meter(
+                PDFMetrics.name("bates", "bytesOut")).getCount());
+
+        assertEquals(3, result.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(bl.get(i).getFilename(), result.get(i).getFilename());
+        }
+        checkHasText(result.get(0), 1, "ACME000001");
+        checkHasText(result.get(0), 2, "ACME000002");
+        checkHasText(result.get(1), 1, "ACME000003");
+        checkHasText(result.get(1), 3, "ACME000005");
+        checkHasText(result.get(2), 1, "ACME000006");
+    }
+
+    @Test
+    public void testBatesNumberingOperation() throws Exception {
+
+        DocumentModelList docs = new DocumentModelListImpl();
+        docs.add(utils.createDocumentFromFile(coreSession, testDocsFolder,
+                "File", PDF_3));
+        docs.add(utils.createDocumentFromFile(coreSession, testDocsFolder,
+                "File", PDF_1));
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(docs);
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(BatesNumberingOp.ID).set("prefix", "DOC-").set("digits", 4).set(
+                "startAtNumber", 100);
+
+        BlobList result = (BlobList) automationService.run(ctx, chain);
+        assertNotNull(result);
+        assertEquals(2, result.size());
+        checkHasText(result.get(0), 1, "DOC-0100");
+        checkHasText(result.get(1), 1, "DOC-0101");
+        checkHasText(result.get(1), 2, "DOC-0102");
+    }
+}
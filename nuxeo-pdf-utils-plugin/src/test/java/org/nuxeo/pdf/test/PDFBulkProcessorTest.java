@@ -0,0 +1,271 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationChain;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFBulkProcessor;
+import org.nuxeo.pdf.operations.BulkOp;
+import org.nuxeo.pdf.operations.WatermarkWithTextOp;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.transaction.TransactionHelper;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class,
+        EmbeddedAutomationServerFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+public class PDFBulkProcessorTest {
+
+    private static final String THE_PDF = "files/pdf-1-2pages.pdf";
+
+    private static final int PDF_COUNT = 5;
+
+    protected TestUtils utils;
+
+    protected DocumentModel testDocsFolder;
+
+    protected List<DocumentModel> pdfDocs;
+
+    @Inject
+    CoreSession coreSession;
+
+    @Inject
+    AutomationService automationService;
+
+    @Before
+    public void setup() throws Exception {
+
+        utils = new TestUtils();
+
+        testDocsFolder = coreSession.createDocumentModel("/", "test-bulk",
+                "Folder");
+        testDocsFolder.setPropertyValue("dc:title", "test-pdfutils");
+        testDocsFolder = coreSession.createDocument(testDocsFolder);
+
+        pdfDocs = new ArrayList<DocumentModel>();
+        for (int i = 0; i < PDF_COUNT; i++) {
+            pdfDocs.add(createFile("pdf-" + i, new FileBlob(
+                    FileUtils.getResourceFileFromContext(THE_PDF))));
+        }
+        // Skipped: No blob
+        createFile("no-blob", null);
+        // Failed: Not a pdf
+        createFile("not-a-pdf", new StringBlob("Not a pdf", "text/plain"));
+        coreSession.save();
+    }
+
+    @After
+    public void cleanup() {
+
+        coreSession.removeDocument(testDocsFolder.getRef());
+        coreSession.save();
+        utils.cleanup();
+    }
+
+    protected DocumentModel createFile(String inName, Blob inBlob) {
+
+        DocumentModel doc = coreSession.createDocumentModel(
+                testDocsFolder.getPathAsString(), inName, "File");
+        doc.setPropertyValue("dc:title", inName);
+        if (inBlob != null) {
+            inBlob.setFilename(inName + ".pdf");
+            doc.setPropertyValue("file:content", inBlob);
+        }
+        return coreSession.createDocument(doc);
+    }
+
+    protected String getQuery() {
+        return "SELECT * FROM File WHERE ecm:path STARTSWITH '"
+                + testDocsFolder.getPathAsString()
+                + "' AND ecm:isCheckedInVersion = 0 ORDER BY dc:title";
+    }
+
+    protected void checkWatermarked() throws Exception {
+
+        for (DocumentModel doc : pdfDocs) {
+            Blob blob = (Blob) coreSession.getDocument(doc.getRef()).getPropertyValue(
+                    "file:content");
+            PDDocument pdf = PDDocument.load(blob.getStream());
+            utils.track(pdf);
+            assertEquals(2, pdf.getNumberOfPages());
+            assertTrue(utils.extractText(pdf, 1, 1).indexOf("CONFIDENTIAL") > -1);
+            pdf.close();
+            utils.untrack(pdf);
+        }
+    }
+
+    @Test
+    public void testBulk() throws Exception {
+
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put("watermark", "CONFIDENTIAL");
+        // Small pages and batches: Several cursors, several transactions
+        PDFBulkProcessor.Report report = new PDFBulkProcessor(coreSession,
+                getQuery()).setOperation(WatermarkWithTextOp.ID, params).setInputXPath(
+                "file:content").setResultXPath("file:content").setThreads(2).setBatchSize(
+                2).setPageSize(3).setMaxPending(1).setCommitTransaction(true).run();
+
+        assertEquals(PDF_COUNT, report.getProcessed());
+        assertEquals(1, report.getSkipped());
+        assertEquals(1, report.getFailed());
+        assertEquals(1, report.getErrors().size());
+
+        checkWatermarked();
+    }
+
+    @Test
+    public void testTransactionPerPage() throws Exception {
+
+        assertTrue(TransactionHelper.isTransactionActive());
+        final List<Boolean> pagesInTransaction = new ArrayList<Boolean>();
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put("watermark", "CONFIDENTIAL");
+        PDFBulkProcessor processor = new PDFBulkProcessor(coreSession,
+                getQuery()) {
+            @Override
+            protected List<String> nextPage(String inAfterId) {
+                pagesInTransaction.add(TransactionHelper.isTransactionActive());
+                return super.nextPage(inAfterId);
+            }
+        };
+        PDFBulkProcessor.Report report = processor.setOperation(
+                WatermarkWithTextOp.ID, params).setInputXPath("file:content").setResultXPath(
+                "file:content").setPageSize(3).setCommitTransaction(true).run();
+
+        assertEquals(PDF_COUNT, report.getProcessed());
+        // 7 documents: 3 pages, each read in its own transaction
+        assertEquals(3, pagesInTransaction.size());
+        assertFalse(pagesInTransaction.contains(Boolean.FALSE));
+        // The caller gets a transaction back
+        assertTrue(TransactionHelper.isTransactionActive());
+
+        checkWatermarked();
+    }
+
+    @Test
+    public void testBulkOperation() throws Exception {
+
+        OperationContext ctx = new OperationContext(coreSession);
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(BulkOp.ID).set("query", getQuery()).set("operationId",
+                WatermarkWithTextOp.ID).set("parameters",
+                "watermark=CONFIDENTIAL").set("resultXPath", "file:content").set(
+                "commitTransaction", true);
+
+        Blob report = (Blob) automationService.run(ctx, chain);
+        assertEquals("application/json", report.getMimeType());
+        String json = report.getString();
+        assertTrue(json.indexOf("\"processed\":" + PDF_COUNT) > -1);
+        assertTrue(json.indexOf("\"skipped\":1") > -1);
+        assertTrue(json.indexOf("\"failed\":1") > -1);
+
+        checkWatermarked();
+    }
+
+    @Test
+    public void testRequiresCommitTransaction() throws Exception {
+
+        assertTrue(TransactionHelper.isTransactionActive());
+        HashMap<String, String> params = new HashMap<String, String>();
+        params.put("watermark", "CONFIDENTIAL");
+        try {
+            new PDFBulkProcessor(coreSession, getQuery()).setOperation(
+                    WatermarkWithTextOp.ID, params).run();
+            fail("Expected a failure");
+        } catch (ClientException e) {
+            // Expected: The caller did not allow committing its transaction
+        }
+        assertTrue(TransactionHelper.isTransactionActive());
+    }
+
+    @Test
+    public void testRejectsNonPDFOperation() throws Exception {
+
+        String[] rejected = { "Document.Delete", BulkOp.ID, "PDF.RunAsync" };
+        for (String operationId : rejected) {
+            try {
+                new PDFBulkProcessor(coreSession, getQuery()).setOperation(
+                        operationId, null);
+                fail(operationId + " should be rejected");
+            } catch (ClientException e) {
+                // Expected
+            }
+
+            OperationContext ctx = new OperationContext(coreSession);
+            OperationChain chain = new OperationChain("testChain");
+            chain.add(BulkOp.ID).set("query", getQuery()).set("operationId",
+                    operationId).set("commitTransaction", true);
+            try {
+                automationService.run(ctx, chain);
+                fail(operationId + " should be rejected");
+            } catch (Exception e) {
+                // Expected
+            }
+        }
+        // Nothing was deleted
+        assertEquals(PDF_COUNT + 2,
+                coreSession.getChildren(testDocsFolder.getRef()).size());
+    }
+
+    @Test
+    public void testMaxThreads() throws Exception {
+
+        PDFBulkProcessor processor = new PDFBulkProcessor(coreSession,
+                getQuery());
+        assertEquals(2, processor.setThreads(2).getThreads());
+        assertEquals(1, processor.setThreads(0).getThreads());
+        // Default nuxeo.pdfutils.bulk.maxThreads
+        assertEquals(8, processor.setThreads(1000).getThreads());
+    }
+
+    @Test
+    public void testInvalidQuery() throws Exception {
+
+        try {
+            new PDFBulkProcessor(coreSession, "File WHERE dc:title = 'x'");
+            fail("Expected a failure");
+        } catch (Exception e) {
+            // Expected: Not an NXQL query
+        }
+    }
+}
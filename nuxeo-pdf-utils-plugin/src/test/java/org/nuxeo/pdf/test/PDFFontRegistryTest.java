@@ -0,0 +1,211 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDStream;
+import org.apache.pdfbox.pdmodel.edit.PDPageContentStream;
+import org.apache.pdfbox.pdmodel.font.PDFont;
+import org.apache.pdfbox.pdmodel.font.PDFontDescriptorDictionary;
+import org.apache.pdfbox.pdmodel.font.PDTrueTypeFont;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
+import org.apache.pdfbox.util.PDFTextStripper;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFUtils;
+import org.nuxeo.pdf.fonts.PDFFontRegistry;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+import org.nuxeo.runtime.test.runner.LocalDeploy;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class,
+        EmbeddedAutomationServerFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+@LocalDeploy({ "nuxeo-pdf-utils-plugin:test-fonts-contrib.xml" })
+public class PDFFontRegistryTest {
+
+    /*
+     * Box glyphs for the printable ASCII characters, PostScript name
+     * NuxeoTest-Regular
+     */
+    private static final String THE_TTF = "files/test-font.ttf";
+
+    private static final String FONT_FILE_PROPERTY = "nuxeo.pdfutils.test.fontFile";
+
+    private static final String THE_TEXT = "Hello Nuxeo";
+
+    @Inject
+    PDFFontRegistry fontRegistry;
+
+    TestUtils utils;
+
+    @Before
+    public void setup() {
+        utils = new TestUtils();
+    }
+
+    @After
+    public void cleanup() {
+        utils.cleanup();
+    }
+
+    @Test
+    public void testRegistry() throws Exception {
+
+        assertNotNull(fontRegistry);
+        assertTrue(fontRegistry.hasFont("TestCorporate"));
+        assertTrue(fontRegistry.getFontNames().contains("TestMissingFile"));
+        assertFalse(fontRegistry.hasFont("Helvetica"));
+
+        PDDocument doc = new PDDocument();
+        try {
+            // Alias to a standard font
+            assertSame(PDType1Font.HELVETICA_BOLD,
+                    fontRegistry.getFont(doc, "TestCorporate"));
+            // Standard fonts and default
+            assertSame(PDType1Font.TIMES_ROMAN,
+                    PDFUtils.getFont(doc, "Times-Roman"));
+            assertSame(PDType1Font.HELVETICA, PDFUtils.getFont(doc, null));
+            // Unknown: Helvetica
+            assertSame(PDType1Font.HELVETICA,
+                    PDFUtils.getFont(doc, "SomeUnknownFont"));
+
+            try {
+                fontRegistry.getFont(doc, "TestMissingFile");
+                fail("Expected an IOException");
+            } catch (IOException e) {
+                // Expected
+            }
+        } finally {
+            doc.close();
+        }
+    }
+
+    @Test
+    public void testTrueTypeFont() throws Exception {
+
+        // Work on a copy of the font, deleted once the font is loaded
+        File ttf = File.createTempFile("test-font", ".ttf");
+        utils.track(ttf);
+        FileUtils.copy(FileUtils.getResourceFileFromContext(THE_TTF), ttf);
+        Framework.getProperties().setProperty(FONT_FILE_PROPERTY,
+                ttf.getAbsolutePath());
+
+        PDDocument doc1 = new PDDocument();
+        PDDocument doc2 = new PDDocument();
+        utils.track(doc1);
+        utils.track(doc2);
+        try {
+            PDFont font1 = fontRegistry.getFont(doc1, "TestTrueType");
+            assertTrue(font1 instanceof PDTrueTypeFont);
+            assertEquals("NuxeoTest-Regular", font1.getBaseFont());
+            long size = ttf.length();
+            checkEmbedded(font1, size);
+
+            // Parsed once: The second document does not read the file again
+            assertTrue(ttf.delete());
+            PDFont font2 = fontRegistry.getFont(doc2, "TestTrueType");
+            assertTrue(font2 instanceof PDTrueTypeFont);
+            assertNotSame(font1.getCOSObject(), font2.getCOSObject());
+            assertEquals(font1.getWidths(), font2.getWidths());
+            checkEmbedded(font2, size);
+
+            // Render text with it
+            PDPage page = new PDPage();
+            doc2.addPage(page);
+            PDPageContentStream content = new PDPageContentStream(doc2, page);
+            content.beginText();
+            content.setFont(font2, 36);
+            content.moveTextPositionByAmount(50, 600);
+            content.drawString(THE_TEXT);
+            content.endText();
+            content.close();
+
+            File pdf = File.createTempFile("test-font", ".pdf");
+            utils.track(pdf);
+            doc2.save(pdf);
+
+            PDDocument saved = PDDocument.load(pdf);
+            utils.track(saved);
+            try {
+                assertEquals(THE_TEXT,
+                        new PDFTextStripper().getText(saved).trim());
+
+                PDPage savedPage = (PDPage) saved.getDocumentCatalog().getAllPages().get(
+                        0);
+                PDFont savedFont = savedPage.getResources().getFonts().values().iterator().next();
+                assertEquals("NuxeoTest-Regular", savedFont.getBaseFont());
+                checkEmbedded(savedFont, size);
+
+                BufferedImage image = savedPage.convertToImage(
+                        BufferedImage.TYPE_INT_RGB, 72);
+                int dark = 0;
+                for (int x = 0; x < image.getWidth(); x++) {
+                    for (int y = 0; y < image.getHeight(); y++) {
+                        if ((image.getRGB(x, y) & 0xFF) < 128) {
+                            dark++;
+                        }
+                    }
+                }
+                assertTrue(dark > 0);
+            } finally {
+                saved.close();
+                utils.untrack(saved);
+            }
+        } finally {
+            doc1.close();
+            doc2.close();
+            utils.untrack(doc1);
+            utils.untrack(doc2);
+            Framework.getProperties().remove(FONT_FILE_PROPERTY);
+        }
+    }
+
+    /*
+     * The font program is embedded as /FontFile2, with its original length
+     */
+    protected void checkEmbedded(PDFont inFont, long inLength)
+            throws IOException {
+
+        PDFontDescriptorDictionary fd = (PDFontDescriptorDictionary) inFont.getFontDescriptor();
+        assertNotNull(fd);
+        PDStream fontFile = fd.getFontFile2();
+        assertNotNull(fontFile);
+        assertNull(fd.getFontFile());
+        assertNull(fd.getFontFile3());
+        assertEquals(inLength, fontFile.getStream().getInt("Length1"));
+        assertEquals(inLength, fontFile.getByteArray().length);
+    }
+}
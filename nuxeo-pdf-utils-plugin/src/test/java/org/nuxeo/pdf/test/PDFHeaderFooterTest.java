@@ -0,0 +1,178 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationChain;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFHeaderFooter;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.nuxeo.pdf.PDFTextTemplate;
+import org.nuxeo.pdf.operations.AddHeaderFooterOp;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class,
+        EmbeddedAutomationServerFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+public class PDFHeaderFooterTest {
+
+    private static final String THE_PDF = "files/13-pages-no-page-numbers.pdf";
+
+    protected File pdfFile;
+
+    protected FileBlob pdfFileBlob;
+
+    protected TestUtils utils;
+
+    protected DocumentModel testDocsFolder;
+
+    @Inject
+    CoreSession coreSession;
+
+    @Inject
+    AutomationService automationService;
+
+    @Before
+    public void setup() throws IOException {
+
+        utils = new TestUtils();
+
+        assertNotNull(coreSession);
+        assertNotNull(automationService);
+
+        testDocsFolder = coreSession.createDocumentModel("/", "test-pictures",
+                "Folder");
+        testDocsFolder.setPropertyValue("dc:title", "test-pdfutils");
+        testDocsFolder = coreSession.createDocument(testDocsFolder);
+        testDocsFolder = coreSession.saveDocument(testDocsFolder);
+
+        pdfFile = FileUtils.getResourceFileFromContext(THE_PDF);
+        pdfFileBlob = new FileBlob(pdfFile);
+    }
+
+    @After
+    public void cleanup() {
+
+        coreSession.removeDocument(testDocsFolder.getRef());
+        coreSession.save();
+
+        utils.cleanup();
+    }
+
+    protected String getPageText(Blob inBlob, int inPage) throws IOException {
+
+        PDDocument doc = PDDocument.load(inBlob.getStream());
+        utils.track(doc);
+
+        String text = utils.extractText(doc, inPage, inPage);
+
+        doc.close();
+        utils.untrack(doc);
+
+        return text;
+    }
+
+    @Test
+    public void testTemplate() {
+
+        PDFTextTemplate t = PDFTextTemplate.get("Page ${page} of ${total} - ${dc:title}");
+        assertSame(t, PDFTextTemplate.get("Page ${page} of ${total} - ${dc:title}"));
+        assertTrue(t.isPageDependent());
+        assertEquals(3, t.getVariables().size());
+
+        Map<String, String> values = new HashMap<String, String>();
+        values.put("dc:title", "ACME");
+        assertEquals("Page 3 of 40 - ACME", t.render(values, 3, 40));
+        assertEquals("Page 3 of 40 - ", t.render(null, 3, 40));
+
+        t = PDFTextTemplate.get("Confidential ${unclosed");
+        assertFalse(t.isPageDependent());
+        assertEquals("Confidential ${unclosed", t.render(null, 1, 1));
+    }
+
+    @Test
+    public void testHeaderFooter() throws Exception {
+
+        PDFHeaderFooter hf = new PDFHeaderFooter(pdfFileBlob);
+        hf.setText(PAGE_NUMBER_POSITION.BOTTOM_CENTER,
+                "Confidential - Page ${page} of ${total}");
+        hf.setText(PAGE_NUMBER_POSITION.TOP_LEFT, "Printed ${date}");
+        hf.setText(PAGE_NUMBER_POSITION.TOP_RIGHT, "${filename}");
+        Blob result = hf.apply();
+        assertNotNull(result);
+        assertEquals(pdfFileBlob.getFilename(), result.getFilename());
+
+        String today = new SimpleDateFormat(PDFHeaderFooter.DEFAULT_DATE_FORMAT).format(new Date());
+        for (int page : new int[] { 1, 3, 13 }) {
+            String text = getPageText(result, page);
+            assertTrue(text.indexOf("Confidential - Page " + page + " of 13") > -1);
+            assertTrue(text.indexOf("Printed " + today) > -1);
+            assertTrue(text.indexOf(pdfFileBlob.getFilename()) > -1);
+        }
+    }
+
+    @Test
+    public void testHeaderFooterOperation() throws Exception {
+
+        DocumentModel doc = utils.createDocumentFromFile(coreSession,
+                testDocsFolder, "File", THE_PDF);
+        doc.setPropertyValue("dc:title", "ACME Report");
+        doc = coreSession.saveDocument(doc);
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(doc);
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(AddHeaderFooterOp.ID).set("topCenter", "${dc:title}").set(
+                "bottomRight", "${page}/${total}").set("startAtPage", 2);
+
+        Blob result = (Blob) automationService.run(ctx, chain);
+        assertNotNull(result);
+
+        // First page is not numbered
+        assertEquals(-1, getPageText(result, 1).indexOf("ACME Report"));
+        String text = getPageText(result, 2);
+        assertTrue(text.indexOf("ACME Report") > -1);
+        assertTrue(text.indexOf("1/12") > -1);
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.ClientException;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.impl.blob.StringBlob;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFMetrics;
+import org.nuxeo.pdf.PDFScratch;
+import org.nuxeo.pdf.PDFWatermarking;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+public class PDFMetricsTest {
+
+    private static final String THE_PDF = "files/13-pages-no-page-numbers.pdf";
+
+    protected long errorCount(MetricRegistry inRegistry, String inAction) {
+
+        long count = 0;
+        String prefix = PDFMetrics.name(inAction, "errors.");
+        for (Map.Entry<String, Counter> e : inRegistry.getCounters().entrySet()) {
+            if (e.getKey().startsWith(prefix)) {
+                count += e.getValue().getCount();
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testWatermarkMetrics() throws Exception {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        String action = "watermark.text";
+        long total = registry.timer(PDFMetrics.name(action, "total")).getCount();
+        long load = registry.timer(PDFMetrics.name(action, "load")).getCount();
+        long save = registry.timer(PDFMetrics.name(action, "save")).getCount();
+        long pages = registry.meter(PDFMetrics.name(action, "pages")).getCount();
+        long bytesOut = registry.meter(PDFMetrics.name(action, "bytesOut")).getCount();
+
+        Blob blob = new FileBlob(FileUtils.getResourceFileFromContext(THE_PDF));
+        Blob result = new PDFWatermarking(blob).setText("CONFIDENTIAL").watermark();
+
+        assertEquals(total + 1,
+                registry.timer(PDFMetrics.name(action, "total")).getCount());
+        assertEquals(load + 1,
+                registry.timer(PDFMetrics.name(action, "load")).getCount());
+        assertEquals(save + 1,
+                registry.timer(PDFMetrics.name(action, "save")).getCount());
+        assertEquals(pages + 13,
+                registry.meter(PDFMetrics.name(action, "pages")).getCount());
+        assertEquals(bytesOut + result.getLength(),
+                registry.meter(PDFMetrics.name(action, "bytesOut")).getCount());
+    }
+
+    @Test
+    public void testErrorMetrics() throws Exception {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        String action = "watermark.text";
+        long errors = errorCount(registry, action);
+        long total = registry.timer(PDFMetrics.name(action, "total")).getCount();
+
+        try {
+            new PDFWatermarking(new StringBlob("Not a pdf")).setText(
+                    "CONFIDENTIAL").watermark();
+            fail("A ClientException should have been thrown");
+        } catch (ClientException e) {
+            // Expected
+        }
+
+        assertEquals(errors + 1, errorCount(registry, action));
+        // Failed calls are timed too
+        assertEquals(total + 1,
+                registry.timer(PDFMetrics.name(action, "total")).getCount());
+    }
+
+    @Test
+    public void testTempFileBytesPeak() throws Exception {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        Histogram tempFileBytes = registry.histogram(PDFMetrics.name(
+                "watermark.text", "tempFileBytes"));
+        long count = tempFileBytes.getCount();
+
+        Blob blob = new FileBlob(FileUtils.getResourceFileFromContext(THE_PDF));
+        Blob result = new PDFWatermarking(blob).setText("CONFIDENTIAL").watermark();
+
+        // The result is in the scratch space while the run is in progress
+        assertEquals(count + 1, tempFileBytes.getCount());
+        assertTrue(tempFileBytes.getSnapshot().getMax() >= result.getLength());
+        PDFScratch.release(result);
+
+        // A run records the peak of its own files, not the space used when
+        // it stops, nor the files of the other threads
+        PDFMetrics.Run run = PDFMetrics.start("test.scratch", null);
+        Object marker1 = new Object(), marker2 = new Object(), marker3 = new Object();
+        File f1 = createScratchFile(1000, marker1);
+        File f2 = createScratchFile(2000, marker2);
+        PDFScratch.release(f1);
+        File f3 = createScratchFile(500, marker3);
+        final Object otherMarker = new Object();
+        final File[] other = new File[1];
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    other[0] = createScratchFile(10000, otherMarker);
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotNull(other[0]);
+        PDFScratch.release(other[0]);
+        PDFScratch.release(f2);
+        PDFScratch.release(f3);
+        run.stop();
+        assertNull(PDFMetrics.getCurrent());
+        // Reachable until their files are released
+        assertNotNull(marker1);
+        assertNotNull(marker2);
+        assertNotNull(marker3);
+        Histogram testHistogram = registry.histogram(PDFMetrics.name(
+                "test.scratch", "tempFileBytes"));
+        assertEquals(1, testHistogram.getCount());
+        assertEquals(3000, testHistogram.getSnapshot().getMax());
+    }
+
+    @Test
+    public void testNestedRuns() throws Exception {
+
+        MetricRegistry registry = PDFMetrics.getRegistry();
+        PDFMetrics.Run outer = PDFMetrics.start("test.outer", null);
+        PDFMetrics.Run inner = PDFMetrics.start("test.inner", null);
+        assertSame(inner, PDFMetrics.getCurrent());
+        Object marker = new Object();
+        File f = createScratchFile(1000, marker);
+        inner.stop();
+        assertSame(outer, PDFMetrics.getCurrent());
+        PDFScratch.release(f);
+        outer.stop();
+        assertNull(PDFMetrics.getCurrent());
+        assertNotNull(marker);
+
+        // The files of a nested run count in the enclosing one
+        assertEquals(1000, registry.histogram(PDFMetrics.name("test.inner",
+                "tempFileBytes")).getSnapshot().getMax());
+        assertEquals(1000, registry.histogram(PDFMetrics.name("test.outer",
+                "tempFileBytes")).getSnapshot().getMax());
+    }
+
+    protected File createScratchFile(int inLength, Object inMarker)
+            throws Exception {
+
+        File f = PDFScratch.createFile(".tmp");
+        Files.write(f.toPath(), new byte[inLength]);
+        PDFScratch.track(f, inMarker);
+        return f;
+    }
+}
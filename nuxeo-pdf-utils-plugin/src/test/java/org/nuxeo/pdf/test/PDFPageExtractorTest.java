@@ -144,6 +144,20 @@ public class PDFPageExtractorTest {
 
     }
 
+    @Test
+    public void testExtractPages_AllPages() throws Exception {
+
+        String originalName = pdfFileBlob.getFilename().replace(".pdf", "");
+        PDFPageExtractor pe = new PDFPageExtractor(pdfFileBlob);
+
+        // Nothing to extract: Reads the original file
+        Blob extracted = pe.extract(1, 1000);
+        assertTrue(extracted instanceof FileBlob);
+        assertEquals(pdfFileBlob.getFile(), ((FileBlob) extracted).getFile());
+        assertEquals(originalName + "-1-1000.pdf", extracted.getFilename());
+        assertEquals("application/pdf", extracted.getMimeType());
+    }
+
     @Test
     public void testExtractPages_WithCustomFileName() throws Exception {
 
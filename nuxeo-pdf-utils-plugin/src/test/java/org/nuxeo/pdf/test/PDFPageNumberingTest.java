@@ -19,10 +19,15 @@ package org.nuxeo.pdf.test;
 
 import static org.junit.Assert.*;
 
+import java.awt.geom.Point2D;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+
 import org.apache.pdfbox.exceptions.COSVisitorException;
 import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
 import org.apache.pdfbox.util.PDFTextStripper;
 import org.junit.After;
 import org.junit.Before;
@@ -38,6 +43,7 @@ import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
 import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.nuxeo.pdf.PDFPageGeometry;
 import org.nuxeo.pdf.PDFPageNumbering;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
@@ -214,4 +220,50 @@ public class PDFPageNumberingTest {
                 PAGE_NUMBER_POSITION.TOP_LEFT);
 
     }
+
+    @Test
+    public void testRotatedAndCroppedPages() throws Exception {
+
+        PDDocument doc = PDDocument.load(pdfFile);
+        utils.track(doc);
+
+        List<?> allPages = doc.getDocumentCatalog().getAllPages();
+        PDRectangle media = ((PDPage) allPages.get(0)).findMediaBox();
+        PDRectangle crop = new PDRectangle(50, 60, media.getWidth() - 100,
+                media.getHeight() - 120);
+        for (int i = 0; i < 2; i++) {
+            PDPage page = (PDPage) allPages.get(i);
+            page.setRotation(90);
+            page.setCropBox(crop);
+        }
+
+        PDFPageGeometry.Resolver resolver = new PDFPageGeometry.Resolver();
+        PDFPageGeometry g1 = resolver.get((PDPage) allPages.get(0));
+        PDFPageGeometry g2 = resolver.get((PDPage) allPages.get(1));
+        PDFPageGeometry g3 = resolver.get((PDPage) allPages.get(2));
+        assertSame(g1, g2);
+        assertNotSame(g1, g3);
+        assertEquals(2, resolver.getFormatCount());
+
+        // Displayed dimensions are swapped, the origin is the lower left
+        // corner of the crop box as displayed
+        assertEquals(crop.getHeight(), g1.getWidth(), 0.01);
+        assertEquals(crop.getWidth(), g1.getHeight(), 0.01);
+        Point2D origin = g1.getTransform().transform(new Point2D.Float(0, 0),
+                null);
+        assertEquals(crop.getUpperRightX(), origin.getX(), 0.01);
+        assertEquals(crop.getLowerLeftY(), origin.getY(), 0.01);
+        assertEquals(media.getWidth(), g3.getWidth(), 0.01);
+
+        PDFPageNumbering pn = new PDFPageNumbering(pdfFileBlob);
+        pn.addPageNumbers(doc, 1, 1, null, 0, "ff0000",
+                PAGE_NUMBER_POSITION.BOTTOM_RIGHT);
+        for (int i = 1; i <= 3; i++) {
+            String text = utils.extractText(doc, i, i);
+            assertTrue(text.indexOf("" + i) > -1);
+        }
+
+        doc.close();
+        utils.untrack(doc);
+    }
 }
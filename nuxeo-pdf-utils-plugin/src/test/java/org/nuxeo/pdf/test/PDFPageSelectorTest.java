@@ -0,0 +1,101 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.nuxeo.pdf.PDFPageSelector;
+
+public class PDFPageSelectorTest {
+
+    protected boolean[] select(String inExpression, int inPageCount) {
+
+        PDFPageSelector selector = PDFPageSelector.parse(inExpression);
+        boolean[] result = new boolean[inPageCount];
+        for (int i = 1; i <= inPageCount; i++) {
+            result[i - 1] = selector.matches(i, inPageCount, null);
+        }
+        return result;
+    }
+
+    @Test
+    public void testAll() throws Exception {
+
+        assertTrue(PDFPageSelector.parse(null).isAll());
+        assertTrue(PDFPageSelector.parse("").isAll());
+        assertTrue(PDFPageSelector.parse("all").isAll());
+        assertTrue(PDFPageSelector.parse("2, all").isAll());
+    }
+
+    @Test
+    public void testPagesAndRanges() throws Exception {
+
+        assertArrayEquals(new boolean[] { true, false, true, false, true },
+                select("odd", 5));
+        assertArrayEquals(new boolean[] { false, true, false, true, false },
+                select("even", 5));
+        assertArrayEquals(new boolean[] { true, false, false, false, true },
+                select("first, last", 5));
+        assertArrayEquals(new boolean[] { false, true, true, false, false },
+                select("2-3", 5));
+        assertArrayEquals(new boolean[] { false, false, true, true, true },
+                select("3-", 5));
+        assertArrayEquals(new boolean[] { true, true, false, false, false },
+                select("-2", 5));
+        assertArrayEquals(new boolean[] { false, false, false, true, true },
+                select("4-last", 5));
+        assertArrayEquals(new boolean[] { true, false, false, true, false },
+                select(" 1 , 4 ", 5));
+    }
+
+    @Test
+    public void testSelectsNone() throws Exception {
+
+        assertTrue(PDFPageSelector.parse("100-").selectsNone(13, 1));
+        assertTrue(PDFPageSelector.parse("1-3").selectsNone(13, 5));
+        // Start page greater than the page count: Reset to 1
+        assertFalse(PDFPageSelector.parse("1-3").selectsNone(13, 20));
+        assertFalse(PDFPageSelector.parse("even").selectsNone(13, 1));
+        assertFalse(PDFPageSelector.parse(null).selectsNone(0, 1));
+        // Depends on the size of the pages
+        assertFalse(PDFPageSelector.parse("100-, landscape").selectsNone(13,
+                1));
+    }
+
+    @Test
+    public void testInvalidExpressions() throws Exception {
+
+        for (String expr : new String[] { "abc", "1-x", "width", "height~3",
+                "width>big" }) {
+            try {
+                PDFPageSelector.parse(expr);
+                fail("<" + expr + "> should be invalid");
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testSizeCriteria() throws Exception {
+
+        assertTrue(PDFPageSelector.parse("landscape").usesGeometry());
+        assertTrue(PDFPageSelector.parse("1, width>600").usesGeometry());
+        assertFalse(PDFPageSelector.parse("1-3").usesGeometry());
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.apache.pdfbox.pdmodel.common.PDRectangle;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotation;
+import org.apache.pdfbox.pdmodel.interactive.annotation.PDAnnotationText;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDDocumentOutline;
+import org.apache.pdfbox.pdmodel.interactive.documentnavigation.outline.PDOutlineItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationChain;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.core.util.BlobList;
+import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFMerge;
+import org.nuxeo.pdf.PDFPageNumbering;
+import org.nuxeo.pdf.PDFPageNumbering.PAGE_NUMBER_POSITION;
+import org.nuxeo.pdf.PDFPipeline;
+import org.nuxeo.pdf.PDFWatermarking;
+import org.nuxeo.pdf.operations.PipelineOp;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class,
+        EmbeddedAutomationServerFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+public class PDFPipelineTest {
+
+    protected static final String MERGEPDF_1 = "files/pdf-1-2pages.pdf";
+
+    protected static final String MERGEPDF_2 = "files/pdf-2-3pages.pdf";
+
+    protected static final String MERGEPDF_3 = "files/pdf-3-1page.pdf";
+
+    protected TestUtils utils;
+
+    protected BlobList blobs;
+
+    @Inject
+    CoreSession coreSession;
+
+    @Inject
+    AutomationService automationService;
+
+    @Before
+    public void setup() throws IOException {
+
+        utils = new TestUtils();
+
+        blobs = new BlobList();
+        blobs.add(new FileBlob(FileUtils.getResourceFileFromContext(MERGEPDF_1)));
+        blobs.add(new FileBlob(FileUtils.getResourceFileFromContext(MERGEPDF_2)));
+        blobs.add(new FileBlob(FileUtils.getResourceFileFromContext(MERGEPDF_3)));
+    }
+
+    @After
+    public void cleanup() {
+
+        utils.cleanup();
+    }
+
+    /*
+     * Merged: 6 pages, numbered, watermarked, with a title
+     */
+    protected void checkResult(Blob inBlob) throws IOException {
+
+        assertNotNull(inBlob);
+
+        PDDocument doc = PDDocument.load(inBlob.getStream());
+        utils.track(doc);
+
+        assertEquals(6, doc.getNumberOfPages());
+        assertEquals("The Title", doc.getDocumentInformation().getTitle());
+        for (int i = 1; i <= 6; i++) {
+            String text = utils.extractText(doc, i, i);
+            assertTrue(text.indexOf("CONFIDENTIAL") > -1);
+            assertTrue(text.indexOf("" + i) > -1);
+        }
+
+        doc.close();
+        utils.untrack(doc);
+    }
+
+    @Test
+    public void testPipeline() throws Exception {
+
+        PDFPipeline pipeline = new PDFPipeline(blobs);
+        // The merge of the other blobs is the first stage
+        assertEquals(1, pipeline.getStageCount());
+
+        Blob result = pipeline.pageNumbers(new PDFPageNumbering((Blob) null),
+                1, 1, null, 0, "Helvetica", 10, "#000000",
+                PAGE_NUMBER_POSITION.BOTTOM_RIGHT).watermark(
+                new PDFWatermarking((Blob) null).setText("CONFIDENTIAL")).setInfos(
+                "The Title", null, null).setFileName("result.pdf").run();
+
+        checkResult(result);
+        assertEquals("result.pdf", result.getFilename());
+    }
+
+    @Test
+    public void testPipelineWithoutStage() throws Exception {
+
+        Blob blob = blobs.get(0);
+        assertSame(blob, new PDFPipeline(blob).run());
+    }
+
+    @Test
+    public void testPipelineOperation() throws Exception {
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(blobs);
+
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(PipelineOp.ID).set(
+                "stages",
+                "pageNumbers|position=Bottom center|fontSize=10\n"
+                        + "# A comment\n"
+                        + "watermarkText|watermark=CONFIDENTIAL|fontSize=48|textRotation=45\n"
+                        + "info|title=The Title");
+
+        Blob result = (Blob) automationService.run(ctx, chain);
+        checkResult(result);
+    }
+
+    @Test
+    public void testMergeWithBookmarksIncremental() throws Exception {
+
+        // Classic xref table: Saved as an incremental update
+        Blob base = blobs.get(0);
+        File bookmarked = createBookmarkedPdf(3);
+
+        Blob result = new PDFPipeline(base).setIncrementalSave(true).merge(
+                new PDFMerge(new FileBlob(bookmarked))).watermark(
+                new PDFWatermarking((Blob) null).setText("CONFIDENTIAL")).run();
+
+        // The original bytes, unchanged, then the update
+        byte[] original = base.getByteArray();
+        byte[] updated = result.getByteArray();
+        assertTrue(updated.length > original.length);
+        for (int i = 0; i < original.length; i++) {
+            assertEquals(original[i], updated[i]);
+        }
+        utils.checkXrefOffsets(updated, original.length);
+
+        PDDocument doc = PDDocument.loadNonSeq(result.getStream(), null);
+        utils.track(doc);
+        List<?> pages = doc.getDocumentCatalog().getAllPages();
+        assertEquals(5, pages.size());
+        for (int i = 1; i <= 5; i++) {
+            assertTrue(utils.extractText(doc, i, i).contains("CONFIDENTIAL"));
+        }
+
+        // The bookmarks (/Parent, /Prev, /Next) and the annotation (/P) of
+        // the merged pages
+        PDDocumentOutline outline = doc.getDocumentCatalog().getDocumentOutline();
+        assertNotNull(outline);
+        PDOutlineItem chapter = outline.getFirstChild();
+        assertEquals("Chapter", chapter.getTitle());
+        int count = 0;
+        for (PDOutlineItem item = chapter.getFirstChild(); item != null; item = item.getNextSibling()) {
+            count += 1;
+            assertEquals("Page " + count, item.getTitle());
+            assertSame(((PDPage) pages.get(1 + count)).getCOSDictionary(),
+                    item.findDestinationPage(doc).getCOSDictionary());
+            if (count > 1) {
+                assertEquals("Page " + (count - 1),
+                        item.getPreviousSibling().getTitle());
+            }
+        }
+        assertEquals(3, count);
+
+        PDPage merged = (PDPage) pages.get(2);
+        List<PDAnnotation> annotations = merged.getAnnotations();
+        assertEquals(1, annotations.size());
+        assertSame(merged.getCOSDictionary(),
+                annotations.get(0).getDictionary().getDictionaryObject(
+                        COSName.P));
+
+        doc.close();
+        utils.untrack(doc);
+    }
+
+    /*
+     * Pages with a bookmark each, and a note on the first page
+     */
+    protected File createBookmarkedPdf(int inPageCount) throws Exception {
+
+        File f = File.createTempFile("test-bookmarks", ".pdf");
+        utils.track(f);
+
+        PDDocument doc = new PDDocument();
+        utils.track(doc);
+        PDDocumentOutline outline = new PDDocumentOutline();
+        doc.getDocumentCatalog().setDocumentOutline(outline);
+        PDOutlineItem chapter = new PDOutlineItem();
+        chapter.setTitle("Chapter");
+        outline.appendChild(chapter);
+        for (int i = 1; i <= inPageCount; i++) {
+            PDPage page = new PDPage();
+            doc.addPage(page);
+            PDOutlineItem item = new PDOutlineItem();
+            item.setTitle("Page " + i);
+            item.setDestination(page);
+            chapter.appendChild(item);
+            if (i == 1) {
+                PDAnnotationText note = new PDAnnotationText();
+                note.setRectangle(new PDRectangle(50, 50));
+                note.setContents("A note");
+                note.getDictionary().setItem(COSName.P, page);
+                page.getAnnotations().add(note);
+            }
+        }
+        doc.save(f);
+        doc.close();
+        utils.untrack(doc);
+
+        return f;
+    }
+}
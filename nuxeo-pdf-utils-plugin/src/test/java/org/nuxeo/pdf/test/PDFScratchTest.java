@@ -0,0 +1,246 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFMetrics;
+import org.nuxeo.pdf.PDFScratch;
+import org.nuxeo.pdf.PDFWatermarking;
+import org.nuxeo.runtime.api.Framework;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+public class PDFScratchTest {
+
+    private static final String THE_PDF = "files/13-pages-no-page-numbers.pdf";
+
+    // To call purgeRun()
+    protected static class TestScratch extends PDFScratch {
+
+        protected static void purgeOtherRun(File inDir, long inBefore) {
+            purgeRun(inDir, inBefore);
+        }
+
+        protected static boolean isReaperRunning() {
+            return reaper != null && reaper.isAlive();
+        }
+    }
+
+    protected Blob watermark() {
+        Blob blob = new FileBlob(FileUtils.getResourceFileFromContext(THE_PDF));
+        return new PDFWatermarking(blob).setText("CONFIDENTIAL").watermark();
+    }
+
+    @Test
+    public void testRelease() throws Exception {
+
+        long used = PDFScratch.getUsedBytes();
+        long released = PDFMetrics.getRegistry().counter(
+                PDFMetrics.name(PDFScratch.METRICS_ACTION, "released")).getCount();
+
+        Blob result = watermark();
+        File f = ((FileBlob) result).getFile();
+        assertEquals(PDFScratch.getDirectory(), f.getParentFile());
+        assertEquals(used + f.length(), PDFScratch.getUsedBytes());
+
+        assertTrue(PDFScratch.release(result));
+        assertFalse(f.exists());
+        assertEquals(used, PDFScratch.getUsedBytes());
+        assertEquals(released + 1, PDFMetrics.getRegistry().counter(
+                PDFMetrics.name(PDFScratch.METRICS_ACTION, "released")).getCount());
+    }
+
+    @Test
+    public void testScope() throws Exception {
+
+        long used = PDFScratch.getUsedBytes();
+        Blob kept;
+        File released;
+        PDFScratch.Scope scope = PDFScratch.openScope();
+        try {
+            released = ((FileBlob) watermark()).getFile();
+            kept = watermark();
+            scope.keep(kept);
+        } finally {
+            scope.close();
+        }
+
+        assertFalse(released.exists());
+        assertTrue(((FileBlob) kept).getFile().exists());
+        assertTrue(PDFScratch.release(kept));
+        assertEquals(used, PDFScratch.getUsedBytes());
+    }
+
+    @Test
+    public void testDirectory() throws Exception {
+
+        File dir = PDFScratch.getDirectory();
+        assertTrue(dir.isDirectory());
+        assertTrue(dir.getName().startsWith(PDFScratch.RUN_PREFIX));
+        assertTrue(new File(dir, PDFScratch.LOCK_FILE).isFile());
+        assertEquals(dir, PDFScratch.getDirectory());
+
+        // Other processes sharing the base directory
+        File base = dir.getParentFile();
+        File gone = new File(base, PDFScratch.RUN_PREFIX + "test-gone");
+        File live = new File(base, PDFScratch.RUN_PREFIX + "test-live");
+        File noLock = new File(base, PDFScratch.RUN_PREFIX + "test-nolock");
+        try {
+            long before = System.currentTimeMillis()
+                    - TimeUnit.DAYS.toMillis(1);
+            long twoDaysAgo = System.currentTimeMillis()
+                    - TimeUnit.DAYS.toMillis(2);
+
+            // Gone: Its lock is free, even its recent files are deleted
+            File goneFile = new File(new File(gone, "jobs"), "result");
+            goneFile.getParentFile().mkdirs();
+            goneFile.createNewFile();
+            new File(gone, PDFScratch.LOCK_FILE).createNewFile();
+            TestScratch.purgeOtherRun(gone, before);
+            assertFalse(gone.exists());
+
+            // Live: Its lock is held, even its old files are kept
+            File liveFile = new File(new File(live, "jobs"), "result");
+            liveFile.getParentFile().mkdirs();
+            liveFile.createNewFile();
+            liveFile.setLastModified(twoDaysAgo);
+            try (FileChannel channel = new RandomAccessFile(new File(live,
+                    PDFScratch.LOCK_FILE), "rw").getChannel()) {
+                FileLock lock = channel.lock();
+                TestScratch.purgeOtherRun(live, before);
+                lock.release();
+            }
+            assertTrue(liveFile.exists());
+
+            // No lock file: Only its old files are deleted
+            noLock.mkdirs();
+            File oldFile = new File(noLock, PDFScratch.FILE_PREFIX + "1.pdf");
+            oldFile.createNewFile();
+            oldFile.setLastModified(twoDaysAgo);
+            File recentFile = new File(noLock, PDFScratch.FILE_PREFIX
+                    + "2.pdf");
+            recentFile.createNewFile();
+            TestScratch.purgeOtherRun(noLock, before);
+            assertFalse(oldFile.exists());
+            assertTrue(recentFile.exists());
+        } finally {
+            FileUtils.deleteTree(gone);
+            FileUtils.deleteTree(live);
+            FileUtils.deleteTree(noLock);
+        }
+    }
+
+    @Test
+    public void testStartStop() throws Exception {
+
+        // Started by PDFScratchComponent
+        String name = PDFMetrics.name(PDFScratch.METRICS_ACTION, "usedBytes");
+        assertTrue(PDFMetrics.getRegistry().getGauges().containsKey(name));
+        assertTrue(TestScratch.isReaperRunning());
+        try {
+            PDFScratch.stop();
+            assertFalse(PDFMetrics.getRegistry().getGauges().containsKey(name));
+            assertFalse(TestScratch.isReaperRunning());
+
+            // Still usable, createFile() deletes the leaked files
+            Blob result = watermark();
+            assertTrue(PDFScratch.release(result));
+        } finally {
+            PDFScratch.start();
+        }
+        assertTrue(PDFMetrics.getRegistry().getGauges().containsKey(name));
+        assertTrue(TestScratch.isReaperRunning());
+    }
+
+    @Test
+    public void testQuota() throws Exception {
+
+        Blob result = watermark();
+        Framework.getProperties().setProperty(PDFScratch.QUOTA_PROPERTY, "1");
+        try {
+            // Over 1MB tracked
+            while (PDFScratch.getUsedBytes() < 1024 * 1024) {
+                File f = PDFScratch.createFile(".pdf");
+                result.transferTo(f);
+                PDFScratch.track(f, result);
+            }
+            try {
+                PDFScratch.createFile(".pdf");
+                fail("Expected a failure");
+            } catch (IOException e) {
+                // Expected: Quota reached
+            }
+        } finally {
+            Framework.getProperties().remove(PDFScratch.QUOTA_PROPERTY);
+            for (File f : PDFScratch.getDirectory().listFiles()) {
+                if (f.isFile()) {
+                    PDFScratch.release(f);
+                }
+            }
+        }
+        assertEquals(0, PDFScratch.getUsedBytes());
+    }
+
+    @Test
+    public void testQuotaCountsPendingFiles() throws Exception {
+
+        long pending = PDFScratch.getPendingBytes();
+        Framework.getProperties().setProperty(PDFScratch.QUOTA_PROPERTY, "1");
+        File big = PDFScratch.createFile(".pdf");
+        try {
+            // Being written, not tracked yet
+            try (RandomAccessFile raf = new RandomAccessFile(big, "rw")) {
+                raf.setLength(1024 * 1024);
+            }
+            assertEquals(pending + 1024 * 1024, PDFScratch.getPendingBytes());
+            try {
+                PDFScratch.createFile(".pdf");
+                fail("Expected a failure");
+            } catch (IOException e) {
+                // Expected: Quota reached
+            }
+        } finally {
+            Framework.getProperties().remove(PDFScratch.QUOTA_PROPERTY);
+            PDFScratch.release(big);
+        }
+        assertEquals(pending, PDFScratch.getPendingBytes());
+
+        // Forgotten when deleted by its creator
+        File f = PDFScratch.createFile(".pdf");
+        assertTrue(f.delete());
+        assertEquals(pending, PDFScratch.getPendingBytes());
+    }
+}
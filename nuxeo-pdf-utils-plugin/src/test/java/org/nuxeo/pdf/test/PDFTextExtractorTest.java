@@ -21,6 +21,12 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.junit.After;
@@ -32,12 +38,20 @@ import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.OperationChain;
 import org.nuxeo.ecm.automation.OperationContext;
 import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.blobholder.BlobHolder;
+import org.nuxeo.ecm.core.api.blobholder.SimpleBlobHolder;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.convert.api.ConversionService;
+import org.nuxeo.ecm.core.convert.service.ConversionServiceImpl;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFPositionalText;
+import org.nuxeo.pdf.convert.PDFToTextConverter;
 import org.nuxeo.pdf.PDFTextExtractor;
+import org.nuxeo.pdf.PDFTextExtractor.LineMatch;
 import org.nuxeo.pdf.operations.ExtractTextFromPDFOp;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
@@ -48,7 +62,8 @@ import com.google.inject.Inject;
 @RunWith(FeaturesRunner.class)
 @Features({ PlatformFeature.class, CoreFeature.class,
         EmbeddedAutomationServerFeature.class })
-@Deploy({ "nuxeo-pdf-utils-plugin" })
+@Deploy({ "org.nuxeo.ecm.core.convert.api", "org.nuxeo.ecm.core.convert",
+        "org.nuxeo.ecm.core.convert.plugins", "nuxeo-pdf-utils-plugin" })
 public class PDFTextExtractorTest {
 
     private static final String THE_PDF = "files/fakecontract.pdf";
@@ -69,6 +84,9 @@ public class PDFTextExtractorTest {
     @Inject
     AutomationService automationService;
 
+    @Inject
+    ConversionService conversionService;
+
     /*
      * The file must have 13 pages
      */
@@ -132,6 +150,150 @@ public class PDFTextExtractorTest {
         assertEquals("123456789", extractedLine);
     }
 
+    @Test
+    public void testFindLinesOf() throws IOException {
+        CountingTextExtractor textExtractor = new CountingTextExtractor(
+                pdfFileBlob);
+
+        // "Contract Number: " is in the first page: Early stop
+        LineMatch match = textExtractor.findLineOf("Contract Number: ");
+        assertEquals("Contract Number: 123456789", match.getLine());
+        assertEquals(1, match.getPageNumber());
+        assertEquals(Arrays.asList(1), textExtractor.stripped);
+
+        // "Toto" is not found, so every page is read, each one once
+        Map<String, LineMatch> matches = textExtractor.findLinesOf(
+                Arrays.asList("Contract Number: ", "13.1", "Toto"));
+        assertEquals(2, matches.size());
+        assertNull(matches.get("Toto"));
+        assertEquals(1, matches.get("Contract Number: ").getPageNumber());
+        assertEquals(6, matches.get("13.1").getPageNumber());
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), textExtractor.stripped);
+
+        // Starting with the page we know, and last page then the others
+        LineMatch again = textExtractor.findLineOf("Contract Number: ",
+                match.getPageNumber());
+        assertEquals(match.getLine(), again.getLine());
+        assertEquals(match.getPageNumber(), again.getPageNumber());
+
+        again = textExtractor.findLineOf("Contract Number: ", 1, -1);
+        assertEquals(match.getLine(), again.getLine());
+
+        assertNull(textExtractor.findLineOf("Toto", 1, -1));
+
+        // Everything came from the pages already stripped
+        assertEquals(6, textExtractor.stripped.size());
+        assertEquals(1, textExtractor.loads);
+        textExtractor.close();
+
+        // Last page first: The other pages are not read
+        textExtractor = new CountingTextExtractor(pdfFileBlob);
+        match = textExtractor.findLineOf("13.1", -1);
+        assertEquals(6, match.getPageNumber());
+        assertEquals(Arrays.asList(6), textExtractor.stripped);
+        textExtractor.close();
+    }
+
+    @Test
+    public void testExtractLineOfLoadsOnce() throws IOException {
+        CountingTextExtractor textExtractor = new CountingTextExtractor(
+                pdfFileBlob);
+        try {
+            assertEquals("Contract Number: 123456789",
+                    textExtractor.extractLineOf("Contract Number: "));
+            assertEquals("123456789",
+                    textExtractor.extractLastPartOfLine("Contract Number: "));
+            assertNotNull(textExtractor.extractLineOf("13.1"));
+            assertNull(textExtractor.extractLineOf("Toto"));
+
+            assertEquals(1, textExtractor.loads);
+            assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6),
+                    textExtractor.stripped);
+        } finally {
+            textExtractor.close();
+        }
+    }
+
+    @Test
+    public void testPositionalText() throws IOException {
+        PDFTextExtractor textExtractor = new PDFTextExtractor(pdfFileBlob);
+        PDFPositionalText positional = textExtractor.getPositionalText();
+        assertNotNull(positional);
+        assertEquals(6, positional.getPages().size());
+
+        // Find the "Contract" word and check its box is in the page
+        boolean gotIt = false;
+        for (PDFPositionalText.Page page : positional.getPages()) {
+            assertEquals(page.getWordCount() * 4, page.getWordBoxes().length);
+            assertEquals(page.getLineCount() * 4, page.getLineBoxes().length);
+            for (int i = 0; i < page.getWordCount(); i++) {
+                if ("Contract".equals(page.getWord(i))) {
+                    float[] boxes = page.getWordBoxes();
+                    assertTrue(boxes[i * 4] >= 0);
+                    assertTrue(boxes[i * 4 + 2] > 0);
+                    assertTrue(boxes[i * 4] + boxes[i * 4 + 2] <= page.getWidth());
+                    gotIt = true;
+                }
+            }
+        }
+        assertTrue(gotIt);
+
+        // Serialization
+        PDFPositionalText copy = PDFPositionalText.fromBytes(positional.toBytes());
+        assertEquals(positional.toJSON(), copy.toJSON());
+        assertTrue(positional.toJSON().startsWith("{\"version\":1,\"pages\":["));
+    }
+
+    @Test
+    public void testExtractTextWithLimits() throws IOException {
+        String all = new PDFTextExtractor(pdfFileBlob).getAllExtractedLines();
+
+        PDFTextExtractor textExtractor = new PDFTextExtractor(pdfFileBlob);
+        String firstPage = textExtractor.setMaxPages(1).getAllExtractedLines();
+        assertTrue(firstPage.length() > 0);
+        assertTrue(firstPage.length() < all.length());
+        assertTrue(all.startsWith(firstPage));
+
+        String truncated = textExtractor.setMaxPages(0).setMaxBytes(50).getAllExtractedLines();
+        assertTrue(truncated.length() <= 50);
+        assertTrue(all.startsWith(truncated));
+
+        // Limits removed: same text as before
+        assertEquals(all, textExtractor.setMaxBytes(0).getAllExtractedLines());
+    }
+
+    @Test
+    public void testPdf2TextConverter() throws Exception {
+        String all = new PDFTextExtractor(pdfFileBlob).getAllExtractedLines();
+
+        PDFToTextConverter converter = new PDFToTextConverter();
+        BlobHolder result = converter.convert(new SimpleBlobHolder(pdfFileBlob),
+                new HashMap<String, Serializable>());
+        assertEquals("text/plain", result.getBlob().getMimeType());
+        assertEquals(all, result.getBlob().getString());
+
+        HashMap<String, Serializable> params = new HashMap<String, Serializable>();
+        params.put(PDFToTextConverter.MAX_PAGES_PARAMETER, "1");
+        result = converter.convert(new SimpleBlobHolder(pdfFileBlob), params);
+        assertTrue(result.getBlob().getString().length() < all.length());
+    }
+
+    @Test
+    public void testPdf2TextConverterOverride() throws Exception {
+
+        // Replaces the default pdf2text of the conversion service
+        assertTrue(ConversionServiceImpl.getConverter("pdf2text") instanceof PDFToTextConverter);
+        assertEquals("pdf2text", conversionService.getConverterName(
+                "application/pdf", "text/plain"));
+
+        BlobHolder result = conversionService.convert("pdf2text",
+                new SimpleBlobHolder(pdfFileBlob),
+                new HashMap<String, Serializable>());
+        assertEquals(
+                new PDFTextExtractor(pdfFileBlob).getAllExtractedLines(),
+                result.getBlob().getString());
+    }
+
     @Test
     public void testExtractTextOperation() throws Exception {
 
@@ -166,4 +328,34 @@ public class PDFTextExtractorTest {
 
     }
 
+
+    /*
+     * Records the PDF loads and the pages stripped
+     */
+    protected static class CountingTextExtractor extends PDFTextExtractor {
+
+        protected int loads = 0;
+
+        protected List<Integer> stripped = new ArrayList<Integer>();
+
+        public CountingTextExtractor(Blob inBlob) {
+            super(inBlob);
+        }
+
+        @Override
+        protected PDDocument getPagesDocument() throws IOException {
+            if (pagesDoc == null) {
+                loads += 1;
+            }
+            return super.getPagesDocument();
+        }
+
+        @Override
+        protected String stripPage(PDDocument inDoc, int inPage)
+                throws IOException {
+            stripped.add(inPage);
+            return super.stripPage(inDoc, inPage);
+        }
+    }
+
 }
@@ -20,9 +20,16 @@ package org.nuxeo.pdf.test;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.io.OutputStream;
+import java.io.Serializable;
 
+import org.apache.pdfbox.cos.COSArray;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDDocumentInformation;
+import org.apache.pdfbox.pdmodel.PDPage;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -30,12 +37,19 @@ import org.junit.runner.RunWith;
 import org.nuxeo.common.utils.FileUtils;
 import org.nuxeo.ecm.automation.AutomationService;
 import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
 import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.ByteArrayBlob;
 import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.storage.binary.BinaryBlob;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFIncrementalSave;
+import org.nuxeo.pdf.PDFOutput;
 import org.nuxeo.pdf.PDFUtils;
+import org.nuxeo.pdf.PDFWatermarking;
+import org.nuxeo.runtime.api.Framework;
 import org.nuxeo.runtime.test.runner.Deploy;
 import org.nuxeo.runtime.test.runner.Features;
 import org.nuxeo.runtime.test.runner.FeaturesRunner;
@@ -148,6 +162,25 @@ public class PDFUtilsTest {
         utils.untrack(doc);
     }
 
+    @Test
+    public void test_getPageCount() throws Exception {
+
+        // Read in place
+        assertEquals(pdfFile, PDFUtils.getLocalFile(pdfFileBlob));
+        assertEquals(13, PDFUtils.getPageCount(pdfFileBlob));
+
+        // The binary of the document
+        Blob stored = (Blob) coreSession.getDocument(pdfDocModel.getRef()).getPropertyValue(
+                "file:content");
+        assertEquals(13, PDFUtils.getPageCount(stored));
+
+        // Through the stream
+        Blob inMemory = new ByteArrayBlob(
+                FileUtils.readBytes(pdfFile), "application/pdf");
+        assertNull(PDFUtils.getLocalFile(inMemory));
+        assertEquals(13, PDFUtils.getPageCount(inMemory));
+    }
+
     @Test
     public void test_checkXPath() throws Exception {
 
@@ -185,4 +218,136 @@ public class PDFUtilsTest {
         doc.close();
         utils.untrack(doc);
     }
+
+    @Test
+    public void test_incrementalSave() throws Exception {
+
+        PDFIncrementalSave save = PDFIncrementalSave.load(pdfFileBlob, true);
+        Blob result;
+        try {
+            PDFUtils.setInfos(save.getDocument(), "The Title", null, null);
+            new PDFWatermarking(pdfFileBlob).setText("incremental").watermark(
+                    save.getDocument());
+            result = save.save();
+        } finally {
+            save.close();
+        }
+
+        assertTrue(save.isIncremental());
+        // The original bytes are unchanged, the update follows them
+        byte[] original = pdfFileBlob.getByteArray();
+        byte[] updated = result.getByteArray();
+        assertTrue(updated.length > original.length);
+        for (int i = 0; i < original.length; i++) {
+            assertEquals(original[i], updated[i]);
+        }
+
+        PDDocument doc = PDDocument.load(result.getStream());
+        utils.track(doc);
+        assertEquals("The Title", doc.getDocumentInformation().getTitle());
+        assertEquals(13, doc.getNumberOfPages());
+        for (int i = 1; i <= 13; i++) {
+            assertTrue(utils.extractText(doc, i, i).contains("incremental"));
+        }
+        doc.close();
+        utils.untrack(doc);
+
+        // Blob level
+        result = PDFUtils.setInfos(pdfFileBlob, null, "The Subject", null);
+        doc = PDDocument.load(result.getStream());
+        utils.track(doc);
+        assertEquals("Untitled 3", doc.getDocumentInformation().getTitle());
+        assertEquals("The Subject", doc.getDocumentInformation().getSubject());
+        doc.close();
+        utils.untrack(doc);
+    }
+
+    @Test
+    public void test_incrementalSaveStreamData() throws Exception {
+
+        // Only the data of the content streams of the first page changes,
+        // not their dictionary
+        PDFIncrementalSave save = PDFIncrementalSave.load(pdfFileBlob, true);
+        Blob result;
+        try {
+            PDPage page = (PDPage) save.getDocument().getDocumentCatalog().getAllPages().get(
+                    0);
+            COSBase contents = page.getCOSDictionary().getDictionaryObject(
+                    COSName.CONTENTS);
+            COSArray streams = new COSArray();
+            if (contents instanceof COSArray) {
+                streams = (COSArray) contents;
+            } else {
+                streams.add(contents);
+            }
+            for (int i = 0; i < streams.size(); i++) {
+                COSStream stream = (COSStream) streams.getObject(i);
+                try (OutputStream out = stream.createUnfilteredStream()) {
+                    out.write("q Q".getBytes("ISO-8859-1"));
+                }
+            }
+            result = save.save();
+        } finally {
+            save.close();
+        }
+        assertTrue(save.isIncremental());
+
+        PDDocument doc = PDDocument.load(result.getStream());
+        utils.track(doc);
+        assertEquals("", utils.extractText(doc, 1, 1).trim());
+        assertFalse(utils.extractText(doc, 2, 2).trim().isEmpty());
+        doc.close();
+        utils.untrack(doc);
+    }
+
+    @Test
+    public void test_setInfosUnchanged() throws Exception {
+
+        // Nothing to set, or the values of the document: Nothing is written
+        assertSame(pdfFileBlob,
+                PDFUtils.setInfos(pdfFileBlob, null, "", null));
+        assertSame(pdfFileBlob,
+                PDFUtils.setInfos(pdfFileBlob, "Untitled 3", null, null));
+    }
+
+    @Test
+    public void test_saveInBinaryStore() throws Exception {
+
+        Framework.getProperties().setProperty(PDFOutput.BINARY_STORE_PROPERTY,
+                "true");
+        Blob result;
+        PDDocument doc = PDDocument.load(pdfFile);
+        utils.track(doc);
+        try {
+            PDFUtils.setInfos(doc, "The Title", null, null);
+            result = PDFUtils.save(doc);
+        } finally {
+            Framework.getProperties().remove(PDFOutput.BINARY_STORE_PROPERTY);
+            doc.close();
+            utils.untrack(doc);
+        }
+
+        // The test repository uses a local binary manager: The digest was
+        // computed while writing
+        assertTrue(result instanceof BinaryBlob);
+        assertEquals(utils.calculateMd5(result), result.getDigest());
+
+        pdfDocModel.setPropertyValue("file:content", (Serializable) result);
+        pdfDocModel = coreSession.saveDocument(pdfDocModel);
+        Blob saved = (Blob) pdfDocModel.getPropertyValue("file:content");
+        assertEquals(result.getDigest(), saved.getDigest());
+
+        doc = PDDocument.load(saved.getStream());
+        utils.track(doc);
+        assertEquals("The Title", doc.getDocumentInformation().getTitle());
+        doc.close();
+        utils.untrack(doc);
+
+        // Not enabled: A temporary file
+        doc = PDDocument.load(pdfFile);
+        utils.track(doc);
+        assertTrue(PDFUtils.save(doc) instanceof FileBlob);
+        doc.close();
+        utils.untrack(doc);
+    }
 }
@@ -21,15 +21,22 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSDictionary;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSStream;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.pdmodel.PDPage;
 import org.apache.pdfbox.pdmodel.PDResources;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObject;
 import org.apache.pdfbox.pdmodel.graphics.xobject.PDXObjectImage;
+import org.apache.pdfbox.pdmodel.font.PDType1Font;
 import org.apache.pdfbox.util.PDFTextStripper;
+import org.apache.pdfbox.util.TextPosition;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -46,7 +53,11 @@ import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
 import org.nuxeo.ecm.core.api.CoreSession;
 import org.nuxeo.ecm.core.test.CoreFeature;
 import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.pdf.PDFIncrementalBase;
+import org.nuxeo.pdf.PDFPreparedImage;
+import org.nuxeo.pdf.PDFPreparedOverlay;
 import org.nuxeo.pdf.PDFWatermarking;
+import org.nuxeo.pdf.operations.WatermarkForDownloadOp;
 import org.nuxeo.pdf.operations.WatermarkWithImageOp;
 import org.nuxeo.pdf.operations.WatermarkWithPDFOp;
 import org.nuxeo.pdf.operations.WatermarkWithTextOp;
@@ -226,6 +237,90 @@ public class PDFWatermarkingTest {
         // }
     }
 
+    @Test
+    public void testWatermarkIsOneSharedForm() throws Exception {
+
+        PDFWatermarking pdfw = new PDFWatermarking(pdfFileBlob);
+        String watermark = java.util.UUID.randomUUID().toString();
+        Blob result = pdfw.setText(watermark).watermark();
+
+        PDDocument doc = PDDocument.load(result.getStream());
+        utils.track(doc);
+
+        COSBase form = null;
+        List<?> allPages = doc.getDocumentCatalog().getAllPages();
+        for (Object o : allPages) {
+            COSDictionary xobjects = (COSDictionary) ((PDPage) o).findResources().getCOSDictionary().getDictionaryObject(
+                    COSName.XOBJECT);
+            assertNotNull(xobjects);
+            COSBase pageForm = xobjects.getDictionaryObject("NxWatermark");
+            assertTrue(pageForm instanceof COSStream);
+            if (form == null) {
+                form = pageForm;
+            } else {
+                assertSame(form, pageForm);
+            }
+        }
+
+        doc.close();
+        utils.untrack(doc);
+
+        checkHasWatermarkOnAllPages(result, watermark);
+    }
+
+    @Test
+    public void testCenteredOnRotatedPages() throws Exception {
+
+        String watermark = "CENTERED";
+        float width = PDType1Font.HELVETICA.getStringWidth(watermark)
+                * PDFWatermarking.DEFAULT_FONT_SIZE / 1000f;
+
+        // Letter page, 612 x 792, displayed as 792 x 612
+        PDDocument doc = new PDDocument();
+        utils.track(doc);
+        PDPage page = new PDPage();
+        page.setRotation(90);
+        doc.addPage(page);
+        PDFWatermarking pdfw = new PDFWatermarking(pdfFileBlob);
+        pdfw.setText(watermark).setXPosition(10).setYPosition(10).watermark(
+                doc);
+        TextPosition first = getFirstTextPosition(doc);
+        assertEquals((792 - width) / 2, first.getX(), 1);
+        assertEquals(306, first.getY(), 1);
+        doc.close();
+        utils.untrack(doc);
+
+        doc = new PDDocument();
+        utils.track(doc);
+        page = new PDPage();
+        page.setRotation(90);
+        doc.addPage(page);
+        pdfw = new PDFWatermarking(pdfFileBlob);
+        pdfw.setText(watermark).setXPosition(10).setYPosition(10).setCenterOnRotatedPages(
+                false).watermark(doc);
+        first = getFirstTextPosition(doc);
+        assertEquals(10, first.getX(), 1);
+        // y of TextPosition starts at the top of the page
+        assertEquals(612 - 10, first.getY(), 1);
+        doc.close();
+        utils.untrack(doc);
+    }
+
+    protected TextPosition getFirstTextPosition(PDDocument inDoc)
+            throws IOException {
+
+        final List<TextPosition> positions = new ArrayList<TextPosition>();
+        PDFTextStripper stripper = new PDFTextStripper() {
+            @Override
+            protected void processTextPosition(TextPosition inText) {
+                positions.add(inText);
+            }
+        };
+        stripper.getText(inDoc);
+        assertFalse(positions.isEmpty());
+        return positions.get(0);
+    }
+
     @Test
     public void testEmptyStringReturnsRawCopy() throws Exception {
 
@@ -237,6 +332,18 @@ public class PDFWatermarkingTest {
         result = pdfw.watermark();
 
         assertEquals(originalMd5, utils.calculateMd5(result));
+        // Not even copied
+        assertSame(pdfFileBlob, result);
+    }
+
+    @Test
+    public void testNoPageSelectedReturnsOriginal() throws Exception {
+
+        PDFWatermarking pdfw = new PDFWatermarking(pdfFileBlob);
+        pdfw.setText("CONFIDENTIAL").setPages("100-");
+
+        assertSame(pdfFileBlob, pdfw.watermark());
+        assertSame(pdfFileBlob, pdfw.watermarkIncremental());
     }
 
     @Test
@@ -292,6 +399,22 @@ public class PDFWatermarkingTest {
         }
     }
 
+    @Test
+    public void testPdfOverlayIsPreparedOnce() throws Exception {
+
+        FileBlob overlayBlob = new FileBlob(
+                FileUtils.getResourceFileFromContext("files/pdf-3-1page.pdf"));
+
+        PDFPreparedOverlay overlay = PDFPreparedOverlay.get(overlayBlob);
+        assertEquals(1, overlay.getPageCount());
+        assertSame(overlay, PDFPreparedOverlay.get(new FileBlob(
+                FileUtils.getResourceFileFromContext("files/pdf-3-1page.pdf"))));
+
+        PDFWatermarking pdfw = new PDFWatermarking(pdfFileBlob);
+        Blob result = pdfw.watermarkWithPdf(overlayBlob);
+        checkHasWatermarkOnAllPages(result, "This is pdf 3");
+    }
+
     /*
      * Just checking on width/height here.
      */
@@ -329,6 +452,26 @@ public class PDFWatermarkingTest {
         utils.untrack(doc);
     }
 
+    @Test
+    public void testPreparedImages() throws Exception {
+
+        FileBlob jpeg = new FileBlob(
+                FileUtils.getResourceFileFromContext(IMAGE_FOR_WATERMARK_JPEG));
+        PDFPreparedImage image = PDFPreparedImage.get(jpeg);
+        assertTrue(image.isJpeg());
+        // Embedded as is
+        assertEquals(jpeg.getLength(), image.getSize());
+        assertSame(image, PDFPreparedImage.get(new FileBlob(
+                FileUtils.getResourceFileFromContext(IMAGE_FOR_WATERMARK_JPEG))));
+
+        FileBlob png = new FileBlob(
+                FileUtils.getResourceFileFromContext(IMAGE_FOR_WATERMARK_PNG));
+        image = PDFPreparedImage.get(png);
+        assertFalse(image.isJpeg());
+        assertEquals(IMAGE_FOR_WATERMARK_PNG_WIDTH, image.getWidth());
+        assertEquals(IMAGE_FOR_WATERMARK_PNG_HEIGHT, image.getHeight());
+    }
+
     @Test
     public void testWatermarkWithImagePNG() throws Exception {
 
@@ -495,4 +638,94 @@ public class PDFWatermarkingTest {
                     "test-images-withOverlayPNG-operation.pdf");
         }
     }
+
+    @Test
+    public void testWatermarkIncremental() throws Exception {
+
+        PDFWatermarking pdfw = new PDFWatermarking(pdfFileBlob);
+        String watermark = java.util.UUID.randomUUID().toString();
+        Blob result = pdfw.setText(watermark).watermarkIncremental();
+
+        checkHasWatermarkOnAllPages(result, watermark);
+
+        // Classic xref table, not encrypted: Updated incrementally
+        PDFIncrementalBase base = PDFIncrementalBase.get(pdfFileBlob);
+        assertTrue(base.isSupported());
+        assertEquals(13, base.getPageCount());
+        // The original bytes are unchanged, the update follows them
+        byte[] original = pdfFileBlob.getByteArray();
+        byte[] updated = result.getByteArray();
+        assertTrue(updated.length > original.length);
+        assertEquals(updated.length, result.getLength());
+        for (int i = 0; i < original.length; i++) {
+            assertEquals(original[i], updated[i]);
+        }
+        utils.checkXrefOffsets(updated, original.length);
+        assertSame(base, PDFIncrementalBase.get(pdfFileBlob));
+    }
+
+    @Test
+    public void testWatermarkForDownloadOperation() throws Exception {
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(pdfFileBlob);
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(WatermarkForDownloadOp.ID).set("watermark",
+                "Downloaded by ${user} - ${filename}");
+
+        Blob result = (Blob) automationService.run(ctx, chain);
+        assertNotNull(result);
+
+        checkHasWatermarkOnAllPages(result, "Downloaded by "
+                + coreSession.getPrincipal().getName() + " - "
+                + pdfFileBlob.getFilename());
+    }
+
+    @Test
+    public void testTiledWatermark() throws Exception {
+
+        Blob single = new PDFWatermarking(pdfFileBlob).setText("CONFIDENTIAL").setTextRotation(
+                45).watermark();
+        Blob tiled = new PDFWatermarking(pdfFileBlob).setText("CONFIDENTIAL").setTextRotation(
+                45).setTiled(true).watermark();
+
+        // The text is defined once, whatever the number of repetitions
+        assertTrue(tiled.getLength() - single.getLength() < 2048);
+
+        PDDocument doc = PDDocument.load(tiled.getStream());
+        utils.track(doc);
+
+        PDPage page = (PDPage) doc.getDocumentCatalog().getAllPages().get(0);
+        COSDictionary xobjects = (COSDictionary) page.findResources().getCOSDictionary().getDictionaryObject(
+                COSName.XOBJECT);
+        COSStream form = (COSStream) xobjects.getDictionaryObject("NxWatermark");
+        COSDictionary formResources = (COSDictionary) form.getDictionaryObject(COSName.RESOURCES);
+        COSDictionary patterns = (COSDictionary) formResources.getDictionaryObject("Pattern");
+        assertNotNull(patterns);
+        COSStream pattern = (COSStream) patterns.getDictionaryObject("P1");
+        assertEquals(1, pattern.getInt("PatternType"));
+        assertEquals(1, pattern.getInt("PaintType"));
+
+        doc.close();
+        utils.untrack(doc);
+    }
+
+    @Test
+    public void testWatermarkSelectedPages() throws Exception {
+
+        Blob result = new PDFWatermarking(pdfFileBlob).setText("SELECTED").setPages(
+                "odd").watermark();
+
+        PDDocument doc = PDDocument.load(result.getStream());
+        utils.track(doc);
+
+        assertEquals(13, doc.getNumberOfPages());
+        for (int i = 1; i <= 13; i++) {
+            String text = extractText(doc, i, i);
+            assertEquals("Page " + i, i % 2 == 1, text.indexOf("SELECTED") > -1);
+        }
+
+        doc.close();
+        utils.untrack(doc);
+    }
 }
@@ -0,0 +1,299 @@
+/*
+ * (C) Copyright 2014 Nuxeo SA (http://nuxeo.com/) and contributors.
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Lesser General Public License
+ * (LGPL) version 2.1 which accompanies this distribution, and is available at
+ * http://www.gnu.org/licenses/lgpl-2.1.html
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * Contributors:
+ *     Thibaud Arguillere
+ */
+package org.nuxeo.pdf.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.nuxeo.common.utils.FileUtils;
+import org.nuxeo.ecm.automation.AutomationService;
+import org.nuxeo.ecm.automation.OperationChain;
+import org.nuxeo.ecm.automation.OperationContext;
+import org.nuxeo.ecm.automation.test.EmbeddedAutomationServerFeature;
+import org.nuxeo.ecm.core.api.Blob;
+import org.nuxeo.ecm.core.api.CoreInstance;
+import org.nuxeo.ecm.core.api.CoreSession;
+import org.nuxeo.ecm.core.api.DocumentModel;
+import org.nuxeo.ecm.core.api.impl.blob.FileBlob;
+import org.nuxeo.ecm.core.api.security.ACE;
+import org.nuxeo.ecm.core.api.security.ACL;
+import org.nuxeo.ecm.core.api.security.ACP;
+import org.nuxeo.ecm.core.api.security.SecurityConstants;
+import org.nuxeo.ecm.core.test.CoreFeature;
+import org.nuxeo.ecm.core.work.api.WorkManager;
+import org.nuxeo.ecm.platform.test.PlatformFeature;
+import org.nuxeo.ecm.platform.usermanager.UserManager;
+import org.nuxeo.pdf.operations.BulkOp;
+import org.nuxeo.pdf.operations.JobResultOp;
+import org.nuxeo.pdf.operations.JobStatusOp;
+import org.nuxeo.pdf.operations.RunAsyncOp;
+import org.nuxeo.pdf.operations.WatermarkWithTextOp;
+import org.nuxeo.pdf.work.PDFJobStatus;
+import org.nuxeo.pdf.work.PDFJobStore;
+import org.nuxeo.pdf.work.PDFWork;
+import org.nuxeo.runtime.test.runner.Deploy;
+import org.nuxeo.runtime.test.runner.Features;
+import org.nuxeo.runtime.test.runner.FeaturesRunner;
+
+import com.google.inject.Inject;
+
+@RunWith(FeaturesRunner.class)
+@Features({ PlatformFeature.class, CoreFeature.class,
+        EmbeddedAutomationServerFeature.class })
+@Deploy({ "nuxeo-pdf-utils-plugin" })
+public class PDFWorkTest {
+
+    private static final String THE_PDF = "files/13-pages-no-page-numbers.pdf";
+
+    protected TestUtils utils;
+
+    @Inject
+    CoreSession coreSession;
+
+    @Inject
+    AutomationService automationService;
+
+    @Inject
+    WorkManager workManager;
+
+    @Inject
+    UserManager userManager;
+
+    @Before
+    public void setup() {
+        utils = new TestUtils();
+    }
+
+    @After
+    public void cleanup() {
+        utils.cleanup();
+    }
+
+    protected Blob runOnJob(String inOperationId, String inJobId)
+            throws Exception {
+        return runOnJob(coreSession, inOperationId, inJobId);
+    }
+
+    protected Blob runOnJob(CoreSession inSession, String inOperationId,
+            String inJobId) throws Exception {
+
+        OperationContext ctx = new OperationContext(inSession);
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(inOperationId).set("jobId", inJobId);
+        return (Blob) automationService.run(ctx, chain);
+    }
+
+    @Test
+    public void testRunAsync() throws Exception {
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(new FileBlob(FileUtils.getResourceFileFromContext(THE_PDF)));
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(RunAsyncOp.ID).set("operationId", WatermarkWithTextOp.ID).set(
+                "parameters", "watermark=CONFIDENTIAL");
+
+        Blob status = (Blob) automationService.run(ctx, chain);
+        assertEquals("application/json", status.getMimeType());
+        String jobId = (String) ctx.get(RunAsyncOp.JOB_ID_VAR);
+        assertNotNull(jobId);
+        assertTrue(status.getString().indexOf(jobId) > -1);
+
+        assertTrue(workManager.awaitCompletion(20, TimeUnit.SECONDS));
+
+        PDFJobStatus jobStatus = PDFJobStore.get(jobId);
+        assertEquals(PDFJobStatus.State.COMPLETED, jobStatus.getState());
+        assertEquals(13, jobStatus.getPages());
+        assertTrue(runOnJob(JobStatusOp.ID, jobId).getString().indexOf(
+                "\"state\":\"completed\"") > -1);
+
+        Blob result = runOnJob(JobResultOp.ID, jobId);
+        PDDocument doc = PDDocument.load(result.getStream());
+        utils.track(doc);
+        assertEquals(13, doc.getNumberOfPages());
+        assertTrue(utils.extractText(doc, 1, 1).indexOf("CONFIDENTIAL") > -1);
+        doc.close();
+        utils.untrack(doc);
+
+        PDFJobStore.remove(jobId);
+        assertNull(PDFJobStore.get(jobId));
+    }
+
+    @Test
+    public void testFailedJob() throws Exception {
+
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(new FileBlob(FileUtils.getResourceFileFromContext(THE_PDF)));
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(RunAsyncOp.ID).set("operationId", "PDF.NoSuchOperation");
+        automationService.run(ctx, chain);
+        String jobId = (String) ctx.get(RunAsyncOp.JOB_ID_VAR);
+
+        assertTrue(workManager.awaitCompletion(20, TimeUnit.SECONDS));
+        assertEquals(PDFJobStatus.State.FAILED,
+                PDFJobStore.get(jobId).getState());
+        try {
+            runOnJob(JobResultOp.ID, jobId);
+            fail("Expected a failure");
+        } catch (Exception e) {
+            // Expected: The job failed
+        }
+    }
+
+    @Test
+    public void testRejectsNonPDFOperation() throws Exception {
+
+        String[] rejected = { "Document.Delete", "ExtractTextFromPDF",
+                RunAsyncOp.ID, BulkOp.ID, JobResultOp.ID };
+        for (String operationId : rejected) {
+            OperationContext ctx = new OperationContext(coreSession);
+            ctx.setInput(new FileBlob(
+                    FileUtils.getResourceFileFromContext(THE_PDF)));
+            OperationChain chain = new OperationChain("testChain");
+            chain.add(RunAsyncOp.ID).set("operationId", operationId);
+            try {
+                automationService.run(ctx, chain);
+                fail(operationId + " should be rejected");
+            } catch (Exception e) {
+                // Expected
+            }
+            assertNull(ctx.get(RunAsyncOp.JOB_ID_VAR));
+        }
+    }
+
+    protected void createUser(String inName) {
+
+        if (userManager.getUserModel(inName) == null) {
+            DocumentModel user = userManager.getBareUserModel();
+            user.setPropertyValue("user:username", inName);
+            userManager.createUser(user);
+        }
+    }
+
+    @Test
+    public void testJobReadableByOwnerAndAdministrators() throws Exception {
+
+        createUser("jdoe");
+
+        // Scheduled by Administrator
+        OperationContext ctx = new OperationContext(coreSession);
+        ctx.setInput(new FileBlob(FileUtils.getResourceFileFromContext(THE_PDF)));
+        OperationChain chain = new OperationChain("testChain");
+        chain.add(RunAsyncOp.ID).set("operationId", WatermarkWithTextOp.ID).set(
+                "parameters", "watermark=CONFIDENTIAL");
+        automationService.run(ctx, chain);
+        String adminJobId = (String) ctx.get(RunAsyncOp.JOB_ID_VAR);
+
+        // Scheduled by jdoe
+        PDFJobStatus userJob = PDFWork.schedule(null, "jdoe",
+                WatermarkWithTextOp.ID, null, new FileBlob(
+                        FileUtils.getResourceFileFromContext(THE_PDF)));
+        assertEquals("jdoe", userJob.getOwner());
+
+        assertTrue(workManager.awaitCompletion(20, TimeUnit.SECONDS));
+        assertEquals(PDFJobStatus.State.COMPLETED,
+                PDFJobStore.get(adminJobId).getState());
+        assertEquals(PDFJobStatus.State.COMPLETED,
+                PDFJobStore.get(userJob.getId()).getState());
+
+        CoreSession userSession = CoreInstance.openCoreSession(
+                coreSession.getRepositoryName(), "jdoe");
+        try {
+            for (String operationId : new String[] { JobStatusOp.ID,
+                    JobResultOp.ID }) {
+                try {
+                    runOnJob(userSession, operationId, adminJobId);
+                    fail("jdoe should not read the job of Administrator");
+                } catch (Exception e) {
+                    // Expected
+                }
+                assertNotNull(runOnJob(userSession, operationId,
+                        userJob.getId()));
+            }
+        } finally {
+            CoreInstance.getInstance().close(userSession);
+        }
+
+        // Administrators read every job
+        assertNotNull(runOnJob(JobStatusOp.ID, userJob.getId()));
+        assertNotNull(runOnJob(JobResultOp.ID, userJob.getId()));
+
+        PDFJobStore.remove(adminJobId);
+        PDFJobStore.remove(userJob.getId());
+    }
+
+    @Test
+    public void testRejectsUnreadableDocument() throws Exception {
+
+        createUser("jdoe");
+
+        FileBlob blob = new FileBlob(
+                FileUtils.getResourceFileFromContext(THE_PDF));
+        DocumentModel doc = coreSession.createDocumentModel("/", "secret",
+                "File");
+        doc.setPropertyValue("file:content", blob);
+        doc = coreSession.createDocument(doc);
+        ACP acp = doc.getACP();
+        ACL acl = acp.getOrCreateACL();
+        acl.add(new ACE(SecurityConstants.EVERYONE,
+                SecurityConstants.EVERYTHING, false));
+        doc.setACP(acp, true);
+        coreSession.save();
+
+        CoreSession userSession = CoreInstance.openCoreSession(
+                coreSession.getRepositoryName(), "jdoe");
+        try {
+            assertFalse(userSession.hasPermission(doc.getRef(),
+                    SecurityConstants.READ));
+
+            // Rejected when scheduling
+            OperationContext ctx = new OperationContext(userSession);
+            ctx.setInput(doc);
+            OperationChain chain = new OperationChain("testChain");
+            chain.add(RunAsyncOp.ID).set("operationId",
+                    WatermarkWithTextOp.ID).set("parameters",
+                    "watermark=CONFIDENTIAL");
+            try {
+                automationService.run(ctx, chain);
+                fail("The document should not be readable");
+            } catch (Exception e) {
+                // Expected
+            }
+            assertNull(ctx.get(RunAsyncOp.JOB_ID_VAR));
+        } finally {
+            CoreInstance.getInstance().close(userSession);
+        }
+
+        // The job runs as the user who scheduled it, not as system
+        List<String> ids = new ArrayList<String>();
+        ids.add(doc.getId());
+        PDFJobStatus status = PDFWork.scheduleOnDocuments(
+                coreSession.getRepositoryName(), "jdoe",
+                WatermarkWithTextOp.ID, null, ids, false);
+        assertTrue(workManager.awaitCompletion(20, TimeUnit.SECONDS));
+        assertEquals(PDFJobStatus.State.FAILED,
+                PDFJobStore.get(status.getId()).getState());
+        PDFJobStore.remove(status.getId());
+    }
+}
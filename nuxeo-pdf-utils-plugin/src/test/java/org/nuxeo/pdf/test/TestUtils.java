@@ -16,9 +16,13 @@
  */
 package org.nuxeo.pdf.test;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
 import org.apache.pdfbox.pdmodel.PDDocument;
@@ -119,6 +123,37 @@ public class TestUtils {
         return md5;
     }
 
+    /*
+     * Every entry of the cross reference section of the update starting at
+     * inUpdateStart points to its object ("N G obj")
+     */
+    public void checkXrefOffsets(byte[] inPdf, int inUpdateStart) {
+
+        String update = new String(inPdf, inUpdateStart, inPdf.length
+                - inUpdateStart, StandardCharsets.ISO_8859_1);
+        String xref = update.substring(update.lastIndexOf("\nxref\n") + 6,
+                update.lastIndexOf("trailer"));
+        long number = 0;
+        int count = 0;
+        for (String line : xref.split("\r?\n")) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length == 2) {
+                number = Long.parseLong(parts[0]);
+            } else if (parts.length == 3) {
+                if ("n".equals(parts[2])) {
+                    int offset = Integer.parseInt(parts[0]);
+                    String object = number + " "
+                            + Integer.parseInt(parts[1]) + " obj";
+                    assertEquals(object, new String(inPdf, offset,
+                            object.length(), StandardCharsets.ISO_8859_1));
+                    count += 1;
+                }
+                number += 1;
+            }
+        }
+        assertTrue(count > 0);
+    }
+
     /*
      * This one is for local test with human checking :-). Requires inFolderName
      * to exist on your Desktop